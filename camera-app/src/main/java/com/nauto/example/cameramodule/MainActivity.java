@@ -1,6 +1,7 @@
 package com.nauto.example.cameramodule;
 
 import com.nauto.camera.CameraStore;
+import com.nauto.camera.ExtractionScheduler;
 import com.nauto.camera.base.CameraModule;
 import com.nauto.example.cameramodule.camera.Camera0;
 import com.nauto.example.cameramodule.camera.Camera1;
@@ -40,6 +41,7 @@ public class MainActivity extends Activity {
     private BroadcastReceiver mExternalStorageListener;
     private ScheduledExecutorService mThreadPool;
     private ScheduledFuture<?> mCaptureRunner;
+    private ExtractionScheduler mExtractionScheduler;
     private int snapshotCount;
     private String mFileName;
 
@@ -132,6 +134,7 @@ public class MainActivity extends Activity {
         }
 
         mThreadPool = Executors.newScheduledThreadPool(1);
+        mExtractionScheduler = new ExtractionScheduler(getApplicationContext());
 
     }
 
@@ -156,23 +159,29 @@ public class MainActivity extends Activity {
 
     private void extractVideoAsFile(long timeBeforeMs, long extractVideoLenMs) {
         Log.d(TAG, "scheduled capture task");
-        long t = System.currentTimeMillis();
-        try {
-            final String path = new File(getCacheDir(), "v_" + count).getAbsolutePath() + ".mp4";
-            long start = t - timeBeforeMs;
-            long end = start + extractVideoLenMs;
-            Log.d(TAG, "extractVideoAsFile " + count + ": " + start + ", " + end + " to " + path);
-            boolean b = CameraStore.extractVideoAsFile(getApplicationContext(), "0", start, end, path);
-            long dt = System.currentTimeMillis() - t;
-            if (b) {
-                Log.d(TAG, "extracted file " + path + " in" + dt + " ms");
-                count++;
-            } else {
-                Log.d(TAG, "failed to extract file " + path);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        long start = System.currentTimeMillis() - timeBeforeMs;
+        long end = start + extractVideoLenMs;
+        final String path = new File(getCacheDir(), "v_" + count).getAbsolutePath() + ".mp4";
+        Log.d(TAG, "extractVideoAsFile " + count + ": " + start + ", " + end + " to " + path);
+        count++;
+        mExtractionScheduler.submit("0", start, end, path, ExtractionScheduler.PRIORITY_BACKGROUND,
+                new ExtractionScheduler.Listener() {
+                    @Override
+                    public void onStageCompleted(ExtractionScheduler.Job job, int stage, long elapsedMs) {
+                        dbg(TAG, "extract " + path + " stage " + stage + ": " + elapsedMs + " ms");
+                    }
+
+                    @Override
+                    public void onCompleted(ExtractionScheduler.Job job, boolean success) {
+                        if (success) {
+                            Log.d(TAG, "extracted file " + path + " in "
+                                    + job.getStageTimeMs(ExtractionScheduler.STAGE_READ) + " ms read, "
+                                    + job.getStageTimeMs(ExtractionScheduler.STAGE_CUT) + " ms cut");
+                        } else {
+                            Log.d(TAG, "failed to extract file " + path);
+                        }
+                    }
+                });
     }
 
     private void saveSnaphotAsFile() {
@@ -206,6 +215,10 @@ public class MainActivity extends Activity {
             mThreadPool.shutdown();
             mThreadPool = null;
         }
+        if (mExtractionScheduler != null) {
+            mExtractionScheduler.shutdown();
+            mExtractionScheduler = null;
+        }
 
         if (mServiceListener != null) {
             getApplication().unregisterReceiver(mServiceListener);
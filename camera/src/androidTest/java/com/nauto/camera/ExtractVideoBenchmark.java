@@ -0,0 +1,73 @@
+package com.nauto.camera;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.nauto.camera.mp4.Mp4Remuxer;
+
+/**
+ * Clip extraction time of the MediaExtractor/MediaMuxer path against Mp4Remuxer, on the newest
+ * recorded original videos. Needs a few minutes of recordings of camera 0 on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExtractVideoBenchmark {
+    private static final String TAG = "ExtractVideoBenchmark";
+    private static final int[] WINDOW_MINUTES = {1, 3, 5};
+    private static final int REPEAT = 3;
+
+    @Test
+    public void compareExtraction() throws IOException {
+        Context app = InstrumentationRegistry.getTargetContext();
+        SegmentIndex index = CameraStore.getSegmentIndex(app, "0");
+        if (index == null || index.size() == 0) {
+            MediaUtils.skipTest(TAG, "no original videos recorded");
+            return;
+        }
+        File out = new File(Utils.getMediaRoot(app), "benchmark.mp4");
+        ReportLog log = new ReportLog();
+        long newestEnd = index.getNewestEnd();
+        for (int minutes : WINDOW_MINUTES) {
+            long end = newestEnd - 1000;
+            long start = end - minutes * 60 * 1000L;
+            List<String> items = new ArrayList<>();
+            long[] cuts = CameraStore.getOriginalVideosListInTimeRange(app, "0", items, start, end);
+            if (items.size() == 0 || cuts[2] > minutes * 30 * 1000L) {
+                Log.w(TAG, "not enough recordings for " + minutes + " min window");
+                continue;
+            }
+            double[] muxer = new double[REPEAT];
+            double[] remuxer = new double[REPEAT];
+            for (int i = 0; i < REPEAT; i++) {
+                long t = System.nanoTime();
+                CameraStore.muxVideoAsFile(items, cuts, out.getPath());
+                muxer[i] = (System.nanoTime() - t) / 1e6;
+                out.delete();
+                t = System.nanoTime();
+                Mp4Remuxer.extractVideoAsFile(items, cuts, out.getPath());
+                remuxer[i] = (System.nanoTime() - t) / 1e6;
+                out.delete();
+            }
+            log.printArray("MediaMuxer " + minutes + " min", muxer, ResultType.LOWER_BETTER, ResultUnit.MS);
+            log.printArray("Mp4Remuxer " + minutes + " min", remuxer, ResultType.LOWER_BETTER, ResultUnit.MS);
+            Log.i(TAG, minutes + " min, " + items.size() + " segments: MediaMuxer " + median(muxer)
+                    + " ms, Mp4Remuxer " + median(remuxer) + " ms");
+        }
+    }
+
+    private static double median(double[] values) {
+        double[] v = values.clone();
+        Arrays.sort(v);
+        return v[v.length / 2];
+    }
+}
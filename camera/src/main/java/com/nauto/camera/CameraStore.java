@@ -1,17 +1,28 @@
 package com.nauto.camera;
 
 import com.nauto.camera.base.CameraModule;
+import com.nauto.camera.mp4.FrameTimeline;
+import com.nauto.camera.mp4.KeyframeIndex;
+import com.nauto.camera.mp4.Mp4Recovery;
+import com.nauto.camera.mp4.Mp4Remuxer;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.ContentResolver;
@@ -51,9 +62,80 @@ public class CameraStore {
     public static final String EXTERNAL_ORIGINAL_VIDEO_FILE_PATTERN = "*/0_*.mp4";
     public static final String EXTRACTED_VIDEO_FILE_PATTERN = "*/ex_[01]_*.mp4";
     public static final String SNAPSHOT_FILE_PATTERN = "*/[01]_*.jpg";
+    // directory of the face telemetry day files under the media root
+    public static final String FACE_TELEMETRY_DIRECTORY = "faceTelemetry";
 
     private static AtomicBoolean isTrimmingOriginal = new AtomicBoolean(false);
 
+    // extract clips with Mp4Remuxer instead of MediaExtractor/MediaMuxer
+    private static final boolean USE_REMUXER = true;
+
+    // serve repeated extractions of the same window from ClipCache
+    private static final boolean USE_CLIP_CACHE = true;
+    private static final long CLIP_CACHE_SIZE = 512 * MB_TO_BYTE;
+    static final String CLIP_CACHE_VIDEO_PARAMS = "remux";
+    static final String CLIP_CACHE_EXACT_VIDEO_PARAMS = "exact";
+
+    // rebuild the moov of original videos cut off by a power loss or a failed recorder stop
+    private static final boolean RECOVER_ORIGINAL_VIDEOS = true;
+
+    // read the original video being recorded when an extraction reaches past the finished ones
+    private static final boolean EXTRACT_FROM_ACTIVE_VIDEO = true;
+    private static final HashMap<String, Mp4Recovery> sActiveVideoRecoveries = new HashMap<>();
+
+    // options of the original video store the camera service starts with, see setStoreOptions
+    private static final String STORE_OPTIONS_FILE = "store.options";
+    // {loop recording, shard original videos}, until the camera service sets them
+    private static final boolean[] DEFAULT_STORE_OPTIONS = {false, true};
+    private static final Object sStoreOptionsLock = new Object();
+    private static File sStoreOptionsFile;
+    private static long sStoreOptionsModified;
+    private static boolean[] sStoreOptions = DEFAULT_STORE_OPTIONS;
+
+    private static final long LOOP_CONTAINER_SIZE = 8 * GB_TO_BYTE;
+    private static final int LOOP_CONTAINER_RECORDS = 4096;
+
+    // slot length and since when, per camera, of original videos cut at wall clock multiples
+    private static final long[][] sSegmentSlots = new long[2][];
+    private static final long[] sSegmentSlotsModified = new long[2];
+    // how long after the end of a slot its video is finished and registered
+    private static final long SLOT_SETTLE_TIME = 10000;
+
+    // plan deletions with RetentionEngine: quotas, maximum ages and original videos kept around events
+    private static final boolean RETENTION_POLICY = true;
+    // how long the original videos around an extracted clip or a snapshot are kept
+    private static final long EVENT_PIN_DURATION = 7 * 24 * 3600 * 1000L;
+    // time around a snapshot that is kept
+    private static final long SNAPSHOT_PIN_MARGIN = 30 * 1000;
+    // hand trimmed files to DeletionWorker, paced by the write latency of the recorder
+    private static final boolean THROTTLE_DELETION = true;
+    private static final Object sRetentionLock = new Object();
+    private static RetentionEngine sRetentionEngine;
+    private static long sRetentionPinsModified;
+
+    // writes the keyframe indexes of finished original videos
+    private static final ExecutorService sKeyframeIndexer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, TAG + "-keyframes");
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+    // recovers the original videos the recorder did not finish, off the recording path
+    private static final ExecutorService sRecoverer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, TAG + "-recovery");
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    private static final StorageGovernor sStorageGovernor = new StorageGovernor();
+    // newest segment start accounted for by the governor, per camera
+    private static final long[] sGovernorNewestStart = {Long.MIN_VALUE, Long.MIN_VALUE};
+
     final static String[] VIDEO_FIELDS = {
             MediaStore.Video.Media._ID,
             MediaStore.Video.Media.MIME_TYPE,
@@ -109,12 +191,27 @@ public class CameraStore {
      * @throws IOException
      */
     public static boolean extractVideoAsFile(Context ctx, String cameraId, long start, long end, String outVideo) throws IOException {
+        if (isLoopRecording(ctx)) {
+            return extractLoopVideoAsFile(ctx, cameraId, start, end, false, outVideo, null);
+        }
+        File out = new File(outVideo);
+        ClipCache cache = getClipCache(ctx);
+        if (cache != null && cache.get(cameraId, start, end, CLIP_CACHE_VIDEO_PARAMS, "mp4", out)) {
+            registerExtractedMedia(ctx, out, new VideoMetadata(start, end, outVideo, cameraId), null);
+            return true;
+        }
         List<String> items = new LinkedList<>();
         long[] cuts = getOriginalVideosListInTimeRange(ctx, cameraId, items, start, end);
+        boolean active = appendActiveOriginalVideo(ctx, cameraId, items, null, cuts, start, end);
         if (items.size() > 0) {
-            boolean result = extractVideoAsFile(items, cuts, outVideo);
+            boolean result = active ? extractActiveVideoAsFile(ctx, cameraId, items, cuts, outVideo)
+                    : extractVideoAsFile(items, cuts, outVideo);
+            // a clip of the video being recorded grows until the recording is finished
+            if (result && cache != null && !active && isRecorded(ctx, cameraId, end)) {
+                cache.put(cameraId, start, end, CLIP_CACHE_VIDEO_PARAMS, "mp4", out);
+            }
             VideoMetadata metadata = new VideoMetadata(start, end, outVideo, cameraId);
-            registerExtractedMedia(ctx, new File(outVideo), metadata, null);
+            registerExtractedMedia(ctx, out, metadata, null);
             return result;
         } else {
             Log.e(TAG, "no videos found for time interval " + start + "-" + end);
@@ -122,6 +219,68 @@ public class CameraStore {
         return false;
     }
 
+    /**
+     * Compose a video that plays exactly the given time range. The clip keeps the samples from the
+     * keyframe before the start and an edit list skips them, missing time plays as empty edits.
+     * Warning: it is a blocking call.
+     *
+     * @param ctx      app context
+     * @param cameraId camera id
+     * @param start    start time in milliseconds
+     * @param end      end time in milliseconds
+     * @param outVideo output file name
+     * @throws IOException
+     */
+    public static boolean extractVideoAsFileFrameAccurate(Context ctx, String cameraId, long start, long end, String outVideo) throws IOException {
+        if (isLoopRecording(ctx)) {
+            return extractLoopVideoAsFile(ctx, cameraId, start, end, true, outVideo, null);
+        }
+        SegmentIndex index = getSegmentIndex(ctx, cameraId);
+        if (index == null) {
+            return extractVideoAsFile(ctx, cameraId, start, end, outVideo);
+        }
+        File out = new File(outVideo);
+        ClipCache cache = getClipCache(ctx);
+        if (cache != null && cache.get(cameraId, start, end, CLIP_CACHE_EXACT_VIDEO_PARAMS, "mp4", out)) {
+            registerExtractedMedia(ctx, out, new VideoMetadata(start, end, outVideo, cameraId), null);
+            return true;
+        }
+        List<String> items = new LinkedList<>();
+        List<Long> starts = new ArrayList<>();
+        long[] cuts = queryIndex(ctx, index, items, starts, start, end);
+        boolean active = appendActiveOriginalVideo(ctx, cameraId, items, starts, cuts, start, end);
+        if (items.size() == 0) {
+            Log.e(TAG, "no videos found for time interval " + start + "-" + end);
+            return false;
+        }
+        long[] segmentStarts = new long[starts.size()];
+        for (int i = 0; i < segmentStarts.length; i++) {
+            segmentStarts[i] = starts.get(i);
+        }
+        resolveSegmentStarts(items, segmentStarts, start, end);
+        boolean result;
+        Mp4Remuxer remuxer = new Mp4Remuxer();
+        if (active) {
+            remuxer.setGrowingInput(getActiveVideoRecovery(ctx, cameraId));
+        }
+        try {
+            result = remuxer.extractExact(items, segmentStarts, start, end, out) > 0;
+        } catch (IOException e) {
+            if (active) {
+                throw e;
+            }
+            Log.e(TAG, "Failed to remux " + outVideo + ", falling back to keyframe cuts: " + e.getMessage());
+            e.printStackTrace();
+            result = muxVideoAsFile(items, cuts, outVideo);
+        }
+        // a clip of the video being recorded grows until the recording is finished
+        if (result && cache != null && !active && isRecorded(ctx, cameraId, end)) {
+            cache.put(cameraId, start, end, CLIP_CACHE_EXACT_VIDEO_PARAMS, "mp4", out);
+        }
+        registerExtractedMedia(ctx, out, new VideoMetadata(start, end, outVideo, cameraId), null);
+        return result;
+    }
+
     /**
      * Compose a video from available image chunks in the given time range.
      * Warning: it is a blocking call.
@@ -136,12 +295,27 @@ public class CameraStore {
      */
     public static boolean extractVideoAsFileAndNotify(Context ctx, String cameraId, long start, long end, String outVideo,
                                                       MediaScannerConnection.OnScanCompletedListener listener) throws IOException {
+        if (isLoopRecording(ctx)) {
+            return extractLoopVideoAsFile(ctx, cameraId, start, end, false, outVideo, listener);
+        }
+        File out = new File(outVideo);
+        ClipCache cache = getClipCache(ctx);
+        if (cache != null && cache.get(cameraId, start, end, CLIP_CACHE_VIDEO_PARAMS, "mp4", out)) {
+            registerExtractedMedia(ctx, out, new VideoMetadata(start, end, outVideo, cameraId), listener);
+            return true;
+        }
         List<String> items = new LinkedList<>();
         long[] cuts = getOriginalVideosListInTimeRange(ctx, cameraId, items, start, end);
+        boolean active = appendActiveOriginalVideo(ctx, cameraId, items, null, cuts, start, end);
         if (items.size() > 0) {
-            boolean result = extractVideoAsFile(items, cuts, outVideo);
+            boolean result = active ? extractActiveVideoAsFile(ctx, cameraId, items, cuts, outVideo)
+                    : extractVideoAsFile(items, cuts, outVideo);
+            // a clip of the video being recorded grows until the recording is finished
+            if (result && cache != null && !active && isRecorded(ctx, cameraId, end)) {
+                cache.put(cameraId, start, end, CLIP_CACHE_VIDEO_PARAMS, "mp4", out);
+            }
             VideoMetadata metadata = new VideoMetadata(start, end, outVideo, cameraId);
-            registerExtractedMedia(ctx, new File(outVideo), metadata, listener);
+            registerExtractedMedia(ctx, out, metadata, listener);
             return result;
         } else {
             Log.e(TAG, "no videos found for time interval " + start + "-" + end);
@@ -157,6 +331,13 @@ public class CameraStore {
         String outVideo = metadata.getFilename();
         int width = metadata.getWidth();
         int quality = metadata.getQuality();
+        File out = new File(outVideo);
+        String params = "w" + width + "q" + quality;
+        ClipCache cache = getClipCache(ctx);
+        if (cache != null && cache.get(cameraId, time, time, params, "jpg", out)) {
+            registerExtractedMedia(ctx, out, metadata, null);
+            return true;
+        }
         long[] cuts = getOriginalVideosListInTimeRange(ctx, cameraId, items, time, time);
         if (items.size() == 0) {
             Log.i(TAG, "No file found for extracting snapshot: " + outVideo);
@@ -164,11 +345,11 @@ public class CameraStore {
         }
         MediaMetadataRetriever retriever = new MediaMetadataRetriever();
         // getFrameAtTime() takes microSecond, so need to convert.
-        long timestampInUs = cuts[0] * 1000;
+        long timestampInUs = getNearestSyncUs(items.get(0), cuts[0] * 1000);
         Log.v(TAG, "Extract frame at " + timestampInUs + " us");
         try {
             retriever.setDataSource(items.get(0));
-            Bitmap bitmap = retriever.getFrameAtTime(timestampInUs);
+            Bitmap bitmap = retriever.getFrameAtTime(timestampInUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
             // getFrameAtTime could return null. If bitmap is null, it means extraction snapshot failed.
             if (bitmap == null) {
                 return false;
@@ -178,7 +359,10 @@ public class CameraStore {
             }
             boolean result = saveBitmap(bitmap, quality, outVideo);
             if (result) {
-                registerExtractedMedia(ctx, new File(outVideo), metadata, null);
+                if (cache != null && isRecorded(ctx, cameraId, time)) {
+                    cache.put(cameraId, time, time, params, "jpg", out);
+                }
+                registerExtractedMedia(ctx, out, metadata, null);
             } else {
                 Log.e(TAG, "Failed to save bitmap into file: " + outVideo);
             }
@@ -186,56 +370,1233 @@ public class CameraStore {
         } finally {
             retriever.release();
         }
-
+
+    }
+
+    public static Bitmap[] extractSnapshotAsBitmap(Context ctx, String cameraId, long time) {
+        List<String> items = new LinkedList();
+        long[] cuts = getOriginalVideosListInTimeRange(ctx, cameraId, items, time, time);
+        if (items.size() == 0) {
+            return null;
+        }
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(items.get(0));
+            Bitmap thumbnail = retriever.getFrameAtTime();
+            Bitmap snapshot = retriever.getFrameAtTime(getNearestSyncUs(items.get(0), cuts[0] * 1000),
+                    MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            return new Bitmap[]{thumbnail, snapshot};
+        } finally {
+            retriever.release();
+        }
+    }
+
+    /**
+     * Keyframe table of an original video, built from the video on the first access if the
+     * recorder did not write it.
+     *
+     * @param path original video file path
+     * @return keyframe index or null if the video can not be parsed
+     */
+    public static KeyframeIndex getKeyframeIndex(String path) {
+        try {
+            return KeyframeIndex.load(path);
+        } catch (IOException e) {
+            Log.e(TAG, "No keyframe index for " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * Time of the keyframe closest to the time, so a frame is decoded without decoding the frames
+     * before it.
+     */
+    private static long getNearestSyncUs(String path, long timeUs) {
+        KeyframeIndex index = getKeyframeIndex(path);
+        int i = index == null ? -1 : index.nearestSync(timeUs);
+        return i < 0 ? timeUs : index.getTimeUs(i);
+    }
+
+    public static void getFileListByPattern(Uri uri, Context ctx, String match, List<FileWithSize> items) {
+
+        final boolean VERBOSE = false;
+        final String DESCRIPTION = MediaStore.Images.Media.EXTERNAL_CONTENT_URI.equals(uri)
+                ? MediaStore.Images.Media.DESCRIPTION
+                : MediaStore.Video.Media.DESCRIPTION;
+        String[] proj = {MediaStore.MediaColumns.DATA, DESCRIPTION, MediaStore.MediaColumns.SIZE};
+        String sel = MediaStore.MediaColumns.DATA + " GLOB ?";
+        String[] selArgs = new String[]{match};
+        String sort = DESCRIPTION + " DESC";
+        Cursor cursor = ctx.getContentResolver().query(uri, proj, sel, selArgs, sort);
+
+        Log.d(TAG, "Number of files found (" + match + "): " + (cursor == null ? 0 : cursor.getCount()));
+        int count = 0;
+        List<String> dead = new ArrayList<>();
+        while (cursor != null && cursor.moveToNext()) {
+            String filePath = cursor.getString(0);
+            if ((new File(filePath)).exists()) {
+                items.add(new FileWithSize(filePath, cursor.getLong(2)));
+                if (VERBOSE) {
+                    Log.d(TAG, "cursor[" + count + "]: " + cursor.getString(0) + ";\t" + new Date(cursor.getLong(1)) + ";\t" + cursor.getLong(2));
+                }
+                count++;
+            } else {
+                dead.add(filePath);
+            }
+        }
+        if (cursor != null) {
+            cursor.close();
+        }
+        // not on the caller's thread
+        DeadRecordCleaner.getInstance(ctx).remove(uri, dead);
+    }
+
+    /**
+     * Collect original videos overlapping the given time range, ordered by start time.
+     *
+     * @param ctx      app context
+     * @param cameraId camera id
+     * @param items    list to receive file paths
+     * @param start    start time in milliseconds
+     * @param end      end time in milliseconds
+     * @return cuts: {offset of start in the first video, offset of end in the last video, missed time}
+     */
+    public static long[] getOriginalVideosListInTimeRange(Context ctx, String cameraId, List<String> items, long start, long end) {
+        long[] cuts = getAlignedOriginalVideos(ctx, cameraId, items, start, end);
+        if (cuts == null) {
+            SegmentIndex index = getSegmentIndex(ctx, cameraId);
+            cuts = index == null ? queryOriginalVideosListInTimeRange(ctx, cameraId, items, start, end)
+                    : queryIndex(ctx, index, items, null, start, end);
+        }
+        return resolveCuts(items, cuts, start, end);
+    }
+
+    /*
+     * Replace the offsets of start and end, assumed from the segment start times, with the ones
+     * the frame timelines of the first and last video give, when the recorder wrote them.
+     */
+    private static long[] resolveCuts(List<String> items, long[] cuts, long start, long end) {
+        if (items.isEmpty()) {
+            return cuts;
+        }
+        FrameTimeline first = getFrameTimeline(items.get(0));
+        long from = first == null ? -1 : first.toMediaTimeUs(start);
+        if (from >= 0) {
+            cuts[0] = from / 1000;
+        }
+        FrameTimeline last = items.size() == 1 ? first : getFrameTimeline(items.get(items.size() - 1));
+        long to = last == null ? -1 : last.toMediaTimeUs(end);
+        if (to >= 0) {
+            cuts[1] = to / 1000;
+        }
+        if (items.size() == 1 && cuts[1] < cuts[0]) {
+            cuts[1] = cuts[0];
+        }
+        return cuts;
+    }
+
+    /*
+     * Wall clock start of every segment as the frame timelines see it at the clip edges, so the
+     * remuxer's offsets land on the samples recorded at start and end.
+     */
+    private static void resolveSegmentStarts(List<String> items, long[] segmentStarts, long start, long end) {
+        for (int i = 0; i < segmentStarts.length; i += Math.max(1, segmentStarts.length - 1)) {
+            FrameTimeline timeline = getFrameTimeline(items.get(i));
+            long time = i == 0 ? Math.max(start, segmentStarts[0]) : end;
+            long mediaUs = timeline == null ? -1 : timeline.toMediaTimeUs(time);
+            if (mediaUs >= 0) {
+                segmentStarts[i] = time - mediaUs / 1000;
+            }
+        }
+    }
+
+    /**
+     * Frame timeline of an original video.
+     *
+     * @param path original video file path
+     * @return timeline or null if the recorder did not write one
+     */
+    public static FrameTimeline getFrameTimeline(String path) {
+        try {
+            return FrameTimeline.load(path);
+        } catch (IOException e) {
+            Log.e(TAG, "Bad frame timeline of " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Face telemetry of the cameras under the media root, see {@link FaceTelemetry#queryFaceCount}
+     * and {@link FaceTelemetry#findIntervals}.
+     *
+     * @param ctx app context
+     * @return store or null if there is no media root
+     */
+    public static FaceTelemetry getFaceTelemetry(Context ctx) {
+        File root = Utils.getMediaRoot(ctx);
+        return root != null ? new FaceTelemetry(new File(root, FACE_TELEMETRY_DIRECTORY)) : null;
+    }
+
+    /*
+     * Videos of a range of slots computed from the slot length. The names are trusted: since the
+     * last break in the recording every slot has a video named by it that covers it, see
+     * setSegmentSlot. Only the first and the last video are checked to exist, trimming takes the
+     * oldest first, and a video missing in between shows when it is opened. Offsets are from the
+     * slot starts, the frame timelines correct them. Null if the camera does not align its videos,
+     * the range is not finished yet or reaches back before the break, or its ends are gone.
+     */
+    private static long[] getAlignedOriginalVideos(Context ctx, String cameraId, List<String> items, long start, long end) {
+        long[] slot = getSegmentSlot(ctx, cameraId);
+        File root = Utils.getMediaRoot(ctx);
+        if (slot == null || root == null || end <= start) {
+            return null;
+        }
+        long length = slot[0];
+        long first = OriginalVideoLayout.getSlotStart(start, length);
+        long last = OriginalVideoLayout.getSlotStart(end - 1, length);
+        // the slot of the break has a video named by its own start
+        if (first < slot[1] || last + length + SLOT_SETTLE_TIME > System.currentTimeMillis()) {
+            return null;
+        }
+        List<String> paths = new ArrayList<>();
+        getOriginalVideoLayout(root).getSlotFiles(cameraId, length, start, end, paths);
+        if (!new File(paths.get(0)).exists() || !new File(paths.get(paths.size() - 1)).exists()) {
+            return null;
+        }
+        items.addAll(paths);
+        Log.d(TAG, items.size() + " aligned items found");
+        return new long[]{Math.max(0, start - first), Math.max(0, end - last), 0};
+    }
+
+    /**
+     * Record that the camera cuts its original videos at wall clock multiples of the slot length
+     * from now on, or that it does not if the length is 0. Called by the camera service before it
+     * starts recording, and again at every break in the recording that leaves a slot without a
+     * video named by it covering it, e.g. a pause or a video started in the middle of its slot, so
+     * the slots before are found through the index.
+     *
+     * @param ctx        app context
+     * @param cameraId   camera id
+     * @param slotLength slot length in milliseconds, 0 if videos are not aligned
+     */
+    public static void setSegmentSlot(Context ctx, String cameraId, long slotLength) {
+        File root = Utils.getMediaRoot(ctx);
+        if (root == null) {
+            return;
+        }
+        File file = OriginalVideoLayout.getSlotFile(root, cameraId);
+        if (slotLength <= 0) {
+            file.delete();
+            return;
+        }
+        // videos named by slots of another length are found through the index
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(file));
+            out.writeLong(slotLength);
+            out.writeLong(System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + file + ": " + e.getMessage());
+            file.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        if ("0".equals(cameraId) || "1".equals(cameraId)) {
+            // read again even if the break is within the resolution of the modification time
+            synchronized (sSegmentSlots) {
+                sSegmentSlotsModified[Integer.parseInt(cameraId)] = -1;
+            }
+        }
+    }
+
+    /*
+     * {slot length, since when} of the camera, or null if it does not align its videos.
+     */
+    private static long[] getSegmentSlot(Context ctx, String cameraId) {
+        File root = Utils.getMediaRoot(ctx);
+        if (root == null || !("0".equals(cameraId) || "1".equals(cameraId))) {
+            return null;
+        }
+        int i = Integer.parseInt(cameraId);
+        File file = OriginalVideoLayout.getSlotFile(root, cameraId);
+        long modified = file.lastModified();
+        synchronized (sSegmentSlots) {
+            if (modified != sSegmentSlotsModified[i]) {
+                sSegmentSlots[i] = null;
+                sSegmentSlotsModified[i] = modified;
+                if (modified != 0) {
+                    DataInputStream in = null;
+                    try {
+                        in = new DataInputStream(new FileInputStream(file));
+                        long length = in.readLong();
+                        long since = in.readLong();
+                        if (length > 0) {
+                            sSegmentSlots[i] = new long[]{length, since};
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to read " + file + ": " + e.getMessage());
+                    } finally {
+                        if (in != null) {
+                            try {
+                                in.close();
+                            } catch (IOException e) {
+                                // ignore
+                            }
+                        }
+                    }
+                }
+            }
+            return sSegmentSlots[i];
+        }
+    }
+
+    /*
+     * Query the segment index, dropping the segments whose files are gone.
+     */
+    private static long[] queryIndex(Context ctx, SegmentIndex index, List<String> items, List<Long> starts, long start, long end) {
+        String cameraId = index.getCameraId();
+        long[] cuts = index.query(items, starts, start, end);
+        List<String> dead = new ArrayList<>();
+        for (String filePath : items) {
+            if (!(new File(filePath)).exists()) {
+                Log.d(TAG, "Removing missing video from index and MediaStore: " + filePath);
+                removeOriginalVideo(ctx, cameraId, filePath);
+                dead.add(filePath);
+            }
+        }
+        if (!dead.isEmpty()) {
+            // the dead MediaStore records too, as the MediaStore query does, not on the caller's thread
+            DeadRecordCleaner.getInstance(ctx).remove(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, dead);
+            items.clear();
+            if (starts != null) {
+                starts.clear();
+            }
+            cuts = index.query(items, starts, start, end);
+        }
+        Log.d(TAG, items.size() + " items found");
+        return cuts;
+    }
+
+    /**
+     * Get the segment index of a camera. The first time it is used in this process the index is
+     * replayed from the segment journal, or loaded from MediaStore if there is no journal yet.
+     * After that the records appended by other processes are applied on each call.
+     *
+     * @param ctx      app context
+     * @param cameraId camera id
+     * @return index or null if camera id is not a single camera
+     */
+    static SegmentIndex getSegmentIndex(Context ctx, String cameraId) {
+        SegmentIndex index = SegmentIndex.forCamera(cameraId);
+        if (index == null) {
+            return null;
+        }
+        synchronized (index) {
+            SegmentJournal journal = getSegmentJournal(ctx, cameraId);
+            try {
+                if (!index.isLoaded()) {
+                    long t = System.currentTimeMillis();
+                    if (journal == null) {
+                        loadSegmentIndex(ctx, index);
+                    } else if (journal.isEmpty()) {
+                        // first run with a journal, migrate from MediaStore
+                        loadSegmentIndex(ctx, index);
+                        journal.rewrite(index);
+                    } else {
+                        journal.load(index);
+                        logTornTail(journal);
+                    }
+                    index.setLoaded(true);
+                    Log.d(TAG, "Loaded " + index + " in " + (System.currentTimeMillis() - t) + " ms");
+                } else if (journal != null) {
+                    // segments are recorded by the camera process, pick up the ones it has added since
+                    journal.sync(index);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Segment journal error " + e.getMessage());
+                e.printStackTrace();
+                if (!index.isLoaded()) {
+                    loadSegmentIndex(ctx, index);
+                    index.setLoaded(true);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Compact the segment journal of a camera and load its index on a background thread. Called
+     * by the camera service at start, so the journal does not grow without bound and a torn tail
+     * left by a power loss is truncated before new records are appended.
+     *
+     * @param ctx      app context
+     * @param cameraId camera id
+     */
+    public static void compactSegmentJournalInBackground(final Context ctx, final String cameraId) {
+        if (SegmentIndex.forCamera(cameraId) == null) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                compactSegmentJournal(ctx, cameraId);
+            }
+        }, "SegmentJournalCompaction" + cameraId);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Compact the segment journal of a camera and load its index.
+     *
+     * @param ctx      app context
+     * @param cameraId camera id
+     */
+    public static void compactSegmentJournal(Context ctx, String cameraId) {
+        SegmentIndex index = SegmentIndex.forCamera(cameraId);
+        if (index == null) {
+            return;
+        }
+        synchronized (index) {
+            SegmentJournal journal = getSegmentJournal(ctx, cameraId);
+            if (journal == null) {
+                return;
+            }
+            long t = System.currentTimeMillis();
+            try {
+                if (journal.isEmpty()) {
+                    loadSegmentIndex(ctx, index);
+                    journal.rewrite(index);
+                } else {
+                    journal.compact(index);
+                    logTornTail(journal);
+                }
+                index.setLoaded(true);
+                Log.d(TAG, "Compacted " + journal.getFile() + " to " + index + " in " + (System.currentTimeMillis() - t) + " ms");
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to compact " + journal.getFile() + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static final SegmentJournal[] sSegmentJournals = {null, null};
+
+    /*
+     * Journal of the camera under the current media root, reopened if the media root has changed.
+     */
+    private static SegmentJournal getSegmentJournal(Context ctx, String cameraId) {
+        File root = Utils.getMediaRoot(ctx);
+        if (root == null) {
+            return null;
+        }
+        int i = Integer.parseInt(cameraId);
+        File file = SegmentJournal.getFile(root, cameraId);
+        synchronized (sSegmentJournals) {
+            SegmentJournal journal = sSegmentJournals[i];
+            if (journal != null && !journal.getFile().equals(file)) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                journal = null;
+                // the index belongs to the old media root
+                SegmentIndex index = SegmentIndex.forCamera(cameraId);
+                index.clear();
+                index.setLoaded(false);
+            }
+            if (journal == null) {
+                try {
+                    journal = new SegmentJournal(file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to open " + file + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+                sSegmentJournals[i] = journal;
+            }
+            return journal;
+        }
+    }
+
+    private static void logTornTail(SegmentJournal journal) {
+        long pos = journal.getTornTailPosition();
+        if (pos >= 0) {
+            Log.w(TAG, "Torn tail in " + journal.getFile() + " at " + pos);
+        }
+    }
+
+    /*
+     * Add all original videos of the index camera from MediaStore.
+     */
+    private static void loadSegmentIndex(Context ctx, SegmentIndex index) {
+        String[] proj = {MediaStore.Video.Media.DATA, MediaStore.Video.Media.DESCRIPTION,
+                MediaStore.Video.Media.DURATION, MediaStore.Video.Media.SIZE};
+        String match = "0".equals(index.getCameraId()) ? EXTERNAL_ORIGINAL_VIDEO_FILE_PATTERN : INTERNAL_ORIGINAL_VIDEO_FILE_PATTERN;
+        String sel = MediaStore.Video.Media.DATA + " GLOB ?";
+        String[] selArgs = new String[]{match};
+        Cursor cursor = ctx.getContentResolver().query(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, proj, sel, selArgs, null);
+        index.clear();
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                String filePath = cursor.getString(0);
+                String desc = cursor.getString(1);
+                if (filePath == null || desc == null) {
+                    continue;
+                }
+                try {
+                    index.add(Long.parseLong(desc), cursor.getLong(2), cursor.getLong(3), filePath);
+                } catch (NumberFormatException ex) {
+                    Log.w(TAG, "Invalid start time " + desc + " of " + filePath);
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Record a finished original video in the segment journal and index.
+     *
+     * @param ctx      app context
+     * @param cameraId camera id
+     * @param path     absolute file path
+     * @param start    start time in milliseconds
+     * @param end      end time in milliseconds
+     */
+    public static void addOriginalVideo(Context ctx, String cameraId, String path, long start, long end) {
+        SegmentIndex index = SegmentIndex.forCamera(cameraId);
+        if (index == null) {
+            return;
+        }
+        long size = new File(path).length();
+        indexKeyframesInBackground(path);
+        synchronized (index) {
+            SegmentJournal journal = getSegmentJournal(ctx, cameraId);
+            try {
+                if (journal != null) {
+                    journal.add(index, start, end - start, size, path);
+                    return;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to journal " + path + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+            index.add(start, end - start, size, path);
+        }
+    }
+
+    /*
+     * Write the keyframe index of a video on the indexer thread. Readers parse the video until
+     * it is there.
+     */
+    private static void indexKeyframesInBackground(final String path) {
+        sKeyframeIndexer.execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(path);
+                File kf = KeyframeIndex.getFile(path);
+                try {
+                    KeyframeIndex.build(file).write(kf);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to index keyframes of " + path + ": " + e.getMessage());
+                }
+                // trimmed or moved meanwhile
+                if (!file.exists()) {
+                    kf.delete();
+                }
+            }
+        });
+    }
+
+    /*
+     * Record a deleted original video in the segment journal and index.
+     */
+    private static void removeOriginalVideo(Context ctx, String cameraId, String path) {
+        SegmentIndex index = SegmentIndex.forCamera(cameraId);
+        synchronized (index) {
+            SegmentJournal journal = getSegmentJournal(ctx, cameraId);
+            try {
+                if (journal != null) {
+                    journal.remove(index, path);
+                    return;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to journal removal of " + path + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+            index.remove(path);
+        }
+    }
+
+    /**
+     * @return layout of the original videos under the media root
+     */
+    public static OriginalVideoLayout getOriginalVideoLayout(File mediaRoot) {
+        return new OriginalVideoLayout(mediaRoot, getStoreOptions(mediaRoot)[1]);
+    }
+
+    /**
+     * Move the original videos of a camera left in the flat layout into their shards on a
+     * background thread, updating the MediaStore and the segment journal. Trimming waits for it.
+     *
+     * @param cameraModule camera service
+     * @param cameraId     camera id
+     */
+    public static void migrateOriginalVideosInBackground(CameraModule cameraModule, final String cameraId) {
+        final Context ctx = cameraModule.getApplicationContext();
+        File root = Utils.getMediaRoot(ctx);
+        if (root == null || !getStoreOptions(root)[1]) {
+            return;
+        }
+        final OriginalVideoLayout layout = getOriginalVideoLayout(root);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!isTrimmingOriginal.compareAndSet(false, true)) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                try {
+                    long t = System.currentTimeMillis();
+                    int count = layout.migrate(cameraId, new OriginalVideoLayout.Listener() {
+                        @Override
+                        public void onMoved(File from, File to) {
+                            moveOriginalVideo(ctx, cameraId, from.getAbsolutePath(), to.getAbsolutePath());
+                        }
+                    });
+                    if (count > 0) {
+                        Log.i(TAG, "Moved " + count + " original videos of camera " + cameraId + " into shards in "
+                                + (System.currentTimeMillis() - t) + " ms");
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to move original videos into shards: " + e.getMessage());
+                    e.printStackTrace();
+                } finally {
+                    isTrimmingOriginal.set(false);
+                }
+            }
+        }, "OriginalVideoMigration" + cameraId);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /*
+     * Point the MediaStore record and the segment journal of an original video to its new path.
+     */
+    private static void moveOriginalVideo(Context ctx, String cameraId, String from, String to) {
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DATA, to);
+        ctx.getContentResolver().update(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, values,
+                MediaStore.MediaColumns.DATA + "=?", new String[]{from});
+        SegmentIndex index = getSegmentIndex(ctx, cameraId);
+        if (index == null) {
+            return;
+        }
+        // the retention engine follows the index
+        synchronized (index) {
+            int i = index.indexOf(from);
+            if (i < 0) {
+                return;
+            }
+            long start = index.getStartAt(i);
+            long duration = index.getDurationAt(i);
+            long size = index.getSizeAt(i);
+            SegmentJournal journal = getSegmentJournal(ctx, cameraId);
+            boolean journaled = false;
+            try {
+                if (journal != null) {
+                    journal.remove(index, from);
+                    journal.add(index, start, duration, size, to);
+                    journaled = true;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to journal move of " + from + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+            if (!journaled) {
+                index.remove(from);
+                index.add(start, duration, size, to);
+            }
+        }
+    }
+
+    /**
+     * Recover the original videos of a camera that the recorder did not finish, e.g. after a power
+     * loss, on a background thread, then move the videos left in the flat layout into shards.
+     * Called by the camera service at start, recording begins meanwhile.
+     *
+     * @param cameraModule camera service
+     * @param cameraId     camera id
+     * @param frameRate    recording frame rate
+     */
+    public static void recoverOriginalVideosInBackground(final CameraModule cameraModule, final String cameraId,
+                                                         final int frameRate) {
+        // the videos recorded from now on are not left over
+        final long before = System.currentTimeMillis();
+        sRecoverer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recoverOriginalVideos(cameraModule, cameraId, frameRate, before);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to recover original videos: " + e.getMessage());
+                    e.printStackTrace();
+                }
+                // after recovery, so the two do not work on the same files
+                migrateOriginalVideosInBackground(cameraModule, cameraId);
+            }
+        });
+    }
+
+    /**
+     * Recover the original videos of a camera that the recorder did not finish, e.g. after a power
+     * loss.
+     *
+     * @param cameraModule camera service
+     * @param cameraId     camera id
+     * @param frameRate    recording frame rate
+     * @param before       only videos started before this time in milliseconds, not the ones
+     *                     being recorded
+     * @return number of recovered videos
+     */
+    public static int recoverOriginalVideos(CameraModule cameraModule, String cameraId, int frameRate, long before) {
+        Context ctx = cameraModule.getApplicationContext();
+        SegmentIndex index = getSegmentIndex(ctx, cameraId);
+        File root = Utils.getMediaRoot(ctx);
+        if (!RECOVER_ORIGINAL_VIDEOS || index == null || root == null) {
+            return 0;
+        }
+        OriginalVideoLayout layout = getOriginalVideoLayout(root);
+        List<File> dirs = layout.getShards();
+        if (layout.isSharded()) {
+            // not migrated yet
+            dirs.add(layout.getDirectory());
+        }
+        long t = System.currentTimeMillis();
+        String prefix = cameraId + "_";
+        int count = 0;
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(prefix) || !name.endsWith(".mp4") || OriginalVideoLayout.getStart(name) >= before
+                        || index.indexOf(file.getAbsolutePath()) >= 0) {
+                    continue;
+                }
+                try {
+                    if (!Mp4Recovery.isTruncated(file)) {
+                        continue;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to check " + file + ": " + e.getMessage());
+                    continue;
+                }
+                if (recoverOriginalVideo(cameraModule, cameraId, file.getAbsolutePath(), frameRate)) {
+                    count++;
+                }
+            }
+        }
+        Log.d(TAG, "Recovered " + count + " original videos of camera " + cameraId + " in " + (System.currentTimeMillis() - t) + " ms");
+        return count;
+    }
+
+    /**
+     * Rebuild the moov of an original video the recorder did not finish and add it to the store,
+     * on the recovery thread.
+     *
+     * @param cameraModule camera service
+     * @param cameraId     camera id
+     * @param path         absolute file path, named by the start time in milliseconds
+     * @param frameRate    recording frame rate
+     */
+    public static void recoverOriginalVideoInBackground(final CameraModule cameraModule, final String cameraId,
+                                                        final String path, final int frameRate) {
+        sRecoverer.execute(new Runnable() {
+            @Override
+            public void run() {
+                recoverOriginalVideo(cameraModule, cameraId, path, frameRate);
+            }
+        });
+    }
+
+    /**
+     * Rebuild the moov of an original video the recorder did not finish and add it to the store.
+     * The sample description is taken from the newest indexed video of the camera. The file and
+     * its sidecars are deleted if it holds no video frames. It is kept for a later attempt if
+     * there is no indexed video yet or it can not be read, and deleted right away if recovery is
+     * off.
+     *
+     * @param cameraModule camera service
+     * @param cameraId     camera id
+     * @param path         absolute file path, named by the start time in milliseconds
+     * @param frameRate    recording frame rate
+     * @return true if the video was recovered
+     */
+    public static boolean recoverOriginalVideo(CameraModule cameraModule, String cameraId, String path, int frameRate) {
+        Context ctx = cameraModule.getApplicationContext();
+        SegmentIndex index = RECOVER_ORIGINAL_VIDEOS ? getSegmentIndex(ctx, cameraId) : null;
+        if (index == null) {
+            deleteUnrecoverable(path);
+            return false;
+        }
+        File reference = getReferenceVideo(index, path);
+        if (reference == null) {
+            Log.w(TAG, "No video to recover " + path + " from");
+            return false;
+        }
+        File file = new File(path);
+        try {
+            String fileName = file.getName();
+            long start = Long.parseLong(fileName.substring(fileName.indexOf('_') + 1, fileName.length() - 4));
+            long durationUs = Mp4Recovery.fromReference(reference, frameRate).recover(file);
+            if (durationUs > 0) {
+                long end = start + durationUs / 1000;
+                VideoMetadata metadata = new VideoMetadata(start, end, fileName, cameraId);
+                Log.i(TAG, "Recovered video: " + metadata.toString());
+                cameraModule.registerMediaFile(path, metadata);
+                addOriginalVideo(ctx, cameraId, path, start, end);
+                return true;
+            }
+            Log.w(TAG, "No video frames in " + path);
+            deleteUnrecoverable(path);
+        } catch (IOException | RuntimeException e) {
+            // keep the file, a read error may be transient and a parser bug may get fixed
+            Log.e(TAG, "Failed to recover " + path + ", keeping it: " + e.getMessage());
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private static void deleteUnrecoverable(String path) {
+        File file = new File(path);
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "IO error deleting unrecoverable video " + path);
+        }
+        deleteSidecars(path);
+    }
+
+    /*
+     * Newest indexed original video that still exists, other than the excluded one, or null.
+     */
+    private static File getReferenceVideo(SegmentIndex index, String exclude) {
+        // recovery runs while recording adds and trimming removes videos
+        synchronized (index) {
+            for (int i = index.size() - 1; i >= 0; i--) {
+                File f = new File(index.getPathAt(i));
+                if (f.exists() && !f.getAbsolutePath().equals(exclude)) {
+                    return f;
+                }
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Start time in milliseconds from the name of an original video, -1 if the name has none.
+     */
+    private static long getOriginalVideoStart(String path) {
+        return OriginalVideoLayout.getStart(new File(path).getName());
+    }
+
+    /*
+     * Newest original video of the camera that is not indexed and has no moov yet, i.e. the one
+     * being recorded, or null.
+     */
+    private static String getActiveOriginalVideo(Context ctx, SegmentIndex index) {
+        File root = Utils.getMediaRoot(ctx);
+        if (root == null) {
+            return null;
+        }
+        // started after the newest finished one, in the shard of the current hour or the one before
+        OriginalVideoLayout layout = getOriginalVideoLayout(root);
+        long now = System.currentTimeMillis();
+        String prefix = index.getCameraId() + "_";
+        long newest = index.getNewestStart();
+        File dir = null;
+        String active = null;
+        long activeStart = -1;
+        for (long time = now; ; time -= OriginalVideoLayout.SHARD_DURATION) {
+            File shard = layout.getShard(time);
+            String[] names = shard.list();
+            if (names != null) {
+                for (String name : names) {
+                    if (name.startsWith(prefix)) {
+                        long t = getOriginalVideoStart(name);
+                        if (t > newest && t > activeStart) {
+                            dir = shard;
+                            active = name;
+                            activeStart = t;
+                        }
+                    }
+                }
+            }
+            if (active != null || !layout.isSharded() || time < now || layout.getShardStart(shard) <= newest) {
+                break;
+            }
+        }
+        if (active == null) {
+            return null;
+        }
+        File file = new File(dir, active);
+        try {
+            return index.indexOf(file.getAbsolutePath()) < 0 && Mp4Recovery.isTruncated(file) ? file.getAbsolutePath() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reader of the original video a camera is recording, with the sample description of the
+     * newest finished one. It is kept while the same video grows, so repeated extractions only scan
+     * what was written since the previous one.
+     *
+     * @param ctx      app context
+     * @param cameraId camera id
+     * @return recovery for {@link Mp4Remuxer#setGrowingInput} or null if there is no finished video
+     */
+    static Mp4Recovery getActiveVideoRecovery(Context ctx, String cameraId) {
+        SegmentIndex index = getSegmentIndex(ctx, cameraId);
+        File reference = index == null ? null : getReferenceVideo(index, null);
+        if (reference == null) {
+            return null;
+        }
+        synchronized (sActiveVideoRecoveries) {
+            Mp4Recovery recovery = sActiveVideoRecoveries.get(cameraId);
+            if (recovery == null || !reference.equals(recovery.getReference())) {
+                try {
+                    recovery = Mp4Recovery.fromReference(reference);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read " + reference + ": " + e.getMessage());
+                    return null;
+                }
+                sActiveVideoRecoveries.put(cameraId, recovery);
+            }
+            return recovery;
+        }
+    }
+
+    /**
+     * If the range reaches past the newest finished original video, append the one being recorded
+     * to the items of {@link #getOriginalVideosListInTimeRange} and update the cuts. Only
+     * {@link Mp4Remuxer} with {@link #getActiveVideoRecovery} can read that item.
+     *
+     * @param starts list receiving segment start times, may be null
+     * @return true if the video being recorded was appended
+     */
+    static boolean appendActiveOriginalVideo(Context ctx, String cameraId, List<String> items, List<Long> starts,
+                                             long[] cuts, long start, long end) {
+        SegmentIndex index = getSegmentIndex(ctx, cameraId);
+        if (!EXTRACT_FROM_ACTIVE_VIDEO || index == null || end <= index.getNewestEnd()) {
+            return false;
+        }
+        String path = getActiveOriginalVideo(ctx, index);
+        long activeStart = path == null ? -1 : getOriginalVideoStart(path);
+        long now = System.currentTimeMillis();
+        if (path == null || activeStart >= end || activeStart >= now || getActiveVideoRecovery(ctx, cameraId) == null) {
+            return false;
+        }
+        long covered = items.isEmpty() ? 0 : end - start - cuts[2];
+        if (items.isEmpty()) {
+            cuts[0] = Math.max(0, start - activeStart);
+        }
+        cuts[1] = end - activeStart;
+        covered += Math.max(0, Math.min(end, now) - Math.max(start, activeStart));
+        cuts[2] = Math.max(0, end - start - covered);
+        items.add(path);
+        if (starts != null) {
+            starts.add(activeStart);
+        }
+        Log.d(TAG, "Reading the video being recorded " + path);
+        return true;
+    }
+
+    /**
+     * @return true if the range ends before the end of the newest finished original video, so a
+     * clip of it does not change any more
+     */
+    static boolean isRecorded(Context ctx, String cameraId, long end) {
+        SegmentIndex index = getSegmentIndex(ctx, cameraId);
+        return index == null || end <= index.getNewestEnd();
+    }
+
+    /*
+     * Remux a clip whose last item is the original video being recorded. MediaMuxer can not read
+     * that item, so there is no fallback.
+     */
+    private static boolean extractActiveVideoAsFile(Context ctx, String cameraId, List<String> items, long[] cuts, String outVideo) throws IOException {
+        Mp4Remuxer remuxer = new Mp4Remuxer();
+        remuxer.setGrowingInput(getActiveVideoRecovery(ctx, cameraId));
+        return remuxer.extract(items, cuts, new File(outVideo)) > 0;
+    }
+
+    /**
+     * @param ctx app context
+     * @return true if finished original videos go to the loop recording container of the camera
+     * instead of MediaStore and the segment index
+     */
+    public static boolean isLoopRecording(Context ctx) {
+        File root = Utils.getMediaRoot(ctx);
+        return root != null && getStoreOptions(root)[0];
+    }
+
+    /**
+     * Record how the camera service stores original videos, for every process using the store.
+     * Called by the camera service at start, before it records. Both cameras share the store, the
+     * camera started last decides.
+     *
+     * @param ctx                 app context
+     * @param loopRecording       keep finished original videos in one preallocated container per
+     *                            camera instead of a file each
+     * @param shardOriginalVideos keep original videos in one directory per hour, see
+     *                            {@link OriginalVideoLayout}
+     */
+    public static void setStoreOptions(Context ctx, boolean loopRecording, boolean shardOriginalVideos) {
+        File root = Utils.getMediaRoot(ctx);
+        if (root == null) {
+            return;
+        }
+        boolean[] options = getStoreOptions(root);
+        if (options[0] == loopRecording && options[1] == shardOriginalVideos) {
+            return;
+        }
+        File file = new File(root, STORE_OPTIONS_FILE);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(file));
+            out.writeBoolean(loopRecording);
+            out.writeBoolean(shardOriginalVideos);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + file + ": " + e.getMessage());
+            file.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        synchronized (sStoreOptionsLock) {
+            // read again even within the resolution of the modification time
+            sStoreOptionsFile = null;
+        }
+    }
+
+    /*
+     * {loop recording, shard original videos} of the store under the media root, read again when
+     * the camera service changed them.
+     */
+    private static boolean[] getStoreOptions(File root) {
+        File file = new File(root, STORE_OPTIONS_FILE);
+        long modified = file.lastModified();
+        synchronized (sStoreOptionsLock) {
+            if (file.equals(sStoreOptionsFile) && modified == sStoreOptionsModified) {
+                return sStoreOptions;
+            }
+            sStoreOptionsFile = file;
+            sStoreOptionsModified = modified;
+            sStoreOptions = DEFAULT_STORE_OPTIONS;
+            if (modified != 0) {
+                DataInputStream in = null;
+                try {
+                    in = new DataInputStream(new FileInputStream(file));
+                    sStoreOptions = new boolean[]{in.readBoolean(), in.readBoolean()};
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read " + file + ": " + e.getMessage());
+                } finally {
+                    if (in != null) {
+                        try {
+                            in.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            }
+            return sStoreOptions;
+        }
+    }
+
+    private static final LoopContainer[] sLoopContainers = {null, null};
+
+    /*
+     * Loop recording container of the camera under the current media root, created on first use
+     * and reopened if the media root has changed.
+     */
+    private static LoopContainer getLoopContainer(Context ctx, String cameraId) {
+        File root = Utils.getMediaRoot(ctx);
+        if (root == null || SegmentIndex.forCamera(cameraId) == null) {
+            return null;
+        }
+        int i = Integer.parseInt(cameraId);
+        File file = LoopContainer.getFile(root, cameraId);
+        synchronized (sLoopContainers) {
+            LoopContainer container = sLoopContainers[i];
+            if (container != null && !container.getFile().equals(file)) {
+                try {
+                    container.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                container = null;
+            }
+            if (container == null) {
+                try {
+                    long t = System.currentTimeMillis();
+                    container = new LoopContainer(file, LOOP_CONTAINER_SIZE, LOOP_CONTAINER_RECORDS);
+                    Log.d(TAG, "Opened " + file + " in " + (System.currentTimeMillis() - t) + " ms");
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to open " + file + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+                sLoopContainers[i] = container;
+            }
+            return container;
+        }
+    }
+
+    /**
+     * Move a finished original video into the loop recording container of the camera. The oldest
+     * videos it overwrites are dropped, so loop recording needs no trimming.
+     *
+     * @param ctx      app context
+     * @param cameraId camera id
+     * @param path     absolute file path, deleted once it is in the container
+     * @param start    start time in milliseconds
+     * @param end      end time in milliseconds
+     * @return true if the video was added, false if it should be stored as a file
+     */
+    public static boolean addLoopVideo(Context ctx, String cameraId, String path, long start, long end) {
+        LoopContainer container = isLoopRecording(ctx) ? getLoopContainer(ctx, cameraId) : null;
+        if (container == null) {
+            return false;
+        }
+        File file = new File(path);
+        try {
+            LoopContainer.Record record = container.append(file, start, end - start);
+            Log.d(TAG, "Added " + path + " to " + container.getFile() + " as " + record);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to add " + path + " to " + container.getFile() + ": " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+        if (!file.delete()) {
+            Log.e(TAG, "IO error deleting " + path);
+        }
+        return true;
+    }
+
+    /*
+     * Remux a clip from the loop recording container. There is no clip cache, the records are in
+     * the container already.
+     */
+    private static boolean extractLoopVideoAsFile(Context ctx, String cameraId, long start, long end, boolean exact,
+                                                  String outVideo, MediaScannerConnection.OnScanCompletedListener listener) throws IOException {
+        LoopContainer container = getLoopContainer(ctx, cameraId);
+        if (container == null) {
+            return false;
+        }
+        File out = new File(outVideo);
+        if (container.extract(start, end, exact, out) <= 0) {
+            Log.e(TAG, "no videos found for time interval " + start + "-" + end);
+            return false;
+        }
+        registerExtractedMedia(ctx, out, new VideoMetadata(start, end, outVideo, cameraId), listener);
+        return true;
+    }
+
+    private static ClipCache sClipCache;
+
+    /**
+     * @param ctx app context
+     * @return cache of extracted clips under the current media root or null if disabled
+     */
+    static ClipCache getClipCache(Context ctx) {
+        if (!USE_CLIP_CACHE) {
+            return null;
+        }
+        File root = Utils.getMediaRoot(ctx);
+        if (root == null) {
+            return null;
+        }
+        File dir = ClipCache.getDir(root);
+        synchronized (CameraStore.class) {
+            if (sClipCache == null || !sClipCache.getDirectory().equals(dir)) {
+                sClipCache = new ClipCache(dir, CLIP_CACHE_SIZE);
+            }
+            return sClipCache;
+        }
     }
 
-    public static Bitmap[] extractSnapshotAsBitmap(Context ctx, String cameraId, long time) {
-        List<String> items = new LinkedList();
-        long[] cuts = getOriginalVideosListInTimeRange(ctx, cameraId, items, time, time);
-        if (items.size() == 0) {
-            return null;
+    /*
+     * Drop the cached clips that were extracted from a deleted original video.
+     */
+    private static void invalidateClipCache(Context ctx, String cameraId, String path) {
+        ClipCache cache = getClipCache(ctx);
+        if (cache == null) {
+            return;
         }
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        try {
-            retriever.setDataSource(items.get(0));
-            Bitmap thumbnail = retriever.getFrameAtTime();
-            Bitmap snapshot = retriever.getFrameAtTime(cuts[0]);
-            return new Bitmap[]{thumbnail, snapshot};
-        } finally {
-            retriever.release();
+        SegmentIndex index = SegmentIndex.forCamera(cameraId);
+        long start;
+        long end;
+        synchronized (index) {
+            int i = index.indexOf(path);
+            if (i >= 0) {
+                start = index.getStartAt(i);
+                end = start + index.getDurationAt(i);
+            } else {
+                // not indexed, the file name has the start time
+                int p = path.lastIndexOf('/') + 3;
+                try {
+                    start = Long.parseLong(path.substring(p, path.length() - 4));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Unknown time range of " + path + ", clearing " + cache);
+                    cache.clear();
+                    return;
+                }
+                // the file is gone, it ends where the next segment starts at the latest
+                end = index.getNextStart(start);
+            }
+        }
+        int count = cache.invalidate(cameraId, start, end);
+        if (count > 0) {
+            Log.d(TAG, "Invalidated " + count + " cached clips of " + path);
         }
     }
 
-    public static void getFileListByPattern(Uri uri, Context ctx, String match, List<FileWithSize> items) {
-
-        final boolean VERBOSE = false;
-        final String DESCRIPTION = MediaStore.Images.Media.EXTERNAL_CONTENT_URI.equals(uri)
-                ? MediaStore.Images.Media.DESCRIPTION
-                : MediaStore.Video.Media.DESCRIPTION;
-        String[] proj = {MediaStore.MediaColumns.DATA, DESCRIPTION, MediaStore.MediaColumns.SIZE};
-        String sel = MediaStore.MediaColumns.DATA + " GLOB ?";
-        String[] selArgs = new String[]{match};
-        String sort = DESCRIPTION + " DESC";
-        Cursor cursor = ctx.getContentResolver().query(uri, proj, sel, selArgs, sort);
-
-        Log.d(TAG, "Number of files found (" + match + "): " + (cursor == null ? 0 : cursor.getCount()));
-        int count = 0;
-        while (cursor != null && cursor.moveToNext()) {
-            String filePath = cursor.getString(0);
-            if ((new File(filePath)).exists()) {
-                items.add(new FileWithSize(filePath, cursor.getLong(2)));
-                if (VERBOSE) {
-                    Log.d(TAG, "cursor[" + count + "]: " + cursor.getString(0) + ";\t" + new Date(cursor.getLong(1)) + ";\t" + cursor.getLong(2));
-                }
-                count++;
-            } else {
-                ContentResolver resolver = ctx.getContentResolver();
-                resolver.delete(uri, MediaStore.MediaColumns.DATA + "=?", new String[]{filePath});
+    /**
+     * @return camera id of an original video file path or null if the path is not an original video
+     */
+    static String getOriginalVideoCameraId(String path) {
+        int p = path.lastIndexOf('/') + 1;
+        if (path.endsWith(".mp4") && path.length() > p + 2 && path.charAt(p + 1) == '_') {
+            char c = path.charAt(p);
+            if (c == '0') {
+                return "0";
+            } else if (c == '1') {
+                return "1";
             }
         }
+        return null;
     }
 
-    public static long[] getOriginalVideosListInTimeRange(Context ctx, String cameraId, List<String> items, long start, long end) {
+    private static long[] queryOriginalVideosListInTimeRange(Context ctx, String cameraId, List<String> items, long start, long end) {
 
         final boolean VERBOSE = false;
         long[] cuts = {0, 0, 0};
@@ -324,7 +1685,29 @@ public class CameraStore {
         return cuts;
     }
 
+    /**
+     * Compose a video from the given original videos.
+     * Warning: it is a blocking call.
+     *
+     * @param inVideos original videos in time order
+     * @param cuts     {offset of start in the first video, offset of end in the last video, missed time}
+     * @param outVideo output file name
+     * @return true if the video was written
+     * @throws IOException
+     */
     public static boolean extractVideoAsFile(List<String> inVideos, long[] cuts, String outVideo) throws IOException {
+        if (USE_REMUXER) {
+            try {
+                return Mp4Remuxer.extractVideoAsFile(inVideos, cuts, outVideo);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to remux " + outVideo + ", falling back to MediaMuxer: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        return muxVideoAsFile(inVideos, cuts, outVideo);
+    }
+
+    static boolean muxVideoAsFile(List<String> inVideos, long[] cuts, String outVideo) throws IOException {
         Log.d(TAG, "inVideos size: " + inVideos.size());
         if (inVideos.size() == 0) {
             return false;
@@ -334,6 +1717,15 @@ public class CameraStore {
         long startMs = cuts[0];
         long endMs = cuts[1] + gapMs;
 
+        // SEEK_TO_NEXT_SYNC finds nothing if the window starts after the last keyframe of the first video
+        if (inVideos.size() > 1) {
+            KeyframeIndex keyframes = getKeyframeIndex(inVideos.get(0));
+            if (keyframes != null && keyframes.syncAtOrAfter(startMs * 1000) == keyframes.size()) {
+                inVideos = inVideos.subList(1, inVideos.size());
+                startMs = 0;
+            }
+        }
+
         // for a single video start time should be positive and smaller then the end time
         if (inVideos.size() == 1 && (startMs < 0 || startMs > endMs)) {
             throw new IllegalArgumentException("invalid time range:[" + startMs + "," + endMs + "]");
@@ -523,18 +1915,32 @@ public class CameraStore {
         }
     }
 
+    /*
+     * Delete the face stats, keyframe index and frame timeline written next to a video.
+     */
+    private static void deleteSidecars(String path) {
+        for (String suffix : OriginalVideoLayout.SIDECAR_SUFFIXES) {
+            File sidecar = new File(path + suffix);
+            if (sidecar.exists() && !sidecar.delete()) {
+                Log.e(TAG, "IO error deleting sidecar file " + sidecar);
+            }
+        }
+    }
+
     public static boolean deleteMedia(Context ctx, Uri uri, String path) {
         File file = new File(path);
         if (!file.exists() || file.delete()) {
             if (path.endsWith(".mp4")) {
-                // delete face stats
-                File fVtt = new File(path + ".vtt");
-                File fStatsVtt = new File(path + ".stats.vtt");
-                if (fVtt.exists() && ! fVtt.delete()) {
-                    Log.e(TAG, "IO error deleting vtt file " + fVtt);
-                }
-                if (fStatsVtt.exists() && ! fStatsVtt.delete()) {
-                    Log.e(TAG, "IO error deleting stats.vtt file " + fStatsVtt);
+                deleteSidecars(path);
+            }
+            String cameraId = getOriginalVideoCameraId(path);
+            if (cameraId != null) {
+                invalidateClipCache(ctx, cameraId, path);
+                removeOriginalVideo(ctx, cameraId, path);
+            }
+            synchronized (sRetentionLock) {
+                if (sRetentionEngine != null) {
+                    sRetentionEngine.remove(path);
                 }
             }
             // remove from MediaStore if file not exists or file deleted successfully
@@ -547,6 +1953,76 @@ public class CameraStore {
         }
     }
 
+    /*
+     * Delete a trimmed media file, or queue it on the deletion worker when deletion is throttled.
+     *
+     * @param layout  layout to remove the emptied shard from, null if not an original video
+     * @param planned item the retention engine planned, tracked again if the file is not deleted,
+     *                null if none
+     * @return true if the file is deleted or queued, also by an earlier trim, false if it failed
+     */
+    private static boolean trimMedia(Context ctx, Uri uri, String path, long size, final OriginalVideoLayout layout,
+                                     final RetentionEngine.Item planned) {
+        if (THROTTLE_DELETION) {
+            DeletionWorker.getInstance(ctx).submit(uri, path, size, layout == null && planned == null ? null : new DeletionWorker.Callback() {
+                @Override
+                public void onDeleted(String path, boolean deleted) {
+                    if (layout != null) {
+                        layout.deleteIfEmpty(new File(path).getParentFile());
+                    }
+                    if (!deleted) {
+                        retainAgain(planned);
+                    }
+                }
+            });
+            return true;
+        }
+        if (deleteMedia(ctx, uri, path)) {
+            if (layout != null) {
+                layout.deleteIfEmpty(new File(path).getParentFile());
+            }
+            return true;
+        }
+        retainAgain(planned);
+        return false;
+    }
+
+    /*
+     * Track a planned file again whose deletion failed, the engine took it off when planning.
+     */
+    private static void retainAgain(RetentionEngine.Item item) {
+        if (item == null || !new File(item.getPath()).exists()) {
+            return;
+        }
+        synchronized (sRetentionLock) {
+            if (sRetentionEngine != null) {
+                sRetentionEngine.add(item.getMediaClass(), item.getPath(), item.getStart(), item.getEnd(), item.getSize());
+            }
+        }
+    }
+
+    /*
+     * Free bytes of the media storage. The files queued for deletion are not counted, they are
+     * taken off the space a trim needs to free, see trimOriginalVideo.
+     */
+    private static long getAvailableSize(Context ctx, File root) {
+        return new StatFs(root.getAbsolutePath()).getAvailableBytes();
+    }
+
+    /*
+     * @return bytes queued for deletion, freed soon
+     */
+    private static long getPendingDeletionSize(Context ctx) {
+        return THROTTLE_DELETION ? DeletionWorker.getInstance(ctx).getPendingBytes() : 0;
+    }
+
+    /*
+     * Whether the file is queued for deletion, its bytes are counted as freed already.
+     */
+    private static boolean isDeletionPending(Context ctx, String path) {
+        return THROTTLE_DELETION && DeletionWorker.getInstance(ctx).isPending(path);
+    }
+
     /**
      * Trimming from app (not from camera service itself)
      * @param ctx context
@@ -556,12 +2032,12 @@ public class CameraStore {
     public static void trimOriginalVideoIfFreeSpaceIsShort(Context ctx, long minFreeSpace, long freeSpaceAfterTrimming) {
         File root = Utils.getMediaRoot(ctx);
         if (root != null) {
-            String path = root.getAbsolutePath();
-            StatFs statFs = new StatFs(path);
-            long availableSize = statFs.getAvailableBytes();
+            long availableSize = getAvailableSize(ctx, root);
             Log.d(TAG, SubTag.TRIMMING + "From app: availableSize/minFreeSpace: " + (availableSize / MB_TO_BYTE) + "MB / " + (minFreeSpace / MB_TO_BYTE) + "MB");
             if (availableSize < minFreeSpace) {
                 trimOriginalVideo(ctx, freeSpaceAfterTrimming, availableSize);
+            } else {
+                enforceRetentionPolicy(ctx);
             }
         }
     }
@@ -576,39 +2052,124 @@ public class CameraStore {
         Context ctx = cameraModule.getApplicationContext();
         File root = Utils.getMediaRoot(ctx);
         if (root != null) {
-            String path = root.getAbsolutePath();
-            StatFs statFs = new StatFs(path);
-            long availableSize = statFs.getAvailableBytes();
+            long availableSize = getAvailableSize(ctx, root);
             Log.d(TAG, SubTag.TRIMMING + "From camera service: availableSize/minFreeSpace: " + (availableSize / MB_TO_BYTE) + "MB / " + (minFreeSpace / MB_TO_BYTE) + "MB");
             if (availableSize < minFreeSpace) {
                 // notify that camera service is doing trimming work.
                 cameraModule.broadcastNotice(null, CameraModule.CAMERA_SERVICE_IS_TRIMMING);
 
                 trimOriginalVideo(ctx, freeSpaceAfterTrimming, availableSize);
+            } else {
+                enforceRetentionPolicy(ctx);
+            }
+        }
+    }
+
+    /**
+     * Camera service self trimming ahead of need. Forecasts the time to full from the measured write
+     * rate of both cameras and trims a paced share of what the forecast asks for.
+     *
+     * @param cameraModule camera service
+     * @param cameraId     camera of the service
+     * @param bitRate      configured video bit rate of the camera, used until its segments are measured
+     * @param reserve      free space that must be kept
+     * @param intervalMs   time to the next call
+     * @return the governor, holding the forecast
+     */
+    public static StorageGovernor governStorage(CameraModule cameraModule, String cameraId, long bitRate, long reserve, long intervalMs) {
+        Context ctx = cameraModule.getApplicationContext();
+        File root = Utils.getMediaRoot(ctx);
+        if (root == null) {
+            return sStorageGovernor;
+        }
+        sStorageGovernor.setBitRate(Integer.parseInt(cameraId), bitRate);
+        for (int camera = 0; camera < StorageGovernor.CAMERAS; camera++) {
+            SegmentIndex index = getSegmentIndex(ctx, Integer.toString(camera));
+            if (index == null) {
+                continue;
+            }
+            synchronized (index) {
+                int i = index.size();
+                while (i > 0 && index.getStartAt(i - 1) > sGovernorNewestStart[camera]) {
+                    i--;
+                }
+                // the first time only the newest segment, older ones may be from another config
+                if (sGovernorNewestStart[camera] == Long.MIN_VALUE) {
+                    i = Math.max(i, index.size() - 1);
+                }
+                for (; i < index.size(); i++) {
+                    sStorageGovernor.onSegment(camera, index.getSizeAt(i), index.getDurationAt(i));
+                    sGovernorNewestStart[camera] = index.getStartAt(i);
+                }
+            }
+        }
+        long availableSize = getAvailableSize(ctx, root);
+        long trim = sStorageGovernor.plan(availableSize, reserve, intervalMs);
+        Log.d(TAG, SubTag.TRIMMING + "Forecast: " + sStorageGovernor.getWriteRate() / 1024 + "KB/s, "
+                + (availableSize / MB_TO_BYTE) + "MB free, full in " + sStorageGovernor.getTimeToFull() / 1000
+                + "s, trimming " + (trim / MB_TO_BYTE) + "MB");
+        if (trim > 0) {
+            if (availableSize < reserve) {
+                cameraModule.broadcastNotice(null, CameraModule.CAMERA_SERVICE_IS_TRIMMING);
             }
+            trimOriginalVideo(ctx, availableSize + trim, availableSize);
+        } else {
+            enforceRetentionPolicy(ctx);
         }
+        return sStorageGovernor;
     }
 
     private static void trimOriginalVideo(Context ctx, long freeSpaceAfterTrimming, long availableSize) {
         Log.d(TAG, SubTag.TRIMMING + "short in space, begin trimming.");
         if (isTrimmingOriginal.compareAndSet(false, true)) {
             try {
-                long spaceNeedToFree = freeSpaceAfterTrimming - availableSize;
+                // what is queued for deletion is freed already
+                long spaceNeedToFree = freeSpaceAfterTrimming - availableSize - getPendingDeletionSize(ctx);
+                if (spaceNeedToFree <= 0) {
+                    Log.d(TAG, SubTag.TRIMMING + "Enough space queued for deletion already");
+                    return;
+                }
                 long spaceTrimmed = 0;
+                RetentionEngine engine = getRetentionEngine(ctx);
+                if (engine != null) {
+                    spaceTrimmed = trimByRetentionPolicy(ctx, engine, spaceNeedToFree);
+                    if (spaceTrimmed >= spaceNeedToFree) {
+                        return;
+                    }
+                    // footage the engine does not track, e.g. of the other camera process
+                    Log.d(TAG, SubTag.TRIMMING + "Retention policy freed " + (spaceTrimmed / MB_TO_BYTE)
+                            + "MB, trimming the oldest files for the rest");
+                }
+                File root = Utils.getMediaRoot(ctx);
+                if (root != null && getStoreOptions(root)[1]) {
+                    spaceTrimmed += trimOriginalVideoShards(ctx, getOriginalVideoLayout(root), engine,
+                            spaceNeedToFree - spaceTrimmed);
+                    if (spaceTrimmed >= spaceNeedToFree) {
+                        return;
+                    }
+                }
                 // trim
                 List<FileWithSize> list = new LinkedList();
                 getFileListByPattern(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, ctx, ORIGINAL_VIDEO_FILE_PATTERN, list);
 
-                for (int i = list.size() - 1; i >= 0; i--) {
+                long now = System.currentTimeMillis();
+                for (int i = list.size() - 1; i >= 0 && spaceTrimmed < spaceNeedToFree; i--) {
                     FileWithSize file = list.get(i);
+                    if (engine != null && engine.isPinned(getOriginalVideoStart(file.filepath), now)
+                            || isDeletionPending(ctx, file.filepath)) {
+                        continue;
+                    }
                     Log.d(TAG, SubTag.TRIMMING + "Trimming file: " + file.filepath + "; size: " + (file.fileSize / MB_TO_BYTE) + "MB");
-                    if (deleteMedia(ctx, MediaStore.Video.Media.EXTERNAL_CONTENT_URI, file.filepath)) {
+                    if (trimMedia(ctx, MediaStore.Video.Media.EXTERNAL_CONTENT_URI, file.filepath, file.fileSize,
+                            root == null ? null : getOriginalVideoLayout(root), null)) {
                         spaceTrimmed += file.fileSize;
-                        if (spaceTrimmed >= spaceNeedToFree) {
-                            break;
-                        }
                     }
                 }
+                // nothing unpinned is left
+                if (engine != null && spaceTrimmed < spaceNeedToFree) {
+                    Log.d(TAG, SubTag.TRIMMING + "Trimming pinned original videos for the rest");
+                    spaceTrimmed += trimPlanned(ctx, engine.planPinned(now, spaceNeedToFree - spaceTrimmed));
+                }
             } finally {
                 isTrimmingOriginal.set(false);
             }
@@ -617,6 +2178,291 @@ public class CameraStore {
         }
     }
 
+    /*
+     * Delete what is past the quota or the maximum age of its class, without a free space shortage.
+     */
+    private static void enforceRetentionPolicy(Context ctx) {
+        if (RETENTION_POLICY && isTrimmingOriginal.compareAndSet(false, true)) {
+            try {
+                // built under the flag so it does not see the original videos half moved into shards
+                RetentionEngine engine = getRetentionEngine(ctx);
+                if (engine != null) {
+                    trimByRetentionPolicy(ctx, engine, 0);
+                }
+            } finally {
+                isTrimmingOriginal.set(false);
+            }
+        }
+    }
+
+    /*
+     * Delete the files the retention engine plans, none of them pinned.
+     *
+     * @return bytes freed
+     */
+    private static long trimByRetentionPolicy(Context ctx, RetentionEngine engine, long spaceNeedToFree) {
+        return trimPlanned(ctx, engine.plan(System.currentTimeMillis(), Math.max(0, spaceNeedToFree)));
+    }
+
+    /*
+     * Delete the files planned by the retention engine.
+     *
+     * @return bytes freed
+     */
+    private static long trimPlanned(Context ctx, List<RetentionEngine.Item> plan) {
+        File root = Utils.getMediaRoot(ctx);
+        OriginalVideoLayout layout = root == null ? null : getOriginalVideoLayout(root);
+        long spaceTrimmed = 0;
+        for (RetentionEngine.Item item : plan) {
+            String path = item.getPath();
+            if (isDeletionPending(ctx, path)) {
+                continue;
+            }
+            // the file may be gone already, deleted by another process
+            long size = new File(path).length();
+            Uri uri = item.getMediaClass() == RetentionEngine.SNAPSHOT
+                    ? MediaStore.Images.Media.EXTERNAL_CONTENT_URI : MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
+            Log.d(TAG, SubTag.TRIMMING + "Trimming file: " + path + "; size: " + (size / MB_TO_BYTE) + "MB"
+                    + (item.isPinned() ? ", kept for an event" : ""));
+            boolean original = item.getMediaClass() != RetentionEngine.EXTRACTED
+                    && item.getMediaClass() != RetentionEngine.SNAPSHOT;
+            if (trimMedia(ctx, uri, path, size, original ? layout : null, item)) {
+                spaceTrimmed += size;
+            }
+        }
+        if (!plan.isEmpty()) {
+            Log.d(TAG, SubTag.TRIMMING + "Trimmed " + plan.size() + " files, " + (spaceTrimmed / MB_TO_BYTE) + "MB");
+        }
+        return spaceTrimmed;
+    }
+
+    /**
+     * Set the quota and the maximum age of a class of media, enforced when original videos are
+     * trimmed.
+     *
+     * @param ctx    app context
+     * @param cls    class of media, see {@link RetentionEngine}
+     * @param quota  bytes the class may take, 0 for no quota
+     * @param maxAge milliseconds a file is kept after it ends, 0 for no limit
+     */
+    public static void setRetentionPolicy(Context ctx, @RetentionEngine.MediaClass int cls, long quota, long maxAge) {
+        RetentionEngine engine = getRetentionEngine(ctx);
+        if (engine != null) {
+            engine.setPolicy(cls, quota, maxAge);
+        }
+    }
+
+    /**
+     * Track a new extracted clip or snapshot for retention and keep the original videos of the same
+     * time for a while.
+     *
+     * @param ctx      app context
+     * @param file     media file
+     * @param metadata {@link VideoMetadata} or {@link SnapshotMetadata}
+     */
+    public static void retainEvent(Context ctx, File file, Parcelable metadata) {
+        File root = Utils.getMediaRoot(ctx);
+        if (!RETENTION_POLICY || root == null) {
+            return;
+        }
+        int cls;
+        long start;
+        long end;
+        long pinStart;
+        long pinEnd;
+        if (metadata instanceof VideoMetadata) {
+            VideoMetadata videoMetadata = (VideoMetadata) metadata;
+            cls = RetentionEngine.EXTRACTED;
+            pinStart = start = videoMetadata.getStartTime();
+            pinEnd = end = videoMetadata.getEndTime();
+        } else if (metadata instanceof SnapshotMetadata) {
+            cls = RetentionEngine.SNAPSHOT;
+            start = end = ((SnapshotMetadata) metadata).getTakenTime();
+            pinStart = start - SNAPSHOT_PIN_MARGIN;
+            pinEnd = end + SNAPSHOT_PIN_MARGIN;
+        } else {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            RetentionEngine.appendPin(getRetentionPinFile(root), pinStart, pinEnd, now + EVENT_PIN_DURATION, now);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to pin " + pinStart + "-" + pinEnd + ": " + e.getMessage());
+        }
+        synchronized (sRetentionLock) {
+            if (sRetentionEngine != null) {
+                sRetentionEngine.add(cls, file.getAbsolutePath(), start, end, file.length());
+                sRetentionEngine.pin(pinStart, pinEnd, now + EVENT_PIN_DURATION);
+            }
+        }
+    }
+
+    private static File getRetentionPinFile(File mediaRoot) {
+        return new File(mediaRoot, "retention.pins");
+    }
+
+    /*
+     * Retention engine of this process, built from the segment indexes and the MediaStore the first
+     * time. The indexes keep it up to date with the original videos from then on, and the pins
+     * written since are read on each call.
+     */
+    private static RetentionEngine getRetentionEngine(Context ctx) {
+        File root = Utils.getMediaRoot(ctx);
+        if (!RETENTION_POLICY || root == null) {
+            return null;
+        }
+        synchronized (sRetentionLock) {
+            if (sRetentionEngine == null) {
+                long t = System.currentTimeMillis();
+                RetentionEngine engine = new RetentionEngine();
+                loadRetainedMedia(ctx, engine, MediaStore.Video.Media.EXTERNAL_CONTENT_URI, EXTRACTED_VIDEO_FILE_PATTERN,
+                        RetentionEngine.EXTRACTED);
+                loadRetainedMedia(ctx, engine, MediaStore.Images.Media.EXTERNAL_CONTENT_URI, SNAPSHOT_FILE_PATTERN,
+                        RetentionEngine.SNAPSHOT);
+                SegmentIndex.Listener listener = getRetentionListener(ctx, engine);
+                for (int cls = RetentionEngine.ORIGINAL_0; cls <= RetentionEngine.ORIGINAL_1; cls++) {
+                    SegmentIndex index = getSegmentIndex(ctx, Integer.toString(cls));
+                    if (index == null) {
+                        continue;
+                    }
+                    // followed from the same snapshot on
+                    synchronized (index) {
+                        for (int i = 0; i < index.size(); i++) {
+                            if (isDeletionPending(ctx, index.getPathAt(i))) {
+                                continue;
+                            }
+                            long start = index.getStartAt(i);
+                            engine.add(cls, index.getPathAt(i), start, start + index.getDurationAt(i), index.getSizeAt(i));
+                        }
+                        index.setListener(listener);
+                    }
+                }
+                sRetentionEngine = engine;
+                Log.d(TAG, "Retention engine loaded in " + (System.currentTimeMillis() - t) + " ms");
+            }
+            File pins = getRetentionPinFile(root);
+            long modified = pins.lastModified() ^ pins.length();
+            if (modified != sRetentionPinsModified) {
+                sRetentionPinsModified = modified;
+                try {
+                    if (pins.exists()) {
+                        sRetentionEngine.readPins(pins, System.currentTimeMillis());
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read " + pins + ": " + e.getMessage());
+                }
+            }
+            return sRetentionEngine;
+        }
+    }
+
+    /*
+     * Keeps the original videos of the engine in step with the segment indexes, called with an
+     * index locked, so it takes the engine lock only. Videos queued for deletion are left out.
+     */
+    private static SegmentIndex.Listener getRetentionListener(final Context ctx, final RetentionEngine engine) {
+        return new SegmentIndex.Listener() {
+            @Override
+            public void onAdded(SegmentIndex index, long start, long duration, long size, String path) {
+                if (isDeletionPending(ctx, path)) {
+                    return;
+                }
+                engine.add(RetentionEngine.getOriginalClass(index.getCameraId()), path, start, start + duration, size);
+            }
+
+            @Override
+            public void onRemoved(SegmentIndex index, String path) {
+                engine.remove(path);
+            }
+
+            @Override
+            public void onCleared(SegmentIndex index) {
+                engine.clear(RetentionEngine.getOriginalClass(index.getCameraId()));
+            }
+        };
+    }
+
+    /*
+     * Track the media matching the pattern, whose description is the start time.
+     */
+    private static void loadRetainedMedia(Context ctx, RetentionEngine engine, Uri uri, String match, int cls) {
+        boolean video = cls != RetentionEngine.SNAPSHOT;
+        String[] proj = {MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.SIZE,
+                video ? MediaStore.Video.Media.DESCRIPTION : MediaStore.Images.Media.DESCRIPTION,
+                video ? MediaStore.Video.Media.DURATION : MediaStore.MediaColumns.SIZE};
+        Cursor cursor = ctx.getContentResolver().query(uri, proj, MediaStore.MediaColumns.DATA + " GLOB ?",
+                new String[]{match}, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                long start;
+                try {
+                    start = Long.parseLong(cursor.getString(2));
+                } catch (NumberFormatException | NullPointerException e) {
+                    start = 0;
+                }
+                long end = video ? start + cursor.getLong(3) : start;
+                if (!isDeletionPending(ctx, cursor.getString(0))) {
+                    engine.add(cls, cursor.getString(0), start, end, cursor.getLong(1));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Delete the oldest shards of original videos as a whole, all but the one of the current hour
+     * and the videos a pin of the engine covers, until enough space is freed.
+     *
+     * @param engine retention engine holding the pins, null if none
+     * @return bytes freed
+     */
+    private static long trimOriginalVideoShards(Context ctx, OriginalVideoLayout layout, RetentionEngine engine,
+                                                long spaceNeedToFree) {
+        long now = System.currentTimeMillis();
+        long current = layout.getShardStart(layout.getShard(now));
+        long spaceTrimmed = 0;
+        for (File shard : layout.getShards()) {
+            if (spaceTrimmed >= spaceNeedToFree || layout.getShardStart(shard) >= current) {
+                break;
+            }
+            File[] files = shard.listFiles();
+            if (files == null) {
+                continue;
+            }
+            Log.d(TAG, SubTag.TRIMMING + "Trimming shard: " + shard);
+            for (File file : files) {
+                // sidecars deleted with their video have no length any more
+                long size = file.length();
+                String path = file.getAbsolutePath();
+                // a sidecar is kept with its video
+                String name = file.getName();
+                int sidecar = name.indexOf(".mp4.");
+                long start = OriginalVideoLayout.getStart(sidecar < 0 ? name : name.substring(0, sidecar + 4));
+                if (engine != null && engine.isPinned(start, now) || isDeletionPending(ctx, path)) {
+                    continue;
+                }
+                boolean deleted;
+                if (path.endsWith(".mp4")) {
+                    deleted = trimMedia(ctx, MediaStore.Video.Media.EXTERNAL_CONTENT_URI, path, size, layout, null);
+                } else if (THROTTLE_DELETION && path.contains(".mp4.")) {
+                    // a sidecar goes with its video
+                    deleted = false;
+                } else {
+                    deleted = !file.exists() || file.delete();
+                }
+                if (deleted) {
+                    spaceTrimmed += size;
+                }
+            }
+            layout.deleteIfEmpty(shard);
+        }
+        return spaceTrimmed;
+    }
+
     public static void trimVideoByPattern(Context ctx, String pattern, long maxSizeBeforeTrimming, long freeSpaceAfterTrimming) {
         trimFileByPattern(ctx, MediaStore.Video.Media.EXTERNAL_CONTENT_URI, pattern, maxSizeBeforeTrimming, freeSpaceAfterTrimming);
     }
@@ -663,33 +2509,10 @@ public class CameraStore {
 
     /**
      * Remove media store record for those media that has been deleted, but its record in media store is not been removed yet.
+     * The records are checked and removed in the background, a little at a time, see {@link DeadRecordCleaner}.
      */
     public static void removeDeadMediaStoreRecord(Context context) {
-        // remove video records
-        Uri uri = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
-        String[] proj = {MediaStore.MediaColumns.DATA};
-
-        ContentResolver resolver = context.getContentResolver();
-        Cursor cursor = resolver.query(uri, proj, null, null, null);
-
-        while (cursor != null && cursor.moveToNext()) {
-            String filePath = cursor.getString(0);
-            if (!(new File(filePath)).exists()) {
-                Log.d(TAG, SubTag.TRIMMING + "Removing MediaStore record of: " + filePath);
-                resolver.delete(uri, MediaStore.MediaColumns.DATA + "=?", new String[]{filePath});
-            }
-        }
-
-        // remove image records
-        uri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
-        cursor = resolver.query(uri, proj, null, null, null);
-        while (cursor != null && cursor.moveToNext()) {
-            String filePath = cursor.getString(0);
-            if (!(new File(filePath)).exists()) {
-                Log.d(TAG, SubTag.TRIMMING + "Removing MediaStore record of: " + filePath);
-                resolver.delete(uri, MediaStore.MediaColumns.DATA + "=?", new String[]{filePath});
-            }
-        }
+        DeadRecordCleaner.getInstance(context).cleanAll();
     }
 
     private static boolean saveBitmap(Bitmap img, int quality, String path) {
@@ -727,40 +2550,36 @@ public class CameraStore {
 
     // TODO file should be part of metadata.
     public static void registerExtractedMedia(final Context context, File file, final Parcelable metadata,
-                                              MediaScannerConnection.OnScanCompletedListener listener) {
+                                              final MediaScannerConnection.OnScanCompletedListener listener) {
         final String filePath = file.getAbsolutePath();
+        retainEvent(context, file, metadata);
+        String desc = null;
         if (listener == null) {
-            MediaScannerConnection.scanFile(context, new String[]{filePath}, null,
-                    new MediaScannerConnection.OnScanCompletedListener() {
-                        @Override
-                        public void onScanCompleted(String path, Uri uri) {
-
-                            ContentValues values = new ContentValues();
-                            String desc = null;
-                            if (metadata instanceof VideoMetadata) {
-                                VideoMetadata videoMetadata = (VideoMetadata) metadata;
-                                desc = Long.toString(videoMetadata.getStartTime());
-                            } else if (metadata instanceof SnapshotMetadata) {
-                                SnapshotMetadata snapshotMetadata = (SnapshotMetadata) metadata;
-                                Log.d(TAG, "Extracted snapshot completed: " + snapshotMetadata);
-                                desc = Long.toString(snapshotMetadata.getTakenTime());
-                                Log.d(TAG, "Extracted snapshot taken time " + desc);
-                            } else {
-                                Log.i(TAG, "Unknown type of file.");
-                            }
-                            if (desc != null) {
-                                values.put(MediaStore.Video.Media.DESCRIPTION, desc);
-                                int n = context.getContentResolver().update(uri, values, null, null);
-                                if (n != 1) {
-                                    Log.e(TAG, "Failed to save description " + desc);
-                                }
-                            }
-                            Log.d(TAG, "File has been registered to MediaStore:" + filePath);
-                        }
-                    });
-        } else {
-            MediaScannerConnection.scanFile(context, new String[]{filePath}, null, listener);
+            if (metadata instanceof VideoMetadata) {
+                VideoMetadata videoMetadata = (VideoMetadata) metadata;
+                desc = Long.toString(videoMetadata.getStartTime());
+            } else if (metadata instanceof SnapshotMetadata) {
+                SnapshotMetadata snapshotMetadata = (SnapshotMetadata) metadata;
+                Log.d(TAG, "Extracted snapshot completed: " + snapshotMetadata);
+                desc = Long.toString(snapshotMetadata.getTakenTime());
+                Log.d(TAG, "Extracted snapshot taken time " + desc);
+            } else {
+                Log.i(TAG, "Unknown type of file.");
+            }
         }
+        MediaRegistrationQueue.getInstance(context).register(filePath, desc, new MediaRegistrationQueue.Callback() {
+            @Override
+            public void onRegistered(String path, Uri uri, boolean described) {
+                if (listener != null) {
+                    listener.onScanCompleted(path, uri);
+                    return;
+                }
+                if (!described) {
+                    Log.e(TAG, "Failed to save description of " + path);
+                }
+                Log.d(TAG, "File has been registered to MediaStore:" + filePath);
+            }
+        });
     }
 
     public static boolean saveYuvAsFile(ByteBuffer y, ByteBuffer u, ByteBuffer v, int width, int height,
@@ -0,0 +1,310 @@
+package com.nauto.camera;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk-backed LRU cache of extracted clips and snapshots, stored in its own directory under the
+ * media root.
+ *
+ * <p>Entries are keyed by camera, time window and output parameters, and the key is the file name
+ * of the entry, so the cache is rebuilt from a directory listing and shared by the camera process
+ * and the app process. Results are copied into the cache and hits are copied out of it, never
+ * linked: the writers rewrite their output files in place, which would change an entry sharing
+ * the inode. Entries are evicted least recently used first once the total size is
+ * over the limit, and dropped when a source segment of their window is deleted.</p>
+ *
+ * <pre>
+ * c{cameraId}_{start}_{end}_{params}.{ext}
+ * </pre>
+ */
+public class ClipCache {
+    public static final String DIR_NAME = "clipCache";
+
+    private static final String PREFIX = "c";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File mDir;
+    private final long mMaxSize;
+    // access ordered, eldest first
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    private boolean mLoaded;
+
+    private static final class Entry {
+        final String mName;
+        final String mCameraId;
+        final long mStart;
+        final long mEnd;
+        final long mSize;
+
+        Entry(String name, String cameraId, long start, long end, long size) {
+            mName = name;
+            mCameraId = cameraId;
+            mStart = start;
+            mEnd = end;
+            mSize = size;
+        }
+    }
+
+    /**
+     * @return cache directory under the media root
+     */
+    public static File getDir(File mediaRoot) {
+        return new File(mediaRoot, DIR_NAME);
+    }
+
+    /**
+     * @param dir     cache directory
+     * @param maxSize max total size of the entries in bytes
+     */
+    public ClipCache(File dir, long maxSize) {
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    public File getDirectory() {
+        return mDir;
+    }
+
+    public synchronized long getSize() {
+        load();
+        return mSize;
+    }
+
+    public synchronized int getCount() {
+        load();
+        return mEntries.size();
+    }
+
+    /**
+     * @param params output parameters, e.g. snapshot width and quality
+     * @param ext    file extension of the output
+     * @return file name of the entry
+     */
+    static String getName(String cameraId, long start, long end, String params, String ext) {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(PREFIX).append(cameraId).append('_').append(start).append('_').append(end).append('_');
+        for (int i = 0; i < params.length(); i++) {
+            char c = params.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) ? c : '-');
+        }
+        return sb.append('.').append(ext).toString();
+    }
+
+    /**
+     * Copy a cached result to the output file.
+     *
+     * @return true on a hit
+     */
+    public boolean get(String cameraId, long start, long end, String params, String ext, File out) {
+        String name = getName(cameraId, start, end, params, ext);
+        File file;
+        synchronized (this) {
+            load();
+            if (mEntries.get(name) == null) {
+                return false;
+            }
+            file = new File(mDir, name);
+            if (!file.exists()) {
+                // evicted by the other process
+                remove(name);
+                return false;
+            }
+            // persist the access order for the next directory listing
+            file.setLastModified(System.currentTimeMillis());
+        }
+        try {
+            out.delete();
+            copy(file, out);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            out.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Add a result to the cache and evict the least recently used entries over the size limit.
+     *
+     * @param result file produced by an extraction, left in place
+     * @return true if the result was added
+     */
+    public boolean put(String cameraId, long start, long end, String params, String ext, File result) {
+        long size = result.length();
+        if (size == 0 || size > mMaxSize) {
+            return false;
+        }
+        String name = getName(cameraId, start, end, params, ext);
+        File file = new File(mDir, name);
+        File tmp = new File(mDir, name + TMP_SUFFIX);
+        try {
+            synchronized (this) {
+                load();
+            }
+            tmp.delete();
+            copy(result, tmp);
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return false;
+        }
+        synchronized (this) {
+            remove(name);
+            add(new Entry(name, cameraId, start, end, size));
+            trim();
+        }
+        return true;
+    }
+
+    /**
+     * Drop the entries of the camera whose window overlaps [start, end].
+     *
+     * @return number of entries dropped
+     */
+    public synchronized int invalidate(String cameraId, long start, long end) {
+        load();
+        int count = 0;
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            Entry e = it.next();
+            if (e.mCameraId.equals(cameraId) && e.mStart <= end && e.mEnd >= start) {
+                it.remove();
+                mSize -= e.mSize;
+                new File(mDir, e.mName).delete();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized void clear() {
+        load();
+        for (Entry e : mEntries.values()) {
+            new File(mDir, e.mName).delete();
+        }
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                FileChannel src = in.getChannel();
+                FileChannel dst = out.getChannel();
+                long size = src.size();
+                for (long pos = 0; pos < size; ) {
+                    pos += src.transferTo(pos, size - pos, dst);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void add(Entry e) {
+        mEntries.put(e.mName, e);
+        mSize += e.mSize;
+    }
+
+    private void remove(String name) {
+        Entry e = mEntries.remove(name);
+        if (e != null) {
+            mSize -= e.mSize;
+        }
+    }
+
+    private void trim() {
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext() && mSize > mMaxSize; ) {
+            Entry e = it.next();
+            it.remove();
+            mSize -= e.mSize;
+            new File(mDir, e.mName).delete();
+        }
+    }
+
+    /*
+     * Rebuild the entries from the directory, least recently modified first.
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            return;
+        }
+        try {
+            // keep the media scanner out of the cache
+            new File(mDir, ".nomedia").createNewFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return modified[a] < modified[b] ? -1 : (modified[a] == modified[b] ? 0 : 1);
+            }
+        });
+        for (Integer i : order) {
+            File f = files[i];
+            String name = f.getName();
+            if (name.endsWith(TMP_SUFFIX)) {
+                // left by an interrupted put
+                f.delete();
+                continue;
+            }
+            Entry e = parse(name, f.length());
+            if (e != null) {
+                add(e);
+            }
+        }
+        trim();
+    }
+
+    private static Entry parse(String name, long size) {
+        if (!name.startsWith(PREFIX)) {
+            return null;
+        }
+        String[] parts = name.substring(PREFIX.length()).split("_", 4);
+        if (parts.length < 4) {
+            return null;
+        }
+        try {
+            return new Entry(name, parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), size);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ClipCache{" + mDir + ", entries:" + mEntries.size() + ", size:" + mSize + "/" + mMaxSize + "}";
+    }
+}
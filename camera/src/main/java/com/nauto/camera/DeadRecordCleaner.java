@@ -0,0 +1,237 @@
+package com.nauto.camera;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Removes MediaStore records of media files that no longer exist, on a low priority thread.
+ *
+ * <p>A full pass pages through the video and image records by id, checks the pages for missing
+ * files on a few threads at once and deletes the dead records with one statement per chunk. Each
+ * run stops after a time budget and the pass carries on after a pause, so after an SD card swap the
+ * thousands of stale records never hold up trimming or extraction. Records found dead by a query
+ * can be handed over with {@link #remove} instead of being deleted one by one inline.</p>
+ */
+public final class DeadRecordCleaner {
+    private static final String TAG = DeadRecordCleaner.class.getSimpleName();
+
+    private static final Uri[] URIS = {
+            MediaStore.Video.Media.EXTERNAL_CONTENT_URI,
+            MediaStore.Images.Media.EXTERNAL_CONTENT_URI
+    };
+    private static final int PAGE_SIZE = 512;
+    // well under the 999 host parameters of a SQLite statement
+    private static final int DELETE_CHUNK = 256;
+    private static final int STAT_THREADS = 4;
+    private static final long PASS_BUDGET_MS = 1000;
+    private static final long PASS_INTERVAL_MS = 5000;
+
+    private static DeadRecordCleaner sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final ExecutorService mStatPool;
+
+    // full pass in progress, handler thread only: index into URIS, -1 if none, and last id checked
+    private int mUriIndex = -1;
+    private long mLastId;
+    private int mChecked;
+    private int mRemoved;
+
+    /**
+     * @return cleaner of this process
+     */
+    public static synchronized DeadRecordCleaner getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new DeadRecordCleaner(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DeadRecordCleaner(Context ctx) {
+        mResolver = ctx.getContentResolver();
+        HandlerThread thread = new HandlerThread(TAG, android.os.Process.THREAD_PRIORITY_LOWEST);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mStatPool = Executors.newFixedThreadPool(STAT_THREADS, new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG + "-" + mCount++);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start a full pass over the video and image records, unless one is in progress.
+     */
+    public void cleanAll() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mUriIndex < 0) {
+                    mUriIndex = 0;
+                    mLastId = 0;
+                    mChecked = 0;
+                    mRemoved = 0;
+                    mPass.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete the records of files already known to be missing.
+     *
+     * @param uri   content uri of the records
+     * @param paths file paths
+     */
+    public void remove(final Uri uri, List<String> paths) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        final List<String> dead = new ArrayList<>(paths);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int n = delete(uri, MediaStore.MediaColumns.DATA, dead);
+                Log.d(TAG, CameraStore.SubTag.TRIMMING + "Removed " + n + " MediaStore records of missing files");
+            }
+        });
+    }
+
+    private final Runnable mPass = new Runnable() {
+        @Override
+        public void run() {
+            long deadline = SystemClock.uptimeMillis() + PASS_BUDGET_MS;
+            while (mUriIndex < URIS.length && SystemClock.uptimeMillis() < deadline) {
+                if (!cleanPage(URIS[mUriIndex])) {
+                    mUriIndex++;
+                    mLastId = 0;
+                }
+            }
+            if (mUriIndex < URIS.length) {
+                mHandler.postDelayed(this, PASS_INTERVAL_MS);
+            } else {
+                Log.d(TAG, CameraStore.SubTag.TRIMMING + "Checked " + mChecked + " MediaStore records, removed " + mRemoved);
+                mUriIndex = -1;
+            }
+        }
+    };
+
+    /*
+     * Check the next page of records after the last id.
+     *
+     * @return false if there are no more records after this page
+     */
+    private boolean cleanPage(Uri uri) {
+        String[] proj = {MediaStore.MediaColumns._ID, MediaStore.MediaColumns.DATA};
+        Cursor cursor;
+        try {
+            cursor = mResolver.query(uri, proj, MediaStore.MediaColumns._ID + ">?",
+                    new String[]{Long.toString(mLastId)}, MediaStore.MediaColumns._ID + " LIMIT " + PAGE_SIZE);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to query " + uri + ": " + e.getMessage());
+            return false;
+        }
+        if (cursor == null) {
+            return false;
+        }
+        List<String> ids = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                mLastId = cursor.getLong(0);
+                ids.add(Long.toString(mLastId));
+                paths.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        boolean[] missing = findMissing(paths);
+        List<String> dead = new ArrayList<>();
+        for (int i = 0; i < missing.length; i++) {
+            if (missing[i]) {
+                dead.add(ids.get(i));
+            }
+        }
+        mChecked += ids.size();
+        mRemoved += delete(uri, MediaStore.MediaColumns._ID, dead);
+        return ids.size() == PAGE_SIZE;
+    }
+
+    /*
+     * Stat the files on the pool, a slice per thread.
+     */
+    private boolean[] findMissing(final List<String> paths) {
+        final boolean[] missing = new boolean[paths.size()];
+        int slice = (paths.size() + STAT_THREADS - 1) / STAT_THREADS;
+        List<Future<?>> futures = new ArrayList<>(STAT_THREADS);
+        for (int from = 0; from < paths.size(); from += slice) {
+            final int first = from;
+            final int last = Math.min(paths.size(), from + slice);
+            futures.add(mStatPool.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = first; i < last; i++) {
+                        String path = paths.get(i);
+                        missing[i] = path != null && !new File(path).exists();
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Failed to check files: " + e.getMessage());
+            return new boolean[paths.size()];
+        }
+        return missing;
+    }
+
+    /*
+     * Delete the records whose column has one of the values, a chunk per statement.
+     *
+     * @return number of records deleted
+     */
+    private int delete(Uri uri, String column, List<String> values) {
+        int deleted = 0;
+        for (int from = 0; from < values.size(); from += DELETE_CHUNK) {
+            List<String> chunk = values.subList(from, Math.min(values.size(), from + DELETE_CHUNK));
+            StringBuilder sel = new StringBuilder(column).append(" IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                sel.append(i == 0 ? "?" : ",?");
+            }
+            sel.append(')');
+            try {
+                deleted += mResolver.delete(uri, sel.toString(), chunk.toArray(new String[chunk.size()]));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to delete " + chunk.size() + " records from " + uri + ": " + e.getMessage());
+            }
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,97 @@
+package com.nauto.camera;
+
+/**
+ * Token buckets pacing deletions by bytes freed and by file system operations per second.
+ *
+ * <p>Both rates are scaled down by half whenever a write by the recorder side takes longer than
+ * {@link #PRESSURE_LATENCY_NS}, at most once per {@link #BACK_OFF_INTERVAL_MS}, and recover
+ * linearly while the average write latency stays under {@link #CALM_LATENCY_NS}. A file larger
+ * than the bucket is let through when the bucket is full and leaves it in debt, so later deletions
+ * wait for it.</p>
+ */
+public final class DeletionThrottle {
+    private static final long MB = 1024 * 1024;
+
+    // bytes and operations per millisecond at full scale
+    static final double BYTE_RATE = 32 * MB / 1000.;
+    static final double OP_RATE = 20 / 1000.;
+    static final double BYTE_BURST = 64 * MB;
+    static final double OP_BURST = 8;
+
+    static final long PRESSURE_LATENCY_NS = 50 * 1000 * 1000L;
+    static final long CALM_LATENCY_NS = 10 * 1000 * 1000L;
+    static final long BACK_OFF_INTERVAL_MS = 1000;
+    // time to recover from the lowest scale to the full rate
+    static final long RECOVERY_MS = 10 * 1000;
+    static final double MIN_SCALE = 1 / 16.;
+
+    private double mScale = 1;
+    private double mBytes = BYTE_BURST;
+    private double mOps = OP_BURST;
+    private long mLastRefill = -1;
+    private long mLastBackOff = Long.MIN_VALUE / 2;
+    // moving average of the write latency in nanoseconds
+    private double mLatency;
+
+    /**
+     * Account for the time a write took.
+     *
+     * @param nanos duration of the write
+     * @param now   current time in milliseconds
+     */
+    public synchronized void onWriteLatency(long nanos, long now) {
+        mLatency += 0.1 * (nanos - mLatency);
+        if (nanos >= PRESSURE_LATENCY_NS && now - mLastBackOff >= BACK_OFF_INTERVAL_MS) {
+            refill(now);
+            mScale = Math.max(MIN_SCALE, mScale / 2);
+            mLastBackOff = now;
+        }
+    }
+
+    /**
+     * Take tokens for a deletion if there are enough.
+     *
+     * @param bytes size of the file
+     * @param ops   file system operations it takes
+     * @param now   current time in milliseconds
+     * @return 0 if the deletion may go ahead, or milliseconds to wait before asking again
+     */
+    public synchronized long acquire(long bytes, int ops, long now) {
+        refill(now);
+        double neededBytes = Math.min(bytes, BYTE_BURST);
+        double neededOps = Math.min(ops, OP_BURST);
+        if (mBytes >= neededBytes && mOps >= neededOps) {
+            mBytes -= bytes;
+            mOps -= ops;
+            return 0;
+        }
+        double wait = Math.max((neededBytes - mBytes) / (BYTE_RATE * mScale), (neededOps - mOps) / (OP_RATE * mScale));
+        return Math.max(1, (long) Math.ceil(wait));
+    }
+
+    private void refill(long now) {
+        if (mLastRefill >= 0 && now > mLastRefill) {
+            long elapsed = now - mLastRefill;
+            mBytes = Math.min(BYTE_BURST, mBytes + BYTE_RATE * mScale * elapsed);
+            mOps = Math.min(OP_BURST, mOps + OP_RATE * mScale * elapsed);
+            if (mLatency < CALM_LATENCY_NS) {
+                mScale = Math.min(1, mScale + (double) elapsed / RECOVERY_MS);
+            }
+        }
+        mLastRefill = Math.max(mLastRefill, now);
+    }
+
+    /**
+     * @return fraction of the full rate deletions are paced at
+     */
+    public synchronized double getScale() {
+        return mScale;
+    }
+
+    /**
+     * @return average write latency in milliseconds
+     */
+    public synchronized double getWriteLatency() {
+        return mLatency / 1e6;
+    }
+}
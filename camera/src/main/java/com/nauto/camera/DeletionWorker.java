@@ -0,0 +1,166 @@
+package com.nauto.camera;
+
+import java.util.LinkedHashMap;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Deletes trimmed media files one at a time on a low priority thread, paced by a
+ * {@link DeletionThrottle}.
+ *
+ * <p>Trimming hands files over with {@link #submit} instead of deleting tens of large files back to
+ * back, which on slow SD cards stalls the recorder long enough to drop frames. The recorder reports
+ * how long its sidecar writes take with {@link #onWriteLatency}, and the worker slows down while
+ * they are slow. Bytes still queued are taken off the space a trim needs to free, and queued files
+ * are not picked again, see {@link #getPendingBytes} and {@link #isPending}.</p>
+ */
+public final class DeletionWorker {
+    private static final String TAG = DeletionWorker.class.getSimpleName();
+
+    private static DeletionWorker sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final DeletionThrottle mThrottle = new DeletionThrottle();
+    // queued files by path, oldest first
+    private final LinkedHashMap<String, Item> mPending = new LinkedHashMap<>();
+    private long mPendingBytes;
+    private boolean mScheduled;
+
+    /**
+     * Completion of a deletion, called on the worker thread.
+     */
+    public interface Callback {
+        /**
+         * @param path    absolute file path
+         * @param deleted true if the file and its record are gone
+         */
+        void onDeleted(String path, boolean deleted);
+    }
+
+    private static final class Item {
+        final Uri mUri;
+        final String mPath;
+        final long mSize;
+        final Callback mCallback;
+
+        Item(Uri uri, String path, long size, Callback callback) {
+            mUri = uri;
+            mPath = path;
+            mSize = size;
+            mCallback = callback;
+        }
+    }
+
+    /**
+     * @return worker of this process
+     */
+    public static synchronized DeletionWorker getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new DeletionWorker(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DeletionWorker(Context ctx) {
+        mContext = ctx;
+        HandlerThread thread = new HandlerThread(TAG, android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Queue a media file, with its sidecars, for deletion.
+     *
+     * @param uri      content uri of the record
+     * @param path     absolute file path
+     * @param size     bytes the file takes
+     * @param callback completion, may be null
+     * @return false if the file is queued already
+     */
+    public boolean submit(Uri uri, String path, long size, Callback callback) {
+        synchronized (mPending) {
+            if (mPending.containsKey(path)) {
+                return false;
+            }
+            mPending.put(path, new Item(uri, path, size, callback));
+            mPendingBytes += size;
+            if (!mScheduled) {
+                mScheduled = true;
+                mHandler.post(mDelete);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the file is queued for deletion
+     */
+    public boolean isPending(String path) {
+        synchronized (mPending) {
+            return mPending.containsKey(path);
+        }
+    }
+
+    /**
+     * @return bytes queued for deletion
+     */
+    public long getPendingBytes() {
+        synchronized (mPending) {
+            return mPendingBytes;
+        }
+    }
+
+    /**
+     * Account for the time a write by the recorder took, called on the writing thread.
+     *
+     * @param nanos duration of the write
+     */
+    public void onWriteLatency(long nanos) {
+        mThrottle.onWriteLatency(nanos, SystemClock.uptimeMillis());
+    }
+
+    private final Runnable mDelete = new Runnable() {
+        @Override
+        public void run() {
+            Item item;
+            synchronized (mPending) {
+                if (mPending.isEmpty()) {
+                    mScheduled = false;
+                    return;
+                }
+                item = mPending.values().iterator().next();
+            }
+            int ops = item.mPath.endsWith(".mp4") ? 1 + OriginalVideoLayout.SIDECAR_SUFFIXES.length : 1;
+            long wait = mThrottle.acquire(item.mSize, ops, SystemClock.uptimeMillis());
+            if (wait > 0) {
+                mHandler.postDelayed(this, wait);
+                return;
+            }
+            boolean deleted = false;
+            try {
+                deleted = CameraStore.deleteMedia(mContext, item.mUri, item.mPath);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to delete " + item.mPath + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+            synchronized (mPending) {
+                mPending.remove(item.mPath);
+                mPendingBytes -= item.mSize;
+            }
+            if (mThrottle.getScale() < 1) {
+                Log.d(TAG, CameraStore.SubTag.TRIMMING + "Deleted " + item.mPath + " at " + Math.round(mThrottle.getScale() * 100)
+                        + "% rate, write latency " + Math.round(mThrottle.getWriteLatency()) + " ms");
+            }
+            if (item.mCallback != null) {
+                item.mCallback.onDeleted(item.mPath, deleted);
+            }
+            mHandler.post(this);
+        }
+    };
+}
@@ -0,0 +1,571 @@
+package com.nauto.camera;
+
+import com.nauto.camera.mp4.Mp4Remuxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * Runs clip extractions on a bounded worker pool.
+ *
+ * <p>Requests are served by priority class, then in submission order. Queued requests of the same
+ * camera whose time windows overlap are merged: the segments of the union window are read once
+ * into a temporary clip and every request is cut out of it. Reads are limited per storage volume,
+ * so extraction never takes all the flash bandwidth from the recorder.</p>
+ *
+ * <p>Every request returns a {@link Job}, a future of the extraction result that also reports the
+ * time spent in each stage.</p>
+ */
+public class ExtractionScheduler {
+    private static final String TAG = ExtractionScheduler.class.getSimpleName();
+
+    public static final int PRIORITY_USER = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    @Retention(SOURCE)
+    @IntDef({PRIORITY_USER, PRIORITY_BACKGROUND})
+    public @interface Priority {
+    }
+
+    public static final int STAGE_QUEUED = 0;
+    public static final int STAGE_QUERY = 1;
+    public static final int STAGE_READ = 2;
+    public static final int STAGE_CUT = 3;
+    public static final int STAGE_REGISTER = 4;
+    public static final int STAGE_COUNT = 5;
+
+    @Retention(SOURCE)
+    @IntDef({STAGE_QUEUED, STAGE_QUERY, STAGE_READ, STAGE_CUT, STAGE_REGISTER})
+    public @interface Stage {
+    }
+
+    public static final int DEFAULT_WORKERS = 2;
+    public static final int DEFAULT_READS_PER_VOLUME = 1;
+
+    // requests closer than this are merged
+    static final long COALESCE_SLACK_MS = 2000;
+    // a merged window is never longer than this
+    static final long MAX_COALESCED_WINDOW_MS = 5 * 60 * 1000;
+    // merged requests are cut from the union clip only if it has no gaps longer than this
+    static final long MAX_COALESCED_MISSED_MS = 200;
+
+    /**
+     * Stage and completion callbacks, called on the worker thread.
+     */
+    public interface Listener {
+        void onStageCompleted(Job job, @Stage int stage, long elapsedMs);
+
+        void onCompleted(Job job, boolean success);
+    }
+
+    /**
+     * Storage access of the scheduler, replaced in tests.
+     */
+    interface Backend {
+        /**
+         * Same contract as {@link CameraStore#getOriginalVideosListInTimeRange}.
+         */
+        long[] query(String cameraId, List<String> items, long start, long end);
+
+        /**
+         * Write the clip described by the cuts.
+         *
+         * @return distance from the requested start to the start of the clip in microseconds,
+         * -1 if nothing was written
+         */
+        long extract(List<String> items, long[] cuts, File out) throws IOException;
+
+        /**
+         * Cut [startUs, endUs] out of a clip.
+         */
+        boolean cut(File in, long startUs, long endUs, File out) throws IOException;
+
+        /**
+         * Write the output of the job from a cached result.
+         *
+         * @return true on a hit
+         */
+        boolean fromCache(Job job);
+
+        /**
+         * Register the output of the job in the media store, and cache it.
+         */
+        void register(Job job);
+
+        /**
+         * @return key of the storage volume the segments of the camera are read from
+         */
+        String getVolume(String cameraId);
+    }
+
+    /**
+     * Future of one extraction request.
+     */
+    public static final class Job extends FutureTask<Boolean> {
+        private static final Callable<Boolean> NONE = new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return false;
+            }
+        };
+
+        final String mCameraId;
+        final long mStart;
+        final long mEnd;
+        final String mOutVideo;
+        final int mPriority;
+        final Listener mListener;
+        final long mSubmitTime = System.nanoTime();
+        private final long[] mStageTimeMs = new long[STAGE_COUNT];
+        private volatile int mStagesCompleted;
+        private volatile boolean mCoalesced;
+
+        Job(String cameraId, long start, long end, String outVideo, int priority, Listener listener) {
+            super(NONE);
+            mCameraId = cameraId;
+            mStart = start;
+            mEnd = end;
+            mOutVideo = outVideo;
+            mPriority = priority;
+            mListener = listener;
+        }
+
+        public String getCameraId() {
+            return mCameraId;
+        }
+
+        public long getStartTime() {
+            return mStart;
+        }
+
+        public long getEndTime() {
+            return mEnd;
+        }
+
+        public String getOutVideo() {
+            return mOutVideo;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * @return true if the job shared its segment reads with other requests
+         */
+        public boolean isCoalesced() {
+            return mCoalesced;
+        }
+
+        /**
+         * @return time spent in the stage in milliseconds, 0 if it has not completed
+         */
+        public long getStageTimeMs(@Stage int stage) {
+            synchronized (mStageTimeMs) {
+                return mStageTimeMs[stage];
+            }
+        }
+
+        /**
+         * @return fraction of the stages completed, 1 when done
+         */
+        public float getProgress() {
+            return isDone() ? 1 : (float) mStagesCompleted / STAGE_COUNT;
+        }
+
+        void stageCompleted(int stage, long elapsedMs) {
+            synchronized (mStageTimeMs) {
+                mStageTimeMs[stage] = elapsedMs;
+            }
+            mStagesCompleted = stage + 1;
+            if (mListener != null) {
+                mListener.onStageCompleted(this, stage, elapsedMs);
+            }
+        }
+
+        void complete(boolean success) {
+            set(success);
+            if (mListener != null) {
+                mListener.onCompleted(this, success);
+            }
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+            if (mListener != null) {
+                mListener.onCompleted(this, false);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Job{camera:" + mCameraId + ", " + mStart + "-" + mEnd + ", " + mOutVideo + "}";
+        }
+    }
+
+    /*
+     * Requests served by one read of the segments.
+     */
+    static final class Batch {
+        final String mCameraId;
+        final long mSeq;
+        long mStart;
+        long mEnd;
+        int mPriority;
+        final List<Job> mJobs = new ArrayList<>(2);
+
+        Batch(String cameraId, long seq) {
+            mCameraId = cameraId;
+            mSeq = seq;
+        }
+
+        boolean canMerge(Job job) {
+            return mCameraId.equals(job.mCameraId)
+                    && job.mStart <= mEnd + COALESCE_SLACK_MS && job.mEnd >= mStart - COALESCE_SLACK_MS
+                    && Math.max(mEnd, job.mEnd) - Math.min(mStart, job.mStart) <= MAX_COALESCED_WINDOW_MS;
+        }
+
+        void add(Job job) {
+            if (mJobs.isEmpty()) {
+                mStart = job.mStart;
+                mEnd = job.mEnd;
+                mPriority = job.mPriority;
+            } else {
+                mStart = Math.min(mStart, job.mStart);
+                mEnd = Math.max(mEnd, job.mEnd);
+                mPriority = Math.min(mPriority, job.mPriority);
+            }
+            mJobs.add(job);
+        }
+
+        boolean isBefore(Batch b) {
+            return mPriority < b.mPriority || (mPriority == b.mPriority && mSeq < b.mSeq);
+        }
+    }
+
+    private final Backend mBackend;
+    private final ExecutorService mWorkers;
+    private final int mReadsPerVolume;
+    private final List<Batch> mPending = new LinkedList<>();
+    private final Map<String, Semaphore> mVolumeReads = new HashMap<>();
+    private long mSeq;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            Batch batch = take();
+            if (batch != null) {
+                execute(batch);
+            }
+        }
+    };
+
+    /**
+     * @param ctx app context
+     */
+    public ExtractionScheduler(Context ctx) {
+        this(new StoreBackend(ctx.getApplicationContext()), DEFAULT_WORKERS, DEFAULT_READS_PER_VOLUME);
+    }
+
+    /**
+     * @param ctx            app context
+     * @param workers        number of worker threads
+     * @param readsPerVolume max number of concurrent segment reads per storage volume
+     */
+    public ExtractionScheduler(Context ctx, int workers, int readsPerVolume) {
+        this(new StoreBackend(ctx.getApplicationContext()), workers, readsPerVolume);
+    }
+
+    ExtractionScheduler(Backend backend, int workers, int readsPerVolume) {
+        mBackend = backend;
+        mReadsPerVolume = readsPerVolume;
+        mWorkers = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG + "-" + mCount.getAndIncrement());
+                // stay behind the recorder and the UI
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queue a clip extraction.
+     *
+     * @param cameraId camera id
+     * @param start    start time in milliseconds
+     * @param end      end time in milliseconds
+     * @param outVideo output file name
+     * @param priority {@link #PRIORITY_USER} or {@link #PRIORITY_BACKGROUND}
+     * @param listener optional stage listener
+     * @return future of the extraction result
+     */
+    public Job submit(String cameraId, long start, long end, String outVideo, @Priority int priority, Listener listener) {
+        Job job = new Job(cameraId, start, end, outVideo, priority, listener);
+        synchronized (mPending) {
+            Batch batch = null;
+            for (Batch b : mPending) {
+                if (b.canMerge(job)) {
+                    batch = b;
+                    break;
+                }
+            }
+            if (batch == null) {
+                batch = new Batch(cameraId, mSeq++);
+                mPending.add(batch);
+            }
+            batch.add(job);
+        }
+        // one drain per request, so there is always a worker for every batch
+        mWorkers.execute(mDrain);
+        return job;
+    }
+
+    /**
+     * Cancel the queued requests and stop the workers after the running ones.
+     */
+    public void shutdown() {
+        synchronized (mPending) {
+            for (Batch b : mPending) {
+                for (Job job : b.mJobs) {
+                    job.cancel(false);
+                }
+            }
+            mPending.clear();
+        }
+        mWorkers.shutdown();
+    }
+
+    private Batch take() {
+        synchronized (mPending) {
+            Batch best = null;
+            for (Batch b : mPending) {
+                if (best == null || b.isBefore(best)) {
+                    best = b;
+                }
+            }
+            if (best != null) {
+                mPending.remove(best);
+            }
+            return best;
+        }
+    }
+
+    private Semaphore getVolumeReads(String volume) {
+        synchronized (mVolumeReads) {
+            Semaphore s = mVolumeReads.get(volume);
+            if (s == null) {
+                s = new Semaphore(mReadsPerVolume, true);
+                mVolumeReads.put(volume, s);
+            }
+            return s;
+        }
+    }
+
+    private void execute(Batch batch) {
+        List<Job> jobs = new ArrayList<>(batch.mJobs.size());
+        long now = System.nanoTime();
+        for (Job job : batch.mJobs) {
+            if (!job.isCancelled()) {
+                jobs.add(job);
+                job.stageCompleted(STAGE_QUEUED, (now - job.mSubmitTime) / 1000000);
+            }
+        }
+        try {
+            for (Iterator<Job> it = jobs.iterator(); it.hasNext(); ) {
+                Job job = it.next();
+                if (mBackend.fromCache(job)) {
+                    it.remove();
+                    job.complete(true);
+                }
+            }
+            if (jobs.isEmpty()) {
+                return;
+            }
+            long t = System.nanoTime();
+            List<String> items = new LinkedList<>();
+            long[] cuts = mBackend.query(batch.mCameraId, items, batch.mStart, batch.mEnd);
+            stageCompleted(jobs, STAGE_QUERY, t);
+            if (items.isEmpty()) {
+                for (Job job : jobs) {
+                    job.complete(false);
+                }
+                return;
+            }
+            boolean[] results = new boolean[jobs.size()];
+            Semaphore reads = getVolumeReads(mBackend.getVolume(batch.mCameraId));
+            reads.acquire();
+            try {
+                if (jobs.size() > 1 && cuts[2] <= MAX_COALESCED_MISSED_MS) {
+                    extractCoalesced(batch, jobs, items, cuts, results);
+                } else {
+                    extractEach(jobs, items, cuts, results);
+                }
+            } finally {
+                reads.release();
+            }
+            for (int i = 0; i < jobs.size(); i++) {
+                Job job = jobs.get(i);
+                if (results[i]) {
+                    t = System.nanoTime();
+                    mBackend.register(job);
+                    job.stageCompleted(STAGE_REGISTER, (System.nanoTime() - t) / 1000000);
+                }
+                job.complete(results[i]);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failAll(jobs, e);
+        } catch (IOException | RuntimeException e) {
+            failAll(jobs, e);
+        }
+    }
+
+    /*
+     * Read the union window once and cut every request out of it.
+     */
+    private void extractCoalesced(Batch batch, List<Job> jobs, List<String> items, long[] cuts, boolean[] results) throws IOException {
+        File first = new File(jobs.get(0).mOutVideo);
+        File union = new File(first.getParentFile(), ".union_" + batch.mSeq + "_" + first.getName());
+        try {
+            long t = System.nanoTime();
+            long shiftUs = mBackend.extract(items, cuts, union);
+            stageCompleted(jobs, STAGE_READ, t);
+            if (shiftUs < 0) {
+                return;
+            }
+            for (int i = 0; i < jobs.size(); i++) {
+                Job job = jobs.get(i);
+                job.mCoalesced = true;
+                t = System.nanoTime();
+                long startUs = Math.max(0, (job.mStart - batch.mStart) * 1000 - shiftUs);
+                long endUs = (job.mEnd - batch.mStart) * 1000 - shiftUs;
+                results[i] = endUs > startUs && mBackend.cut(union, startUs, endUs, new File(job.mOutVideo));
+                job.stageCompleted(STAGE_CUT, (System.nanoTime() - t) / 1000000);
+            }
+        } finally {
+            union.delete();
+        }
+    }
+
+    private void extractEach(List<Job> jobs, List<String> items, long[] cuts, boolean[] results) throws IOException {
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            long t = System.nanoTime();
+            if (jobs.size() > 1) {
+                items = new LinkedList<>();
+                cuts = mBackend.query(job.mCameraId, items, job.mStart, job.mEnd);
+            }
+            results[i] = !items.isEmpty() && mBackend.extract(items, cuts, new File(job.mOutVideo)) >= 0;
+            job.stageCompleted(STAGE_READ, (System.nanoTime() - t) / 1000000);
+        }
+    }
+
+    private static void stageCompleted(List<Job> jobs, int stage, long startNanos) {
+        long elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+        for (Job job : jobs) {
+            job.stageCompleted(stage, elapsedMs);
+        }
+    }
+
+    private static void failAll(List<Job> jobs, Throwable t) {
+        for (Job job : jobs) {
+            if (!job.isDone()) {
+                job.fail(t);
+            }
+        }
+    }
+
+    /*
+     * Extraction from the original videos in the media store.
+     */
+    static final class StoreBackend implements Backend {
+        private final Context mContext;
+
+        StoreBackend(Context ctx) {
+            mContext = ctx;
+        }
+
+        @Override
+        public long[] query(String cameraId, List<String> items, long start, long end) {
+            long[] cuts = CameraStore.getOriginalVideosListInTimeRange(mContext, cameraId, items, start, end);
+            CameraStore.appendActiveOriginalVideo(mContext, cameraId, items, null, cuts, start, end);
+            return cuts;
+        }
+
+        @Override
+        public long extract(List<String> items, long[] cuts, File out) throws IOException {
+            Mp4Remuxer remuxer = new Mp4Remuxer();
+            // the last item may be the video being recorded
+            String name = new File(items.get(items.size() - 1)).getName();
+            remuxer.setGrowingInput(CameraStore.getActiveVideoRecovery(mContext, name.substring(0, Math.max(0, name.indexOf('_')))));
+            return remuxer.extract(items, cuts, out) > 0 ? remuxer.getStartShiftUs() : -1;
+        }
+
+        @Override
+        public boolean cut(File in, long startUs, long endUs, File out) throws IOException {
+            List<File> inputs = new ArrayList<>(1);
+            inputs.add(in);
+            return new Mp4Remuxer().remux(inputs, startUs, endUs, out) > 0;
+        }
+
+        @Override
+        public boolean fromCache(Job job) {
+            ClipCache cache = CameraStore.getClipCache(mContext);
+            if (cache != null && cache.get(job.mCameraId, job.mStart, job.mEnd,
+                    CameraStore.CLIP_CACHE_VIDEO_PARAMS, "mp4", new File(job.mOutVideo))) {
+                register(job, false);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void register(Job job) {
+            register(job, true);
+        }
+
+        private void register(Job job, boolean cache) {
+            File out = new File(job.mOutVideo);
+            // a clip of the video being recorded grows until the recording is finished
+            ClipCache clipCache = cache && CameraStore.isRecorded(mContext, job.mCameraId, job.mEnd)
+                    ? CameraStore.getClipCache(mContext) : null;
+            if (clipCache != null) {
+                clipCache.put(job.mCameraId, job.mStart, job.mEnd, CameraStore.CLIP_CACHE_VIDEO_PARAMS, "mp4", out);
+            }
+            CameraStore.VideoMetadata metadata = new CameraStore.VideoMetadata(job.mStart, job.mEnd, job.mOutVideo, job.mCameraId);
+            CameraStore.registerExtractedMedia(mContext, out, metadata, null);
+            Log.d(TAG, job + " done in " + (System.nanoTime() - job.mSubmitTime) / 1000000 + " ms"
+                    + (job.isCoalesced() ? ", coalesced" : ""));
+        }
+
+        @Override
+        public String getVolume(String cameraId) {
+            File root = Utils.getMediaRoot(mContext);
+            return root == null ? "" : root.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,736 @@
+package com.nauto.camera;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * Columnar binary store of the faces seen by a camera in every frame, one file per camera and day
+ * in UTC, so questions like "when was the face absent for more than 5 s yesterday" are answered by
+ * scanning two small columns instead of parsing the WebVTT reports of every segment.
+ *
+ * <p>Frames are appended in blocks of up to {@link #BLOCK_FRAMES} frames. A block stores its
+ * columns one after the other: the time delta to the previous frame and the face count of every
+ * frame, then the bounds and score of every face. The header of a block carries its time range and
+ * the lowest and highest face count in it, which is the block index: queries skip blocks outside
+ * the time range and blocks whose counts cannot match without touching their columns. Each column
+ * group has a CRC32, a torn last block is ignored by readers and truncated by the next writer.</p>
+ *
+ * <pre>
+ * header: magic:int version:int dayStart:long
+ * block:  magic:int frames:int faces:int start:long end:long minCount:byte maxCount:byte pad:short
+ *         countCrc:int faceCrc:int
+ *         timeDelta:short[frames] count:byte[frames] pad:byte[frames % 2]
+ *         left:short[faces] top:short[faces] width:short[faces] height:short[faces] score:short[faces]
+ * </pre>
+ *
+ * <p>A frame lasts until the next one, or as long as the frame before it when there is no next
+ * frame within {@link #MAX_FRAME_GAP}, which is taken as a gap in recording. Files are written by
+ * the camera process and may be read by any process at the same time.</p>
+ */
+public final class FaceTelemetry {
+    static final int MAGIC = 0x46414345; // "FACE"
+    static final int BLOCK_MAGIC = 0x46424c4b; // "FBLK"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 8;
+    static final int BLOCK_HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 1 + 1 + 2 + 4 + 4;
+    static final int BLOCK_FRAMES = 4096;
+    static final int BLOCK_FACES = 2 * BLOCK_FRAMES;
+    static final int MAX_COUNT = Byte.MAX_VALUE;
+    static final long DAY_MS = 24 * 3600 * 1000L;
+    // a longer time between frames is a gap in recording, the frames around it do not join
+    static final long MAX_FRAME_GAP = 1000;
+    // day files kept, the oldest are deleted when a writer starts a new day
+    static final int KEEP_DAYS = 14;
+
+    private static final String PREFIX = "faces";
+    private static final String SUFFIX = ".bin";
+
+    private final File mDir;
+
+    /**
+     * @param dir directory of the day files, created by the writers
+     */
+    public FaceTelemetry(File dir) {
+        mDir = dir;
+    }
+
+    public File getDir() {
+        return mDir;
+    }
+
+    /**
+     * @return file of the day of a time, named by the number of days since the epoch
+     */
+    public File getFile(String cameraId, long time) {
+        return new File(mDir, PREFIX + cameraId + "_" + getDay(time) + SUFFIX);
+    }
+
+    static long getDay(long time) {
+        long day = time / DAY_MS;
+        return time < 0 && day * DAY_MS != time ? day - 1 : day;
+    }
+
+    /**
+     * Frames that match a face count for a while, see {@link #findIntervals}.
+     */
+    public static final class Predicate {
+        private final int mMin;
+        private final int mMax;
+        private final long mMinDuration;
+
+        private Predicate(int min, int max, long minDuration) {
+            mMin = min;
+            mMax = max;
+            mMinDuration = minDuration;
+        }
+
+        /**
+         * @param minDuration shortest interval in milliseconds
+         */
+        public static Predicate countEquals(int count, long minDuration) {
+            return new Predicate(count, count, minDuration);
+        }
+
+        public static Predicate countAtLeast(int count, long minDuration) {
+            return new Predicate(count, MAX_COUNT, minDuration);
+        }
+
+        public static Predicate countAtMost(int count, long minDuration) {
+            return new Predicate(0, count, minDuration);
+        }
+
+        public static Predicate countBetween(int min, int max, long minDuration) {
+            return new Predicate(min, max, minDuration);
+        }
+
+        boolean matches(int count) {
+            return count >= mMin && count <= mMax;
+        }
+
+        boolean mayMatch(int minCount, int maxCount) {
+            return maxCount >= mMin && minCount <= mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "Predicate{count:" + mMin + ".." + mMax + ", minDuration:" + mMinDuration + "}";
+        }
+    }
+
+    /**
+     * Time spent with each number of faces.
+     *
+     * @param start start of the range, wall clock time in milliseconds
+     * @param end   end of the range, exclusive
+     * @return milliseconds recorded with i faces at index i, up to the highest count seen
+     */
+    public long[] queryFaceCount(String cameraId, long start, long end) throws IOException {
+        CountScan scan = new CountScan();
+        scan(cameraId, start, end, scan);
+        return scan.mDurations;
+    }
+
+    /**
+     * Intervals where every frame matches a predicate, at least as long as its minimum duration.
+     * Gaps in recording end an interval.
+     *
+     * @param start start of the range, wall clock time in milliseconds
+     * @param end   end of the range, exclusive
+     * @return start and end of each interval, in recording order
+     */
+    public long[] findIntervals(String cameraId, long start, long end, Predicate predicate) throws IOException {
+        IntervalScan scan = new IntervalScan(predicate);
+        scan(cameraId, start, end, scan);
+        return Arrays.copyOf(scan.mIntervals, scan.mSize);
+    }
+
+    private static final class CountScan extends Scan {
+        long[] mDurations = new long[1];
+
+        @Override
+        boolean accepts(int minCount, int maxCount) {
+            if (maxCount >= mDurations.length) {
+                mDurations = Arrays.copyOf(mDurations, maxCount + 1);
+            }
+            return true;
+        }
+
+        @Override
+        void frame(long time, long duration, int count) {
+            mDurations[count] += duration;
+        }
+
+        @Override
+        void breakRun() {
+        }
+    }
+
+    private static final class IntervalScan extends Scan {
+        private final Predicate mPredicate;
+        long[] mIntervals = new long[16];
+        int mSize;
+        private long mRunStart = -1;
+        private long mRunEnd;
+
+        IntervalScan(Predicate predicate) {
+            mPredicate = predicate;
+        }
+
+        @Override
+        boolean accepts(int minCount, int maxCount) {
+            return mPredicate.mayMatch(minCount, maxCount);
+        }
+
+        @Override
+        void frame(long time, long duration, int count) {
+            if (!mPredicate.matches(count)) {
+                breakRun();
+            } else {
+                if (mRunStart < 0) {
+                    mRunStart = time;
+                }
+                mRunEnd = time + duration;
+            }
+        }
+
+        @Override
+        void breakRun() {
+            if (mRunStart >= 0 && mRunEnd - mRunStart >= mPredicate.mMinDuration) {
+                if (mSize + 2 > mIntervals.length) {
+                    mIntervals = Arrays.copyOf(mIntervals, mIntervals.length * 2);
+                }
+                mIntervals[mSize++] = mRunStart;
+                mIntervals[mSize++] = mRunEnd;
+            }
+            mRunStart = -1;
+        }
+    }
+
+    /*
+     * Frames of a range in recording order, each with its duration clipped to the range.
+     */
+    private abstract static class Scan {
+        private boolean mPending;
+        private long mPendingTime;
+        private int mPendingCount;
+        private long mLastDuration;
+        long mEnd;
+
+        /**
+         * @return false to skip a block with face counts in the range
+         */
+        abstract boolean accepts(int minCount, int maxCount);
+
+        abstract void frame(long time, long duration, int count);
+
+        /**
+         * The frames before and after are not consecutive.
+         */
+        abstract void breakRun();
+
+        final void add(long time, int count) {
+            if (mPending) {
+                emit(time);
+            }
+            mPending = true;
+            mPendingTime = time;
+            mPendingCount = count;
+        }
+
+        /*
+         * Frames of a skipped block are not consecutive with the ones around it.
+         */
+        final void skip(long time) {
+            if (mPending) {
+                emit(time);
+            }
+            breakRun();
+        }
+
+        final void finish() {
+            if (mPending) {
+                emit(Long.MIN_VALUE);
+            }
+            breakRun();
+        }
+
+        private void emit(long next) {
+            mPending = false;
+            long duration = next - mPendingTime;
+            boolean gap = duration < 0 || duration > MAX_FRAME_GAP;
+            if (gap) {
+                duration = mLastDuration;
+            } else {
+                mLastDuration = duration;
+            }
+            frame(mPendingTime, Math.min(duration, mEnd - mPendingTime), mPendingCount);
+            if (gap) {
+                breakRun();
+            }
+        }
+    }
+
+    private void scan(String cameraId, long start, long end, Scan scan) throws IOException {
+        scan.mEnd = end;
+        CRC32 crc = new CRC32();
+        byte[] columns = new byte[BLOCK_FRAMES * 3];
+        for (long day = getDay(start); day <= getDay(end - 1); day++) {
+            File file = getFile(cameraId, day * DAY_MS);
+            if (!file.exists()) {
+                continue;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long length = channel.size();
+                if (length < HEADER_SIZE) {
+                    continue;
+                }
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                scanFile(map, start, end, scan, crc, columns);
+            } finally {
+                raf.close();
+            }
+        }
+        scan.finish();
+    }
+
+    private static void scanFile(ByteBuffer map, long start, long end, Scan scan, CRC32 crc, byte[] columns) throws IOException {
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            throw new IOException("Not a face telemetry file");
+        }
+        int pos = HEADER_SIZE;
+        int limit = map.limit();
+        while (pos + BLOCK_HEADER_SIZE <= limit) {
+            int size = getBlockSize(map, pos, limit);
+            if (size < 0) {
+                // torn tail
+                break;
+            }
+            long blockStart = map.getLong(pos + 12);
+            long blockEnd = map.getLong(pos + 20);
+            if (blockEnd >= start && blockStart < end) {
+                int frames = map.getInt(pos + 4);
+                int minCount = map.get(pos + 28);
+                int maxCount = map.get(pos + 29);
+                if (!scan.accepts(minCount, maxCount)) {
+                    // skipped without reading its columns
+                    scan.skip(blockStart);
+                } else {
+                    if (!read(map, pos + BLOCK_HEADER_SIZE, columns, frames * 3, map.getInt(pos + 32), crc)) {
+                        break;
+                    }
+                    int counts = frames * 2;
+                    long time = blockStart;
+                    for (int i = 0; i < frames; i++) {
+                        time += (columns[2 * i] & 0xff) << 8 | columns[2 * i + 1] & 0xff;
+                        if (time >= end) {
+                            break;
+                        }
+                        if (time >= start) {
+                            scan.add(time, columns[counts + i]);
+                        }
+                    }
+                }
+            }
+            pos += size;
+        }
+    }
+
+    /*
+     * Size of the block at a position, -1 if it does not fit.
+     */
+    private static int getBlockSize(ByteBuffer map, int pos, int limit) {
+        if (map.getInt(pos) != BLOCK_MAGIC) {
+            return -1;
+        }
+        int frames = map.getInt(pos + 4);
+        int faces = map.getInt(pos + 8);
+        if (frames <= 0 || frames > BLOCK_FRAMES || faces < 0 || faces > BLOCK_FACES) {
+            return -1;
+        }
+        int size = BLOCK_HEADER_SIZE + frames * 3 + (frames & 1) + faces * 10;
+        return pos + size <= limit ? size : -1;
+    }
+
+    /*
+     * Read columns and check them against their CRC32.
+     */
+    private static boolean read(ByteBuffer map, int pos, byte[] dst, int length, int expected, CRC32 crc) {
+        map.position(pos);
+        map.get(dst, 0, length);
+        crc.reset();
+        crc.update(dst, 0, length);
+        return (int) crc.getValue() == expected;
+    }
+
+    /**
+     * Delete the day files of all cameras that end before a time.
+     *
+     * @return files deleted
+     */
+    public int trim(long before) {
+        File[] files = mDir.listFiles();
+        int deleted = 0;
+        if (files == null) {
+            return 0;
+        }
+        long lastDay = getDay(before);
+        for (File f : files) {
+            String name = f.getName();
+            int sep = name.lastIndexOf('_');
+            if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX) || sep < 0) {
+                continue;
+            }
+            try {
+                long day = Long.parseLong(name.substring(sep + 1, name.length() - SUFFIX.length()));
+                if (day < lastDay && f.delete()) {
+                    deleted++;
+                }
+            } catch (NumberFormatException e) {
+                // not a day file
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Appends the frames of a camera to its day files, without allocating or touching the file per
+     * frame. A frame is added by {@link #append} followed by {@link #appendFace} for each of its
+     * faces. The appending thread only fills blocks; full blocks are encoded and written, and day
+     * files opened, checked and trimmed, by an executor. When the executor falls behind by more
+     * than {@link #BLOCKS} blocks, frames are dropped. Not thread safe.
+     */
+    public static final class Writer implements Closeable {
+        // blocks being filled or waiting for the executor
+        static final int BLOCKS = 3;
+
+        private static final Executor DIRECT = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        private final FaceTelemetry mStore;
+        private final String mCameraId;
+        private final Executor mExecutor;
+        private final ArrayBlockingQueue<Block> mFree = new ArrayBlockingQueue<>(BLOCKS);
+        // appending side
+        private Block mBlock;
+        // faces still expected for the last frame
+        private int mFacesLeft;
+        private long mDropped;
+        // executor side
+        private final CRC32 mCrc = new CRC32();
+        private final byte[] mBytes = new byte[BLOCK_HEADER_SIZE + BLOCK_FRAMES * 3 + 1 + BLOCK_FACES * 10];
+        private final ByteBuffer mBuffer = ByteBuffer.wrap(mBytes);
+        private RandomAccessFile mRaf;
+        private FileChannel mChannel;
+        private long mDay = Long.MIN_VALUE;
+        private volatile IOException mError;
+        private final Runnable mCloseTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    closeFile();
+                } catch (IOException e) {
+                    setError(e);
+                }
+            }
+        };
+
+        /*
+         * Columns of a block, handed to the executor when full and back when written.
+         */
+        private final class Block implements Runnable {
+            final short[] mTimeDeltas = new short[BLOCK_FRAMES];
+            final byte[] mCounts = new byte[BLOCK_FRAMES];
+            final short[][] mFaces = new short[5][BLOCK_FACES];
+            int mFrames;
+            int mFaceCount;
+            long mDay;
+            long mStart;
+            long mLastTime;
+            int mMinCount;
+            int mMaxCount;
+
+            @Override
+            public void run() {
+                try {
+                    write(this);
+                } finally {
+                    mFrames = 0;
+                    mFaceCount = 0;
+                    mFree.offer(this);
+                }
+            }
+        }
+
+        /**
+         * A writer that writes on the appending thread, when it flushes and when a block is full.
+         */
+        public Writer(FaceTelemetry store, String cameraId) {
+            this(store, cameraId, DIRECT);
+        }
+
+        /**
+         * @param executor writes the blocks, a single thread
+         */
+        public Writer(FaceTelemetry store, String cameraId, Executor executor) {
+            mStore = store;
+            mCameraId = cameraId;
+            mExecutor = executor;
+            for (int i = 0; i < BLOCKS; i++) {
+                mFree.offer(new Block());
+            }
+        }
+
+        /**
+         * Add a frame, its faces follow with {@link #appendFace}.
+         *
+         * @param time  wall clock time in milliseconds
+         * @param count number of faces
+         */
+        public void append(long time, int count) {
+            count = Math.max(0, Math.min(count, MAX_COUNT));
+            long day = getDay(time);
+            Block b = mBlock;
+            if (b != null) {
+                long delta = time - b.mLastTime;
+                if (day != b.mDay || delta < 0 || delta > 0xffff
+                        || b.mFrames == BLOCK_FRAMES || b.mFaceCount + count > BLOCK_FACES) {
+                    handOver();
+                    b = null;
+                }
+            }
+            if (b == null) {
+                b = mFree.poll();
+                if (b == null) {
+                    // the executor is behind
+                    mDropped++;
+                    mFacesLeft = 0;
+                    return;
+                }
+                mBlock = b;
+                b.mDay = day;
+                b.mStart = time;
+                b.mLastTime = time;
+                b.mMinCount = count;
+                b.mMaxCount = count;
+            }
+            b.mTimeDeltas[b.mFrames] = (short) (time - b.mLastTime);
+            b.mCounts[b.mFrames] = (byte) count;
+            b.mFrames++;
+            b.mLastTime = time;
+            b.mMinCount = Math.min(b.mMinCount, count);
+            b.mMaxCount = Math.max(b.mMaxCount, count);
+            mFacesLeft = count;
+        }
+
+        /**
+         * Add a face of the last frame, in sensor coordinates.
+         */
+        public void appendFace(int left, int top, int width, int height, int score) {
+            if (mFacesLeft == 0) {
+                return;
+            }
+            mFacesLeft--;
+            Block b = mBlock;
+            int i = b.mFaceCount;
+            b.mFaces[0][i] = (short) left;
+            b.mFaces[1][i] = (short) top;
+            b.mFaces[2][i] = (short) width;
+            b.mFaces[3][i] = (short) height;
+            b.mFaces[4][i] = (short) score;
+            b.mFaceCount++;
+        }
+
+        /**
+         * @return frames dropped because no block was free
+         */
+        public long getDroppedCount() {
+            return mDropped;
+        }
+
+        /**
+         * Hand the frames appended so far to the executor as a block, so readers see them once it
+         * is written.
+         *
+         * @throws IOException if writing a block failed since the last call, its frames are dropped
+         */
+        public void flush() throws IOException {
+            handOver();
+            IOException e = mError;
+            if (e != null) {
+                mError = null;
+                throw e;
+            }
+        }
+
+        private void handOver() {
+            Block b = mBlock;
+            mBlock = null;
+            mFacesLeft = 0;
+            if (b != null) {
+                execute(b);
+            }
+        }
+
+        private void execute(Runnable task) {
+            try {
+                mExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // the executor is shut down or full
+                task.run();
+            }
+        }
+
+        private void setError(IOException e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+
+        /*
+         * Write a block to its day file, on the executor.
+         */
+        private void write(Block b) {
+            try {
+                if (mChannel == null || b.mDay != mDay) {
+                    open(b.mDay);
+                }
+                ByteBuffer buf = mBuffer;
+                buf.clear();
+                buf.position(BLOCK_HEADER_SIZE);
+                for (int i = 0; i < b.mFrames; i++) {
+                    buf.putShort(b.mTimeDeltas[i]);
+                }
+                buf.put(b.mCounts, 0, b.mFrames);
+                int countCrc = crc(BLOCK_HEADER_SIZE, b.mFrames * 3);
+                if ((b.mFrames & 1) != 0) {
+                    buf.put((byte) 0);
+                }
+                int faceColumns = buf.position();
+                for (short[] column : b.mFaces) {
+                    for (int i = 0; i < b.mFaceCount; i++) {
+                        buf.putShort(column[i]);
+                    }
+                }
+                int faceCrc = crc(faceColumns, b.mFaceCount * 10);
+                buf.putInt(0, BLOCK_MAGIC).putInt(4, b.mFrames).putInt(8, b.mFaceCount).putLong(12, b.mStart)
+                        .putLong(20, b.mLastTime).put(28, (byte) b.mMinCount).put(29, (byte) b.mMaxCount)
+                        .putShort(30, (short) 0).putInt(32, countCrc).putInt(36, faceCrc);
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    mChannel.write(buf);
+                }
+            } catch (IOException e) {
+                // the frames are dropped, the next block opens the file again
+                setError(e);
+                try {
+                    closeFile();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void open(long day) throws IOException {
+            closeFile();
+            File dir = mStore.getDir();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            if (mDay != Long.MIN_VALUE && day != mDay) {
+                mStore.trim((day - KEEP_DAYS + 1) * DAY_MS);
+            }
+            mDay = day;
+            File file = mStore.getFile(mCameraId, day * DAY_MS);
+            mRaf = new RandomAccessFile(file, "rw");
+            mChannel = mRaf.getChannel();
+            long length = mChannel.size();
+            long end = HEADER_SIZE;
+            if (length >= HEADER_SIZE) {
+                MappedByteBuffer map = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                if (map.getInt(0) == MAGIC && map.getInt(4) == VERSION) {
+                    end = getValidLength(map, mCrc, mBytes);
+                } else {
+                    length = 0;
+                }
+            }
+            if (length < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(day * DAY_MS).flip();
+                mChannel.write(header, 0);
+            }
+            // drop a torn tail
+            mChannel.truncate(end);
+            mChannel.position(end);
+        }
+
+        /*
+         * End of the blocks that verify.
+         */
+        private static long getValidLength(ByteBuffer map, CRC32 crc, byte[] scratch) {
+            int pos = HEADER_SIZE;
+            int limit = map.limit();
+            while (pos + BLOCK_HEADER_SIZE <= limit) {
+                int size = getBlockSize(map, pos, limit);
+                if (size < 0) {
+                    break;
+                }
+                int frames = map.getInt(pos + 4);
+                int faces = map.getInt(pos + 8);
+                int times = pos + BLOCK_HEADER_SIZE;
+                int faceColumns = times + frames * 3 + (frames & 1);
+                if (!read(map, times, scratch, frames * 3, map.getInt(pos + 32), crc)
+                        || !read(map, faceColumns, scratch, faces * 10, map.getInt(pos + 36), crc)) {
+                    break;
+                }
+                pos += size;
+            }
+            return pos;
+        }
+
+        private int crc(int pos, int length) {
+            mCrc.reset();
+            mCrc.update(mBytes, pos, length);
+            return (int) mCrc.getValue();
+        }
+
+        private void closeFile() throws IOException {
+            if (mRaf != null) {
+                RandomAccessFile raf = mRaf;
+                mRaf = null;
+                mChannel = null;
+                raf.close();
+            }
+        }
+
+        /**
+         * Hand the last block to the executor, which closes the file after writing it.
+         *
+         * @throws IOException if writing a block failed since the last flush
+         */
+        @Override
+        public void close() throws IOException {
+            handOver();
+            execute(mCloseTask);
+            IOException e = mError;
+            if (e != null) {
+                mError = null;
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package com.nauto.camera;
+
+import com.nauto.camera.mp4.Mp4Remuxer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Loop recording storage: one preallocated file per camera holding the finished segments as a
+ * circular log of records, so recording does not create, register and delete a file per segment.
+ *
+ * <p>A record is a complete MP4 segment copied in as is. Records are laid out back to back in the
+ * data area and never wrap: a record that does not fit before the end starts the next lap at the
+ * beginning of the data area. Writing a record drops the oldest records it overlaps by advancing
+ * the head of the log, which is all trimming takes. Clips are remuxed straight from the records,
+ * see {@link #extract}.</p>
+ *
+ * <p>The header is kept in two copies written alternately, each with a generation and a CRC32, so
+ * a torn header write falls back to the previous one. The head is advanced and synced before a
+ * record is overwritten and the record entry is synced before the header publishes it, so after a
+ * power loss the log holds the records published last. The camera process writes with an
+ * exclusive lock on the header; readers take a shared lock to read the table, copy without it and
+ * check afterwards that the records they copied were not overwritten meanwhile.</p>
+ *
+ * <pre>
+ * header:  magic:int version:int generation:long dataSize:long maxRecords:int head:long next:long
+ *          writePosition:long crc32:int
+ * entry:   sequence:long start:long duration:long position:long length:long crc32:int
+ * data:    records at dataOffset + position % dataSize
+ * </pre>
+ */
+public final class LoopContainer implements Closeable {
+    static final int MAGIC = 0x4c4f4f50; // "LOOP"
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 56;
+    private static final int HEADER_COPY_OFFSET = 512;
+    private static final int TABLE_OFFSET = 1024;
+    private static final int ENTRY_SIZE = 48;
+    private static final int BLOCK_SIZE = 4096;
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final long mDataOffset;
+    private final long mDataSize;
+    private final int mMaxRecords;
+    private final CRC32 mCrc = new CRC32();
+    private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer mEntry = ByteBuffer.allocate(ENTRY_SIZE);
+
+    // last header read or written
+    private long mGeneration;
+    private long mHead;
+    private long mNext;
+    private long mWritePosition;
+
+    /**
+     * A segment stored in the container.
+     */
+    public static final class Record {
+        private final long mSequence;
+        private final long mStart;
+        private final long mDuration;
+        // position in the log, the offset in the file is the position in the data area
+        private final long mPosition;
+        private final long mOffset;
+        private final long mLength;
+
+        Record(long sequence, long start, long duration, long position, long offset, long length) {
+            mSequence = sequence;
+            mStart = start;
+            mDuration = duration;
+            mPosition = position;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * @return start time in milliseconds
+         */
+        public long getStart() {
+            return mStart;
+        }
+
+        /**
+         * @return duration in milliseconds
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * @return offset of the segment in the container file
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        public long getLength() {
+            return mLength;
+        }
+
+        @Override
+        public String toString() {
+            return "Record{" + mSequence + ", start:" + mStart + ", duration:" + mDuration + ", length:" + mLength + "}";
+        }
+    }
+
+    /**
+     * @return container file of the camera under the media root
+     */
+    public static File getFile(File mediaRoot, String cameraId) {
+        return new File(mediaRoot, "loop" + cameraId + ".container");
+    }
+
+    /**
+     * Open a container, creating it with the given geometry if the file has no valid header. An
+     * existing container keeps its geometry.
+     *
+     * @param dataSize   bytes for segments
+     * @param maxRecords number of segments the table can hold
+     */
+    public LoopContainer(File file, long dataSize, int maxRecords) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "rw");
+        mChannel = mRaf.getChannel();
+        try {
+            FileLock lock = mChannel.lock(0, TABLE_OFFSET, false);
+            try {
+                if (!readHeader()) {
+                    if (dataSize <= 0 || maxRecords <= 0) {
+                        throw new IllegalArgumentException("Invalid data size " + dataSize + " or records " + maxRecords);
+                    }
+                    create(dataSize, maxRecords);
+                }
+                mDataSize = mHeader.getLong(16);
+                mMaxRecords = mHeader.getInt(24);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            mRaf.close();
+            throw e;
+        }
+        mDataOffset = getDataOffset(mMaxRecords);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getDataSize() {
+        return mDataSize;
+    }
+
+    public int getMaxRecords() {
+        return mMaxRecords;
+    }
+
+    /**
+     * Copy a finished segment into the container, dropping the oldest records it overwrites.
+     *
+     * @param segment  MP4 file
+     * @param start    start time in milliseconds
+     * @param duration duration in milliseconds
+     * @return the new record
+     * @throws IOException if the segment is larger than the data area or can not be copied
+     */
+    public synchronized Record append(File segment, long start, long duration) throws IOException {
+        long length = segment.length();
+        if (length <= 0 || length > mDataSize) {
+            throw new IOException("Can not store " + length + " bytes of " + segment + " in " + mDataSize);
+        }
+        FileLock lock = mChannel.lock(0, TABLE_OFFSET, false);
+        try {
+            if (!readHeader()) {
+                throw new IOException("Invalid header in " + mFile);
+            }
+            long position = mWritePosition;
+            if (position % mDataSize + length > mDataSize) {
+                // next lap
+                position += mDataSize - position % mDataSize;
+            }
+            long head = mHead;
+            while (head < mNext && (mNext - head >= mMaxRecords || overlaps(readEntry(head), position + length))) {
+                head++;
+            }
+            if (head != mHead) {
+                writeHeader(head, mNext, mWritePosition);
+            }
+
+            RandomAccessFile in = new RandomAccessFile(segment, "r");
+            try {
+                FileChannel src = in.getChannel();
+                long dst = mDataOffset + position % mDataSize;
+                long copied = 0;
+                while (copied < length) {
+                    long n = src.transferTo(copied, length - copied, mChannel.position(dst + copied));
+                    if (n <= 0) {
+                        throw new IOException("Failed to copy " + segment + " at " + copied);
+                    }
+                    copied += n;
+                }
+            } finally {
+                in.close();
+            }
+            long sequence = mNext;
+            ByteBuffer b = mEntry;
+            b.clear();
+            b.putLong(sequence).putLong(start).putLong(duration).putLong(position).putLong(length);
+            b.putInt(checksum(b, 40)).putInt(0);
+            b.flip();
+            writeFully(b, getEntryOffset(sequence));
+            mChannel.force(false);
+            writeHeader(head, sequence + 1, position + length);
+            return new Record(sequence, start, duration, position, mDataOffset + position % mDataSize, length);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @return live records in recording order
+     */
+    public synchronized List<Record> getRecords() throws IOException {
+        List<Record> records = new ArrayList<>();
+        FileLock lock = mChannel.lock(0, TABLE_OFFSET, true);
+        try {
+            if (!readHeader()) {
+                return records;
+            }
+            for (long s = mHead; s < mNext; s++) {
+                Record r = readEntry(s);
+                if (r != null) {
+                    records.add(r);
+                }
+            }
+        } finally {
+            lock.release();
+        }
+        return records;
+    }
+
+    /**
+     * Collect the records overlapping [start, end), skipping segments shorter than
+     * {@link SegmentIndex#MIN_SEGMENT_DURATION_MS} like {@link SegmentIndex#query}.
+     */
+    public List<Record> query(long start, long end) throws IOException {
+        List<Record> records = getRecords();
+        List<Record> result = new ArrayList<>();
+        for (Record r : records) {
+            if (r.mStart < end && r.mStart + r.mDuration > start && r.mDuration >= SegmentIndex.MIN_SEGMENT_DURATION_MS) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drop the records that end before a time.
+     *
+     * @return number of records dropped
+     */
+    public synchronized int trim(long time) throws IOException {
+        FileLock lock = mChannel.lock(0, TABLE_OFFSET, false);
+        try {
+            if (!readHeader()) {
+                return 0;
+            }
+            long head = mHead;
+            while (head < mNext) {
+                Record r = readEntry(head);
+                if (r != null && r.mStart + r.mDuration >= time) {
+                    break;
+                }
+                head++;
+            }
+            int dropped = (int) (head - mHead);
+            if (dropped > 0) {
+                writeHeader(head, mNext, mWritePosition);
+            }
+            return dropped;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Remux a clip of [start, end] from the records into an MP4 file.
+     *
+     * @param start time in milliseconds
+     * @param end   time in milliseconds
+     * @param exact frame accurate clip, see {@link Mp4Remuxer#remuxExact}, otherwise the clip starts
+     *              at a keyframe, see {@link Mp4Remuxer#remux}
+     * @return duration of the clip in microseconds, 0 if there are no records in the range
+     * @throws IOException if the records can not be read or were overwritten while they were read
+     */
+    public long extract(long start, long end, boolean exact, File output) throws IOException {
+        List<Record> records = query(start, end);
+        if (records.isEmpty()) {
+            return 0;
+        }
+        int n = records.size();
+        List<File> inputs = new ArrayList<>(n);
+        long[] offsets = new long[n];
+        long[] lengths = new long[n];
+        long[] startsUs = new long[n];
+        for (int i = 0; i < n; i++) {
+            Record r = records.get(i);
+            inputs.add(mFile);
+            offsets[i] = r.mOffset;
+            lengths[i] = r.mLength;
+            startsUs[i] = r.mStart * 1000;
+        }
+        Mp4Remuxer remuxer = new Mp4Remuxer();
+        remuxer.setInputRanges(offsets, lengths);
+        long durationUs;
+        if (exact) {
+            durationUs = remuxer.remuxExact(inputs, startsUs, start * 1000, end * 1000, output);
+        } else {
+            long first = records.get(0).mStart;
+            long last = records.get(n - 1).mStart;
+            durationUs = remuxer.remux(inputs, Math.max(0, start - first) * 1000, (end - last) * 1000, output);
+        }
+        synchronized (this) {
+            FileLock lock = mChannel.lock(0, TABLE_OFFSET, true);
+            try {
+                if (readHeader() && records.get(0).mSequence < mHead) {
+                    output.delete();
+                    throw new IOException("Record " + records.get(0) + " was overwritten while it was read");
+                }
+            } finally {
+                lock.release();
+            }
+        }
+        return durationUs;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mRaf.close();
+    }
+
+    private static long getDataOffset(int maxRecords) {
+        long table = TABLE_OFFSET + (long) maxRecords * ENTRY_SIZE;
+        return (table + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    private long getEntryOffset(long sequence) {
+        return TABLE_OFFSET + (sequence % mMaxRecords) * ENTRY_SIZE;
+    }
+
+    /*
+     * Allocate the whole file up front: FAT formatted cards have no sparse files, so the data area
+     * gets its clusters now instead of one segment at a time.
+     */
+    private void create(long dataSize, int maxRecords) throws IOException {
+        mChannel.truncate(0);
+        mRaf.setLength(getDataOffset(maxRecords) + dataSize);
+        mGeneration = 0;
+        // both copies
+        writeHeader(dataSize, maxRecords, 0, 0, 0);
+        writeHeader(dataSize, maxRecords, 0, 0, 0);
+    }
+
+    private void writeHeader(long head, long next, long writePosition) throws IOException {
+        writeHeader(mDataSize, mMaxRecords, head, next, writePosition);
+    }
+
+    /*
+     * Write the next generation over the older copy and sync it.
+     */
+    private void writeHeader(long dataSize, int maxRecords, long head, long next, long writePosition) throws IOException {
+        long generation = mGeneration + 1;
+        ByteBuffer b = mHeader;
+        b.clear();
+        b.putInt(MAGIC).putInt(VERSION).putLong(generation).putLong(dataSize).putInt(maxRecords)
+                .putLong(head).putLong(next).putLong(writePosition);
+        b.putInt(checksum(b, HEADER_SIZE - 4));
+        b.flip();
+        writeFully(b, (generation & 1) == 0 ? 0 : HEADER_COPY_OFFSET);
+        mChannel.force(false);
+        mGeneration = generation;
+        mHead = head;
+        mNext = next;
+        mWritePosition = writePosition;
+    }
+
+    /*
+     * Read the newer valid header copy into mHeader and the fields. Returns false if neither copy
+     * is valid.
+     */
+    private boolean readHeader() throws IOException {
+        long best = -1;
+        long bestOffset = -1;
+        for (long offset = 0; offset <= HEADER_COPY_OFFSET; offset += HEADER_COPY_OFFSET) {
+            if (readValidHeader(offset) && mHeader.getLong(8) > best) {
+                best = mHeader.getLong(8);
+                bestOffset = offset;
+            }
+        }
+        if (bestOffset < 0 || !readValidHeader(bestOffset)) {
+            return false;
+        }
+        ByteBuffer b = mHeader;
+        mGeneration = b.getLong(8);
+        mHead = b.getLong(28);
+        mNext = b.getLong(36);
+        mWritePosition = b.getLong(44);
+        return true;
+    }
+
+    private boolean readValidHeader(long offset) throws IOException {
+        ByteBuffer b = mHeader;
+        b.clear();
+        if (mChannel.size() < offset + HEADER_SIZE) {
+            return false;
+        }
+        readFully(b, offset);
+        return b.getInt(0) == MAGIC && b.getInt(4) == VERSION && b.getInt(HEADER_SIZE - 4) == checksum(b, HEADER_SIZE - 4);
+    }
+
+    /*
+     * Entry of a sequence number, null if the slot does not hold it.
+     */
+    private Record readEntry(long sequence) throws IOException {
+        ByteBuffer b = mEntry;
+        b.clear();
+        readFully(b, getEntryOffset(sequence));
+        if (b.getLong(0) != sequence || b.getInt(40) != checksum(b, 40)) {
+            return null;
+        }
+        long position = b.getLong(24);
+        return new Record(sequence, b.getLong(8), b.getLong(16), position, mDataOffset + position % mDataSize, b.getLong(32));
+    }
+
+    /*
+     * Whether writing up to a log position overwrites a record, or a record older than one it
+     * overwrites, true for an unreadable entry.
+     */
+    private boolean overlaps(Record r, long end) {
+        return r == null || r.mPosition < end - mDataSize;
+    }
+
+    private int checksum(ByteBuffer b, int length) {
+        mCrc.reset();
+        mCrc.update(b.array(), 0, length);
+        return (int) mCrc.getValue();
+    }
+
+    private void readFully(ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            int n = mChannel.read(b, pos);
+            if (n < 0) {
+                throw new IOException("Unexpected end of " + mFile + " at " + pos);
+            }
+            pos += n;
+        }
+        b.flip();
+    }
+
+    private void writeFully(ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            pos += mChannel.write(b, pos);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.nauto.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.RemoteException;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Registers new media files with the MediaStore in batches.
+ *
+ * <p>Files queued within a short window are passed to a single media scanner connection, and their
+ * descriptions are written with one {@link android.content.ContentResolver#applyBatch} instead of
+ * an update per file. Snapshot bursts and segments finishing on both cameras at once then cost a
+ * few binder round trips and one scanner wake up. Every file still gets its own callback.</p>
+ */
+public final class MediaRegistrationQueue {
+    private static final String TAG = MediaRegistrationQueue.class.getSimpleName();
+
+    // how long the first file of a batch waits for others
+    private static final long WINDOW_MS = 250;
+    private static final int MAX_BATCH = 32;
+
+    private static MediaRegistrationQueue sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final List<Item> mPending = new ArrayList<>();
+
+    /**
+     * Completion of a registration, called on the queue thread.
+     */
+    public interface Callback {
+        /**
+         * @param path      absolute file path
+         * @param uri       MediaStore uri of the file, null if the scanner failed
+         * @param described true if there was no description or it was saved
+         */
+        void onRegistered(String path, Uri uri, boolean described);
+    }
+
+    private static final class Item {
+        final String mPath;
+        final String mDescription;
+        final Callback mCallback;
+        Uri mUri;
+        boolean mDescribed;
+
+        Item(String path, String description, Callback callback) {
+            mPath = path;
+            mDescription = description;
+            mCallback = callback;
+        }
+    }
+
+    /**
+     * @return queue of this process
+     */
+    public static synchronized MediaRegistrationQueue getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new MediaRegistrationQueue(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private MediaRegistrationQueue(Context ctx) {
+        mContext = ctx;
+        HandlerThread thread = new HandlerThread(TAG, android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Queue a file for scanning and saving its description.
+     *
+     * @param path        absolute file path
+     * @param description value of the DESCRIPTION column, null to keep what the scanner sets
+     * @param callback    completion, may be null
+     */
+    public void register(String path, String description, Callback callback) {
+        synchronized (mPending) {
+            mPending.add(new Item(path, description, callback));
+            if (mPending.size() >= MAX_BATCH) {
+                mHandler.removeCallbacks(mFlush);
+                mHandler.post(mFlush);
+            } else if (mPending.size() == 1) {
+                mHandler.postDelayed(mFlush, WINDOW_MS);
+            }
+        }
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            final List<Item> batch;
+            synchronized (mPending) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(mPending);
+                mPending.clear();
+            }
+            scan(batch);
+        }
+    };
+
+    private void scan(final List<Item> batch) {
+        String[] paths = new String[batch.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = batch.get(i).mPath;
+        }
+        final long t = System.currentTimeMillis();
+        MediaScannerConnection.scanFile(mContext, paths, null, new MediaScannerConnection.OnScanCompletedListener() {
+            int mScanned;
+
+            @Override
+            public void onScanCompleted(String path, Uri uri) {
+                // called once per path, on a binder thread
+                synchronized (batch) {
+                    for (Item item : batch) {
+                        if (item.mPath.equals(path) && item.mUri == null) {
+                            item.mUri = uri;
+                            break;
+                        }
+                    }
+                    if (++mScanned < batch.size()) {
+                        return;
+                    }
+                }
+                Log.d(TAG, "Scanned " + batch.size() + " files in " + (System.currentTimeMillis() - t) + " ms");
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        describe(batch);
+                    }
+                });
+            }
+        });
+    }
+
+    private void describe(List<Item> batch) {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        List<Item> described = new ArrayList<>();
+        for (Item item : batch) {
+            if (item.mDescription == null) {
+                item.mDescribed = true;
+            } else if (item.mUri != null) {
+                ops.add(ContentProviderOperation.newUpdate(item.mUri)
+                        .withValue(MediaStore.Video.Media.DESCRIPTION, item.mDescription)
+                        .build());
+                described.add(item);
+            }
+        }
+        if (!ops.isEmpty()) {
+            try {
+                ContentProviderResult[] results = mContext.getContentResolver().applyBatch(MediaStore.AUTHORITY, ops);
+                for (int i = 0; i < results.length; i++) {
+                    described.get(i).mDescribed = results[i].count != null && results[i].count == 1;
+                }
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "Failed to save " + ops.size() + " descriptions: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        for (Item item : batch) {
+            if (item.mCallback == null) {
+                continue;
+            }
+            try {
+                item.mCallback.onRegistered(item.mPath, item.mUri, item.mDescribed);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Registration callback failed for " + item.mPath);
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.nauto.camera;
+
+import com.nauto.camera.mp4.FrameTimeline;
+import com.nauto.camera.mp4.KeyframeIndex;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Where original videos live under the media root.
+ *
+ * <p>The flat layout keeps every segment in {@code originalVideo/<id>_<millis>.mp4}. The sharded
+ * layout adds one directory per UTC hour, {@code originalVideo/yyyy/MM/dd/HH/<id>_<millis>.mp4},
+ * so a segment is found from its start time without listing a directory of thousands of files
+ * and old footage is trimmed by deleting whole shards. Sidecars stay next to their segment.</p>
+ *
+ * <p>{@link #migrate} moves the segments of a flat layout into their shards.</p>
+ *
+ * <p>Segments cut at wall clock multiples of a slot length are named by the start of their slot,
+ * so the files of a time range follow from the slot length, see {@link #getSlotFiles}.</p>
+ */
+public final class OriginalVideoLayout {
+    public static final String DIRECTORY = "originalVideo";
+    public static final long SHARD_DURATION = 3600000L;
+    // a segment is named by its slot only if it starts at most this long after the slot boundary
+    public static final long SLOT_TOLERANCE = 5000;
+
+    static final String[] SIDECAR_SUFFIXES = {".vtt", ".stats.vtt", KeyframeIndex.getFile("").getName(),
+            FrameTimeline.getFile("").getName()};
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private final File mDirectory;
+    private final boolean mSharded;
+
+    /**
+     * Notified of every segment moved by {@link #migrate}, after its sidecars were moved.
+     */
+    public interface Listener {
+        void onMoved(File from, File to);
+    }
+
+    public OriginalVideoLayout(File mediaRoot, boolean sharded) {
+        mDirectory = new File(mediaRoot, DIRECTORY);
+        mSharded = sharded;
+    }
+
+    public boolean isSharded() {
+        return mSharded;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return directory of the segments starting at the given time
+     */
+    public File getShard(long time) {
+        if (!mSharded) {
+            return mDirectory;
+        }
+        Calendar c = Calendar.getInstance(UTC);
+        c.setTimeInMillis(time);
+        return new File(mDirectory, String.format(Locale.US, "%04d/%02d/%02d/%02d", c.get(Calendar.YEAR),
+                c.get(Calendar.MONTH) + 1, c.get(Calendar.DAY_OF_MONTH), c.get(Calendar.HOUR_OF_DAY)));
+    }
+
+    /**
+     * @return file of the segment of a camera starting at the given time
+     */
+    public File getFile(String cameraId, long start) {
+        return new File(getShard(start), cameraId + "_" + start + ".mp4");
+    }
+
+    /**
+     * @return start time in milliseconds of the shard, or -1 if the directory is not a shard
+     */
+    public long getShardStart(File shard) {
+        if (!mSharded) {
+            return shard.equals(mDirectory) ? 0 : -1;
+        }
+        int[] fields = new int[4];
+        File f = shard;
+        for (int i = fields.length - 1; i >= 0; i--) {
+            if (f == null || (fields[i] = parse(f.getName())) < 0) {
+                return -1;
+            }
+            f = f.getParentFile();
+        }
+        if (!mDirectory.equals(f)) {
+            return -1;
+        }
+        Calendar c = Calendar.getInstance(UTC);
+        c.clear();
+        c.set(fields[0], fields[1] - 1, fields[2], fields[3], 0, 0);
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * @return existing shards, oldest first; the flat layout has a single one
+     */
+    public List<File> getShards() {
+        List<File> shards = new ArrayList<>();
+        if (!mSharded) {
+            if (mDirectory.isDirectory()) {
+                shards.add(mDirectory);
+            }
+            return shards;
+        }
+        addShards(mDirectory, 0, shards);
+        return shards;
+    }
+
+    private static void addShards(File dir, int depth, List<File> shards) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        // zero padded numbers sort by name
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory() && parse(child.getName()) >= 0) {
+                if (depth == 3) {
+                    shards.add(child);
+                } else {
+                    addShards(child, depth + 1, shards);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the shard if it is empty, and the day, month and year above it once they are empty.
+     */
+    public void deleteIfEmpty(File shard) {
+        if (!mSharded) {
+            return;
+        }
+        for (File f = shard; f != null && !f.equals(mDirectory); f = f.getParentFile()) {
+            String[] names = f.list();
+            if (names == null || names.length > 0 || !f.delete()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Move the segments of a camera found directly in the original video directory into their
+     * shards, together with their sidecars. A segment whose move was interrupted is picked up on
+     * the next call.
+     *
+     * @return number of segments moved
+     */
+    public int migrate(String cameraId, Listener listener) {
+        String[] names = mSharded ? mDirectory.list() : null;
+        if (names == null) {
+            return 0;
+        }
+        String prefix = cameraId + "_";
+        int count = 0;
+        for (String name : names) {
+            long start = getStart(name);
+            if (!name.startsWith(prefix) || start < 0) {
+                continue;
+            }
+            File from = new File(mDirectory, name);
+            File to = getFile(cameraId, start);
+            File shard = to.getParentFile();
+            if (!shard.isDirectory() && !shard.mkdirs()) {
+                continue;
+            }
+            for (String suffix : SIDECAR_SUFFIXES) {
+                File sidecar = new File(from.getPath() + suffix);
+                if (sidecar.exists()) {
+                    sidecar.renameTo(new File(to.getPath() + suffix));
+                }
+            }
+            if (from.renameTo(to)) {
+                count++;
+                if (listener != null) {
+                    listener.onMoved(from, to);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Paths of the segments of a camera cut at multiples of the slot length that cover a range,
+     * computed from their names without any I/O. Whether they exist is up to the caller.
+     *
+     * @param paths list receiving the paths, oldest first
+     */
+    public void getSlotFiles(String cameraId, long slotLength, long start, long end, List<String> paths) {
+        for (long t = getSlotStart(start, slotLength); t < end; t += slotLength) {
+            paths.add(getFile(cameraId, t).getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return start of the slot holding the time, slots being wall clock multiples of the length
+     */
+    public static long getSlotStart(long time, long slotLength) {
+        long r = time % slotLength;
+        return r < 0 ? time - r - slotLength : time - r;
+    }
+
+    /**
+     * @return file under the media root holding the slot length of the camera, if it aligns segments
+     */
+    public static File getSlotFile(File mediaRoot, String cameraId) {
+        return new File(mediaRoot, "segments" + cameraId + ".slot");
+    }
+
+    /**
+     * @return start time in milliseconds from the name of a segment, or -1 if the name has none
+     */
+    public static long getStart(String name) {
+        int p = name.indexOf('_');
+        if (p < 0 || !name.endsWith(".mp4")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(p + 1, name.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int parse(String name) {
+        if (name.length() < 2 || name.length() > 4) {
+            return -1;
+        }
+        int n = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + c - '0';
+        }
+        return n;
+    }
+}
@@ -0,0 +1,480 @@
+package com.nauto.camera;
+
+import android.support.annotation.IntDef;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.annotation.Retention;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+/**
+ * Decides which media files to delete, by class of media: the original videos of each camera,
+ * extracted clips and snapshots.
+ *
+ * <p>Bytes are tracked per class as files are added and removed, so a deletion plan takes the
+ * oldest files of a class off an ordered set, O(log n) per deletion, instead of listing and summing
+ * every file. A plan first enforces the quota and the maximum age of each class, then frees the
+ * requested space from the oldest original videos of both cameras.</p>
+ *
+ * <p>Original videos overlapping a pinned time range, e.g. around an extracted clip or a snapshot,
+ * are kept until the pin expires. A plan never takes them: only when nothing else is left to free
+ * space from, including the files the engine does not track, are pinned videos deleted, see
+ * {@link #planPinned} and {@link #isPinned(long, long)}. Pins can be shared between processes
+ * through a small file, see {@link #appendPin} and {@link #readPins}.</p>
+ */
+public final class RetentionEngine {
+    public static final int ORIGINAL_0 = 0;
+    public static final int ORIGINAL_1 = 1;
+    public static final int EXTRACTED = 2;
+    public static final int SNAPSHOT = 3;
+    static final int CLASSES = 4;
+
+    @Retention(SOURCE)
+    @IntDef({ORIGINAL_0, ORIGINAL_1, EXTRACTED, SNAPSHOT})
+    public @interface MediaClass {
+    }
+
+    // start:long end:long until:long
+    private static final int PIN_SIZE = 24;
+    // about 2700 events before expired pins are dropped from the file
+    private static final int MAX_PIN_FILE_SIZE = 64 * 1024;
+
+    private static final Comparator<Item> OLDEST_FIRST = new Comparator<Item>() {
+        @Override
+        public int compare(Item a, Item b) {
+            if (a.mStart != b.mStart) {
+                return a.mStart < b.mStart ? -1 : 1;
+            }
+            return a.mSequence < b.mSequence ? -1 : a.mSequence == b.mSequence ? 0 : 1;
+        }
+    };
+
+    private final long[] mBytes = new long[CLASSES];
+    private final long[] mQuotas = new long[CLASSES];
+    private final long[] mMaxAges = new long[CLASSES];
+    // files that can be deleted, and original videos kept by a pin, per class
+    private final List<TreeSet<Item>> mItems = new ArrayList<>(CLASSES);
+    private final List<TreeSet<Item>> mPinnedItems = new ArrayList<>(CLASSES);
+    private final HashMap<String, Item> mPaths = new HashMap<>();
+    private final List<long[]> mPins = new ArrayList<>();
+    private long mSequence;
+    // longest original video tracked, bounds the videos a pin can overlap
+    private long mMaxDuration;
+    // pins changed since the pinned items were checked
+    private boolean mPinsChanged;
+
+    /**
+     * A tracked media file.
+     */
+    public static final class Item {
+        final String mPath;
+        final int mClass;
+        final long mStart;
+        final long mEnd;
+        final long mSize;
+        final long mSequence;
+        boolean mPinned;
+
+        Item(String path, int cls, long start, long end, long size, long sequence) {
+            mPath = path;
+            mClass = cls;
+            mStart = start;
+            mEnd = end;
+            mSize = size;
+            mSequence = sequence;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        @MediaClass
+        public int getMediaClass() {
+            return mClass;
+        }
+
+        public long getStart() {
+            return mStart;
+        }
+
+        public long getEnd() {
+            return mEnd;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return true if the file is planned for deletion although a pin covers it
+         */
+        public boolean isPinned() {
+            return mPinned;
+        }
+
+        @Override
+        public String toString() {
+            return "Item{" + mPath + ", class:" + mClass + ", start:" + mStart + ", size:" + mSize + "}";
+        }
+    }
+
+    public RetentionEngine() {
+        for (int i = 0; i < CLASSES; i++) {
+            mItems.add(new TreeSet<>(OLDEST_FIRST));
+            mPinnedItems.add(new TreeSet<>(OLDEST_FIRST));
+        }
+    }
+
+    /**
+     * @return class of the original videos of a camera, -1 if the camera id is not a single camera
+     */
+    public static int getOriginalClass(String cameraId) {
+        return "0".equals(cameraId) ? ORIGINAL_0 : "1".equals(cameraId) ? ORIGINAL_1 : -1;
+    }
+
+    /**
+     * @param quota  bytes the class may take, 0 for no quota
+     * @param maxAge milliseconds a file of the class is kept after it ends, 0 for no limit
+     */
+    public synchronized void setPolicy(@MediaClass int cls, long quota, long maxAge) {
+        mQuotas[cls] = quota;
+        mMaxAges[cls] = maxAge;
+    }
+
+    /**
+     * Track a file, replacing a file tracked at the same path.
+     *
+     * @param start start time in milliseconds, snapshot time for snapshots
+     * @param end   end time in milliseconds
+     */
+    public synchronized void add(@MediaClass int cls, String path, long start, long end, long size) {
+        remove(path);
+        Item item = new Item(path, cls, start, end, size, mSequence++);
+        mPaths.put(path, item);
+        mBytes[cls] += size;
+        if (isOriginal(cls)) {
+            mMaxDuration = Math.max(mMaxDuration, end - start);
+        }
+        (isOriginal(cls) && isPinned(item) ? mPinnedItems : mItems).get(cls).add(item);
+    }
+
+    /**
+     * Stop tracking a file, e.g. after it was deleted.
+     *
+     * @return false if the file was not tracked
+     */
+    public synchronized boolean remove(String path) {
+        Item item = mPaths.remove(path);
+        if (item == null) {
+            return false;
+        }
+        if (!mItems.get(item.mClass).remove(item)) {
+            mPinnedItems.get(item.mClass).remove(item);
+        }
+        mBytes[item.mClass] -= item.mSize;
+        return true;
+    }
+
+    /**
+     * Stop tracking every file of the class, e.g. before its files are loaded again.
+     */
+    public synchronized void clear(@MediaClass int cls) {
+        for (Item item : mItems.get(cls)) {
+            mPaths.remove(item.mPath);
+        }
+        for (Item item : mPinnedItems.get(cls)) {
+            mPaths.remove(item.mPath);
+        }
+        mItems.get(cls).clear();
+        mPinnedItems.get(cls).clear();
+        mBytes[cls] = 0;
+    }
+
+    public synchronized boolean contains(String path) {
+        return mPaths.containsKey(path);
+    }
+
+    /**
+     * @return bytes of the tracked files of the class
+     */
+    public synchronized long getBytes(@MediaClass int cls) {
+        return mBytes[cls];
+    }
+
+    /**
+     * @return tracked files of the class
+     */
+    public synchronized int getCount(@MediaClass int cls) {
+        return mItems.get(cls).size() + mPinnedItems.get(cls).size();
+    }
+
+    /**
+     * Keep original videos overlapping the time range until the given time.
+     */
+    public synchronized void pin(long start, long end, long until) {
+        mPins.add(new long[]{start, end, until});
+        mPinsChanged = true;
+        // videos added before the pin, only those starting less than the longest video before it
+        // can reach into it
+        for (int cls = ORIGINAL_0; cls <= ORIGINAL_1; cls++) {
+            Item from = new Item(null, cls, start - mMaxDuration, 0, 0, -1);
+            Item to = new Item(null, cls, end, end, 0, -1);
+            if (OLDEST_FIRST.compare(from, to) >= 0) {
+                continue;
+            }
+            Iterator<Item> it = mItems.get(cls).subSet(from, true, to, false).iterator();
+            while (it.hasNext()) {
+                Item item = it.next();
+                if (item.mEnd > start) {
+                    it.remove();
+                    mPinnedItems.get(cls).add(item);
+                }
+            }
+        }
+    }
+
+    public synchronized void clearPins() {
+        mPins.clear();
+        mPinsChanged = true;
+    }
+
+    /**
+     * Take the files to delete off the engine: files older than the maximum age or beyond the quota
+     * of their class, then the oldest original videos no pin covers until the requested bytes are
+     * freed.
+     *
+     * @param now         current time in milliseconds
+     * @param bytesNeeded bytes to free beyond the quotas, 0 to enforce the policy only
+     * @return files to delete, no longer tracked
+     */
+    public synchronized List<Item> plan(long now, long bytesNeeded) {
+        expirePins(now);
+        List<Item> plan = new ArrayList<>();
+        long freed = 0;
+        for (int cls = 0; cls < CLASSES; cls++) {
+            TreeSet<Item> items = mItems.get(cls);
+            while (!items.isEmpty()) {
+                Item first = items.first();
+                boolean old = mMaxAges[cls] > 0 && first.mEnd < now - mMaxAges[cls];
+                boolean over = mQuotas[cls] > 0 && mBytes[cls] > mQuotas[cls];
+                if (!old && !over) {
+                    break;
+                }
+                freed += take(items, plan);
+            }
+        }
+        takeOldest(mItems, freed, bytesNeeded, plan);
+        return plan;
+    }
+
+    /**
+     * Take the oldest pinned original videos off the engine until the requested bytes are freed,
+     * the last resort when nothing else is left to delete.
+     *
+     * @param now         current time in milliseconds
+     * @param bytesNeeded bytes to free
+     * @return files to delete, no longer tracked
+     */
+    public synchronized List<Item> planPinned(long now, long bytesNeeded) {
+        expirePins(now);
+        List<Item> plan = new ArrayList<>();
+        takeOldest(mPinnedItems, 0, bytesNeeded, plan);
+        return plan;
+    }
+
+    /**
+     * Whether a pin covers an original video starting at the given time, e.g. one the engine does
+     * not track. Its end is not known, so any video as long as the longest tracked one is assumed.
+     *
+     * @param start start time in milliseconds, -1 if not known
+     * @param now   current time in milliseconds
+     */
+    public synchronized boolean isPinned(long start, long now) {
+        expirePins(now);
+        return start >= 0 && overlapsPin(start, start + Math.max(mMaxDuration, 1));
+    }
+
+    /*
+     * Take the oldest original videos of both cameras out of the sets until the bytes are freed.
+     */
+    private void takeOldest(List<TreeSet<Item>> sets, long freed, long bytesNeeded, List<Item> plan) {
+        while (freed < bytesNeeded) {
+            TreeSet<Item> a = sets.get(ORIGINAL_0);
+            TreeSet<Item> b = sets.get(ORIGINAL_1);
+            if (a.isEmpty() && b.isEmpty()) {
+                break;
+            }
+            TreeSet<Item> oldest = b.isEmpty() || !a.isEmpty() && OLDEST_FIRST.compare(a.first(), b.first()) < 0 ? a : b;
+            if (sets == mPinnedItems) {
+                oldest.first().mPinned = true;
+            }
+            freed += take(oldest, plan);
+        }
+    }
+
+    /*
+     * Take the oldest item of the set into the plan, or set it aside if a pin covers it.
+     *
+     * @return bytes freed
+     */
+    private long take(TreeSet<Item> items, List<Item> plan) {
+        Item item = items.pollFirst();
+        if (items == mItems.get(item.mClass) && isOriginal(item.mClass) && isPinned(item)) {
+            mPinnedItems.get(item.mClass).add(item);
+            return 0;
+        }
+        mPaths.remove(item.mPath);
+        mBytes[item.mClass] -= item.mSize;
+        plan.add(item);
+        return item.mSize;
+    }
+
+    /*
+     * Drop expired pins and release the videos no pin covers any more.
+     */
+    private void expirePins(long now) {
+        Iterator<long[]> it = mPins.iterator();
+        while (it.hasNext()) {
+            if (it.next()[2] <= now) {
+                it.remove();
+                mPinsChanged = true;
+            }
+        }
+        if (!mPinsChanged) {
+            return;
+        }
+        mPinsChanged = false;
+        for (int cls = ORIGINAL_0; cls <= ORIGINAL_1; cls++) {
+            Iterator<Item> items = mPinnedItems.get(cls).iterator();
+            while (items.hasNext()) {
+                Item item = items.next();
+                if (!isPinned(item)) {
+                    items.remove();
+                    mItems.get(cls).add(item);
+                }
+            }
+        }
+    }
+
+    private boolean isPinned(Item item) {
+        return overlapsPin(item.mStart, item.mEnd);
+    }
+
+    private boolean overlapsPin(long start, long end) {
+        for (long[] pin : mPins) {
+            if (start < pin[1] && end > pin[0]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isOriginal(int cls) {
+        return cls == ORIGINAL_0 || cls == ORIGINAL_1;
+    }
+
+    /**
+     * Append a pin to the file shared by the processes, dropping the expired ones once it grows
+     * past a few thousand pins.
+     */
+    public static void appendPin(File file, long start, long end, long until, long now) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            FileLock lock = ch.lock();
+            try {
+                long length = ch.size() / PIN_SIZE * PIN_SIZE;
+                if (length + PIN_SIZE > MAX_PIN_FILE_SIZE) {
+                    ByteBuffer all = ByteBuffer.allocate((int) length);
+                    readFully(ch, all, 0);
+                    all.flip();
+                    ByteBuffer kept = ByteBuffer.allocate((int) length);
+                    while (all.remaining() >= PIN_SIZE) {
+                        long s = all.getLong();
+                        long e = all.getLong();
+                        long u = all.getLong();
+                        if (u > now) {
+                            kept.putLong(s).putLong(e).putLong(u);
+                        }
+                    }
+                    kept.flip();
+                    length = kept.remaining();
+                    ch.truncate(0);
+                    writeFully(ch, kept, 0);
+                }
+                ByteBuffer pin = ByteBuffer.allocate(PIN_SIZE);
+                pin.putLong(start).putLong(end).putLong(until).flip();
+                writeFully(ch, pin, length);
+                ch.truncate(length + PIN_SIZE);
+            } finally {
+                lock.release();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Replace the pins of the engine with the unexpired pins of the file.
+     *
+     * @return number of pins read
+     */
+    public int readPins(File file, long now) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer all;
+        try {
+            FileChannel ch = raf.getChannel();
+            FileLock lock = ch.lock(0, Long.MAX_VALUE, true);
+            try {
+                all = ByteBuffer.allocate((int) Math.min(ch.size(), MAX_PIN_FILE_SIZE) / PIN_SIZE * PIN_SIZE);
+                readFully(ch, all, 0);
+            } finally {
+                lock.release();
+            }
+        } finally {
+            raf.close();
+        }
+        all.flip();
+        int count = 0;
+        synchronized (this) {
+            clearPins();
+            while (all.remaining() >= PIN_SIZE) {
+                long start = all.getLong();
+                long end = all.getLong();
+                long until = all.getLong();
+                if (until > now) {
+                    pin(start, end, until);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += ch.write(buf, position);
+        }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.nauto.camera;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-memory index of the original video segments recorded by one camera.
+ *
+ * <p>Start time, duration, size and path of every segment are kept in parallel primitive arrays
+ * sorted by start time, so range and point lookups are binary searches instead of MediaStore
+ * queries. Segments are expected to be added mostly in recording order, which makes {@link #add}
+ * an amortized append.</p>
+ *
+ * <p>A {@link Listener} follows every change, including the ones replayed from the segment
+ * journal of another process, so state derived from the index is kept up to date without
+ * scanning it.</p>
+ */
+public final class SegmentIndex {
+    /**
+     * Segments shorter than this are ignored by range queries, same as the MediaStore query did.
+     */
+    public static final long MIN_SEGMENT_DURATION_MS = 1000;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final SegmentIndex[] INDEXES = {new SegmentIndex("0"), new SegmentIndex("1")};
+
+    private final String mCameraId;
+    private long[] mStart = new long[INITIAL_CAPACITY];
+    private long[] mDuration = new long[INITIAL_CAPACITY];
+    private long[] mSize = new long[INITIAL_CAPACITY];
+    private String[] mPath = new String[INITIAL_CAPACITY];
+    private int mCount;
+    private long mTotalSize;
+    private boolean mLoaded;
+    private Listener mListener;
+
+    /**
+     * Changes of the index, called with the index locked.
+     */
+    public interface Listener {
+        void onAdded(SegmentIndex index, long start, long duration, long size, String path);
+
+        void onRemoved(SegmentIndex index, String path);
+
+        void onCleared(SegmentIndex index);
+    }
+
+    SegmentIndex(String cameraId) {
+        mCameraId = cameraId;
+    }
+
+    /**
+     * @param cameraId camera id
+     * @return process wide index for the camera or null if camera id is not "0" or "1"
+     */
+    public static SegmentIndex forCamera(String cameraId) {
+        if ("0".equals(cameraId)) {
+            return INDEXES[0];
+        } else if ("1".equals(cameraId)) {
+            return INDEXES[1];
+        }
+        return null;
+    }
+
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    /**
+     * @return true when the index has been populated from a persistent source in this process.
+     */
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    public synchronized void setLoaded(boolean loaded) {
+        mLoaded = loaded;
+    }
+
+    /**
+     * @param listener listener of the changes from now on, null for none
+     */
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * @return start time of the newest segment or 0 if the index is empty
+     */
+    public synchronized long getNewestStart() {
+        return mCount == 0 ? 0 : mStart[mCount - 1];
+    }
+
+    /**
+     * @return end time of the newest segment or 0 if the index is empty
+     */
+    public synchronized long getNewestEnd() {
+        return mCount == 0 ? 0 : mStart[mCount - 1] + mDuration[mCount - 1];
+    }
+
+    /**
+     * Add a segment, replacing an existing segment with the same start time and path.
+     *
+     * @param start    start time in milliseconds
+     * @param duration duration in milliseconds
+     * @param size     file size in bytes
+     * @param path     absolute file path
+     */
+    public synchronized void add(long start, long duration, long size, String path) {
+        int pos = upperBound(start);
+        if (pos > 0 && mStart[pos - 1] == start && path.equals(mPath[pos - 1])) {
+            mTotalSize += size - mSize[pos - 1];
+            mDuration[pos - 1] = duration;
+            mSize[pos - 1] = size;
+            if (mListener != null) {
+                mListener.onAdded(this, start, duration, size, path);
+            }
+            return;
+        }
+        ensureCapacity(mCount + 1);
+        if (pos < mCount) {
+            int n = mCount - pos;
+            System.arraycopy(mStart, pos, mStart, pos + 1, n);
+            System.arraycopy(mDuration, pos, mDuration, pos + 1, n);
+            System.arraycopy(mSize, pos, mSize, pos + 1, n);
+            System.arraycopy(mPath, pos, mPath, pos + 1, n);
+        }
+        mStart[pos] = start;
+        mDuration[pos] = duration;
+        mSize[pos] = size;
+        mPath[pos] = path;
+        mTotalSize += size;
+        mCount++;
+        if (mListener != null) {
+            mListener.onAdded(this, start, duration, size, path);
+        }
+    }
+
+    /**
+     * Remove a segment by path.
+     *
+     * @return true if the segment was found
+     */
+    public synchronized boolean remove(String path) {
+        int i = indexOf(path);
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    /**
+     * @return position of the segment with the path or -1
+     */
+    public synchronized int indexOf(String path) {
+        // trimming removes the oldest segments, so search from the beginning
+        for (int i = 0; i < mCount; i++) {
+            if (path.equals(mPath[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find a segment by path among the ones starting in a time range, without a linear search.
+     *
+     * @return position of the segment with the path that starts in [from, to] or -1
+     */
+    public synchronized int indexOf(String path, long from, long to) {
+        for (int i = lowerBound(from); i < mCount && mStart[i] <= to; i++) {
+            if (path.equals(mPath[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remove a segment by start time and path. Faster than {@link #remove(String)} when the
+     * start time is known.
+     *
+     * @return true if the segment was found
+     */
+    public synchronized boolean remove(long start, String path) {
+        int i = lowerBound(start);
+        for (; i < mCount && mStart[i] == start; i++) {
+            if (path.equals(mPath[i])) {
+                removeAt(i);
+                return true;
+            }
+        }
+        return remove(path);
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mPath, 0, mCount, null);
+        mCount = 0;
+        mTotalSize = 0;
+        if (mListener != null) {
+            mListener.onCleared(this);
+        }
+    }
+
+    /**
+     * Point lookup.
+     *
+     * @param time time in milliseconds
+     * @return position of the segment containing the time or -1
+     */
+    public synchronized int find(long time) {
+        int i = first(time);
+        return i < mCount && mStart[i] <= time && time < mStart[i] + mDuration[i] ? i : -1;
+    }
+
+    /**
+     * @return path of the segment containing the time or null
+     */
+    public synchronized String getPath(long time) {
+        int i = find(time);
+        return i < 0 ? null : mPath[i];
+    }
+
+    /**
+     * @return start time of the first segment starting after the given time or
+     * {@link Long#MAX_VALUE} if there is none
+     */
+    public synchronized long getNextStart(long time) {
+        int i = upperBound(time);
+        return i < mCount ? mStart[i] : Long.MAX_VALUE;
+    }
+
+    public synchronized String getPathAt(int i) {
+        return mPath[i];
+    }
+
+    public synchronized long getStartAt(int i) {
+        return mStart[i];
+    }
+
+    public synchronized long getDurationAt(int i) {
+        return mDuration[i];
+    }
+
+    public synchronized long getSizeAt(int i) {
+        return mSize[i];
+    }
+
+    /**
+     * Collect segments overlapping [start, end] in ascending order, same contract as
+     * {@link CameraStore#getOriginalVideosListInTimeRange}.
+     *
+     * @param items list to receive file paths
+     * @param start start time in milliseconds
+     * @param end   end time in milliseconds
+     * @return cuts: {offset of start in the first video, offset of end in the last video, missed time}
+     */
+    public synchronized long[] query(List<String> items, long start, long end) {
+        return query(items, null, start, end);
+    }
+
+    /**
+     * Same as {@link #query(List, long, long)}, also collecting the start time of every segment.
+     *
+     * @param starts list to receive segment start times in milliseconds, may be null
+     */
+    public synchronized long[] query(List<String> items, List<Long> starts, long start, long end) {
+        long[] cuts = {0, 0, 0};
+        int count = 0;
+        long len = 0;
+        long totalLength = 0;
+        for (int i = first(start); i < mCount && mStart[i] < end; i++) {
+            if (mStart[i] + mDuration[i] <= start) {
+                continue;
+            }
+            // ignore short videos
+            if (mDuration[i] < MIN_SEGMENT_DURATION_MS) {
+                continue;
+            }
+            len = mDuration[i];
+            if (count == 0) {
+                cuts[0] = start - mStart[i];
+            }
+            cuts[1] = end - mStart[i];
+            items.add(mPath[i]);
+            if (starts != null) {
+                starts.add(mStart[i]);
+            }
+            totalLength += len;
+            count++;
+        }
+        if (count == 0) {
+            return cuts;
+        }
+        if (cuts[0] < 0) {
+            // cut should never be negative
+            cuts[0] = 0;
+        }
+        if (cuts[1] > len) {
+            // cut should never be greater then video length
+            cuts[1] = len;
+        }
+        totalLength -= cuts[0];
+        totalLength -= (len - cuts[1]);
+        cuts[2] = end - start - totalLength;
+        return cuts;
+    }
+
+    /*
+     * Position of the first segment ending after the given time. Segments may overlap by a few ms
+     * around a cut off, so walk back over all the ones still covering the time.
+     */
+    private int first(long time) {
+        int i = upperBound(time);
+        while (i > 0 && mStart[i - 1] + mDuration[i - 1] > time) {
+            i--;
+        }
+        return i;
+    }
+
+    /*
+     * Position of the first segment with start >= time.
+     */
+    private int lowerBound(long time) {
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mStart[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /*
+     * Position of the first segment with start > time.
+     */
+    private int upperBound(long time) {
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mStart[mid] <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void removeAt(int i) {
+        String path = mPath[i];
+        mTotalSize -= mSize[i];
+        int n = mCount - i - 1;
+        if (n > 0) {
+            System.arraycopy(mStart, i + 1, mStart, i, n);
+            System.arraycopy(mDuration, i + 1, mDuration, i, n);
+            System.arraycopy(mSize, i + 1, mSize, i, n);
+            System.arraycopy(mPath, i + 1, mPath, i, n);
+        }
+        mCount--;
+        mPath[mCount] = null;
+        if (mListener != null) {
+            mListener.onRemoved(this, path);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mStart.length) {
+            int newCapacity = Math.max(capacity, mStart.length * 2);
+            mStart = Arrays.copyOf(mStart, newCapacity);
+            mDuration = Arrays.copyOf(mDuration, newCapacity);
+            mSize = Arrays.copyOf(mSize, newCapacity);
+            mPath = Arrays.copyOf(mPath, newCapacity);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SegmentIndex{camera:" + mCameraId + ", segments:" + mCount + ", bytes:" + mTotalSize + "}";
+    }
+}
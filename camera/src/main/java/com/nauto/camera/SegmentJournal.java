@@ -0,0 +1,462 @@
+package com.nauto.camera;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary journal of the segments of one camera, stored under the media root.
+ *
+ * <p>Every finished segment appends an ADD record and every deleted segment appends a REMOVE
+ * record through a memory mapped window of the file, so the {@link SegmentIndex} can be rebuilt
+ * after a restart without a MediaStore query. Records carry a CRC32, replay stops at the first
+ * record that does not verify and compaction drops everything from there on, which takes care of
+ * a torn tail after a power loss.</p>
+ *
+ * <p>The journal is shared by the camera process and the app process. Writers take an exclusive
+ * file lock and catch up with the records appended by the other process before writing, readers
+ * take a shared lock. Compaction writes a new file, marks the old one OBSOLETE and renames the
+ * new one over it, so a process still holding the old file reopens it on the next access.</p>
+ *
+ * <pre>
+ * header: magic:int version:int
+ * record: type:byte pathLength:short start:long duration:long size:long path:byte[] crc32:int
+ * </pre>
+ */
+public final class SegmentJournal implements Closeable {
+    static final int MAGIC = 0x534a4e4c; // "SJNL"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+
+    static final byte TYPE_END = 0;
+    static final byte TYPE_ADD = 1;
+    static final byte TYPE_REMOVE = 2;
+    static final byte TYPE_OBSOLETE = 3;
+
+    private static final int RECORD_OVERHEAD = 1 + 2 + 8 + 8 + 8 + 4;
+    private static final int MAX_PATH_BYTES = 4096;
+    private static final int MAP_CHUNK = 256 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    private MappedByteBuffer mMap;
+    private long mMapStart;
+    // end of the records this process has applied
+    private long mPosition;
+    // position of a record that failed verification, -1 if none
+    private long mTornTailAt = -1;
+    private final CRC32 mCrc = new CRC32();
+    private final Record mRecord = new Record();
+    private byte[] mPathBytes = new byte[256];
+
+    private static final class Record {
+        byte type;
+        long start;
+        long duration;
+        long size;
+        String path;
+    }
+
+    /**
+     * @return journal file of the camera under the media root
+     */
+    public static File getFile(File mediaRoot, String cameraId) {
+        return new File(mediaRoot, "segments" + cameraId + ".journal");
+    }
+
+    public SegmentJournal(File file) throws IOException {
+        mFile = file;
+        open();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return position of the first record that failed verification during the last scan, -1 if
+     * the journal was intact
+     */
+    public synchronized long getTornTailPosition() {
+        return mTornTailAt;
+    }
+
+    /**
+     * @return true if the journal has no records yet
+     */
+    public synchronized boolean isEmpty() throws IOException {
+        return mChannel.size() <= HEADER_SIZE || !hasValidHeader();
+    }
+
+    /**
+     * Replace the content of the index with the segments recorded in the journal.
+     *
+     * @return number of segments loaded
+     */
+    public synchronized int load(SegmentIndex index) throws IOException {
+        FileLock lock = mChannel.lock(0, Long.MAX_VALUE, true);
+        try {
+            if (loadLocked(index)) {
+                return index.size();
+            }
+        } finally {
+            lock.release();
+        }
+        // the file was compacted by another process
+        reopen();
+        return load(index);
+    }
+
+    /**
+     * Apply the records appended by other processes since the last access.
+     *
+     * @return number of records applied
+     */
+    public synchronized int sync(SegmentIndex index) throws IOException {
+        if (!hasRecordAt(mPosition)) {
+            return 0;
+        }
+        FileLock lock = mChannel.lock(0, Long.MAX_VALUE, true);
+        int n;
+        try {
+            n = syncLocked(index);
+        } finally {
+            lock.release();
+        }
+        if (n < 0) {
+            reopen();
+            return load(index);
+        }
+        return n;
+    }
+
+    /**
+     * Record a finished segment and add it to the index.
+     */
+    public synchronized void add(SegmentIndex index, long start, long duration, long size, String path) throws IOException {
+        append(index, TYPE_ADD, start, duration, size, path);
+        index.add(start, duration, size, path);
+    }
+
+    /**
+     * Record a deleted segment and remove it from the index.
+     */
+    public synchronized void remove(SegmentIndex index, String path) throws IOException {
+        append(index, TYPE_REMOVE, 0, 0, 0, path);
+        index.remove(path);
+    }
+
+    /**
+     * Replay the journal into the index and rewrite it with the live segments only. Runs in time
+     * proportional to the number of records.
+     *
+     * @return number of segments in the compacted journal
+     */
+    public synchronized int compact(SegmentIndex index) throws IOException {
+        while (true) {
+            FileLock lock = mChannel.lock();
+            try {
+                if (loadLocked(index)) {
+                    rewriteLocked(index);
+                    break;
+                }
+            } finally {
+                lock.release();
+            }
+            reopen();
+        }
+        reopen();
+        mPosition = mChannel.size();
+        return index.size();
+    }
+
+    /**
+     * Rewrite the journal from the content of the index, e.g. after the index was populated from
+     * MediaStore.
+     */
+    public synchronized void rewrite(SegmentIndex index) throws IOException {
+        FileLock lock = mChannel.lock();
+        try {
+            rewriteLocked(index);
+        } finally {
+            lock.release();
+        }
+        reopen();
+        mPosition = mChannel.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mMap = null;
+        mRaf.close();
+    }
+
+    private void open() throws IOException {
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mChannel = mRaf.getChannel();
+        mMap = null;
+        mMapStart = 0;
+        mPosition = HEADER_SIZE;
+    }
+
+    private void reopen() throws IOException {
+        close();
+        open();
+    }
+
+    private void append(SegmentIndex index, byte type, long start, long duration, long size, String path) throws IOException {
+        byte[] bytes = path.getBytes(UTF_8);
+        if (bytes.length > MAX_PATH_BYTES) {
+            throw new IOException("Path is too long: " + path);
+        }
+        while (true) {
+            FileLock lock = mChannel.lock();
+            try {
+                if (syncLocked(index) >= 0) {
+                    writeHeaderIfNeeded();
+                    int length = RECORD_OVERHEAD + bytes.length;
+                    // one more byte to terminate the journal in case we overwrite a torn tail
+                    ByteBuffer buf = map(mPosition, length + 1, true);
+                    int p = (int) (mPosition - mMapStart);
+                    buf.put(p, type);
+                    buf.putShort(p + 1, (short) bytes.length);
+                    buf.putLong(p + 3, start);
+                    buf.putLong(p + 11, duration);
+                    buf.putLong(p + 19, size);
+                    for (int i = 0; i < bytes.length; i++) {
+                        buf.put(p + 27 + i, bytes[i]);
+                    }
+                    buf.putInt(p + 27 + bytes.length, checksum(buf, p, 27 + bytes.length));
+                    buf.put(p + length, TYPE_END);
+                    mMap.force();
+                    mPosition += length;
+                    mTornTailAt = -1;
+                    return;
+                }
+            } finally {
+                lock.release();
+            }
+            // the file was compacted by another process, catch up and retry
+            reopen();
+            load(index);
+        }
+    }
+
+    /*
+     * Full replay. Returns false if the file has been obsoleted by a compaction.
+     */
+    private boolean loadLocked(SegmentIndex index) throws IOException {
+        mTornTailAt = -1;
+        mPosition = HEADER_SIZE;
+        index.clear();
+        if (!hasValidHeader()) {
+            return true;
+        }
+        Map<String, long[]> live = new LinkedHashMap<>();
+        long pos = HEADER_SIZE;
+        Record r = mRecord;
+        while ((pos = read(pos, r)) > 0) {
+            if (r.type == TYPE_ADD) {
+                live.put(r.path, new long[]{r.start, r.duration, r.size});
+            } else if (r.type == TYPE_REMOVE) {
+                live.remove(r.path);
+            } else if (r.type == TYPE_OBSOLETE) {
+                return false;
+            }
+            mPosition = pos;
+        }
+        // records are appended in recording order, so this is mostly appending
+        for (Map.Entry<String, long[]> e : live.entrySet()) {
+            long[] v = e.getValue();
+            index.add(v[0], v[1], v[2], e.getKey());
+        }
+        return true;
+    }
+
+    /*
+     * Incremental replay. Returns -1 if the file has been obsoleted by a compaction.
+     */
+    private int syncLocked(SegmentIndex index) throws IOException {
+        if (mPosition == HEADER_SIZE && !hasValidHeader()) {
+            return 0;
+        }
+        int n = 0;
+        long pos = mPosition;
+        Record r = mRecord;
+        while ((pos = read(pos, r)) > 0) {
+            if (r.type == TYPE_ADD) {
+                index.add(r.start, r.duration, r.size, r.path);
+            } else if (r.type == TYPE_REMOVE) {
+                index.remove(r.path);
+            } else if (r.type == TYPE_OBSOLETE) {
+                return -1;
+            }
+            mPosition = pos;
+            n++;
+        }
+        return n;
+    }
+
+    private void rewriteLocked(SegmentIndex index) throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel ch = out.getChannel();
+            ch.truncate(0);
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            buf.putInt(MAGIC).putInt(VERSION);
+            int n = index.size();
+            for (int i = 0; i < n; i++) {
+                byte[] bytes = index.getPathAt(i).getBytes(UTF_8);
+                if (buf.remaining() < RECORD_OVERHEAD + bytes.length) {
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        ch.write(buf);
+                    }
+                    buf.clear();
+                }
+                int p = buf.position();
+                buf.put(TYPE_ADD)
+                        .putShort((short) bytes.length)
+                        .putLong(index.getStartAt(i))
+                        .putLong(index.getDurationAt(i))
+                        .putLong(index.getSizeAt(i))
+                        .put(bytes);
+                buf.putInt(checksum(buf, p, buf.position() - p));
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            ch.force(true);
+        } finally {
+            out.close();
+        }
+        // tell processes holding the old file to reopen it
+        if (hasValidHeader()) {
+            long end = mPosition;
+            long next;
+            while ((next = read(end, mRecord)) > 0) {
+                end = next;
+            }
+            ByteBuffer buf = map(end, RECORD_OVERHEAD, true);
+            int p = (int) (end - mMapStart);
+            for (int i = 0; i < RECORD_OVERHEAD - 4; i++) {
+                buf.put(p + i, (byte) 0);
+            }
+            buf.put(p, TYPE_OBSOLETE);
+            buf.putInt(p + RECORD_OVERHEAD - 4, checksum(buf, p, RECORD_OVERHEAD - 4));
+            mMap.force();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Failed to rename " + tmp + " to " + mFile);
+        }
+    }
+
+    /*
+     * Read a record at pos. Returns position of the next record, or -1 at the end of the journal.
+     */
+    private long read(long pos, Record r) throws IOException {
+        long fileSize = mChannel.size();
+        if (pos + RECORD_OVERHEAD > fileSize) {
+            return -1;
+        }
+        ByteBuffer buf = map(pos, RECORD_OVERHEAD, false);
+        int p = (int) (pos - mMapStart);
+        byte type = buf.get(p);
+        if (type == TYPE_END) {
+            return -1;
+        }
+        int pathLength = buf.getShort(p + 1) & 0xffff;
+        if (type > TYPE_OBSOLETE || pathLength > MAX_PATH_BYTES || pos + RECORD_OVERHEAD + pathLength > fileSize) {
+            mTornTailAt = pos;
+            return -1;
+        }
+        buf = map(pos, RECORD_OVERHEAD + pathLength, false);
+        p = (int) (pos - mMapStart);
+        if (buf.getInt(p + 27 + pathLength) != checksum(buf, p, 27 + pathLength)) {
+            mTornTailAt = pos;
+            return -1;
+        }
+        r.type = type;
+        r.start = buf.getLong(p + 3);
+        r.duration = buf.getLong(p + 11);
+        r.size = buf.getLong(p + 19);
+        if (mPathBytes.length < pathLength) {
+            mPathBytes = new byte[Math.max(pathLength, mPathBytes.length * 2)];
+        }
+        for (int i = 0; i < pathLength; i++) {
+            mPathBytes[i] = buf.get(p + 27 + i);
+        }
+        r.path = new String(mPathBytes, 0, pathLength, UTF_8);
+        return pos + RECORD_OVERHEAD + pathLength;
+    }
+
+    /*
+     * Whether something follows the records applied so far. The writable mapping extends the file
+     * beyond the records, so the end of the written records is the terminating TYPE_END byte or
+     * the zeros after it, not the file size. A write in progress reads as a record.
+     */
+    private boolean hasRecordAt(long pos) throws IOException {
+        if (pos + RECORD_OVERHEAD > mChannel.size()) {
+            return false;
+        }
+        ByteBuffer buf = map(pos, 1, false);
+        return buf.get((int) (pos - mMapStart)) != TYPE_END;
+    }
+
+    private boolean hasValidHeader() throws IOException {
+        if (mChannel.size() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer buf = map(0, HEADER_SIZE, false);
+        int p = (int) -mMapStart;
+        return buf.getInt(p) == MAGIC && buf.getInt(p + 4) == VERSION;
+    }
+
+    private void writeHeaderIfNeeded() throws IOException {
+        if (!hasValidHeader()) {
+            ByteBuffer buf = map(0, HEADER_SIZE + 1, true);
+            buf.putInt(0, MAGIC);
+            buf.putInt(4, VERSION);
+            buf.put(HEADER_SIZE, TYPE_END);
+            mPosition = HEADER_SIZE;
+        }
+    }
+
+    /*
+     * Make sure [pos, pos + length) is mapped. Writable mappings may extend the file, read only
+     * access never maps beyond the end of the file.
+     */
+    private ByteBuffer map(long pos, int length, boolean write) throws IOException {
+        if (mMap == null || pos < mMapStart || pos + length > mMapStart + mMap.capacity()) {
+            long start = pos - pos % 4096;
+            long size = Math.max(MAP_CHUNK, pos + length - start);
+            if (!write) {
+                size = Math.min(size, mChannel.size() - start);
+            }
+            mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, start, size);
+            mMapStart = start;
+        }
+        return mMap;
+    }
+
+    private int checksum(ByteBuffer buf, int offset, int length) {
+        mCrc.reset();
+        for (int i = 0; i < length; i++) {
+            mCrc.update(buf.get(offset + i));
+        }
+        return (int) mCrc.getValue();
+    }
+}
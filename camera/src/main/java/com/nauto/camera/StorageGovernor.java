@@ -0,0 +1,116 @@
+package com.nauto.camera;
+
+import java.util.Locale;
+
+/**
+ * Forecasts when the media storage fills up and how much to trim ahead of it.
+ *
+ * <p>The write rate of each camera is a moving average of the bytes per second of its finished
+ * segments, weighted by segment duration, starting from the configured bit rate until a segment is
+ * measured. Each tick asks for enough space to keep the reserve free for {@link #HORIZON_MS} of
+ * recording, but frees it at a paced deletion rate, so trimming runs a little at a time instead of
+ * in bursts competing with the recorders. Only the part already below the reserve is freed at
+ * once.</p>
+ */
+public final class StorageGovernor {
+    public static final int CAMERAS = 2;
+    private static final long MB = 1024 * 1024;
+    // recording time the free space should cover on top of the reserve
+    public static final long HORIZON_MS = 10 * 60 * 1000;
+    // segments of this length or longer replace the average rate outright
+    static final long RATE_WINDOW_MS = 5 * 60 * 1000;
+    // deletion pace in bytes per millisecond, at least twice the write rate
+    static final double MIN_DELETE_RATE = 16 * 1024 * 1024 / 1000.;
+
+    // bytes per millisecond, measured and from the config
+    private final double[] mRates = new double[CAMERAS];
+    private final double[] mPriorRates = new double[CAMERAS];
+    private final boolean[] mMeasured = new boolean[CAMERAS];
+
+    // last forecast
+    private long mAvailable;
+    private long mTimeToFull = Long.MAX_VALUE;
+    private long mTrim;
+
+    /**
+     * @param camera        camera index
+     * @param bitsPerSecond configured bit rate, used until a segment is measured
+     */
+    public synchronized void setBitRate(int camera, long bitsPerSecond) {
+        mPriorRates[camera] = bitsPerSecond / 8000.;
+    }
+
+    /**
+     * Account for a finished segment.
+     *
+     * @param camera     camera index
+     * @param size       bytes
+     * @param durationMs duration in milliseconds
+     */
+    public synchronized void onSegment(int camera, long size, long durationMs) {
+        if (durationMs <= 0 || size <= 0) {
+            return;
+        }
+        double rate = (double) size / durationMs;
+        if (!mMeasured[camera]) {
+            mRates[camera] = rate;
+            mMeasured[camera] = true;
+        } else {
+            double weight = Math.min(1., (double) durationMs / RATE_WINDOW_MS);
+            mRates[camera] += weight * (rate - mRates[camera]);
+        }
+    }
+
+    /**
+     * @return bytes per second written by all cameras
+     */
+    public synchronized long getWriteRate() {
+        return Math.round(getRate() * 1000);
+    }
+
+    private double getRate() {
+        double rate = 0;
+        for (int i = 0; i < CAMERAS; i++) {
+            rate += mMeasured[i] ? mRates[i] : mPriorRates[i];
+        }
+        return rate;
+    }
+
+    /**
+     * Forecast and decide how much to trim in this tick.
+     *
+     * @param available  free bytes
+     * @param reserve    bytes that must stay free
+     * @param intervalMs time to the next tick
+     * @return bytes to trim now, 0 for none
+     */
+    public synchronized long plan(long available, long reserve, long intervalMs) {
+        double rate = getRate();
+        mAvailable = available;
+        mTimeToFull = rate <= 0 ? Long.MAX_VALUE : Math.max(0, (long) ((available - reserve) / rate));
+        long need = reserve + (long) (rate * HORIZON_MS) - available;
+        if (need <= 0) {
+            mTrim = 0;
+        } else {
+            long paced = (long) (Math.max(MIN_DELETE_RATE, 2 * rate) * intervalMs);
+            mTrim = Math.min(need, Math.max(paced, reserve - available));
+        }
+        return mTrim;
+    }
+
+    /**
+     * @return milliseconds until the free space falls to the reserve at the last forecast
+     */
+    public synchronized long getTimeToFull() {
+        return mTimeToFull;
+    }
+
+    /**
+     * @return last forecast: write rate in bytes per second, free MB, seconds to full and MB to
+     * trim, separated by commas
+     */
+    public synchronized String getForecast() {
+        return String.format(Locale.US, "%d,%d,%d,%d", getWriteRate(), mAvailable / MB,
+                mTimeToFull == Long.MAX_VALUE ? -1 : mTimeToFull / 1000, mTrim / MB);
+    }
+}
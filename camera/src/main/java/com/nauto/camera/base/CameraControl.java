@@ -268,6 +268,9 @@ abstract public class CameraControl extends BroadcastReceiver {
                     }
                     mLastInfoTime[CAMERA_ID] = System.currentTimeMillis();
                     break;
+                case CameraModule.INFO_CODE_STORAGE_FORECAST:
+                    logi(mTag, "STORAGE:" + msg);
+                    break;
                 default:
                     logw(mTag, "Undefined info code " + notice);
                     break;
@@ -1,6 +1,8 @@
 package com.nauto.camera.base;
 
 import com.nauto.camera.CameraStore;
+import com.nauto.camera.MediaRegistrationQueue;
+import com.nauto.camera.OriginalVideoLayout;
 import com.nauto.camera.R;
 import com.nauto.camera.ServiceUncaughtExceptionHandler;
 import com.nauto.camera.Utils;
@@ -13,7 +15,6 @@ import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
 import android.Manifest;
 import android.app.ActivityManager;
@@ -113,6 +114,10 @@ abstract public class CameraModule extends Service {
     public static final String PARAM_NIGHT_MODE = "nightMode";
     public static final String PARAM_SELF_TRIMMING = "selfTrimming";
     public static final String PARAM_JPEG_QUALITY = "jpegQuality";
+    public static final String PARAM_ALIGN_SEGMENTS = "alignSegments";
+    public static final String PARAM_LOOP_RECORDING = "loopRecording";
+    public static final String PARAM_SHARD_ORIGINAL_VIDEOS = "shardOriginalVideos";
+    public static final String PARAM_GAPLESS_SEGMENTS = "gaplessSegments";
 
     public static final String EXTRA_SNAPSHOT_META = "snapshotMetadata";
 
@@ -165,7 +170,8 @@ abstract public class CameraModule extends Service {
     public static final int ERROR_SAVING_CREATION_TIME = 15;
     public static final int ERROR_LOW_FPS = 16;
 
-    final AtomicReference<Face[]> mFaces;
+    // faces of the latest frame, written by the capture callback and read from any thread
+    final FaceFrame mFaceFrame = new FaceFrame(FaceFrame.MAX_FACES);
     final AtomicInteger mNumFaces;
 
     private List<CaptureModule> mCaptureModules;
@@ -198,9 +204,11 @@ abstract public class CameraModule extends Service {
      * Info codes
      */
     public static final int INFO_CODE_NUM_CAPTURE_REQUESTS_IN_30_SEC = 0;
+    // write rate in bytes per second, free MB, seconds until full and MB being trimmed
+    public static final int INFO_CODE_STORAGE_FORECAST = 1;
 
     @Retention(SOURCE)
-    @IntDef({INFO_CODE_NUM_CAPTURE_REQUESTS_IN_30_SEC})
+    @IntDef({INFO_CODE_NUM_CAPTURE_REQUESTS_IN_30_SEC, INFO_CODE_STORAGE_FORECAST})
     public @interface CameraInfo {
     }
 
@@ -244,55 +252,35 @@ abstract public class CameraModule extends Service {
     protected Intent mIntent;
 
     public void registerMediaFile(final String absolutePath, final Parcelable metadata) {
-        final Context ctx = getApplicationContext();
-        MediaScannerConnection.scanFile(ctx, new String[]{absolutePath}, null,
-                new MediaScannerConnection.OnScanCompletedListener() {
-                    @Override
-                    public void onScanCompleted(String s, Uri uri) {
-                        ContentValues values = new ContentValues();
-                        String desc = null;
-                        if (metadata instanceof CameraStore.VideoMetadata) {
-                            CameraStore.VideoMetadata videoMetadata = (CameraStore.VideoMetadata) metadata;
-                            Log.d(TAG, "Scheduled cut off completed: " + videoMetadata.toString());
-                            try {
-                                desc = Long.toString(videoMetadata.getStartTime());
-                                if (desc != null) {
-                                    values.put(MediaStore.Video.Media.DESCRIPTION, desc);
-                                    int n = ctx.getContentResolver().update(uri, values, null, null);
-                                    if (n != 1) {
-                                        Log.d(TAG, "Failed to save description " + desc);
-                                        broadcastError("Failed to save description ", ERROR_SAVING_CREATION_TIME);
-                                    }
-                                }
-                                Log.d(TAG, "Saving video start time " + desc);
-                            } finally {
-                                broadcastNotice(videoMetadata, CameraModule.SCHEDULED_CUT_OFF_COMPLETED);
-                            }
-
-                            playShutterClick();
-                        } else if (metadata instanceof CameraStore.SnapshotMetadata) {
-                            CameraStore.SnapshotMetadata snapshotMetadata = (CameraStore.SnapshotMetadata) metadata;
-                            Log.d(TAG, "Live snapshot completed: " + snapshotMetadata);
-                            try {
-                                desc = Long.toString(snapshotMetadata.getTakenTime());
-                                if (desc != null) {
-                                    values.put(MediaStore.Video.Media.DESCRIPTION, desc);
-                                    int n = ctx.getContentResolver().update(uri, values, null, null);
-                                    if (n != 1) {
-                                        Log.d(TAG, "Failed to save description " + desc);
-                                        broadcastError("Failed to save description ", ERROR_SAVING_CREATION_TIME);
-                                    }
-                                }
-                                Log.d(TAG, "Saving snapshot taken time " + desc);
-                            } finally {
-                                broadcastNotice(snapshotMetadata, CameraModule.SCHEDULED_CAPTURE_COMPLETED);
-                            }
-
-                        } else {
-                            Log.i(TAG, "Unknown type of file.");
-                        }
-                    }
-                });
+        String desc;
+        if (metadata instanceof CameraStore.VideoMetadata) {
+            desc = Long.toString(((CameraStore.VideoMetadata) metadata).getStartTime());
+        } else if (metadata instanceof CameraStore.SnapshotMetadata) {
+            desc = Long.toString(((CameraStore.SnapshotMetadata) metadata).getTakenTime());
+            CameraStore.retainEvent(this, new File(absolutePath), metadata);
+        } else {
+            Log.i(TAG, "Unknown type of file.");
+            return;
+        }
+        MediaRegistrationQueue.getInstance(this).register(absolutePath, desc, new MediaRegistrationQueue.Callback() {
+            @Override
+            public void onRegistered(String path, Uri uri, boolean described) {
+                if (!described) {
+                    Log.d(TAG, "Failed to save description of " + path);
+                    broadcastError("Failed to save description ", ERROR_SAVING_CREATION_TIME);
+                }
+                if (metadata instanceof CameraStore.VideoMetadata) {
+                    CameraStore.VideoMetadata videoMetadata = (CameraStore.VideoMetadata) metadata;
+                    Log.d(TAG, "Scheduled cut off completed: " + videoMetadata.toString());
+                    broadcastNotice(videoMetadata, CameraModule.SCHEDULED_CUT_OFF_COMPLETED);
+                    playShutterClick();
+                } else {
+                    CameraStore.SnapshotMetadata snapshotMetadata = (CameraStore.SnapshotMetadata) metadata;
+                    Log.d(TAG, "Live snapshot completed: " + snapshotMetadata);
+                    broadcastNotice(snapshotMetadata, CameraModule.SCHEDULED_CAPTURE_COMPLETED);
+                }
+            }
+        });
     }
 
     protected final String TAG;
@@ -672,12 +660,6 @@ abstract public class CameraModule extends Service {
         dbg(TAG, "Constructed " + this);
 
         mConfig = getCameraPipelineConfig();
-        mFaces = new AtomicReference<Face[]>(new Face[10]);
-        Face[] ff = mFaces.get();
-        for (int i = 0; i < ff.length; i++) {
-            ff[i] = new Face(new Rect(), 2);
-        }
-        mFaces.set(ff);
         mNumFaces = new AtomicInteger(0);
     }
 
@@ -838,9 +820,12 @@ abstract public class CameraModule extends Service {
         try {
             mMediaRoot = getMediaRootOrStopService();
             dbg(TAG, "Media root " + mMediaRoot);
+            CameraStore.compactSegmentJournalInBackground(getApplicationContext(), CAMERA_ID);
             ServiceUncaughtExceptionHandler.install(this);
             // if intent is null we'll update config with parameters
             updateConfigFromIntent(mConfig, intent);
+            // before recovery and the migration into shards read them
+            CameraStore.setStoreOptions(getApplicationContext(), mConfig.mLoopRecording, mConfig.mShardOriginalVideos);
             dbg(TAG, "onStartCommand() executing with parameters " + getParamsString());
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                 if (checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
@@ -868,6 +853,8 @@ abstract public class CameraModule extends Service {
                 @Override
                 public void run() {
                     try {
+                        // the leftovers of a power loss are recovered while recording
+                        CameraStore.recoverOriginalVideosInBackground(CameraModule.this, CAMERA_ID, mConfig.mVideoFrameRate);
                         initGpu();
                         startCamera(cm, CAMERA_ID);
                     } catch (Exception ex) {
@@ -990,6 +977,10 @@ abstract public class CameraModule extends Service {
                 cfg.mRecordAudio = uri.getBooleanQueryParameter(PARAM_RECORD_AUDIO, cfg.mRecordAudio);
                 cfg.mSelfTrimming = uri.getBooleanQueryParameter(PARAM_SELF_TRIMMING, cfg.mSelfTrimming);
                 cfg.mNightMode = uri.getBooleanQueryParameter(PARAM_NIGHT_MODE, cfg.mNightMode);
+                cfg.mAlignSegments = uri.getBooleanQueryParameter(PARAM_ALIGN_SEGMENTS, cfg.mAlignSegments);
+                cfg.mLoopRecording = uri.getBooleanQueryParameter(PARAM_LOOP_RECORDING, cfg.mLoopRecording);
+                cfg.mShardOriginalVideos = uri.getBooleanQueryParameter(PARAM_SHARD_ORIGINAL_VIDEOS, cfg.mShardOriginalVideos);
+                cfg.mGaplessSegments = uri.getBooleanQueryParameter(PARAM_GAPLESS_SEGMENTS, cfg.mGaplessSegments);
                 try {
                     cfg.mJpegQUality = Integer.parseInt(uri.getQueryParameter(PARAM_JPEG_QUALITY));
                 } catch (Exception e) {/* ignore */}
@@ -1143,13 +1134,26 @@ abstract public class CameraModule extends Service {
         if (mMediaRoot == null) {
             mMediaRoot = getMediaRootOrStopService();
         }
-        String originalVideoDirectory = mMediaRoot + "/originalVideo";
-        if (!new File(originalVideoDirectory).exists()) {
-            Utils.makeDirectory(originalVideoDirectory);
+        long currentTimeMs = System.currentTimeMillis();
+        OriginalVideoLayout layout = CameraStore.getOriginalVideoLayout(mMediaRoot);
+        File file = layout.getFile(CAMERA_ID, currentTimeMs);
+        if (mConfig.mAlignSegments) {
+            // named by its slot if it starts right after the cut off at the slot boundary
+            long slotLength = mConfig.mVideoLengthSec * 1000L;
+            long slotStart = OriginalVideoLayout.getSlotStart(currentTimeMs, slotLength);
+            File slotFile = layout.getFile(CAMERA_ID, slotStart);
+            if (currentTimeMs - slotStart < OriginalVideoLayout.SLOT_TOLERANCE && !slotFile.exists()) {
+                file = slotFile;
+            } else {
+                // a break in the recording, the slots before it are not trusted by name any more
+                CameraStore.setSegmentSlot(this, CAMERA_ID, slotLength);
+            }
+        }
+        File originalVideoDirectory = file.getParentFile();
+        if (!originalVideoDirectory.exists()) {
+            Utils.makeDirectory(originalVideoDirectory.getPath());
         }
-        long currentTimeSec = System.currentTimeMillis();
-        String fname = CAMERA_ID + "_" + currentTimeSec + ".mp4";
-        return new File(originalVideoDirectory, fname).getAbsolutePath();
+        return file.getAbsolutePath();
     }
 
     public void playStartRecording() {
@@ -1313,6 +1317,10 @@ abstract public class CameraModule extends Service {
                             cfg.mDoFaceDetection = bundle.getBoolean(PARAM_DO_FACE_DETECTION, cfg.mDoFaceDetection);
                             cfg.mRunSticky = bundle.getBoolean(PARAM_RUN_STICKY, cfg.mRunSticky);
                             cfg.mSelfTrimming = bundle.getBoolean(PARAM_SELF_TRIMMING, cfg.mSelfTrimming);
+                            cfg.mAlignSegments = bundle.getBoolean(PARAM_ALIGN_SEGMENTS, cfg.mAlignSegments);
+                            cfg.mLoopRecording = bundle.getBoolean(PARAM_LOOP_RECORDING, cfg.mLoopRecording);
+                            cfg.mShardOriginalVideos = bundle.getBoolean(PARAM_SHARD_ORIGINAL_VIDEOS, cfg.mShardOriginalVideos);
+                            cfg.mGaplessSegments = bundle.getBoolean(PARAM_GAPLESS_SEGMENTS, cfg.mGaplessSegments);
                             cfg.mPlaySound = bundle.getBoolean(PARAM_PLAY_SOUND, cfg.mPlaySound);
                             cfg.mRecordAudio = bundle.getBoolean(PARAM_RECORD_AUDIO, cfg.mRecordAudio);
                             cfg.mVideoBitRate = bundle.getInt(PARAM_BIT_RATE, cfg.mVideoBitRate);
@@ -1353,8 +1361,30 @@ abstract public class CameraModule extends Service {
         return mNumFaces.get();
     }
 
+    /**
+     * @return faces of the latest frame, see {@link FaceFrame#read}
+     */
+    public FaceFrame getFaceFrame() {
+        return mFaceFrame;
+    }
+
+    /**
+     * @return new copy of the faces of the latest frame, one per detected face
+     * @deprecated allocates per call, read {@link #getFaceFrame} into a reused snapshot instead
+     */
+    @Deprecated
     public Face[] getFaces() {
-        return mFaces.get();
+        FaceFrame.Snapshot snapshot = new FaceFrame.Snapshot(mFaceFrame.getCapacity());
+        mFaceFrame.read(snapshot);
+        int count = snapshot.getFaceCount();
+        Face[] faces = new Face[mFaceFrame.getCapacity()];
+        for (int i = 0; i < count; i++) {
+            Rect bounds = new Rect();
+            snapshot.getBounds(i, bounds);
+            int score = Math.max(Face.SCORE_MIN, Math.min(Face.SCORE_MAX, snapshot.getScore(i)));
+            faces[i] = new Face(bounds, score);
+        }
+        return Arrays.copyOf(faces, count);
     }
 
     private EGLDisplay mEGLDisplay = EGL14.EGL_NO_DISPLAY;
@@ -1,18 +1,22 @@
 package com.nauto.camera.base;
 
 import static com.nauto.camera.base.CameraModule.PARAM_AE_RECT;
+import static com.nauto.camera.base.CameraModule.PARAM_ALIGN_SEGMENTS;
 import static com.nauto.camera.base.CameraModule.PARAM_BIT_RATE;
 import static com.nauto.camera.base.CameraModule.PARAM_DO_FACE_DETECTION;
 import static com.nauto.camera.base.CameraModule.PARAM_EFFECT_MODE;
 import static com.nauto.camera.base.CameraModule.PARAM_FPS;
+import static com.nauto.camera.base.CameraModule.PARAM_GAPLESS_SEGMENTS;
 import static com.nauto.camera.base.CameraModule.PARAM_JPEG_QUALITY;
 import static com.nauto.camera.base.CameraModule.PARAM_JPEG_SIZE;
+import static com.nauto.camera.base.CameraModule.PARAM_LOOP_RECORDING;
 import static com.nauto.camera.base.CameraModule.PARAM_NIGHT_MODE;
 import static com.nauto.camera.base.CameraModule.PARAM_PLAY_SOUND;
 import static com.nauto.camera.base.CameraModule.PARAM_RECORD_AUDIO;
 import static com.nauto.camera.base.CameraModule.PARAM_RUN_STICKY;
 import static com.nauto.camera.base.CameraModule.PARAM_SCENE_MODE;
 import static com.nauto.camera.base.CameraModule.PARAM_SELF_TRIMMING;
+import static com.nauto.camera.base.CameraModule.PARAM_SHARD_ORIGINAL_VIDEOS;
 import static com.nauto.camera.base.CameraModule.PARAM_VIDEO_HEIGHT;
 import static com.nauto.camera.base.CameraModule.PARAM_VIDEO_LENGTH_SEC;
 import static com.nauto.camera.base.CameraModule.PARAM_VIDEO_WIDTH;
@@ -108,6 +112,15 @@ public class CameraPipelineConfig implements Cloneable {
     public int mEffectMode = 0;
     public boolean mNightMode = false;
     public boolean mSelfTrimming = true;
+    // cut videos at wall clock multiples of the video length and name them by their slot
+    public boolean mAlignSegments = false;
+    // keep finished original videos in one preallocated container per camera instead of a file each
+    public boolean mLoopRecording = false;
+    // keep original videos in one directory per hour, see OriginalVideoLayout
+    public boolean mShardOriginalVideos = true;
+    // record through SegmentEncoder and rotate segments at keyframes without closing the session,
+    // video only, so it is used when audio is not recorded
+    public boolean mGaplessSegments = false;
 
     public CameraPipelineConfig() {
         // defaults
@@ -157,6 +170,10 @@ public class CameraPipelineConfig implements Cloneable {
                 "&" + PARAM_NIGHT_MODE + "=" + mNightMode +
                 "&" + PARAM_RUN_STICKY + "=" + mRunSticky +
                 "&" + PARAM_SELF_TRIMMING + "=" + mSelfTrimming +
+                "&" + PARAM_ALIGN_SEGMENTS + "=" + mAlignSegments +
+                "&" + PARAM_LOOP_RECORDING + "=" + mLoopRecording +
+                "&" + PARAM_SHARD_ORIGINAL_VIDEOS + "=" + mShardOriginalVideos +
+                "&" + PARAM_GAPLESS_SEGMENTS + "=" + mGaplessSegments +
                 "&" + PARAM_JPEG_QUALITY + "=" + mJpegQUality;
     }
 
@@ -189,7 +206,11 @@ public class CameraPipelineConfig implements Cloneable {
                     && mSceneMode == cfg.mSceneMode
                     && mEffectMode == cfg.mEffectMode
                     && mNightMode == cfg.mNightMode
-                    && mSelfTrimming == cfg.mSelfTrimming;
+                    && mSelfTrimming == cfg.mSelfTrimming
+                    && mAlignSegments == cfg.mAlignSegments
+                    && mLoopRecording == cfg.mLoopRecording
+                    && mShardOriginalVideos == cfg.mShardOriginalVideos
+                    && mGaplessSegments == cfg.mGaplessSegments;
         } else {
             return false;
         }
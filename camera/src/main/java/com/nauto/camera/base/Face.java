@@ -41,12 +41,20 @@ public final class Face {
     private Point mRightEye;
     private Point mMouth;
 
-    public static void copy(android.hardware.camera2.params.Face[] in, Face[] out) {
-        if (in != null) {
-            for (int i = 0; i < in.length; i++) {
-                copy(in[i], out[i]);
-            }
+    /**
+     * Copy the faces reported by the camera, as many as fit.
+     *
+     * @return number of faces copied
+     */
+    public static int copy(android.hardware.camera2.params.Face[] in, Face[] out) {
+        if (in == null) {
+            return 0;
         }
+        int n = Math.min(in.length, out.length);
+        for (int i = 0; i < n; i++) {
+            copy(in[i], out[i]);
+        }
+        return n;
     }
 
     public static void copy(android.hardware.camera2.params.Face in, Face out) {
@@ -59,20 +67,27 @@ public final class Face {
         }
         out.mScore = in.getScore();
         out.mId = in.getId();
+        // faces created without the optional fields get them the first time they are reported
         Point p = in.getLeftEyePosition();
         if (p != null) {
-            out.mLeftEye.x = p.x;
-            out.mLeftEye.y = p.y;
+            if (out.mLeftEye == null) {
+                out.mLeftEye = new Point();
+            }
+            out.mLeftEye.set(p.x, p.y);
         }
         p = in.getRightEyePosition();
         if (p != null) {
-            out.mRightEye.x = p.x;
-            out.mRightEye.y = p.y;
+            if (out.mRightEye == null) {
+                out.mRightEye = new Point();
+            }
+            out.mRightEye.set(p.x, p.y);
         }
         p = in.getMouthPosition();
         if (p != null) {
-            out.mMouth.x = p.x;
-            out.mMouth.y = p.y;
+            if (out.mMouth == null) {
+                out.mMouth = new Point();
+            }
+            out.mMouth.set(p.x, p.y);
         }
     }
 
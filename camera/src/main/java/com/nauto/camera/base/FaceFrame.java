@@ -0,0 +1,201 @@
+package com.nauto.camera.base;
+
+import android.graphics.Rect;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Faces of the latest frame, published by the capture callback and read by any number of threads
+ * without locks or allocation.
+ *
+ * <p>A seqlock over two slots: the writer fills the slot readers are not directed to and then
+ * publishes it by bumping the sequence, so it never waits. A reader copies the published slot into
+ * its own {@link Snapshot} and checks the sequence after, retrying only if the writer has since
+ * started to overwrite that slot, i.e. the copy took longer than a frame. The slots are atomic
+ * arrays so the check is ordered after the copy on every platform this runs on, there are no load
+ * fences before Java 9.</p>
+ *
+ * <p>Faces beyond the capacity are dropped.</p>
+ */
+public final class FaceFrame {
+    /**
+     * Faces kept per frame, more than any camera reports.
+     */
+    public static final int MAX_FACES = 32;
+
+    // ints per face: left, top, right, bottom, score, id
+    private static final int FACE_INTS = 6;
+
+    private final int mCapacity;
+    // per slot: count, then the faces
+    private final AtomicIntegerArray mFaces;
+    // per slot: frame number, sensor timestamp
+    private final AtomicLongArray mStamps = new AtomicLongArray(4);
+    // twice the published frames, odd while the writer fills a slot
+    private volatile long mSequence;
+
+    // writer state
+    private int mWriteSlot;
+    private int mWriteCount;
+
+    public FaceFrame(int capacity) {
+        mCapacity = capacity;
+        mFaces = new AtomicIntegerArray(2 * getSlotSize(capacity));
+    }
+
+    private static int getSlotSize(int capacity) {
+        return 1 + capacity * FACE_INTS;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Start writing a frame. Called by a single writer thread, followed by {@link #addFace} for
+     * each face and {@link #endFrame}.
+     *
+     * @param sensorTimestamp sensor timestamp in nanoseconds
+     */
+    public void beginFrame(long frameNumber, long sensorTimestamp) {
+        long sequence = mSequence;
+        // the slot readers are not directed to
+        mWriteSlot = (int) ((sequence >> 1) + 1) & 1;
+        mWriteCount = 0;
+        mSequence = sequence + 1;
+        mStamps.set(2 * mWriteSlot, frameNumber);
+        mStamps.set(2 * mWriteSlot + 1, sensorTimestamp);
+    }
+
+    /**
+     * @return false if the frame is full and the face is dropped
+     */
+    public boolean addFace(int left, int top, int right, int bottom, int score, int id) {
+        if (mWriteCount == mCapacity) {
+            return false;
+        }
+        int i = mWriteSlot * getSlotSize(mCapacity) + 1 + mWriteCount * FACE_INTS;
+        mFaces.set(i, left);
+        mFaces.set(i + 1, top);
+        mFaces.set(i + 2, right);
+        mFaces.set(i + 3, bottom);
+        mFaces.set(i + 4, score);
+        mFaces.set(i + 5, id);
+        mWriteCount++;
+        return true;
+    }
+
+    /**
+     * Publish the frame.
+     */
+    public void endFrame() {
+        mFaces.set(mWriteSlot * getSlotSize(mCapacity), mWriteCount);
+        mSequence = mSequence + 1;
+    }
+
+    /**
+     * @return frames published
+     */
+    public long getSequence() {
+        return mSequence >> 1;
+    }
+
+    /**
+     * Copy the latest frame.
+     *
+     * @param out copy, with at least the capacity of this frame
+     * @return times the copy was retried because the writer overtook it
+     */
+    public int read(Snapshot out) {
+        int slotSize = getSlotSize(mCapacity);
+        for (int retries = 0; ; retries++) {
+            long start = mSequence;
+            int slot = (int) (start >> 1) & 1;
+            int base = slot * slotSize;
+            long frameNumber = mStamps.get(2 * slot);
+            long sensorTimestamp = mStamps.get(2 * slot + 1);
+            // a torn count is out of range at worst
+            int count = Math.max(0, Math.min(mFaces.get(base), Math.min(mCapacity, out.mCapacity)));
+            int[] faces = out.mFaces;
+            for (int i = 0, n = count * FACE_INTS; i < n; i++) {
+                faces[i] = mFaces.get(base + 1 + i);
+            }
+            // the slot is written again once the writer starts the frame after the next one
+            if (mSequence <= (start & ~1L) + 2) {
+                out.mSequence = start >> 1;
+                out.mFrameNumber = frameNumber;
+                out.mSensorTimestamp = sensorTimestamp;
+                out.mCount = count;
+                return retries;
+            }
+        }
+    }
+
+    /**
+     * Faces of a frame copied by {@link #read}, owned by the reading thread.
+     */
+    public static final class Snapshot {
+        private final int mCapacity;
+        private final int[] mFaces;
+        private long mSequence = -1;
+        private long mFrameNumber;
+        private long mSensorTimestamp;
+        private int mCount;
+
+        public Snapshot(int capacity) {
+            mCapacity = capacity;
+            mFaces = new int[capacity * FACE_INTS];
+        }
+
+        /**
+         * @return frames published before this one, -1 before the first read
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        public long getFrameNumber() {
+            return mFrameNumber;
+        }
+
+        /**
+         * @return sensor timestamp in nanoseconds
+         */
+        public long getSensorTimestamp() {
+            return mSensorTimestamp;
+        }
+
+        public int getFaceCount() {
+            return mCount;
+        }
+
+        public int getLeft(int i) {
+            return mFaces[i * FACE_INTS];
+        }
+
+        public int getTop(int i) {
+            return mFaces[i * FACE_INTS + 1];
+        }
+
+        public int getRight(int i) {
+            return mFaces[i * FACE_INTS + 2];
+        }
+
+        public int getBottom(int i) {
+            return mFaces[i * FACE_INTS + 3];
+        }
+
+        public int getScore(int i) {
+            return mFaces[i * FACE_INTS + 4];
+        }
+
+        public int getId(int i) {
+            return mFaces[i * FACE_INTS + 5];
+        }
+
+        public void getBounds(int i, Rect out) {
+            out.set(getLeft(i), getTop(i), getRight(i), getBottom(i));
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package com.nauto.camera.base;
+
+import android.graphics.Rect;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the WebVTT face reports of a video without allocating per frame.
+ *
+ * <p>Cue times and face records are encoded into a ring of reused blocks, which an executor
+ * shared by the reports of the pipeline writes to the file one full block at a time. The output is byte for byte what a
+ * {@code SimpleDateFormat("00:mm:ss.SSS")}, {@link Face#toString} and a {@link java.io.PrintStream}
+ * produced in the same locale and time zone. Writing does not throw: when the file fails, like
+ * with a {@link java.io.PrintStream}, the rest is dropped and {@link #checkError} tells.</p>
+ *
+ * <p>Not thread safe, the writing side is called under the pipeline's sidecar lock.</p>
+ */
+final class FaceReportWriter implements Closeable {
+    static final int BLOCK_SIZE = 8 * 1024;
+    static final int BLOCKS = 8;
+    // wait for a free block while the card is slow
+    private static final long FULL_WAIT_NS = 1000 * 1000;
+    // tasks queued on a writer executor, each report queues one at a time
+    private static final int WRITER_QUEUE_SIZE = 64;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] HEADER = "WEBVTT\n\n".getBytes(UTF_8);
+    private static final byte[] ZERO_TIME = "00:00:00.000".getBytes(UTF_8);
+    private static final byte[] ARROW = " --> ".getBytes(UTF_8);
+    private static final byte[] TIME_PREFIX = "00:".getBytes(UTF_8);
+    private static final byte[] FACE_START = "{\"r\":[".getBytes(UTF_8);
+    private static final byte[] FACE_SCORE = "], \"s\":".getBytes(UTF_8);
+    // bounds of a face are reported relative to this frame size
+    private static final int FACE_WIDTH = 1920;
+    private static final int FACE_HEIGHT = 1080;
+
+    /**
+     * Called on the executor.
+     */
+    interface Listener {
+        /**
+         * Time the executor took for a block.
+         */
+        void onWriteLatency(long nanos);
+
+        /**
+         * Writing the file failed, the rest of the report is dropped.
+         */
+        void onError(File file, IOException e);
+    }
+
+    private final File mFile;
+    private final FileOutputStream mOut;
+    private final FileChannel mChannel;
+    private final Executor mExecutor;
+    private final Listener mListener;
+    private final ByteBuffer[] mBlocks = new ByteBuffer[BLOCKS];
+    // writes the published blocks, never runs twice at a time
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushPending.set(false);
+            flushBlocks();
+        }
+    };
+    // the flush task is queued and has not started, so the blocks published now are written too
+    private final AtomicBoolean mFlushPending = new AtomicBoolean();
+    // UTF-8 of the localized digits and decimal separator
+    private final byte[][] mDigits = new byte[10][];
+    private final byte[] mSeparator;
+    private final long mZoneOffset;
+    // digits of a number, least significant first
+    private final int[] mScratch = new int[20];
+
+    private ByteBuffer mBlock;
+    // blocks handed to the executor and blocks it has written
+    private volatile long mPublished;
+    private volatile long mFlushed;
+    private volatile boolean mClosed;
+    private boolean mFileClosed;
+    private volatile IOException mError;
+
+    /**
+     * A single thread to write the reports of a pipeline. Its queue is an array, so handing it a
+     * block does not allocate.
+     */
+    static ExecutorService newWriterExecutor(final String name) {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(WRITER_QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, name);
+                    }
+                });
+    }
+
+    /**
+     * @param executor writes the blocks, a single thread, see {@link #newWriterExecutor}
+     */
+    FaceReportWriter(File file, Executor executor, Listener listener) throws IOException {
+        this(file, executor, Locale.getDefault(), TimeZone.getDefault(), listener);
+    }
+
+    /**
+     * @param locale   locale of the digits and decimal separator
+     * @param zone     time zone the cue times were formatted in
+     * @param listener block write latency and errors, may be null
+     */
+    FaceReportWriter(File file, Executor executor, Locale locale, TimeZone zone, Listener listener) throws IOException {
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+        for (int i = 0; i < 10; i++) {
+            mDigits[i] = String.valueOf((char) (symbols.getZeroDigit() + i)).getBytes(UTF_8);
+        }
+        mSeparator = String.valueOf(symbols.getDecimalSeparator()).getBytes(UTF_8);
+        // cue times are durations, formatted as dates shortly after the epoch
+        mZoneOffset = zone.getOffset(0);
+        mFile = file;
+        mExecutor = executor;
+        mListener = listener;
+        for (int i = 0; i < BLOCKS; i++) {
+            mBlocks[i] = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        }
+        mBlock = mBlocks[0];
+        mOut = new FileOutputStream(file);
+        mChannel = mOut.getChannel();
+    }
+
+    /**
+     * Start a report of counts: the header and the start of the first cue.
+     */
+    void beginCounts() {
+        put(HEADER);
+        put(ZERO_TIME);
+    }
+
+    /**
+     * End the open cue of a report of counts.
+     *
+     * @param time  end of the cue in milliseconds from the video start
+     * @param count value of the cue
+     * @param next  true to start the next cue at the same time
+     */
+    void writeCount(long time, int count, boolean next) {
+        put(ARROW);
+        putTime(time);
+        put((byte) '\n');
+        putAsciiNumber(count);
+        put((byte) '\n');
+        put((byte) '\n');
+        if (next) {
+            putTime(time);
+        }
+    }
+
+    /**
+     * Start a report of faces.
+     */
+    void beginFaces() {
+        put(HEADER);
+    }
+
+    /**
+     * Add a cue with the faces of a frame, nothing for no faces.
+     *
+     * @param start start of the cue in milliseconds from the video start
+     * @param end   end of the cue
+     */
+    void writeFaces(long start, long end, Face[] faces, int count) {
+        putCueTimes(start, end);
+        if (count > 0) {
+            put((byte) '[');
+            for (int i = 0; i < count; i++) {
+                putFace(faces[i]);
+                if (i < count - 1) {
+                    put((byte) ',');
+                }
+            }
+            put((byte) ']');
+        }
+        put((byte) '\n');
+        put((byte) '\n');
+    }
+
+    /**
+     * Add a cue with text already formatted, allocates.
+     */
+    void writeCue(long start, long end, String text) {
+        putCueTimes(start, end);
+        put(text.getBytes(UTF_8));
+        put((byte) '\n');
+        put((byte) '\n');
+    }
+
+    /**
+     * @return true if writing the file failed and the report is incomplete
+     */
+    boolean checkError() {
+        return mError != null;
+    }
+
+    /**
+     * Hand what is left to the executor, which closes the file after writing it. Does not wait.
+     */
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        if (mBlock.position() > 0) {
+            publish();
+        }
+        mClosed = true;
+        schedule();
+    }
+
+    private void putCueTimes(long start, long end) {
+        putTime(start);
+        put(ARROW);
+        putTime(end);
+        put((byte) '\n');
+    }
+
+    /*
+     * "00:mm:ss.SSS" of a date in the time zone, the hours are not shown.
+     */
+    private void putTime(long time) {
+        long t = time + mZoneOffset;
+        long ms = floorMod(t, 1000);
+        long seconds = floorMod(floorDiv(t, 1000), 60);
+        long minutes = floorMod(floorDiv(t, 60 * 1000), 60);
+        put(TIME_PREFIX);
+        putDigits(minutes, 2);
+        put((byte) ':');
+        putDigits(seconds, 2);
+        put((byte) '.');
+        putDigits(ms, 3);
+    }
+
+    /*
+     * {"r":[%.3f,%.3f,%.2f,%.2f], "s":%d}
+     */
+    private void putFace(Face face) {
+        Rect bounds = face.getBounds();
+        put(FACE_START);
+        putFraction(bounds.left, FACE_WIDTH, 3);
+        put((byte) ',');
+        putFraction(bounds.top, FACE_HEIGHT, 3);
+        put((byte) ',');
+        putFraction(bounds.width(), FACE_WIDTH, 2);
+        put((byte) ',');
+        putFraction(bounds.height(), FACE_HEIGHT, 2);
+        put(FACE_SCORE);
+        putNumber(face.getScore());
+        put((byte) '}');
+    }
+
+    /*
+     * numerator / denominator rounded half up to the decimals, the way the formatter rounds the
+     * quotient of two small integers.
+     */
+    private void putFraction(long numerator, long denominator, int decimals) {
+        if (numerator < 0) {
+            // negative values rounded to zero keep the sign
+            put((byte) '-');
+            numerator = -numerator;
+        }
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+        long scaled = numerator * scale;
+        long rounded = scaled / denominator;
+        if (2 * (scaled % denominator) >= denominator) {
+            rounded++;
+        }
+        putNumber(rounded / scale);
+        put(mSeparator);
+        putDigits(rounded % scale, decimals);
+    }
+
+    private void putNumber(long value) {
+        if (value < 0) {
+            put((byte) '-');
+            value = -value;
+        }
+        int n = 0;
+        do {
+            mScratch[n++] = (int) (value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (n > 0) {
+            put(mDigits[mScratch[--n]]);
+        }
+    }
+
+    /*
+     * Plain ASCII digits, the way a PrintStream prints an int.
+     */
+    private void putAsciiNumber(long value) {
+        if (value < 0) {
+            put((byte) '-');
+            value = -value;
+        }
+        int n = 0;
+        do {
+            mScratch[n++] = (int) (value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (n > 0) {
+            put((byte) ('0' + mScratch[--n]));
+        }
+    }
+
+    /*
+     * A non-negative value zero padded to the width.
+     */
+    private void putDigits(long value, int width) {
+        for (int i = 0; i < width; i++) {
+            mScratch[i] = (int) (value % 10);
+            value /= 10;
+        }
+        for (int i = width - 1; i >= 0; i--) {
+            put(mDigits[mScratch[i]]);
+        }
+    }
+
+    private void put(byte[] bytes) {
+        for (byte b : bytes) {
+            put(b);
+        }
+    }
+
+    private void put(byte b) {
+        if (!mBlock.hasRemaining()) {
+            publish();
+        }
+        mBlock.put(b);
+    }
+
+    /*
+     * Hand the current block to the background thread and take the next one, waiting while all
+     * blocks are queued. After a failure the blocks are dropped.
+     */
+    private void publish() {
+        if (mError != null) {
+            mBlock.clear();
+            return;
+        }
+        long published = mPublished + 1;
+        mPublished = published;
+        schedule();
+        while (published - mFlushed >= BLOCKS) {
+            if (mError != null) {
+                mPublished = mFlushed;
+                break;
+            }
+            LockSupport.parkNanos(FULL_WAIT_NS);
+        }
+        mBlock = mBlocks[(int) (published % BLOCKS)];
+        mBlock.clear();
+    }
+
+    private void schedule() {
+        if (!mFlushPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mExecutor.execute(mFlushTask);
+        } catch (RejectedExecutionException e) {
+            // the pipeline is shutting down or the queue is full, write on this thread
+            mFlushTask.run();
+        }
+    }
+
+    /*
+     * Write the published blocks, then close the file if the report is closed.
+     */
+    private void flushBlocks() {
+        synchronized (mFlushTask) {
+            if (mFileClosed) {
+                return;
+            }
+            // read before the blocks, so the last block published before closing is written
+            boolean closed = mClosed;
+            try {
+                for (long flushed = mFlushed; flushed != mPublished && mError == null; flushed++) {
+                    ByteBuffer block = mBlocks[(int) (flushed % BLOCKS)];
+                    block.flip();
+                    long start = System.nanoTime();
+                    while (block.hasRemaining()) {
+                        mChannel.write(block);
+                    }
+                    if (mListener != null) {
+                        mListener.onWriteLatency(System.nanoTime() - start);
+                    }
+                    block.clear();
+                    mFlushed = flushed + 1;
+                }
+            } catch (IOException e) {
+                mError = e;
+                if (mListener != null) {
+                    mListener.onError(mFile, e);
+                }
+            }
+            if (closed || mError != null) {
+                mFileClosed = true;
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    if (mError == null) {
+                        mError = e;
+                        if (mListener != null) {
+                            mListener.onError(mFile, e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+}
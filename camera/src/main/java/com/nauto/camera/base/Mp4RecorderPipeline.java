@@ -1,24 +1,30 @@
 package com.nauto.camera.base;
 
 import com.nauto.camera.CameraStore;
+import com.nauto.camera.DeletionWorker;
+import com.nauto.camera.FaceTelemetry;
+import com.nauto.camera.OriginalVideoLayout;
+import com.nauto.camera.StorageGovernor;
 import com.nauto.camera.Utils;
+import com.nauto.camera.mp4.FrameTimeline;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.sql.Date;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
@@ -47,19 +53,33 @@ public class Mp4RecorderPipeline extends CameraPipeline {
 
     private static final long MINIMUM_FREE_SPACE = 1024 * 1024 * 1024L;
     private static final long SPACE_AFTER_TRIM = MINIMUM_FREE_SPACE * 2;
-    final static SimpleDateFormat HH_MM_SS_TTT = new SimpleDateFormat("00:mm:ss.SSS");
+    // trim ahead of need from the measured write rate instead of at the fixed thresholds
+    private static final boolean PREDICTIVE_TRIMMING = true;
+    private static final long GOVERNOR_INTERVAL = 10 * 1000;
     private static final boolean DO_FACE_REPORT = true;
     private static final boolean DO_FACE_STATS_REPORT = true;
     private static final boolean DO_FACE_STATS_COLLECT = false;
+    // face count, bounds and score of every frame in the columnar store, see FaceTelemetry
+    private static final boolean DO_FACE_TELEMETRY = true;
+    // frame number, sensor timestamp and wall clock time of every frame, see FrameTimeline
+    private static final boolean DO_FRAME_TIMELINE = true;
+    private static final int FRAME_TIMELINE_BUFFER = 4096;
 
     private final MediaRecorder mRecorder;
     private final ScheduledExecutorService mThreadPool;
+    // writes the sidecars of every video, off the camera and encoder threads
+    private final ExecutorService mSidecarWriter;
     private SnapshotHandler mSnapshotHandler;
     private String mNextVideoAbsolutePath;
     private String TAG = Mp4RecorderPipeline.class.getSimpleName();
     private long mRecordingStartTime;
     ScheduledFuture<?> mVideoSaveHandler;
+    // incremented whenever the cut off schedule is replaced, so a stale aligned cut off does not reschedule
+    private int mCutOffGeneration;
     ScheduledFuture<?> mStoreTrimHandler;
+    private StorageGovernor mStorageGovernor;
+    // paced by how long the sidecar writes take
+    private DeletionWorker mDeletionWorker;
     private ScheduledFuture<?> mStateReportHandler;
 
     private long mStopRecordingTime;
@@ -75,14 +95,24 @@ public class Mp4RecorderPipeline extends CameraPipeline {
     private AtomicBoolean mPaused = new AtomicBoolean();
     private CameraPipelineConfig mPrevConfig;
     private PrintStream mStatsReport;
-    private PrintStream mFaceReport;
-    private PrintStream mFaceStatsReport;
+    private FaceReportWriter mFaceReport;
+    private FaceReportWriter mFaceStatsReport;
+    // guards the sidecars and the recording start time, which the encoder thread rotates
+    private final Object mSidecarLock = new Object();
+    private FrameTimeline.Writer mFrameTimeline;
+    private FaceTelemetry.Writer mFaceTelemetry;
+    // faces of the current frame, only used on the camera handler thread
+    private final Face[] mFaces = new Face[FaceFrame.MAX_FACES];
+    private SegmentEncoder mEncoder;
 
     private Map<Long, String> mFaceStats;
 
     public Mp4RecorderPipeline(CameraModule service, CameraDevice camera, CameraPipelineConfig config) {
         super(service, camera, config);
         mPrevConfig = config.clone();
+        for (int i = 0; i < mFaces.length; i++) {
+            mFaces[i] = new Face(new Rect(), Face.SCORE_MIN);
+        }
         mService.assertHandlerThread();
         TAG += "-" + camera.getId();
         mRecorder = new MediaRecorder();
@@ -115,6 +145,7 @@ public class Mp4RecorderPipeline extends CameraPipeline {
 
 
         mThreadPool = Executors.newScheduledThreadPool(1);
+        mSidecarWriter = FaceReportWriter.newWriterExecutor(TAG + "-sidecars");
 
         try {
             Size size = new Size(config.mJpegWidth, config.mJpegHeight);
@@ -133,13 +164,34 @@ public class Mp4RecorderPipeline extends CameraPipeline {
             cm.onCameraReady(mCamera);
         }
 
+        mDeletionWorker = DeletionWorker.getInstance(mService);
+
+        long dt = mConfig.mVideoLengthSec * 1000L;
+        CameraStore.setSegmentSlot(mService, mService.CAMERA_ID, mConfig.mAlignSegments ? dt : 0);
+
         startRecording();
 
         // pace of trying to trim equals to pace of generating new videos
-        long dt = mConfig.mVideoLengthSec * 1000L;
-        mVideoSaveHandler = createCutOffScheduler(dt, dt);
+        if (mConfig.mAlignSegments) {
+            cutOff(getDelayToNextSlot());
+        } else {
+            mVideoSaveHandler = createCutOffScheduler(dt, dt);
+        }
 
-        if (mConfig.mSelfTrimming) {
+        if (mConfig.mSelfTrimming && PREDICTIVE_TRIMMING) {
+            mStoreTrimHandler = mThreadPool.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        mStorageGovernor = CameraStore.governStorage(mService, mService.CAMERA_ID, mConfig.mVideoBitRate,
+                                MINIMUM_FREE_SPACE, GOVERNOR_INTERVAL);
+                    } catch (RuntimeException e) {
+                        // keep the schedule going
+                        Log.e(TAG, "Storage governor failed: " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                }
+            }, GOVERNOR_INTERVAL / 2, GOVERNOR_INTERVAL, MILLISECONDS);
+        } else if (mConfig.mSelfTrimming) {
             mStoreTrimHandler = mThreadPool.scheduleAtFixedRate(new Runnable() {
                 public void run() {
                     Log.d(TAG, "scheduled store trim");
@@ -159,7 +211,12 @@ public class Mp4RecorderPipeline extends CameraPipeline {
                 double temp = Utils.getCpuTemperature();
                 String info = String.format("%.2f,%.1f,%.2f", fps, pwr, temp);
                 mService.broadcastInfo(CameraModule.INFO_CODE_NUM_CAPTURE_REQUESTS_IN_30_SEC, info);
+                if (mStorageGovernor != null) {
+                    mService.broadcastInfo(CameraModule.INFO_CODE_STORAGE_FORECAST, mStorageGovernor.getForecast());
+                }
+                long writeStart = System.nanoTime();
                 mStatsReport.println(System.currentTimeMillis() + info);
+                mDeletionWorker.onWriteLatency(System.nanoTime() - writeStart);
                 if (fps < mConfig.mVideoFrameRate / 2) {
                     mService.reportErrorAndStopService(CameraModule.ERROR_LOW_FPS, new RuntimeException("Frame rate is low: " + fps));
                 }
@@ -175,38 +232,86 @@ public class Mp4RecorderPipeline extends CameraPipeline {
         if (mService.isFrontCamera() && DO_FACE_STATS_COLLECT) {
             mFaceStats = new TreeMap<>();
         }
+        FaceTelemetry telemetry = CameraStore.getFaceTelemetry(mService);
+        if (mService.isFrontCamera() && DO_FACE_TELEMETRY && telemetry != null) {
+            mFaceTelemetry = new FaceTelemetry.Writer(telemetry, mService.CAMERA_ID, mSidecarWriter);
+        }
     }
 
     private ScheduledFuture<?> createCutOffScheduler(long startTime, long repeatTime) {
         return mThreadPool.scheduleAtFixedRate(new Runnable() {
             public void run() {
-                try {
-                    if (mSession == null) {
-                        Log.d(TAG, "start session");
-                        startRecording();
-                    } else {
-                        Log.d(TAG, mPaused.get() ? "stop session" : "scheduled video cut off");
-                        stopRecording();
+                scheduledCutOff();
+            }
+        }, startTime, repeatTime, MILLISECONDS);
+    }
+
+    /*
+     * Cut off once after the delay and then at every slot boundary. The delay to the next boundary
+     * is taken from the wall clock each time, so the cut offs do not drift with the monotonic clock
+     * of the executor nor with the time the cut off takes.
+     */
+    private ScheduledFuture<?> createAlignedCutOffScheduler(long delayMs, final int generation) {
+        return mThreadPool.schedule(new Runnable() {
+            public void run() {
+                scheduledCutOff();
+                synchronized (Mp4RecorderPipeline.this) {
+                    if (generation == mCutOffGeneration && !mThreadPool.isShutdown()) {
+                        mVideoSaveHandler = createAlignedCutOffScheduler(getDelayToNextSlot(), generation);
                     }
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
                 }
             }
-        }, startTime, repeatTime, MILLISECONDS);
+        }, delayMs, MILLISECONDS);
+    }
+
+    /*
+     * Time to the next wall clock multiple of the video length. A cut off running a little early
+     * still counts as being on the boundary.
+     */
+    private long getDelayToNextSlot() {
+        long slotLength = mConfig.mVideoLengthSec * 1000L;
+        long now = System.currentTimeMillis();
+        return OriginalVideoLayout.getSlotStart(now + OriginalVideoLayout.SLOT_TOLERANCE / 5, slotLength) + slotLength - now;
+    }
+
+    private void scheduledCutOff() {
+        try {
+            if (mSession == null) {
+                Log.d(TAG, "start session");
+                startRecording();
+            } else if (mEncoder != null && !mPaused.get()) {
+                Log.d(TAG, "scheduled segment split");
+                mEncoder.requestSplit();
+            } else {
+                Log.d(TAG, mPaused.get() ? "stop session" : "scheduled video cut off");
+                stopRecording();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
-    public void cutOff(long timeMs) {
+    public synchronized void cutOff(long timeMs) {
         if (mVideoSaveHandler != null) {
             mVideoSaveHandler.cancel(true);
         }
-        mVideoSaveHandler = createCutOffScheduler(timeMs, mConfig.mVideoLengthSec * 1000);
+        mCutOffGeneration++;
+        if (mConfig.mAlignSegments) {
+            mVideoSaveHandler = createAlignedCutOffScheduler(timeMs, mCutOffGeneration);
+        } else {
+            mVideoSaveHandler = createCutOffScheduler(timeMs, mConfig.mVideoLengthSec * 1000);
+        }
     }
 
     @Override
     public void pause() {
         if (!mPaused.get()) {
             mPaused.set(true);
+            if (mConfig.mAlignSegments) {
+                // the slot of the pause is not covered
+                CameraStore.setSegmentSlot(mService, mService.CAMERA_ID, mConfig.mVideoLengthSec * 1000L);
+            }
             cutOff(0);
         }
     }
@@ -219,6 +324,24 @@ public class Mp4RecorderPipeline extends CameraPipeline {
         }
     }
 
+    /**
+     * Write the last seconds recorded into an MP4 file straight from memory, without reading the
+     * segments back. Only while recording through the segment encoder, see
+     * {@link CameraPipelineConfig#mGaplessSegments}.
+     *
+     * @param seconds seconds before now, less if fewer are kept
+     * @param output  clip file
+     * @return duration of the clip in microseconds
+     * @throws IOException if the segment encoder is not recording or the file can not be written
+     */
+    public long exportRecent(int seconds, File output) throws IOException {
+        SegmentEncoder encoder = mEncoder;
+        if (encoder == null) {
+            throw new IOException("Not recording through the segment encoder");
+        }
+        return encoder.exportRecent(seconds, output);
+    }
+
     @Override
     public void snapshot(CameraStore.SnapshotMetadata metadata) {
         if (mSnapshotHandler != null) {
@@ -269,6 +392,8 @@ public class Mp4RecorderPipeline extends CameraPipeline {
             } catch (Exception ex) {
                 // ignore
             }
+            // the sidecars queued so far are still written
+            mSidecarWriter.shutdown();
             mService.unbind();
             super.destroy();
         }
@@ -332,7 +457,7 @@ public class Mp4RecorderPipeline extends CameraPipeline {
         try {
             Log.d(TAG, "onConfigured() session = " + mSession + ", camera = " + mCamera);
             CaptureRequest.Builder rb = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
-            rb.addTarget(mRecorder.getSurface());
+            rb.addTarget(mEncoder != null ? mEncoder.getSurface() : mRecorder.getSurface());
             rb.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
             rb.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, Range.create(mConfig.mVideoFrameRate, mConfig.mVideoFrameRate));
             rb.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_OFF);
@@ -380,23 +505,18 @@ public class Mp4RecorderPipeline extends CameraPipeline {
                 @Override
                 public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
                     long t = System.currentTimeMillis();
-                    if (mCaptureStartedTimeMs == 0) {
+                    if (mCaptureStartedTimeMs != 0) {
+                        appendFrame(result, t);
+                    }
+                    if (mCaptureStartedTimeMs == 0 && mEncoder != null) {
+                        // segments are started by the encoder
+                        mCaptureStartedTimeMs = t;
+                    } else if (mCaptureStartedTimeMs == 0) {
                         mCaptureStartedTimeMs = t;
                         mRecordingStartTime = System.currentTimeMillis();
                         mRecorder.start();
                         // Face reporting
-                        if (mFaceReport !=null) {
-                            mFaceReport.println("WEBVTT");
-                            mFaceReport.println();
-                            mFaceReport.print("00:00:00.000");
-                        }
-                        if (mFaceStatsReport != null) {
-                            mFaceStatsReport.println("WEBVTT");
-                            mFaceStatsReport.println();
-                        }
-                        if (mFaceStats != null) {
-                            mFaceStats.clear();
-                        }
+                        startFaceReports();
                         long gap = mStopRecordingTime > 0 ? mRecordingStartTime - mStopRecordingTime : 0;
                         Log.d(TAG, "Started media recorder with gap " + gap + "ms");
                         mService.broadcast("Recording with gap " + gap + " ms");
@@ -404,35 +524,31 @@ public class Mp4RecorderPipeline extends CameraPipeline {
                     mCaptureStopTimeMs = t;
                     mFrames++;
                     if (mService.isFrontCamera()) {
-                        Face[] faces = mService.mFaces.get();
+                        Face[] faces = mFaces;
                         android.hardware.camera2.params.Face[] camFaces = result.get(CaptureResult.STATISTICS_FACES);
-                        int n = camFaces != null ? camFaces.length : 0;
+                        int n = Face.copy(camFaces, faces);
+                        publishFaces(result, faces, n);
                         int nBefore = mService.mNumFaces.get();
-                        long time = System.currentTimeMillis() - mRecordingStartTime - DELTA_T;
-                        if (nBefore != n) {
-                            Log.d(TAG, "num faces changed: " + mService.mNumFaces.get() + " -> " + n);
-                            mService.speakNumber(n);
-                            if (mFaceReport != null && time > 0) {
-                                // write vtt
-                                String startTime = HH_MM_SS_TTT.format(new Date(time));
-                                mFaceReport.println(" --> " + startTime);
-                                mFaceReport.println(nBefore);
-                                mFaceReport.println();
-                                mFaceReport.print(startTime);
+                        synchronized (mSidecarLock) {
+                            long time = System.currentTimeMillis() - mRecordingStartTime - DELTA_T;
+                            if (nBefore != n) {
+                                Log.d(TAG, "num faces changed: " + mService.mNumFaces.get() + " -> " + n);
+                                mService.speakNumber(n);
+                                if (mFaceReport != null && time > 0) {
+                                    // write vtt
+                                    mFaceReport.writeCount(time, nBefore, true);
+                                }
+                            }
+                            if (mFaceTelemetry != null) {
+                                appendFaceTelemetry(t, faces, n);
+                            }
+                            mService.mNumFaces.set(n);
+                            if (mFaceStatsReport != null && time > 0) {
+                                mFaceStatsReport.writeFaces(time, time + 1000 / mConfig.mVideoFrameRate, faces, n);
+                            }
+                            if (mFaceStats != null && n > 0) {
+                                mFaceStats.put(time, getFaceInfo());
                             }
-                        }
-                        Face.copy(camFaces, faces);
-                        mService.mFaces.set(faces);
-                        mService.mNumFaces.set(n);
-                        if (mFaceStatsReport != null && time > 0) {
-                            String startTime = HH_MM_SS_TTT.format(new Date(time));
-                            String endTime = HH_MM_SS_TTT.format(new Date(time + 1000 / mConfig.mVideoFrameRate));
-                            mFaceStatsReport.println(startTime + " --> " + endTime);
-                            mFaceStatsReport.println(getFaceInfo());
-                            mFaceStatsReport.println();
-                        }
-                        if (mFaceStats != null && n > 0) {
-                            mFaceStats.put(time, getFaceInfo());
                         }
                     }
                     if (mCaptureModules != null) {
@@ -449,8 +565,22 @@ public class Mp4RecorderPipeline extends CameraPipeline {
         }
     }
 
+    /*
+     * Publish the faces of a frame to the readers of the camera module, without waiting.
+     */
+    private void publishFaces(TotalCaptureResult result, Face[] faces, int n) {
+        Long sensorTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        FaceFrame frame = mService.mFaceFrame;
+        frame.beginFrame(result.getFrameNumber(), sensorTimestamp != null ? sensorTimestamp : 0);
+        for (int i = 0; i < n; i++) {
+            Rect bounds = faces[i].getBounds();
+            frame.addFace(bounds.left, bounds.top, bounds.right, bounds.bottom, faces[i].getScore(), faces[i].getId());
+        }
+        frame.endFrame();
+    }
+
     private String getFaceInfo() {
-        Face[] faces = mService.mFaces.get();
+        Face[] faces = mFaces;
         int numFaces = mService.mNumFaces.get();
         if (numFaces == 0) {
             return "";
@@ -468,23 +598,199 @@ public class Mp4RecorderPipeline extends CameraPipeline {
     }
 
     private void printFaceStats() {
-        mFaceStatsReport.println("WEBVTT\n");
         final long deltaT = 1500;
         for (Map.Entry<Long, String> entry: mFaceStats.entrySet()) {
             Long t = entry.getKey() - deltaT;
             if (t > 0) {
-                String val = entry.getValue();
-                String startTime = HH_MM_SS_TTT.format(new Date(t));
-                String endTime = HH_MM_SS_TTT.format(new Date(t + 1000 / mConfig.mVideoFrameRate));
-                mFaceStatsReport.println(startTime + " --> " + endTime);
-                mFaceStatsReport.println(val);
-                mFaceStatsReport.println();
+                mFaceStatsReport.writeCue(t, t + 1000 / mConfig.mVideoFrameRate, entry.getValue());
             }
         }
-        mFaceStatsReport.close();
         mFaceStats.clear();
     }
 
+    /*
+     * Fill the telemetry block in memory, the sidecar writer writes it when full.
+     */
+    private void appendFaceTelemetry(long time, Face[] faces, int n) {
+        mFaceTelemetry.append(time, n);
+        for (int i = 0; i < n; i++) {
+            Rect bounds = faces[i].getBounds();
+            mFaceTelemetry.appendFace(bounds.left, bounds.top, bounds.width(), bounds.height(), faces[i].getScore());
+        }
+    }
+
+    /*
+     * Add a frame to the timeline of the video being recorded. With the media recorder the frame
+     * that started it was captured before, so the timeline starts with the frame after it.
+     */
+    private void appendFrame(TotalCaptureResult result, long wallTime) {
+        Long sensorTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (!DO_FRAME_TIMELINE || sensorTimestamp == null) {
+            return;
+        }
+        synchronized (mSidecarLock) {
+            if (mRecordingStartTime == 0) {
+                return;
+            }
+            try {
+                if (mFrameTimeline == null && mEncoder == null && mNextVideoAbsolutePath != null) {
+                    mFrameTimeline = new FrameTimeline.Writer(FrameTimeline.getFile(mNextVideoAbsolutePath),
+                            sensorTimestamp, FRAME_TIMELINE_BUFFER, mSidecarWriter);
+                }
+                if (mFrameTimeline != null) {
+                    mFrameTimeline.append(result.getFrameNumber(), sensorTimestamp, wallTime);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write frame timeline: " + e.getMessage());
+                closeFrameTimeline();
+            }
+        }
+    }
+
+    private void closeFrameTimeline() {
+        if (mFrameTimeline != null) {
+            try {
+                mFrameTimeline.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mFrameTimeline = null;
+        }
+    }
+
+    /*
+     * Close the sidecars of a finished video and register it on the pipeline thread, as the
+     * encoder finishes segments on its drain thread.
+     */
+    private void onVideoFinished(final String path, final long startTime, final long stopTime) {
+        // get time from file name
+        int p_filename_start = path.lastIndexOf("/") + 1;
+        String fileName = path.substring(p_filename_start);
+        final String cameraId = String.valueOf(path.charAt(p_filename_start));
+        final CameraStore.VideoMetadata metadata = new CameraStore.VideoMetadata(startTime, stopTime, fileName, cameraId);
+        Log.d(TAG, "New video created: " + metadata.toString());
+        Runnable register = new Runnable() {
+            @Override
+            public void run() {
+                if (!CameraStore.isLoopRecording(mService)
+                        || !CameraStore.addLoopVideo(mService, cameraId, path, startTime, stopTime)) {
+                    mService.registerMediaFile(path, metadata);
+                    CameraStore.addOriginalVideo(mService, cameraId, path, startTime, stopTime);
+                }
+            }
+        };
+        try {
+            mThreadPool.execute(register);
+        } catch (RejectedExecutionException e) {
+            // destroyed, the last video is finished on the closing thread
+            register.run();
+        }
+        synchronized (mSidecarLock) {
+            closeFrameTimeline();
+            if (mFaceTelemetry != null) {
+                // readers see the telemetry up to the last video
+                try {
+                    mFaceTelemetry.flush();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write face telemetry: " + e.getMessage());
+                }
+            }
+            if (mFaceReport != null) {
+                // write vtt
+                int nBefore = mService.mNumFaces.get();
+                long time = stopTime - startTime - DELTA_T;
+                mFaceReport.writeCount(time, nBefore, false);
+                mFaceReport.close();
+                mFaceReport = null;
+            }
+            if (mFaceStatsReport != null) {
+                if (mFaceStats != null) {
+                    printFaceStats();
+                }
+                mFaceStatsReport.close();
+                mFaceStatsReport = null;
+            }
+        }
+    }
+
+    /*
+     * Reset the face statistics of a video that has just started.
+     */
+    private void startFaceReports() {
+        synchronized (mSidecarLock) {
+            if (mFaceStats != null) {
+                mFaceStats.clear();
+            }
+        }
+    }
+
+    /*
+     * Open the face reports of a video and write their headers.
+     */
+    private void openFaceReports(String path) throws IOException {
+        synchronized (mSidecarLock) {
+            if (mService.isFrontCamera() && DO_FACE_REPORT) {
+                mFaceReport = new FaceReportWriter(new File(path + ".vtt"), mSidecarWriter, mFaceReportListener);
+                mFaceReport.beginCounts();
+            }
+            if (mService.isFrontCamera() && DO_FACE_STATS_REPORT) {
+                mFaceStatsReport = new FaceReportWriter(new File(path + ".stats.vtt"), mSidecarWriter, mFaceReportListener);
+                mFaceStatsReport.beginFaces();
+            }
+        }
+    }
+
+    private final FaceReportWriter.Listener mFaceReportListener = new FaceReportWriter.Listener() {
+        // the face reports are written every frame, a slow block write is the first sign of a busy card
+        @Override
+        public void onWriteLatency(long nanos) {
+            mDeletionWorker.onWriteLatency(nanos);
+        }
+
+        @Override
+        public void onError(File file, IOException e) {
+            Log.e(TAG, "Failed to write face report " + file + ": " + e.getMessage());
+        }
+    };
+
+    private final SegmentEncoder.Listener mSegmentListener = new SegmentEncoder.Listener() {
+        @Override
+        public File onSegmentStart(long startTime, long startUs) throws IOException {
+            String path = mService.getVideoFilePath();
+            if (path == null) {
+                throw new IOException("Failed to allocate file for segment");
+            }
+            long gap = mStopRecordingTime > 0 ? startTime - mStopRecordingTime : 0;
+            synchronized (mSidecarLock) {
+                mNextVideoAbsolutePath = path;
+                mRecordingStartTime = startTime;
+                openFaceReports(path);
+                startFaceReports();
+                if (DO_FRAME_TIMELINE) {
+                    // the encoder keeps the sensor timestamps, in microseconds
+                    mFrameTimeline = new FrameTimeline.Writer(FrameTimeline.getFile(path), startUs * 1000,
+                            FRAME_TIMELINE_BUFFER, mSidecarWriter);
+                }
+            }
+            Log.d(TAG, "Started segment " + path + " with gap " + gap + "ms");
+            if (gap > 0) {
+                mService.broadcast("Recording with gap " + gap + " ms");
+            }
+            return new File(path);
+        }
+
+        @Override
+        public void onSegmentFinished(File file, long startTime, long endTime) {
+            mStopRecordingTime = endTime;
+            onVideoFinished(file.getAbsolutePath(), startTime, endTime);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            mService.reportErrorAndStopService(CameraModule.MEDIA_RECORDER_ERROR, e);
+        }
+    };
+
     /**
      * Session is closed when a new session is created by the parent camera device,
      * or when the parent camera device is closed (either by the user closing the device,
@@ -493,43 +799,23 @@ public class Mp4RecorderPipeline extends CameraPipeline {
     @Override
     public void onClosed(@NonNull CameraCaptureSession session) {
         Log.d(TAG, "session onClosed()");
-        if (mRecordingStartTime > 0) {
+        if (mEncoder != null) {
+            // the last segment is finished through the encoder listener
+            mEncoder.stop();
+            mEncoder = null;
+        } else if (mRecordingStartTime > 0) {
             try {
                 mStopRecordingTime = System.currentTimeMillis();
                 mRecorder.stop();
                 mRecorder.reset();
-                // get time from file name
-                int p_filename_start = mNextVideoAbsolutePath.lastIndexOf("/") + 1;
-                String fileName = mNextVideoAbsolutePath.substring(p_filename_start);
-                String cameraId = String.valueOf(mNextVideoAbsolutePath.charAt(p_filename_start));
-                CameraStore.VideoMetadata metadata = new CameraStore.VideoMetadata(mRecordingStartTime, mStopRecordingTime, fileName, cameraId);
-                Log.d(TAG, "New video created: " + metadata.toString());
-                mService.registerMediaFile(mNextVideoAbsolutePath, metadata);
-                if (mFaceReport != null) {
-                    // write vtt
-                    int nBefore = mService.mNumFaces.get();
-                    long time = System.currentTimeMillis() - mRecordingStartTime - DELTA_T;
-                    String startTime = HH_MM_SS_TTT.format(new Date(time));
-                    mFaceReport.println(" --> " + startTime);
-                    mFaceReport.println(nBefore);
-                    mFaceReport.println();
-
-                    mFaceReport.close();
-                    mFaceReport = null;
-                }
-                if (mFaceStatsReport != null) {
-                    mFaceStatsReport.close();
-                    mFaceStatsReport = null;
-                }
-                if (mFaceStats != null) {
-                    printFaceStats();
-                }
+                onVideoFinished(mNextVideoAbsolutePath, mRecordingStartTime, mStopRecordingTime);
             } catch (RuntimeException ex) {
-                // no output created, delete empty file
+                // recover the frames written so far, the store deletes the file if there are none
                 //mService.broadcast("Video creation failed " + mNextVideoAbsolutePath);
                 File file = new File(mNextVideoAbsolutePath);
                 if (file.exists()) {
-                    file.delete();
+                    String cameraId = String.valueOf(file.getName().charAt(0));
+                    CameraStore.recoverOriginalVideoInBackground(mService, cameraId, mNextVideoAbsolutePath, mConfig.mVideoFrameRate);
                 }
             }
         } else {
@@ -547,6 +833,16 @@ public class Mp4RecorderPipeline extends CameraPipeline {
                 ex = e;
             }
         }
+        synchronized (mSidecarLock) {
+            if (mFaceTelemetry != null) {
+                try {
+                    mFaceTelemetry.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write face telemetry: " + e.getMessage());
+                }
+                mFaceTelemetry = null;
+            }
+        }
         try {
             Log.d(TAG, "releasing recorder...");
             mRecorder.release();
@@ -575,17 +871,34 @@ public class Mp4RecorderPipeline extends CameraPipeline {
 
         notifyConfigChange();
 
-        mNextVideoAbsolutePath = mService.getVideoFilePath();
-        if (mService.isFrontCamera() && DO_FACE_REPORT) {
-            mFaceReport = new PrintStream(new FileOutputStream(new File(mNextVideoAbsolutePath + ".vtt")));
+        List<Surface> surfaces = new ArrayList<>();
+        // video only, so it is used when audio is not recorded
+        if (mConfig.mGaplessSegments && !mConfig.mRecordAudio) {
+            // files are allocated by the encoder listener at every keyframe that starts a segment
+            mEncoder = new SegmentEncoder(mConfig, mSegmentListener);
+            surfaces.add(mEncoder.getSurface());
+        } else {
+            prepareRecorder();
+            surfaces.add(mRecorder.getSurface());
         }
-        if (mService.isFrontCamera() && DO_FACE_STATS_REPORT) {
-            mFaceStatsReport = new PrintStream(new FileOutputStream(new File(mNextVideoAbsolutePath + ".stats.vtt")));
+        surfaces.add(mSnapshotHandler.getSurface());
+        if (mCaptureModules != null) {
+            for (CaptureModule cm : mCaptureModules) {
+                surfaces.add(cm.getSurface());
+            }
         }
+
+        surfaces.add(mService.bind());
+        // this will cause currently running session (if any) to close
+        mCamera.createCaptureSession(surfaces, this, mService.mCameraHandler);
+    }
+
+    private void prepareRecorder() throws IOException {
+        mNextVideoAbsolutePath = mService.getVideoFilePath();
         if (mNextVideoAbsolutePath == null) {
             throw new RuntimeException("Failed to allocate file for media recorder!");
         }
-        List<Surface> surfaces = new ArrayList<>();
+        openFaceReports(mNextVideoAbsolutePath);
         if (mConfig.mRecordAudio) {
             mRecorder.setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
         }
@@ -603,19 +916,6 @@ public class Mp4RecorderPipeline extends CameraPipeline {
         mRecorder.setMaxFileSize(0);
         mRecorder.prepare();
         Log.d(TAG, "Prepared video recorder writing to " + mNextVideoAbsolutePath);
-
-
-        surfaces.add(mRecorder.getSurface());
-        surfaces.add(mSnapshotHandler.getSurface());
-        if (mCaptureModules != null) {
-            for (CaptureModule cm : mCaptureModules) {
-                surfaces.add(cm.getSurface());
-            }
-        }
-
-        surfaces.add(mService.bind());
-        // this will cause currently running session (if any) to close
-        mCamera.createCaptureSession(surfaces, this, mService.mCameraHandler);
     }
 
     /*
@@ -0,0 +1,256 @@
+package com.nauto.camera.base;
+
+import com.nauto.camera.mp4.SampleRing;
+import com.nauto.camera.mp4.SegmentSplitter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * H.264 encoder fed by a camera surface that writes its output through a {@link SegmentSplitter},
+ * so segments are rotated at keyframes while the capture session and the encoder keep running.
+ * Every sample also goes to a {@link SampleRing} holding the last seconds, so an event clip is
+ * written from memory, see {@link #exportRecent}.
+ *
+ * <p>The output is drained on a dedicated thread. Presentation times come from the camera clock
+ * and are mapped to wall clock time with the offset seen at the first encoded frame, which is late
+ * by the encoding latency of a frame or two.</p>
+ */
+class SegmentEncoder {
+    private static final String TAG = SegmentEncoder.class.getSimpleName();
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private static final int I_FRAME_INTERVAL_SEC = 1;
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+    private static final long STOP_TIMEOUT_MS = 3000;
+    // seconds of samples kept in memory for event clips, at the configured bit and frame rate
+    private static final int RING_SECONDS = 20;
+
+    /**
+     * Segment callbacks, called on the draining thread with wall clock times in milliseconds.
+     */
+    interface Listener {
+        /**
+         * @param startTime wall clock time of the first sample
+         * @param startUs   presentation time of the first sample, the camera timestamp of its frame
+         */
+        File onSegmentStart(long startTime, long startUs) throws IOException;
+
+        void onSegmentFinished(File file, long startTime, long endTime);
+
+        void onError(Exception e);
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRingCapacity;
+    private final int mRingSamples;
+    private final Listener mListener;
+    private final MediaCodec mCodec;
+    private final Surface mSurface;
+    private final Thread mDrainThread;
+    private volatile boolean mSplitRequested;
+    private SegmentSplitter mSplitter;
+    // created with the first sample, read by exporting threads
+    private volatile SampleRing mRing;
+    // wall clock minus presentation time, in microseconds
+    private long mWallOffsetUs = Long.MIN_VALUE;
+
+    SegmentEncoder(CameraPipelineConfig config, Listener listener) throws IOException {
+        mWidth = config.mVideoWidth;
+        mHeight = config.mVideoHeight;
+        mRingCapacity = config.mVideoBitRate / 8 * RING_SECONDS;
+        // room for a frame rate above the configured one
+        mRingSamples = config.mVideoFrameRate * RING_SECONDS * 2;
+        mListener = listener;
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.mVideoBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.mVideoFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_SEC);
+        mCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        try {
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mSurface = mCodec.createInputSurface();
+            mCodec.start();
+        } catch (RuntimeException e) {
+            mCodec.release();
+            throw e;
+        }
+        mDrainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG);
+        mDrainThread.start();
+    }
+
+    Surface getSurface() {
+        return mSurface;
+    }
+
+    /**
+     * Start a new segment at the next keyframe, which is asked for right away.
+     */
+    void requestSplit() {
+        mSplitRequested = true;
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            mCodec.setParameters(params);
+        } catch (IllegalStateException e) {
+            // the split waits for the next regular keyframe
+            Log.w(TAG, "Failed to request a keyframe: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the last seconds encoded into an MP4 file from memory, see {@link SampleRing#exportRecent}.
+     * Called on any thread, it does not hold up the encoder.
+     *
+     * @param seconds at most {@link #RING_SECONDS}, less if the ring holds less
+     * @return duration of the clip in microseconds
+     * @throws IOException if nothing was encoded yet or the file can not be written
+     */
+    long exportRecent(int seconds, File output) throws IOException {
+        SampleRing ring = mRing;
+        if (ring == null) {
+            throw new IOException("No samples encoded");
+        }
+        return ring.exportRecent(seconds, output);
+    }
+
+    /**
+     * Finish the last segment and release the encoder, after the camera stopped sending frames.
+     */
+    void stop() {
+        try {
+            mCodec.signalEndOfInputStream();
+            mDrainThread.join(STOP_TIMEOUT_MS);
+        } catch (IllegalStateException | InterruptedException e) {
+            Log.e(TAG, "Failed to end the stream: " + e.getMessage());
+        }
+        if (mDrainThread.isAlive()) {
+            Log.e(TAG, "Encoder did not end the stream in " + STOP_TIMEOUT_MS + " ms");
+            mDrainThread.interrupt();
+        }
+        try {
+            mCodec.stop();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+        mCodec.release();
+        mSurface.release();
+    }
+
+    private void drain() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer codecConfig = null;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                int index = mCodec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    codecConfig = getCodecConfig(mCodec.getOutputFormat());
+                    continue;
+                } else if (index < 0) {
+                    continue;
+                }
+                ByteBuffer out = mCodec.getOutputBuffer(index);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    if (codecConfig == null) {
+                        codecConfig = ByteBuffer.allocate(info.size);
+                        out.position(info.offset).limit(info.offset + info.size);
+                        codecConfig.put(out).flip();
+                    }
+                } else if (info.size > 0 && codecConfig != null) {
+                    if (mSplitter == null) {
+                        mSplitter = new SegmentSplitter(mWidth, mHeight, codecConfig, mSplitterListener);
+                        mRing = newRing(codecConfig);
+                    }
+                    if (mWallOffsetUs == Long.MIN_VALUE) {
+                        mWallOffsetUs = System.currentTimeMillis() * 1000 - info.presentationTimeUs;
+                    }
+                    if (mSplitRequested) {
+                        mSplitRequested = false;
+                        mSplitter.requestSplit();
+                    }
+                    out.position(info.offset).limit(info.offset + info.size);
+                    boolean sync = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+                    writeRing(out, info.presentationTimeUs, sync);
+                    mSplitter.writeSampleData(out, info.presentationTimeUs, sync);
+                }
+                mCodec.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+            if (mSplitter != null) {
+                mSplitter.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            mListener.onError(e);
+        }
+    }
+
+    /*
+     * Ring of the last seconds, null if the codec config does not fit one.
+     */
+    private SampleRing newRing(ByteBuffer codecConfig) {
+        try {
+            return new SampleRing(mRingCapacity, mRingSamples, mWidth, mHeight, codecConfig.duplicate());
+        } catch (IllegalArgumentException | OutOfMemoryError e) {
+            Log.e(TAG, "No sample ring, event clips are read from the segments: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * Add a sample to the ring, the position of the buffer is kept for the splitter.
+     */
+    private void writeRing(ByteBuffer sample, long presentationTimeUs, boolean sync) {
+        SampleRing ring = mRing;
+        if (ring == null) {
+            return;
+        }
+        try {
+            ring.write(sample, presentationTimeUs, sync);
+        } catch (IllegalArgumentException e) {
+            // a sample larger than half the ring, the segments still have it
+            Log.w(TAG, "Sample not kept in the ring: " + e.getMessage());
+        }
+    }
+
+    /*
+     * SPS and PPS in Annex B format from the output format, null if it has none.
+     */
+    private static ByteBuffer getCodecConfig(MediaFormat format) {
+        ByteBuffer sps = format.getByteBuffer("csd-0");
+        ByteBuffer pps = format.getByteBuffer("csd-1");
+        if (sps == null || pps == null) {
+            return null;
+        }
+        ByteBuffer config = ByteBuffer.allocate(sps.remaining() + pps.remaining());
+        config.put(sps.duplicate()).put(pps.duplicate()).flip();
+        return config;
+    }
+
+    private final SegmentSplitter.Listener mSplitterListener = new SegmentSplitter.Listener() {
+        @Override
+        public File onSegmentStart(long startUs) throws IOException {
+            return mListener.onSegmentStart((startUs + mWallOffsetUs) / 1000, startUs);
+        }
+
+        @Override
+        public void onSegmentFinished(File file, long startUs, long endUs) {
+            mListener.onSegmentFinished(file, (startUs + mWallOffsetUs) / 1000, (endUs + mWallOffsetUs) / 1000);
+        }
+    };
+}
@@ -0,0 +1,388 @@
+package com.nauto.camera.mp4;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes encoded H.264 access units into a fragmented MP4 file: ftyp and a moov without samples,
+ * then one moof/mdat fragment per GOP.
+ *
+ * <p>Each fragment is self describing and written with a single gathering write followed by a
+ * sync, so everything up to the last fragment can be read while the file is still being written,
+ * and after a crash the file is repaired by truncating it to the last complete fragment, see
+ * {@link #truncate(File)}.</p>
+ *
+ * <p>Access units and codec config are taken in Annex B format as produced by MediaCodec. Samples
+ * must arrive in decoding order; the encoders of the camera do not reorder frames, so decoding and
+ * presentation times are the same. Not thread safe.</p>
+ */
+public final class FragmentedMp4Writer implements Closeable {
+    public static final long TIMESCALE = 90000;
+    // a fragment ends at the next keyframe, or after this long if keyframes are rare
+    private static final long MAX_FRAGMENT_US = 5000000;
+    private static final long DEFAULT_FRAME_US = 33333;
+    private static final int TRACK_ID = 1;
+
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+
+    // sample_depends_on = 2 for keyframes, sample_depends_on = 1 and sample_is_non_sync_sample
+    // for the other frames
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final File mPath;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private int mSequence;
+    private long mEndTime;
+
+    // pending fragment, sample times in TIMESCALE units from the first sample
+    private ByteBuffer mData = ByteBuffer.allocate(512 * 1024);
+    private ByteBuffer mHeader = ByteBuffer.allocate(4 * 1024);
+    private int mSampleCount;
+    private long[] mTimes = new long[64];
+    private int[] mSizes = new int[64];
+    private boolean[] mSync = new boolean[64];
+    private long mFirstTimeUs = -1;
+    private long mLastTime = -1;
+    private long mLastDelta;
+
+    /**
+     * Create the file and write its header.
+     *
+     * @param codecConfig SPS and PPS in Annex B format, e.g. csd-0 followed by csd-1
+     * @throws IOException if the file can not be written
+     * @throws IllegalArgumentException if the codec config has no SPS or PPS
+     */
+    public FragmentedMp4Writer(File file, int width, int height, ByteBuffer codecConfig) throws IOException {
+        Mp4TrackBuilder track = new Mp4TrackBuilder(TRACK_ID, Mp4Box.HANDLER_VIDEO, TIMESCALE);
+        track.mWidth = width;
+        track.mHeight = height;
+        track.addSampleEntry(avcSampleEntry(width, height, codecConfig));
+        List<Mp4TrackBuilder> tracks = new ArrayList<>(1);
+        tracks.add(track);
+
+        mPath = file;
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        try {
+            mChannel.truncate(0);
+            writeFully(new ByteBuffer[]{Mp4MoovWriter.ftyp(), Mp4MoovWriter.fragmentedMoov(tracks)});
+            mChannel.force(false);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param codecConfig SPS and PPS in Annex B format
+     * @return avc1 sample entry with an avcC box for 4 byte NAL unit lengths
+     * @throws IllegalArgumentException if the codec config has no SPS or PPS
+     */
+    static byte[] avcSampleEntry(int width, int height, ByteBuffer codecConfig) {
+        byte[] sps = null;
+        byte[] pps = null;
+        List<byte[]> nals = splitNals(codecConfig);
+        for (byte[] nal : nals) {
+            int type = nal[0] & 0x1f;
+            if (type == NAL_SPS && sps == null) {
+                sps = nal;
+            } else if (type == NAL_PPS && pps == null) {
+                pps = nal;
+            }
+        }
+        if (sps == null || sps.length < 4 || pps == null) {
+            throw new IllegalArgumentException("Codec config without SPS and PPS");
+        }
+        return avcSampleEntry(width, height, sps, pps);
+    }
+
+    /**
+     * @return avc1 sample entry with an avcC box for 4 byte NAL unit lengths
+     */
+    public static byte[] avcSampleEntry(int width, int height, byte[] sps, byte[] pps) {
+        ByteBuffer b = ByteBuffer.allocate(128 + sps.length + pps.length);
+        int avc1 = Mp4MoovWriter.begin(b, Mp4Box.AVC1);
+        b.put(new byte[6]).putShort((short) 1).put(new byte[16]).putShort((short) width).putShort((short) height);
+        b.putInt(0x00480000).putInt(0x00480000).putInt(0).putShort((short) 1).put(new byte[32]);
+        b.putShort((short) 0x18).putShort((short) -1);
+        int avcc = Mp4MoovWriter.begin(b, Mp4Box.AVCC);
+        b.put((byte) 1).put(sps[1]).put(sps[2]).put(sps[3]).put((byte) 0xff).put((byte) 0xe1);
+        b.putShort((short) sps.length).put(sps).put((byte) 1).putShort((short) pps.length).put(pps);
+        Mp4MoovWriter.end(b, avcc);
+        Mp4MoovWriter.end(b, avc1);
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    /**
+     * Add an access unit. A keyframe closes the pending fragment, which is then written.
+     *
+     * @param accessUnit         NAL units in Annex B format, from position to limit
+     * @param presentationTimeUs presentation time in microseconds
+     * @param sync               true for a keyframe
+     */
+    public void writeSampleData(ByteBuffer accessUnit, long presentationTimeUs, boolean sync) throws IOException {
+        if (mFirstTimeUs < 0) {
+            mFirstTimeUs = presentationTimeUs;
+        }
+        long time = ((presentationTimeUs - mFirstTimeUs) * TIMESCALE + 500000L) / 1000000L;
+        if (time <= mLastTime) {
+            // keep decoding times strictly increasing
+            time = mLastTime + 1;
+        }
+        if (mSampleCount > 0 && (sync || time - mTimes[0] >= MAX_FRAGMENT_US * TIMESCALE / 1000000L)) {
+            writeFragment(time);
+        }
+        if (mSampleCount == mTimes.length) {
+            int n = mSampleCount * 2;
+            mTimes = Arrays.copyOf(mTimes, n);
+            mSizes = Arrays.copyOf(mSizes, n);
+            mSync = Arrays.copyOf(mSync, n);
+        }
+        mTimes[mSampleCount] = time;
+        mSizes[mSampleCount] = appendNals(accessUnit);
+        mSync[mSampleCount] = sync;
+        mSampleCount++;
+        if (mLastTime >= 0) {
+            mLastDelta = time - mLastTime;
+        }
+        mLastTime = time;
+    }
+
+    /**
+     * Write the pending fragment, the last sample lasting as long as the one before it.
+     */
+    public void flush() throws IOException {
+        if (mSampleCount > 0) {
+            long delta = mLastDelta > 0 ? mLastDelta : DEFAULT_FRAME_US * TIMESCALE / 1000000L;
+            writeFragment(mLastTime + delta);
+        }
+    }
+
+    /**
+     * Write the pending fragment and close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mFile.close();
+        }
+    }
+
+    /**
+     * Write the pending fragment, the last sample lasting until the given time, and close the file.
+     * Used when the next sample goes to another file, so the two files join without a gap.
+     *
+     * @param endTimeUs presentation time of the sample that follows the last one
+     */
+    public void close(long endTimeUs) throws IOException {
+        try {
+            if (mSampleCount > 0) {
+                long end = ((endTimeUs - mFirstTimeUs) * TIMESCALE + 500000L) / 1000000L;
+                writeFragment(Math.max(end, mLastTime + 1));
+            }
+        } finally {
+            mFile.close();
+        }
+    }
+
+    /**
+     * @return duration of the samples in written fragments
+     */
+    public long getDurationUs() {
+        return mEndTime * 1000000L / TIMESCALE;
+    }
+
+    public int getFragmentCount() {
+        return mSequence;
+    }
+
+    public File getFile() {
+        return mPath;
+    }
+
+    /**
+     * Cut off a fragment torn by a crash.
+     *
+     * @return duration of the remaining samples in microseconds
+     * @throws IOException if the file is not a fragmented MP4 or can not be written
+     */
+    public static long truncate(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            Mp4Movie movie = new Mp4Parser().parse(raf.getChannel());
+            if (!movie.isFragmented()) {
+                throw new IOException("Not a fragmented MP4 " + file);
+            }
+            if (raf.length() > movie.getFragmentsEnd()) {
+                raf.getChannel().truncate(movie.getFragmentsEnd());
+                raf.getChannel().force(false);
+            }
+            return movie.getDurationUs();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*
+     * moof with one traf and one trun, then the mdat of the pending samples.
+     */
+    private void writeFragment(long endTime) throws IOException {
+        int n = mSampleCount;
+        int headerSize = 8 + 16 + 8 + 16 + 20 + 20 + 12 * n + 8;
+        if (mHeader.capacity() < headerSize) {
+            mHeader = ByteBuffer.allocate(headerSize * 2);
+        }
+        ByteBuffer b = mHeader;
+        b.clear();
+        int moof = Mp4MoovWriter.begin(b, Mp4Box.MOOF);
+        int mfhd = Mp4MoovWriter.beginFull(b, Mp4Box.MFHD, 0, 0);
+        b.putInt(++mSequence);
+        Mp4MoovWriter.end(b, mfhd);
+        int traf = Mp4MoovWriter.begin(b, Mp4Box.TRAF);
+        // default-base-is-moof
+        int tfhd = Mp4MoovWriter.beginFull(b, Mp4Box.TFHD, 0, 0x020000);
+        b.putInt(TRACK_ID);
+        Mp4MoovWriter.end(b, tfhd);
+        int tfdt = Mp4MoovWriter.beginFull(b, Mp4Box.TFDT, 1, 0);
+        b.putLong(mTimes[0]);
+        Mp4MoovWriter.end(b, tfdt);
+        // data-offset, sample-duration, sample-size and sample-flags present
+        int trun = Mp4MoovWriter.beginFull(b, Mp4Box.TRUN, 0, 0x000701);
+        b.putInt(n);
+        int dataOffset = b.position();
+        b.putInt(0);
+        for (int i = 0; i < n; i++) {
+            long end = i + 1 < n ? mTimes[i + 1] : endTime;
+            b.putInt((int) (end - mTimes[i])).putInt(mSizes[i]).putInt(mSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        Mp4MoovWriter.end(b, trun);
+        Mp4MoovWriter.end(b, traf);
+        Mp4MoovWriter.end(b, moof);
+        b.putInt(dataOffset, b.position() + 8);
+        b.putInt(8 + mData.position()).putInt(Mp4Box.MDAT);
+        b.flip();
+        mData.flip();
+        writeFully(new ByteBuffer[]{b, mData});
+        mChannel.force(false);
+        mData.clear();
+        mSampleCount = 0;
+        mEndTime = endTime;
+    }
+
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            mChannel.write(buffers);
+        }
+    }
+
+    /*
+     * Append the NAL units of an Annex B buffer to the pending data, each prefixed with its length.
+     *
+     * @return bytes appended
+     */
+    private int appendNals(ByteBuffer in) {
+        int needed = maxLengthPrefixedSize(in.remaining());
+        if (mData.remaining() < needed) {
+            ByteBuffer data = ByteBuffer.allocate(Math.max(mData.capacity() * 2, mData.position() + needed));
+            mData.flip();
+            data.put(mData);
+            mData = data;
+        }
+        return putLengthPrefixed(in, mData);
+    }
+
+    /*
+     * Upper bound of the length prefixed size of an Annex B buffer: a start code of 3 bytes grows by
+     * one to a length prefix.
+     */
+    static int maxLengthPrefixedSize(int annexBSize) {
+        return annexBSize + annexBSize / 3 + 4;
+    }
+
+    /*
+     * Put the NAL units of an Annex B buffer, from position to limit, each prefixed with its length.
+     * A buffer without start codes is taken as a single NAL unit. The position of the input is left
+     * unchanged, out must have room for maxLengthPrefixedSize bytes.
+     *
+     * @return bytes put
+     */
+    static int putLengthPrefixed(ByteBuffer in, ByteBuffer out) {
+        int start = in.position();
+        int end = in.limit();
+        int before = out.position();
+        int sc = findStartCode(in, start, end);
+        int nal = sc < end ? sc + 3 : start;
+        while (nal < end) {
+            int next = findStartCode(in, nal, end);
+            int nalEnd = next;
+            // zeros before a start code belong to it
+            while (next < end && nalEnd > nal && in.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nal) {
+                out.putInt(nalEnd - nal);
+                in.limit(nalEnd).position(nal);
+                out.put(in);
+                in.limit(end).position(start);
+            }
+            nal = next < end ? next + 3 : end;
+        }
+        return out.position() - before;
+    }
+
+    /*
+     * Position of the next 00 00 01 at or after from, end if there is none.
+     */
+    static int findStartCode(ByteBuffer b, int from, int end) {
+        int i = from;
+        while (i + 2 < end) {
+            int c = b.get(i + 2) & 0xff;
+            if (c > 1) {
+                i += 3;
+            } else if (c == 0) {
+                i++;
+            } else if (b.get(i) == 0 && b.get(i + 1) == 0) {
+                return i;
+            } else {
+                i += 3;
+            }
+        }
+        return end;
+    }
+
+    static List<byte[]> splitNals(ByteBuffer in) {
+        List<byte[]> nals = new ArrayList<>(2);
+        int end = in.limit();
+        int sc = findStartCode(in, in.position(), end);
+        int nal = sc < end ? sc + 3 : in.position();
+        while (nal < end) {
+            int next = findStartCode(in, nal, end);
+            int nalEnd = next;
+            while (next < end && nalEnd > nal && in.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nal) {
+                byte[] bytes = new byte[nalEnd - nal];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = in.get(nal + i);
+                }
+                nals.add(bytes);
+            }
+            nal = next < end ? next + 3 : end;
+        }
+        return nals;
+    }
+}
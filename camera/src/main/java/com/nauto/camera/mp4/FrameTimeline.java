@@ -0,0 +1,445 @@
+package com.nauto.camera.mp4;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Frame number, sensor timestamp and wall clock time of every frame of a segment, stored in a
+ * sidecar next to it, so a wall clock time resolves to the sample recorded at that time even
+ * across dropped frames and clock steps.
+ *
+ * <pre>
+ * header: magic:int version:int baseSensorNs:long
+ * frame:  frameNumber sensorNs wallMs, each the zigzag varint of the delta to the previous frame
+ * </pre>
+ *
+ * <p>Media time of a frame is its sensor timestamp minus the base, the sensor timestamp of the
+ * first sample of the segment. The file is only appended to, a torn last frame is ignored.</p>
+ */
+public final class FrameTimeline {
+    static final int MAGIC = 0x46544d4c; // "FTML"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 8;
+    // three varints of at most 10 bytes
+    private static final int MAX_FRAME_SIZE = 30;
+
+    public static final String SUFFIX = ".ft";
+
+    private final long[] mFrameNumbers;
+    private final long[] mMediaTimesUs;
+    private final long[] mWallTimes;
+    // frames by wall clock time, then by position, null if the wall clock never stepped back
+    private final int[] mOrder;
+
+    FrameTimeline(long[] frameNumbers, long[] mediaTimesUs, final long[] wallTimes) {
+        mFrameNumbers = frameNumbers;
+        mMediaTimesUs = mediaTimesUs;
+        mWallTimes = wallTimes;
+        int n = wallTimes.length;
+        int i = 1;
+        while (i < n && wallTimes[i] >= wallTimes[i - 1]) {
+            i++;
+        }
+        if (i == n) {
+            mOrder = null;
+            return;
+        }
+        Integer[] order = new Integer[n];
+        for (i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long wa = wallTimes[a];
+                long wb = wallTimes[b];
+                return wa != wb ? (wa < wb ? -1 : 1) : a.compareTo(b);
+            }
+        });
+        mOrder = new int[n];
+        for (i = 0; i < n; i++) {
+            mOrder[i] = order[i];
+        }
+    }
+
+    /**
+     * @return sidecar file of a segment
+     */
+    public static File getFile(String segmentPath) {
+        return new File(segmentPath + SUFFIX);
+    }
+
+    /**
+     * Read the sidecar of a segment.
+     *
+     * @return timeline, null if the segment has none
+     */
+    public static FrameTimeline load(String segmentPath) throws IOException {
+        File file = getFile(segmentPath);
+        return file.exists() ? read(file) : null;
+    }
+
+    public static FrameTimeline read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long length = in.getChannel().size();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid frame timeline size " + length);
+            }
+            byte[] data = new byte[(int) length];
+            Mp4Parser.readFully(in.getChannel(), ByteBuffer.wrap(data), 0);
+            ByteBuffer b = ByteBuffer.wrap(data);
+            if (b.getInt() != MAGIC || b.getInt() != VERSION) {
+                throw new IOException("Not a frame timeline " + file);
+            }
+            long base = b.getLong();
+            // at least 3 bytes per frame
+            int capacity = (int) ((length - HEADER_SIZE) / 3);
+            long[] frames = new long[capacity];
+            long[] times = new long[capacity];
+            long[] walls = new long[capacity];
+            long frame = 0;
+            long sensor = 0;
+            long wall = 0;
+            int count = 0;
+            while (b.hasRemaining()) {
+                long df = readVarint(b);
+                long ds = readVarint(b);
+                long dw = readVarint(b);
+                if (dw == Long.MIN_VALUE || ds == Long.MIN_VALUE || df == Long.MIN_VALUE) {
+                    // torn last frame
+                    break;
+                }
+                frame += df;
+                sensor += ds;
+                wall += dw;
+                frames[count] = frame;
+                times[count] = (sensor - base) / 1000;
+                walls[count] = wall;
+                count++;
+            }
+            return new FrameTimeline(Arrays.copyOf(frames, count), Arrays.copyOf(times, count), Arrays.copyOf(walls, count));
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Zigzag varint, Long.MIN_VALUE if the buffer ends inside it.
+     */
+    private static long readVarint(ByteBuffer b) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!b.hasRemaining()) {
+                return Long.MIN_VALUE;
+            }
+            int x = b.get();
+            v |= (long) (x & 0x7f) << shift;
+            if ((x & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    public int size() {
+        return mWallTimes.length;
+    }
+
+    public long getFrameNumber(int i) {
+        return mFrameNumbers[i];
+    }
+
+    /**
+     * @return media time of the frame in microseconds from the segment start
+     */
+    public long getMediaTimeUs(int i) {
+        return mMediaTimesUs[i];
+    }
+
+    /**
+     * @return wall clock time of the frame in milliseconds
+     */
+    public long getWallTime(int i) {
+        return mWallTimes[i];
+    }
+
+    /**
+     * Media time recorded at a wall clock time: the frame with the latest wall clock time at or
+     * before it, plus the time since. After a backward clock step the wall clock times repeat, and
+     * the frame closest before the time wins regardless of its position. Before the first frame
+     * the time is taken back from it.
+     *
+     * @param wallTime wall clock time in milliseconds
+     * @return media time in microseconds, never negative, -1 if there are no frames
+     */
+    public long toMediaTimeUs(long wallTime) {
+        int n = mWallTimes.length;
+        if (n == 0) {
+            return -1;
+        }
+        // frames at or before the time
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mWallTimes[frameAt(mid)] <= wallTime) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo == 0) {
+            return Math.max(0, mMediaTimesUs[0] - (mWallTimes[0] - wallTime) * 1000);
+        }
+        // the first frame with the latest of their wall clock times
+        long latest = mWallTimes[frameAt(lo - 1)];
+        hi = lo - 1;
+        lo = 0;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mWallTimes[frameAt(mid)] < latest) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int best = frameAt(lo);
+        return Math.max(0, mMediaTimesUs[best] + (wallTime - mWallTimes[best]) * 1000);
+    }
+
+    /*
+     * Frame at a position in wall clock order.
+     */
+    private int frameAt(int i) {
+        return mOrder == null ? i : mOrder[i];
+    }
+
+    @Override
+    public String toString() {
+        return "FrameTimeline{frames:" + mWallTimes.length + "}";
+    }
+
+    /**
+     * Appends frames to a sidecar through blocks that an executor writes to the file when full, so
+     * a frame costs a few bytes of memory, the recorder makes no file operation itself and the
+     * executor makes one write per few hundred frames. The file is created by the executor too.
+     * Frames are dropped while no block is free. The appending side is not thread safe.
+     */
+    public static final class Writer implements Closeable {
+        // blocks being filled or waiting for the executor
+        static final int BLOCKS = 3;
+
+        private static final Executor DIRECT = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        private final File mFile;
+        private final Executor mExecutor;
+        private final ArrayBlockingQueue<Block> mFree = new ArrayBlockingQueue<>(BLOCKS);
+        // appending side
+        private Block mBlock;
+        private long mFrame;
+        private long mSensor;
+        private long mWall;
+        private long mDropped;
+        // executor side
+        private FileOutputStream mOut;
+        private FileChannel mChannel;
+        private volatile IOException mError;
+        private final Runnable mCloseTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mOut != null) {
+                        mOut.close();
+                    }
+                } catch (IOException e) {
+                    setError(e);
+                }
+            }
+        };
+
+        /*
+         * Encoded frames, handed to the executor when full and back when written.
+         */
+        private final class Block implements Runnable {
+            final ByteBuffer mBuffer;
+
+            Block(int size) {
+                mBuffer = ByteBuffer.allocateDirect(size);
+            }
+
+            @Override
+            public void run() {
+                try {
+                    write(mBuffer);
+                } finally {
+                    mBuffer.clear();
+                    mFree.offer(this);
+                }
+            }
+        }
+
+        /**
+         * Create the sidecar, written on the appending thread.
+         *
+         * @param baseSensorNs sensor timestamp of the first sample of the segment
+         * @param bufferSize   bytes buffered before a write
+         */
+        public Writer(File file, long baseSensorNs, int bufferSize) {
+            this(file, baseSensorNs, bufferSize, DIRECT);
+        }
+
+        /**
+         * @param baseSensorNs sensor timestamp of the first sample of the segment
+         * @param bufferSize   bytes of a block
+         * @param executor     creates and writes the file, a single thread
+         */
+        public Writer(File file, long baseSensorNs, int bufferSize, Executor executor) {
+            mFile = file;
+            mExecutor = executor;
+            int size = Math.max(bufferSize, HEADER_SIZE + MAX_FRAME_SIZE);
+            for (int i = 0; i < BLOCKS; i++) {
+                mFree.offer(new Block(size));
+            }
+            mBlock = mFree.poll();
+            mBlock.mBuffer.putInt(MAGIC).putInt(VERSION).putLong(baseSensorNs);
+        }
+
+        /**
+         * @param frameNumber frame number of the capture
+         * @param sensorNs    sensor timestamp in nanoseconds
+         * @param wallTime    wall clock time in milliseconds
+         * @throws IOException if writing the file failed, the frames since are dropped
+         */
+        public void append(long frameNumber, long sensorNs, long wallTime) throws IOException {
+            IOException e = mError;
+            if (e != null) {
+                throw e;
+            }
+            Block b = mBlock;
+            if (b != null && b.mBuffer.remaining() < MAX_FRAME_SIZE) {
+                handOver();
+                b = null;
+            }
+            if (b == null) {
+                b = mFree.poll();
+                if (b == null) {
+                    // the executor is behind, the next frame is a delta to the last one kept
+                    mDropped++;
+                    return;
+                }
+                mBlock = b;
+            }
+            putVarint(b.mBuffer, frameNumber - mFrame);
+            putVarint(b.mBuffer, sensorNs - mSensor);
+            putVarint(b.mBuffer, wallTime - mWall);
+            mFrame = frameNumber;
+            mSensor = sensorNs;
+            mWall = wallTime;
+        }
+
+        private static void putVarint(ByteBuffer buf, long value) {
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7fL) != 0) {
+                buf.put((byte) (v & 0x7f | 0x80));
+                v >>>= 7;
+            }
+            buf.put((byte) v);
+        }
+
+        /**
+         * @return frames dropped because no block was free
+         */
+        public long getDroppedCount() {
+            return mDropped;
+        }
+
+        /**
+         * Hand the frames appended so far to the executor, readers see them once it wrote them.
+         *
+         * @throws IOException if writing the file failed since the last call
+         */
+        public void flush() throws IOException {
+            handOver();
+            IOException e = mError;
+            if (e != null) {
+                mError = null;
+                throw e;
+            }
+        }
+
+        private void handOver() {
+            Block b = mBlock;
+            mBlock = null;
+            if (b != null) {
+                execute(b);
+            }
+        }
+
+        private void execute(Runnable task) {
+            try {
+                mExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // the executor is shut down or full
+                task.run();
+            }
+        }
+
+        private void setError(IOException e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+
+        /*
+         * Write a block, on the executor. The file is created with the first one.
+         */
+        private void write(ByteBuffer buf) {
+            if (mError != null) {
+                return;
+            }
+            try {
+                if (mChannel == null) {
+                    mOut = new FileOutputStream(mFile);
+                    mChannel = mOut.getChannel();
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    mChannel.write(buf);
+                }
+            } catch (IOException e) {
+                setError(e);
+            }
+        }
+
+        /**
+         * Hand what is left to the executor, which closes the file after writing it. Does not wait.
+         *
+         * @throws IOException if writing the file failed before
+         */
+        @Override
+        public void close() throws IOException {
+            handOver();
+            execute(mCloseTask);
+            IOException e = mError;
+            if (e != null) {
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.nauto.camera.mp4;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Presentation time and file offset of every keyframe of a segment, stored in a small sidecar
+ * file next to it, so seeks and cuts land on keyframes without parsing the segment.
+ *
+ * <pre>
+ * header: magic:int version:int count:int durationUs:long
+ * entry:  timeUs:long offset:long
+ * </pre>
+ */
+public final class KeyframeIndex {
+    static final int MAGIC = 0x4b46524d; // "KFRM"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+    static final int ENTRY_SIZE = 8 + 8;
+
+    public static final String SUFFIX = ".kf";
+
+    private final long[] mTimesUs;
+    private final long[] mOffsets;
+    private final long mDurationUs;
+
+    KeyframeIndex(long[] timesUs, long[] offsets, long durationUs) {
+        mTimesUs = timesUs;
+        mOffsets = offsets;
+        mDurationUs = durationUs;
+    }
+
+    /**
+     * @return sidecar file of a segment
+     */
+    public static File getFile(String segmentPath) {
+        return new File(segmentPath + SUFFIX);
+    }
+
+    /**
+     * Build from the {@code stss}, {@code stts}, {@code ctts} and chunk tables of the video track,
+     * or of the first track if there is no video.
+     */
+    public static KeyframeIndex build(Mp4Movie movie) {
+        Mp4Track track = movie.getVideoTrack();
+        if (track == null && !movie.getTracks().isEmpty()) {
+            track = movie.getTracks().get(0);
+        }
+        if (track == null || track.getSampleCount() == 0) {
+            return new KeyframeIndex(new long[0], new long[0], movie.getDurationUs());
+        }
+        int[] sync = track.getSyncSamples();
+        long[] times = track.getSampleTimes();
+        int[] cts = track.getCompositionOffsets();
+        long[] offsets = track.getSampleOffsets();
+        long[] outTimes = new long[sync.length];
+        long[] outOffsets = new long[sync.length];
+        for (int i = 0; i < sync.length; i++) {
+            int s = sync[i];
+            outTimes[i] = track.toUs(times[s] + cts[s]);
+            outOffsets[i] = offsets[s];
+        }
+        return new KeyframeIndex(outTimes, outOffsets, track.getDurationUs());
+    }
+
+    public static KeyframeIndex build(File segment) throws IOException {
+        return build(Mp4Parser.parse(segment));
+    }
+
+    /**
+     * Read the sidecar of a segment, or build it from the segment and write it if it is missing
+     * or damaged.
+     */
+    public static KeyframeIndex load(String segmentPath) throws IOException {
+        File file = getFile(segmentPath);
+        if (file.exists()) {
+            try {
+                return read(file);
+            } catch (IOException e) {
+                // rebuild below
+            }
+        }
+        KeyframeIndex index = build(new File(segmentPath));
+        index.write(file);
+        return index;
+    }
+
+    public static KeyframeIndex read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long length = in.getChannel().size();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid keyframe index size " + length);
+            }
+            byte[] data = new byte[(int) length];
+            Mp4Parser.readFully(in.getChannel(), ByteBuffer.wrap(data), 0);
+            ByteBuffer b = ByteBuffer.wrap(data);
+            if (b.getInt() != MAGIC || b.getInt() != VERSION) {
+                throw new IOException("Not a keyframe index " + file);
+            }
+            int count = b.getInt();
+            long durationUs = b.getLong();
+            if (count < 0 || length != HEADER_SIZE + (long) count * ENTRY_SIZE) {
+                throw new IOException("Truncated keyframe index " + file);
+            }
+            long[] times = new long[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = b.getLong();
+                offsets[i] = b.getLong();
+            }
+            return new KeyframeIndex(times, offsets, durationUs);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write to a temporary file and rename it over the sidecar, so readers never see a partial
+     * index.
+     */
+    public void write(File file) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + mTimesUs.length * ENTRY_SIZE);
+        b.putInt(MAGIC).putInt(VERSION).putInt(mTimesUs.length).putLong(mDurationUs);
+        for (int i = 0; i < mTimesUs.length; i++) {
+            b.putLong(mTimesUs[i]).putLong(mOffsets[i]);
+        }
+        b.flip();
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            while (b.hasRemaining()) {
+                out.getChannel().write(b);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to rename " + tmp + " to " + file);
+        }
+    }
+
+    public int size() {
+        return mTimesUs.length;
+    }
+
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    /**
+     * @return presentation time of the keyframe in microseconds from the segment start
+     */
+    public long getTimeUs(int i) {
+        return mTimesUs[i];
+    }
+
+    /**
+     * @return file offset of the keyframe
+     */
+    public long getOffset(int i) {
+        return mOffsets[i];
+    }
+
+    /**
+     * @return position of the keyframe closest to the time, the earlier one on a tie, -1 if the
+     * segment has no keyframes
+     */
+    public int nearestSync(long timeUs) {
+        int n = mTimesUs.length;
+        if (n == 0) {
+            return -1;
+        }
+        int i = floor(timeUs);
+        if (i < 0) {
+            return 0;
+        }
+        if (i + 1 < n && mTimesUs[i + 1] - timeUs < timeUs - mTimesUs[i]) {
+            return i + 1;
+        }
+        return i;
+    }
+
+    /**
+     * @return position of the last keyframe at or before the time, -1 if there is none
+     */
+    public int syncAtOrBefore(long timeUs) {
+        return floor(timeUs);
+    }
+
+    /**
+     * @return position of the first keyframe at or after the time, {@link #size()} if there is none
+     */
+    public int syncAtOrAfter(long timeUs) {
+        int i = floor(timeUs);
+        return i >= 0 && mTimesUs[i] == timeUs ? i : i + 1;
+    }
+
+    /**
+     * Keyframes in [fromUs, toUs].
+     *
+     * @return {first position, end position}, empty if first == end
+     */
+    public int[] syncRange(long fromUs, long toUs) {
+        int first = syncAtOrAfter(fromUs);
+        int end = Math.max(first, floor(toUs) + 1);
+        return new int[]{first, end};
+    }
+
+    /*
+     * Last position with time <= timeUs, -1 if none.
+     */
+    private int floor(long timeUs) {
+        int lo = 0;
+        int hi = mTimesUs.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mTimesUs[mid] <= timeUs) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "KeyframeIndex{keyframes:" + mTimesUs.length + ", durationUs:" + mDurationUs + "}";
+    }
+}
@@ -0,0 +1,67 @@
+package com.nauto.camera.mp4;
+
+/**
+ * ISO-BMFF box types used by the camera module.
+ */
+public final class Mp4Box {
+    public static final int FTYP = fourcc("ftyp");
+    public static final int MOOV = fourcc("moov");
+    public static final int MVHD = fourcc("mvhd");
+    public static final int TRAK = fourcc("trak");
+    public static final int TKHD = fourcc("tkhd");
+    public static final int EDTS = fourcc("edts");
+    public static final int ELST = fourcc("elst");
+    public static final int MDIA = fourcc("mdia");
+    public static final int MDHD = fourcc("mdhd");
+    public static final int HDLR = fourcc("hdlr");
+    public static final int MINF = fourcc("minf");
+    public static final int VMHD = fourcc("vmhd");
+    public static final int SMHD = fourcc("smhd");
+    public static final int DINF = fourcc("dinf");
+    public static final int DREF = fourcc("dref");
+    public static final int URL = fourcc("url ");
+    public static final int STBL = fourcc("stbl");
+    public static final int STSD = fourcc("stsd");
+    public static final int STTS = fourcc("stts");
+    public static final int CTTS = fourcc("ctts");
+    public static final int STSS = fourcc("stss");
+    public static final int STSZ = fourcc("stsz");
+    public static final int STZ2 = fourcc("stz2");
+    public static final int STSC = fourcc("stsc");
+    public static final int STCO = fourcc("stco");
+    public static final int CO64 = fourcc("co64");
+    public static final int UDTA = fourcc("udta");
+    public static final int MVEX = fourcc("mvex");
+    public static final int TREX = fourcc("trex");
+    public static final int MOOF = fourcc("moof");
+    public static final int MFHD = fourcc("mfhd");
+    public static final int TRAF = fourcc("traf");
+    public static final int TFHD = fourcc("tfhd");
+    public static final int TFDT = fourcc("tfdt");
+    public static final int TRUN = fourcc("trun");
+    public static final int MDAT = fourcc("mdat");
+    public static final int FREE = fourcc("free");
+    public static final int SKIP = fourcc("skip");
+    public static final int UUID = fourcc("uuid");
+
+    public static final int AVC1 = fourcc("avc1");
+    public static final int AVCC = fourcc("avcC");
+    public static final int HVC1 = fourcc("hvc1");
+    public static final int MP4A = fourcc("mp4a");
+    public static final int ESDS = fourcc("esds");
+
+    public static final int HANDLER_VIDEO = fourcc("vide");
+    public static final int HANDLER_SOUND = fourcc("soun");
+
+    private Mp4Box() {
+    }
+
+    public static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    public static String toString(int type) {
+        return new String(new char[]{(char) (type >>> 24 & 0xff), (char) (type >>> 16 & 0xff),
+                (char) (type >>> 8 & 0xff), (char) (type & 0xff)});
+    }
+}
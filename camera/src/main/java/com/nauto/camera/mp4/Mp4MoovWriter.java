@@ -0,0 +1,305 @@
+package com.nauto.camera.mp4;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Serializes {@link Mp4TrackBuilder} tables into ftyp and moov boxes.
+ */
+final class Mp4MoovWriter {
+    static final long MOVIE_TIMESCALE = 1000;
+
+    private static final int LANGUAGE_UND = 0x55c4;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private Mp4MoovWriter() {
+    }
+
+    static ByteBuffer ftyp() {
+        ByteBuffer b = ByteBuffer.allocate(24);
+        b.putInt(24).putInt(Mp4Box.FTYP).putInt(Mp4Box.fourcc("mp42")).putInt(0)
+                .putInt(Mp4Box.fourcc("isom")).putInt(Mp4Box.fourcc("mp42"));
+        b.flip();
+        return b;
+    }
+
+    /**
+     * @return upper bound of the moov size, large enough for {@link #moov}
+     */
+    static int estimateSize(List<Mp4TrackBuilder> tracks) {
+        long size = 1024;
+        for (Mp4TrackBuilder t : tracks) {
+            size += 1024 + (t.mEditList == null ? 0 : 16L * t.mEditList.length);
+            for (byte[] entry : t.mSampleEntries) {
+                size += entry.length;
+            }
+            // stts, ctts, stss and stsz entries per sample, stsc and co64 entries per chunk
+            size += 24L * t.mSampleCount + 20L * t.mChunkCount;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many samples for one moov");
+        }
+        return (int) size;
+    }
+
+    /**
+     * Write moov with chunk offsets shifted by the file offset of the mdat payload.
+     *
+     * @param co64 write 64 bit chunk offsets
+     */
+    static ByteBuffer moov(List<Mp4TrackBuilder> tracks, long mdatPayloadOffset, boolean co64) {
+        return moov(tracks, mdatPayloadOffset, co64, false);
+    }
+
+    /**
+     * Write the moov of a fragmented file: every track with empty sample tables, and mvex. The
+     * samples follow in moof/mdat fragments.
+     */
+    static ByteBuffer fragmentedMoov(List<Mp4TrackBuilder> tracks) {
+        return moov(tracks, 0, false, true);
+    }
+
+    private static ByteBuffer moov(List<Mp4TrackBuilder> tracks, long mdatPayloadOffset, boolean co64, boolean fragmented) {
+        ByteBuffer b = ByteBuffer.allocate(estimateSize(tracks));
+        long movieDuration = 0;
+        int nextTrackId = 1;
+        for (Mp4TrackBuilder t : tracks) {
+            movieDuration = Math.max(movieDuration, getPresentationDuration(t));
+            nextTrackId = Math.max(nextTrackId, t.mTrackId + 1);
+        }
+        int moov = begin(b, Mp4Box.MOOV);
+        int mvhd = beginFull(b, Mp4Box.MVHD, movieDuration > 0xffffffffL ? 1 : 0, 0);
+        putTimes(b, MOVIE_TIMESCALE, movieDuration);
+        b.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0).putLong(0);
+        putMatrix(b);
+        b.put(new byte[24]).putInt(nextTrackId);
+        end(b, mvhd);
+        for (Mp4TrackBuilder t : tracks) {
+            if (t.mSampleCount > 0 || fragmented) {
+                trak(b, t, mdatPayloadOffset, co64);
+            }
+        }
+        if (fragmented) {
+            int mvex = begin(b, Mp4Box.MVEX);
+            for (Mp4TrackBuilder t : tracks) {
+                int trex = beginFull(b, Mp4Box.TREX, 0, 0);
+                b.putInt(t.mTrackId).putInt(1).putInt(0).putInt(0).putInt(0);
+                end(b, trex);
+            }
+            end(b, mvex);
+        }
+        end(b, moov);
+        b.flip();
+        return b;
+    }
+
+    /*
+     * Duration in movie timescale, including the edit list.
+     */
+    private static long getPresentationDuration(Mp4TrackBuilder t) {
+        if (t.mEditList != null) {
+            long d = 0;
+            for (int i = 0; i < t.mEditList.length; i += 2) {
+                d += t.mEditList[i];
+            }
+            return d;
+        }
+        return t.getDuration() * MOVIE_TIMESCALE / t.mTimescale;
+    }
+
+    private static void trak(ByteBuffer b, Mp4TrackBuilder t, long mdatPayloadOffset, boolean co64) {
+        int trak = begin(b, Mp4Box.TRAK);
+        long duration = getPresentationDuration(t);
+        int tkhd = beginFull(b, Mp4Box.TKHD, duration > 0xffffffffL ? 1 : 0, 7);
+        if (duration > 0xffffffffL) {
+            b.putLong(0).putLong(0).putInt(t.mTrackId).putInt(0).putLong(duration);
+        } else {
+            b.putInt(0).putInt(0).putInt(t.mTrackId).putInt(0).putInt((int) duration);
+        }
+        b.putLong(0).putShort((short) 0).putShort((short) 0);
+        b.putShort((short) (t.mHandler == Mp4Box.HANDLER_SOUND ? 0x0100 : 0)).putShort((short) 0);
+        putMatrix(b);
+        b.putInt(t.mWidth << 16).putInt(t.mHeight << 16);
+        end(b, tkhd);
+
+        if (t.mEditList != null) {
+            int edts = begin(b, Mp4Box.EDTS);
+            int elst = beginFull(b, Mp4Box.ELST, 1, 0);
+            b.putInt(t.mEditList.length / 2);
+            for (int i = 0; i < t.mEditList.length; i += 2) {
+                b.putLong(t.mEditList[i]).putLong(t.mEditList[i + 1]).putInt(0x00010000);
+            }
+            end(b, elst);
+            end(b, edts);
+        }
+
+        int mdia = begin(b, Mp4Box.MDIA);
+        long mediaDuration = t.getDuration();
+        int mdhd = beginFull(b, Mp4Box.MDHD, mediaDuration > 0xffffffffL ? 1 : 0, 0);
+        putTimes(b, t.mTimescale, mediaDuration);
+        b.putShort((short) LANGUAGE_UND).putShort((short) 0);
+        end(b, mdhd);
+        int hdlr = beginFull(b, Mp4Box.HDLR, 0, 0);
+        b.putInt(0).putInt(t.mHandler).putInt(0).putInt(0).putInt(0);
+        b.put((t.mHandler == Mp4Box.HANDLER_VIDEO ? "VideoHandle" : "SoundHandle").getBytes(US_ASCII)).put((byte) 0);
+        end(b, hdlr);
+
+        int minf = begin(b, Mp4Box.MINF);
+        if (t.mHandler == Mp4Box.HANDLER_VIDEO) {
+            int vmhd = beginFull(b, Mp4Box.VMHD, 0, 1);
+            b.putLong(0);
+            end(b, vmhd);
+        } else {
+            int smhd = beginFull(b, Mp4Box.SMHD, 0, 0);
+            b.putInt(0);
+            end(b, smhd);
+        }
+        int dinf = begin(b, Mp4Box.DINF);
+        int dref = beginFull(b, Mp4Box.DREF, 0, 0);
+        b.putInt(1);
+        int url = beginFull(b, Mp4Box.URL, 0, 1);
+        end(b, url);
+        end(b, dref);
+        end(b, dinf);
+        stbl(b, t, mdatPayloadOffset, co64);
+        end(b, minf);
+        end(b, mdia);
+        end(b, trak);
+    }
+
+    private static void stbl(ByteBuffer b, Mp4TrackBuilder t, long mdatPayloadOffset, boolean co64) {
+        int n = t.mSampleCount;
+        int stbl = begin(b, Mp4Box.STBL);
+
+        int stsd = beginFull(b, Mp4Box.STSD, 0, 0);
+        b.putInt(t.mSampleEntries.size());
+        for (byte[] entry : t.mSampleEntries) {
+            b.put(entry);
+        }
+        end(b, stsd);
+
+        int stts = beginFull(b, Mp4Box.STTS, 0, 0);
+        int countPos = b.position();
+        b.putInt(0);
+        int entries = 0;
+        for (int i = 0; i < n; ) {
+            long delta = t.getSampleDelta(i);
+            int j = i + 1;
+            while (j < n && t.getSampleDelta(j) == delta) {
+                j++;
+            }
+            b.putInt(j - i).putInt((int) delta);
+            entries++;
+            i = j;
+        }
+        b.putInt(countPos, entries);
+        end(b, stts);
+
+        if (t.mCompositionOffsets != null) {
+            boolean negative = false;
+            for (int i = 0; i < n; i++) {
+                negative |= t.mCompositionOffsets[i] < 0;
+            }
+            int ctts = beginFull(b, Mp4Box.CTTS, negative ? 1 : 0, 0);
+            countPos = b.position();
+            b.putInt(0);
+            entries = 0;
+            for (int i = 0; i < n; ) {
+                int offset = t.mCompositionOffsets[i];
+                int j = i + 1;
+                while (j < n && t.mCompositionOffsets[j] == offset) {
+                    j++;
+                }
+                b.putInt(j - i).putInt(offset);
+                entries++;
+                i = j;
+            }
+            b.putInt(countPos, entries);
+            end(b, ctts);
+        }
+
+        if (t.mSyncCount < n) {
+            int stss = beginFull(b, Mp4Box.STSS, 0, 0);
+            b.putInt(t.mSyncCount);
+            for (int i = 0; i < n; i++) {
+                if (t.mSync[i]) {
+                    b.putInt(i + 1);
+                }
+            }
+            end(b, stss);
+        }
+
+        int stsz = beginFull(b, Mp4Box.STSZ, 0, 0);
+        boolean constant = n > 0;
+        for (int i = 1; i < n && constant; i++) {
+            constant = t.mSizes[i] == t.mSizes[0];
+        }
+        if (constant) {
+            b.putInt(t.mSizes[0]).putInt(n);
+        } else {
+            b.putInt(0).putInt(n);
+            for (int i = 0; i < n; i++) {
+                b.putInt(t.mSizes[i]);
+            }
+        }
+        end(b, stsz);
+
+        int stsc = beginFull(b, Mp4Box.STSC, 0, 0);
+        countPos = b.position();
+        b.putInt(0);
+        entries = 0;
+        for (int c = 0; c < t.mChunkCount; c++) {
+            if (c == 0 || t.mChunkSamples[c] != t.mChunkSamples[c - 1]
+                    || t.mChunkDescriptions[c] != t.mChunkDescriptions[c - 1]) {
+                b.putInt(c + 1).putInt(t.mChunkSamples[c]).putInt(t.mChunkDescriptions[c]);
+                entries++;
+            }
+        }
+        b.putInt(countPos, entries);
+        end(b, stsc);
+
+        int stco = beginFull(b, co64 ? Mp4Box.CO64 : Mp4Box.STCO, 0, 0);
+        b.putInt(t.mChunkCount);
+        for (int c = 0; c < t.mChunkCount; c++) {
+            long offset = mdatPayloadOffset + t.mChunkOffsets[c];
+            if (co64) {
+                b.putLong(offset);
+            } else {
+                b.putInt((int) offset);
+            }
+        }
+        end(b, stco);
+        end(b, stbl);
+    }
+
+    private static void putTimes(ByteBuffer b, long timescale, long duration) {
+        if (duration > 0xffffffffL) {
+            b.putLong(0).putLong(0).putInt((int) timescale).putLong(duration);
+        } else {
+            b.putInt(0).putInt(0).putInt((int) timescale).putInt((int) duration);
+        }
+    }
+
+    private static void putMatrix(ByteBuffer b) {
+        b.putInt(0x00010000).putInt(0).putInt(0)
+                .putInt(0).putInt(0x00010000).putInt(0)
+                .putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    static int begin(ByteBuffer b, int type) {
+        int p = b.position();
+        b.putInt(0).putInt(type);
+        return p;
+    }
+
+    static int beginFull(ByteBuffer b, int type, int version, int flags) {
+        int p = begin(b, type);
+        b.putInt(version << 24 | flags);
+        return p;
+    }
+
+    static void end(ByteBuffer b, int p) {
+        b.putInt(p, b.position() - p);
+    }
+}
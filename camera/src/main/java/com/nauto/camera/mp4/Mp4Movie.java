@@ -0,0 +1,145 @@
+package com.nauto.camera.mp4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Movie header and tracks of an MP4 file.
+ */
+public final class Mp4Movie {
+    long mTimescale;
+    long mDuration;
+    long mMoovOffset;
+    long mMoovSize;
+    // payload of the first mdat, -1 if the file has none
+    long mMdatOffset = -1;
+    long mMdatSize;
+    long mFileSize;
+    // moov has mvex, samples are in moof/mdat fragments
+    boolean mFragmented;
+    int mFragmentCount;
+    long mFragmentsEnd;
+    final List<Mp4Track> mTracks = new ArrayList<>(2);
+
+    Mp4Movie() {
+    }
+
+    public long getTimescale() {
+        return mTimescale;
+    }
+
+    /**
+     * @return movie duration in movie timescale units
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public long getDurationUs() {
+        return mTimescale == 0 ? 0 : mDuration * 1000000L / mTimescale;
+    }
+
+    /**
+     * @return file offset of the moov box header
+     */
+    public long getMoovOffset() {
+        return mMoovOffset;
+    }
+
+    public long getMoovSize() {
+        return mMoovSize;
+    }
+
+    /**
+     * @return true if moov precedes mdat, i.e. the file can be played while it is downloaded
+     */
+    public boolean isFastStart() {
+        return mMdatOffset < 0 || mMoovOffset < mMdatOffset;
+    }
+
+    /**
+     * @return file offset of the first mdat payload or -1
+     */
+    public long getMdatOffset() {
+        return mMdatOffset;
+    }
+
+    /**
+     * @return size of the first mdat payload
+     */
+    public long getMdatSize() {
+        return mMdatSize;
+    }
+
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    /**
+     * @return true if the samples are in moof/mdat fragments after the moov
+     */
+    public boolean isFragmented() {
+        return mFragmented;
+    }
+
+    /**
+     * @return number of complete fragments
+     */
+    public int getFragmentCount() {
+        return mFragmentCount;
+    }
+
+    /**
+     * @return end of the last complete fragment, or of the moov if there is none; anything after
+     * it is a fragment torn by a crash
+     */
+    public long getFragmentsEnd() {
+        return mFragmentsEnd;
+    }
+
+    public List<Mp4Track> getTracks() {
+        return mTracks;
+    }
+
+    /**
+     * @return first track with the handler type or null
+     */
+    public Mp4Track getTrack(int handler) {
+        for (int i = 0; i < mTracks.size(); i++) {
+            if (mTracks.get(i).mHandler == handler) {
+                return mTracks.get(i);
+            }
+        }
+        return null;
+    }
+
+    public Mp4Track getVideoTrack() {
+        return getTrack(Mp4Box.HANDLER_VIDEO);
+    }
+
+    public Mp4Track getAudioTrack() {
+        return getTrack(Mp4Box.HANDLER_SOUND);
+    }
+
+    /*
+     * Move the file offsets by the offset of the file in a container.
+     */
+    void shift(long offset) {
+        mMoovOffset += offset;
+        if (mMdatOffset >= 0) {
+            mMdatOffset += offset;
+        }
+        mFragmentsEnd += offset;
+        for (int i = 0; i < mTracks.size(); i++) {
+            long[] chunks = mTracks.get(i).mChunkOffsets;
+            for (int c = 0; c < chunks.length; c++) {
+                chunks[c] += offset;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Mp4Movie{durationUs:" + getDurationUs() + ", tracks:" + mTracks + "}";
+    }
+}
@@ -0,0 +1,606 @@
+package com.nauto.camera.mp4;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming ISO-BMFF parser for the segments written by the recorder pipeline.
+ *
+ * <p>Only top level box headers are read until {@code moov} is found, then {@code moov} alone is
+ * read into a reusable buffer (or mapped if it is large) and parsed in place. {@code mdat} payloads
+ * are never touched. A parser instance is not thread safe; reuse one per thread when scanning many
+ * files to avoid allocating a new buffer for each.</p>
+ *
+ * <p>Fragmented files are read up to the last complete {@code moof}/{@code mdat} fragment and
+ * their samples are presented as regular sample tables, so a segment can be read while it is
+ * written.</p>
+ */
+public final class Mp4Parser {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    // moov boxes larger than this are mapped instead of read
+    private static final int MAP_THRESHOLD = 4 * 1024 * 1024;
+    private static final int MAX_BOX_DEPTH = 16;
+
+    private final ByteBuffer mHeader = ByteBuffer.allocate(16);
+    private ByteBuffer mBuffer;
+
+    // last box returned by nextBox()
+    private int mType;
+    private int mPayload;
+
+    /**
+     * Parse a file with a new parser.
+     */
+    public static Mp4Movie parse(File file) throws IOException {
+        return new Mp4Parser().parseFile(file);
+    }
+
+    public Mp4Movie parseFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return parse(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Parse box headers from the beginning of the channel up to and including {@code moov}.
+     *
+     * @throws IOException if the file has no moov box, e.g. the recorder was killed before
+     *                     finalizing it, or a box is malformed
+     */
+    public Mp4Movie parse(FileChannel channel) throws IOException {
+        return parse(channel, 0, channel.size());
+    }
+
+    /**
+     * Parse an MP4 file stored at an offset of the channel, e.g. a record of a container file.
+     * File offsets of the movie, including chunk offsets, are offsets in the channel.
+     *
+     * @param offset channel offset of the first box
+     * @param length length of the file
+     * @throws IOException if the file has no moov box or a box is malformed
+     */
+    public Mp4Movie parse(FileChannel channel, long offset, long length) throws IOException {
+        Mp4Movie movie = new Mp4Movie();
+        long fileSize = length;
+        movie.mFileSize = fileSize;
+        boolean hasMoov = false;
+        Mp4TrackBuilder[] fragments = null;
+        long moofEnd = -1;
+        long pos = 0;
+        while (pos + 8 <= fileSize && !(hasMoov && movie.mMdatOffset >= 0 && !movie.mFragmented)) {
+            mHeader.clear();
+            mHeader.limit(pos + 16 <= fileSize ? 16 : 8);
+            readFully(channel, mHeader, offset + pos);
+            long size = mHeader.getInt(0) & 0xffffffffL;
+            int type = mHeader.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {
+                if (mHeader.limit() < 16) {
+                    throw new IOException("Truncated box header at " + pos);
+                }
+                size = mHeader.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                // box extends to the end of the file
+                size = fileSize - pos;
+            }
+            if (size < headerSize) {
+                throw new IOException("Invalid size " + size + " of " + Mp4Box.toString(type) + " at " + pos);
+            }
+            if (type == Mp4Box.MOOV) {
+                if (pos + size > fileSize) {
+                    throw new IOException("Truncated moov at " + pos);
+                }
+                if (size - headerSize > Integer.MAX_VALUE) {
+                    throw new IOException("Unsupported moov size " + size);
+                }
+                movie.mMoovOffset = pos;
+                movie.mMoovSize = size;
+                ByteBuffer buf = load(channel, offset + pos + headerSize, (int) (size - headerSize));
+                parseMoov(buf, 0, buf.limit(), movie);
+                hasMoov = true;
+                movie.mFragmentsEnd = pos + size;
+                if (movie.mFragmented) {
+                    fragments = new Mp4TrackBuilder[movie.mTracks.size()];
+                    for (int i = 0; i < fragments.length; i++) {
+                        Mp4Track t = movie.mTracks.get(i);
+                        fragments[i] = new Mp4TrackBuilder(t.mTrackId, t.mHandler, t.mTimescale);
+                    }
+                }
+            } else if (type == Mp4Box.MOOF && fragments != null) {
+                // a fragment torn by a crash ends the file
+                if (pos + size > fileSize || size - headerSize > Integer.MAX_VALUE) {
+                    break;
+                }
+                ByteBuffer buf = load(channel, offset + pos + headerSize, (int) (size - headerSize));
+                long dataEnd = parseMoof(buf, buf.limit(), pos, movie, fragments, false);
+                if (dataEnd > fileSize) {
+                    break;
+                }
+                parseMoof(buf, buf.limit(), pos, movie, fragments, true);
+                movie.mFragmentCount++;
+                moofEnd = pos + size;
+                movie.mFragmentsEnd = Math.max(moofEnd, dataEnd);
+            } else if (type == Mp4Box.MDAT) {
+                if (movie.mMdatOffset < 0) {
+                    movie.mMdatOffset = pos + headerSize;
+                    // a truncated file may claim more than it has
+                    movie.mMdatSize = Math.min(size, fileSize - pos) - headerSize;
+                }
+                if (pos == moofEnd && pos + size <= fileSize) {
+                    movie.mFragmentsEnd = Math.max(movie.mFragmentsEnd, pos + size);
+                }
+            }
+            pos += size;
+        }
+        if (!hasMoov) {
+            throw new IOException("No moov box");
+        }
+        if (fragments != null) {
+            long duration = 0;
+            for (int i = 0; i < fragments.length; i++) {
+                Mp4Track t = movie.mTracks.get(i);
+                if (fragments[i].mSampleCount > 0 && t.mSampleCount == 0) {
+                    t.setSamples(fragments[i]);
+                }
+                if (t.mTimescale > 0) {
+                    duration = Math.max(duration, t.mDuration * movie.mTimescale / t.mTimescale);
+                }
+            }
+            if (movie.mDuration == 0) {
+                movie.mDuration = duration;
+            }
+        }
+        if (offset != 0) {
+            movie.shift(offset);
+        }
+        return movie;
+    }
+
+    static int getInt(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8 | (b[offset + 3] & 0xff);
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of file at " + pos);
+            }
+            pos += n;
+        }
+    }
+
+    private ByteBuffer load(FileChannel channel, long offset, int length) throws IOException {
+        if (length > MAP_THRESHOLD) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        if (mBuffer == null || mBuffer.capacity() < length) {
+            mBuffer = ByteBuffer.allocate(Math.max(length, INITIAL_BUFFER_SIZE));
+        }
+        mBuffer.clear();
+        mBuffer.limit(length);
+        readFully(channel, mBuffer, offset);
+        mBuffer.flip();
+        return mBuffer;
+    }
+
+    /*
+     * Read the box header at p. Sets mType and mPayload and returns the end of the box.
+     */
+    private int nextBox(ByteBuffer b, int p, int end) throws IOException {
+        if (p + 8 > end) {
+            throw new IOException("Truncated box header");
+        }
+        long size = b.getInt(p) & 0xffffffffL;
+        mType = b.getInt(p + 4);
+        mPayload = p + 8;
+        if (size == 1) {
+            if (p + 16 > end) {
+                throw new IOException("Truncated box header");
+            }
+            size = b.getLong(p + 8);
+            mPayload = p + 16;
+        } else if (size == 0) {
+            size = end - p;
+        }
+        if (size < mPayload - p || size > end - p) {
+            throw new IOException("Invalid size " + size + " of " + Mp4Box.toString(mType));
+        }
+        return p + (int) size;
+    }
+
+    private void parseMoov(ByteBuffer b, int p, int end, Mp4Movie movie) throws IOException {
+        while (p + 8 <= end) {
+            int boxEnd = nextBox(b, p, end);
+            if (mType == Mp4Box.MVHD) {
+                int q = mPayload;
+                if (b.get(q) == 1) {
+                    movie.mTimescale = b.getInt(q + 20) & 0xffffffffL;
+                    movie.mDuration = b.getLong(q + 24);
+                } else {
+                    movie.mTimescale = b.getInt(q + 12) & 0xffffffffL;
+                    movie.mDuration = b.getInt(q + 16) & 0xffffffffL;
+                }
+            } else if (mType == Mp4Box.TRAK) {
+                Mp4Track track = new Mp4Track();
+                parseTrak(b, mPayload, boxEnd, track, 0);
+                if (track.mHandler != 0) {
+                    movie.mTracks.add(track);
+                }
+            } else if (mType == Mp4Box.MVEX) {
+                movie.mFragmented = true;
+                parseMvex(b, mPayload, boxEnd, movie);
+            }
+            p = boxEnd;
+        }
+    }
+
+    private void parseMvex(ByteBuffer b, int p, int end, Mp4Movie movie) throws IOException {
+        while (p + 8 <= end) {
+            int boxEnd = nextBox(b, p, end);
+            int q = mPayload;
+            if (mType == Mp4Box.TREX && q + 24 <= boxEnd) {
+                Mp4Track track = findTrack(movie, b.getInt(q + 4));
+                if (track != null) {
+                    track.mDefaultDescriptionIndex = b.getInt(q + 8);
+                    track.mDefaultSampleDuration = b.getInt(q + 12);
+                    track.mDefaultSampleSize = b.getInt(q + 16);
+                    track.mDefaultSampleFlags = b.getInt(q + 20);
+                }
+            }
+            p = boxEnd;
+        }
+    }
+
+    private static Mp4Track findTrack(Mp4Movie movie, int trackId) {
+        for (int i = 0; i < movie.mTracks.size(); i++) {
+            if (movie.mTracks.get(i).mTrackId == trackId) {
+                return movie.mTracks.get(i);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Add the samples of a moof to the builders if apply is set.
+     *
+     * @return end of the sample data of the fragment in the file
+     */
+    private long parseMoof(ByteBuffer b, int end, long moofOffset, Mp4Movie movie, Mp4TrackBuilder[] fragments,
+                           boolean apply) throws IOException {
+        long dataEnd = 0;
+        int p = 0;
+        while (p + 8 <= end) {
+            int boxEnd = nextBox(b, p, end);
+            if (mType == Mp4Box.TRAF) {
+                dataEnd = Math.max(dataEnd, parseTraf(b, mPayload, boxEnd, moofOffset, movie, fragments, apply));
+            }
+            p = boxEnd;
+        }
+        return dataEnd;
+    }
+
+    private long parseTraf(ByteBuffer b, int p, int end, long moofOffset, Mp4Movie movie, Mp4TrackBuilder[] fragments,
+                           boolean apply) throws IOException {
+        int t = -1;
+        int description = 1;
+        int duration = 0;
+        int size = 0;
+        int flags = 0;
+        // data of the first run starts at the moof unless tfhd says otherwise, later runs follow it
+        long next = moofOffset;
+        long base = moofOffset;
+        long time = -1;
+        long dataEnd = 0;
+        while (p + 8 <= end) {
+            int boxEnd = nextBox(b, p, end);
+            int r = mPayload;
+            if (mType == Mp4Box.TFHD) {
+                if (r + 8 > boxEnd) {
+                    throw new IOException("Truncated tfhd");
+                }
+                int tf = b.getInt(r) & 0xffffff;
+                Mp4Track track = findTrack(movie, b.getInt(r + 4));
+                if (track == null) {
+                    return 0;
+                }
+                t = movie.mTracks.indexOf(track);
+                description = track.mDefaultDescriptionIndex;
+                duration = track.mDefaultSampleDuration;
+                size = track.mDefaultSampleSize;
+                flags = track.mDefaultSampleFlags;
+                r += 8;
+                if ((tf & 0x1) != 0) {
+                    base = b.getLong(r);
+                    next = base;
+                    r += 8;
+                }
+                if ((tf & 0x2) != 0) {
+                    description = b.getInt(r);
+                    r += 4;
+                }
+                if ((tf & 0x8) != 0) {
+                    duration = b.getInt(r);
+                    r += 4;
+                }
+                if ((tf & 0x10) != 0) {
+                    size = b.getInt(r);
+                    r += 4;
+                }
+                if ((tf & 0x20) != 0) {
+                    flags = b.getInt(r);
+                }
+            } else if (mType == Mp4Box.TFDT && t >= 0) {
+                time = b.get(r) == 1 ? b.getLong(r + 4) : b.getInt(r + 4) & 0xffffffffL;
+            } else if (mType == Mp4Box.TRUN && t >= 0) {
+                if (r + 8 > boxEnd) {
+                    throw new IOException("Truncated trun");
+                }
+                int tf = b.getInt(r) & 0xffffff;
+                int n = b.getInt(r + 4);
+                r += 8;
+                long offset = next;
+                if ((tf & 0x1) != 0) {
+                    offset = base + b.getInt(r);
+                    r += 4;
+                }
+                int firstFlags = flags;
+                if ((tf & 0x4) != 0) {
+                    firstFlags = b.getInt(r);
+                    r += 4;
+                }
+                int entrySize = 4 * Integer.bitCount(tf & 0xf00);
+                if (n < 0 || (long) n * entrySize > boxEnd - r) {
+                    throw new IOException("Invalid trun sample count " + n);
+                }
+                Mp4TrackBuilder builder = fragments[t];
+                if (time < 0) {
+                    time = builder.mSampleCount == 0 ? 0 : builder.mEndTime;
+                }
+                int first = builder.mSampleCount;
+                long o = offset;
+                for (int i = 0; i < n; i++) {
+                    int d = duration;
+                    int s = size;
+                    int f = i == 0 ? firstFlags : flags;
+                    int c = 0;
+                    if ((tf & 0x100) != 0) {
+                        d = b.getInt(r);
+                        r += 4;
+                    }
+                    if ((tf & 0x200) != 0) {
+                        s = b.getInt(r);
+                        r += 4;
+                    }
+                    if ((tf & 0x400) != 0) {
+                        f = b.getInt(r);
+                        r += 4;
+                    }
+                    if ((tf & 0x800) != 0) {
+                        c = b.getInt(r);
+                        r += 4;
+                    }
+                    if (apply) {
+                        // sample_is_non_sync_sample
+                        builder.addSample(time, s, c, (f & 0x10000) == 0);
+                    }
+                    time += d & 0xffffffffL;
+                    o += s & 0xffffffffL;
+                }
+                if (apply && n > 0) {
+                    builder.addChunk(offset, first, n, description);
+                    builder.setEndTime(time);
+                }
+                next = o;
+                dataEnd = Math.max(dataEnd, o);
+            }
+            p = boxEnd;
+        }
+        return dataEnd;
+    }
+
+    private void parseTrak(ByteBuffer b, int p, int end, Mp4Track track, int depth) throws IOException {
+        if (depth > MAX_BOX_DEPTH) {
+            throw new IOException("Boxes nested too deep");
+        }
+        while (p + 8 <= end) {
+            int boxEnd = nextBox(b, p, end);
+            int type = mType;
+            int q = mPayload;
+            if (type == Mp4Box.MDIA || type == Mp4Box.MINF || type == Mp4Box.STBL || type == Mp4Box.EDTS) {
+                parseTrak(b, q, boxEnd, track, depth + 1);
+            } else if (type == Mp4Box.TKHD) {
+                track.mTrackId = b.get(q) == 1 ? b.getInt(q + 20) : b.getInt(q + 12);
+                track.mWidth = b.getInt(boxEnd - 8) >>> 16;
+                track.mHeight = b.getInt(boxEnd - 4) >>> 16;
+            } else if (type == Mp4Box.MDHD) {
+                if (b.get(q) == 1) {
+                    track.mTimescale = b.getInt(q + 20) & 0xffffffffL;
+                    track.mDuration = b.getLong(q + 24);
+                } else {
+                    track.mTimescale = b.getInt(q + 12) & 0xffffffffL;
+                    track.mDuration = b.getInt(q + 16) & 0xffffffffL;
+                }
+            } else if (type == Mp4Box.HDLR) {
+                track.mHandler = b.getInt(q + 8);
+            } else if (type == Mp4Box.ELST) {
+                parseElst(b, q, boxEnd, track);
+            } else if (type == Mp4Box.STSD) {
+                parseStsd(b, q, boxEnd, track);
+            } else if (type == Mp4Box.STTS) {
+                int n = entryCount(b, q, boxEnd, 8);
+                track.mSttsEntries = n;
+                track.mSttsCount = new int[n];
+                track.mSttsDelta = new int[n];
+                for (int i = 0, r = q + 8; i < n; i++, r += 8) {
+                    track.mSttsCount[i] = b.getInt(r);
+                    track.mSttsDelta[i] = b.getInt(r + 4);
+                }
+            } else if (type == Mp4Box.CTTS) {
+                int n = entryCount(b, q, boxEnd, 8);
+                track.mCttsEntries = n;
+                track.mCttsCount = new int[n];
+                track.mCttsOffset = new int[n];
+                for (int i = 0, r = q + 8; i < n; i++, r += 8) {
+                    track.mCttsCount[i] = b.getInt(r);
+                    track.mCttsOffset[i] = b.getInt(r + 4);
+                }
+            } else if (type == Mp4Box.STSS) {
+                int n = entryCount(b, q, boxEnd, 4);
+                track.mSyncSamples = new int[n];
+                for (int i = 0, r = q + 8; i < n; i++, r += 4) {
+                    track.mSyncSamples[i] = b.getInt(r);
+                }
+            } else if (type == Mp4Box.STSZ) {
+                parseStsz(b, q, boxEnd, track);
+            } else if (type == Mp4Box.STZ2) {
+                parseStz2(b, q, boxEnd, track);
+            } else if (type == Mp4Box.STSC) {
+                int n = entryCount(b, q, boxEnd, 12);
+                track.mStscEntries = n;
+                track.mStscFirstChunk = new int[n];
+                track.mStscSamplesPerChunk = new int[n];
+                track.mStscDescriptionIndex = new int[n];
+                for (int i = 0, r = q + 8; i < n; i++, r += 12) {
+                    track.mStscFirstChunk[i] = b.getInt(r);
+                    track.mStscSamplesPerChunk[i] = b.getInt(r + 4);
+                    track.mStscDescriptionIndex[i] = b.getInt(r + 8);
+                }
+            } else if (type == Mp4Box.STCO) {
+                int n = entryCount(b, q, boxEnd, 4);
+                track.mChunkOffsets = new long[n];
+                for (int i = 0, r = q + 8; i < n; i++, r += 4) {
+                    track.mChunkOffsets[i] = b.getInt(r) & 0xffffffffL;
+                }
+            } else if (type == Mp4Box.CO64) {
+                int n = entryCount(b, q, boxEnd, 8);
+                track.mChunkOffsets = new long[n];
+                for (int i = 0, r = q + 8; i < n; i++, r += 8) {
+                    track.mChunkOffsets[i] = b.getLong(r);
+                }
+            }
+            p = boxEnd;
+        }
+    }
+
+    /*
+     * Entry count of a full box table, checked against the box size.
+     */
+    private static int entryCount(ByteBuffer b, int q, int end, int entrySize) throws IOException {
+        if (q + 8 > end) {
+            throw new IOException("Truncated table");
+        }
+        int n = b.getInt(q + 4);
+        if (n < 0 || (long) n * entrySize > end - q - 8) {
+            throw new IOException("Invalid table entry count " + n);
+        }
+        return n;
+    }
+
+    private static void parseElst(ByteBuffer b, int q, int end, Mp4Track track) throws IOException {
+        boolean v1 = b.get(q) == 1;
+        int n = entryCount(b, q, end, v1 ? 20 : 12);
+        long[] edits = new long[n * 2];
+        for (int i = 0, r = q + 8; i < n; i++) {
+            if (v1) {
+                edits[2 * i] = b.getLong(r);
+                edits[2 * i + 1] = b.getLong(r + 8);
+                r += 20;
+            } else {
+                edits[2 * i] = b.getInt(r) & 0xffffffffL;
+                edits[2 * i + 1] = b.getInt(r + 4);
+                r += 12;
+            }
+        }
+        track.mEditList = edits;
+    }
+
+    private void parseStsd(ByteBuffer b, int q, int end, Mp4Track track) throws IOException {
+        if (q + 8 > end) {
+            throw new IOException("Truncated stsd");
+        }
+        int n = b.getInt(q + 4);
+        if (n < 0 || n > (end - q - 8) / 8) {
+            throw new IOException("Invalid stsd entry count " + n);
+        }
+        byte[][] entries = new byte[n][];
+        int p = q + 8;
+        for (int i = 0; i < n; i++) {
+            int entryEnd = nextBox(b, p, end);
+            byte[] entry = new byte[entryEnd - p];
+            for (int j = 0; j < entry.length; j++) {
+                entry[j] = b.get(p + j);
+            }
+            entries[i] = entry;
+            if (i == 0) {
+                int e = mPayload;
+                if (track.mHandler == Mp4Box.HANDLER_VIDEO && e + 36 <= entryEnd) {
+                    track.mWidth = b.getShort(e + 24) & 0xffff;
+                    track.mHeight = b.getShort(e + 26) & 0xffff;
+                } else if (track.mHandler == Mp4Box.HANDLER_SOUND && e + 28 <= entryEnd) {
+                    track.mChannelCount = b.getShort(e + 16) & 0xffff;
+                    track.mSampleRate = b.getInt(e + 24) >>> 16;
+                }
+            }
+            p = entryEnd;
+        }
+        track.mSampleEntries = entries;
+    }
+
+    private static void parseStsz(ByteBuffer b, int q, int end, Mp4Track track) throws IOException {
+        if (q + 12 > end) {
+            throw new IOException("Truncated stsz");
+        }
+        int constant = b.getInt(q + 4);
+        int n = b.getInt(q + 8);
+        if (n < 0) {
+            throw new IOException("Invalid sample count " + n);
+        }
+        track.mSampleCount = n;
+        track.mConstantSampleSize = constant;
+        if (constant == 0) {
+            if ((long) n * 4 > end - q - 12) {
+                throw new IOException("Invalid sample count " + n);
+            }
+            int[] sizes = new int[n];
+            for (int i = 0, r = q + 12; i < n; i++, r += 4) {
+                sizes[i] = b.getInt(r);
+            }
+            track.mSampleSizes = sizes;
+        }
+    }
+
+    private static void parseStz2(ByteBuffer b, int q, int end, Mp4Track track) throws IOException {
+        if (q + 12 > end) {
+            throw new IOException("Truncated stz2");
+        }
+        int fieldSize = b.get(q + 7) & 0xff;
+        int n = b.getInt(q + 8);
+        if (n < 0 || (fieldSize != 4 && fieldSize != 8 && fieldSize != 16)
+                || ((long) n * fieldSize + 7) / 8 > end - q - 12) {
+            throw new IOException("Invalid stz2 field size " + fieldSize + " or count " + n);
+        }
+        int[] sizes = new int[n];
+        int r = q + 12;
+        for (int i = 0; i < n; i++) {
+            if (fieldSize == 16) {
+                sizes[i] = b.getShort(r + 2 * i) & 0xffff;
+            } else if (fieldSize == 8) {
+                sizes[i] = b.get(r + i) & 0xff;
+            } else {
+                int v = b.get(r + i / 2) & 0xff;
+                sizes[i] = (i & 1) == 0 ? v >>> 4 : v & 0xf;
+            }
+        }
+        track.mSampleCount = n;
+        track.mSampleSizes = sizes;
+    }
+}
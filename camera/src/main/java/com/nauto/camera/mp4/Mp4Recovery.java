@@ -0,0 +1,485 @@
+package com.nauto.camera.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rebuilds the moov of a segment the recorder did not finish, e.g. after a power loss.
+ *
+ * <p>The mdat of such a file holds chunks of length prefixed AVC NAL units interleaved with
+ * chunks of audio. The recovery walks the NAL units, jumping over their payloads, groups them into
+ * access units, and resynchronizes after non-video data on the next run of {@value #RESYNC_NALS}
+ * valid NAL units, which is also required at the start of the mdat. The sample description comes from a complete segment recorded with the same configuration and the
+ * timestamps from the configured frame rate. A torn tail is cut off, the mdat size is fixed in
+ * place and the new moov is appended, so the sample data is never copied.</p>
+ *
+ * <p>{@link #snapshot(File)} reads the segment the recorder is still writing the same way without
+ * touching it, resuming the scan where the previous snapshot of the same file stopped.</p>
+ *
+ * <p>Raw AAC frames carry no length and vary in size, so neither the audio chunks nor the frame
+ * sizes of the reference segment delimit them. The audio of a recovered segment is skipped as
+ * non-video data and dropped.</p>
+ */
+public final class Mp4Recovery {
+    private static final int WINDOW = 64 * 1024;
+    // NAL headers are far apart, read little around each
+    private static final int MIN_READ = 4 * 1024;
+    private static final int MAX_NAL_SIZE = 16 * 1024 * 1024;
+    // valid NAL units in a row needed to resynchronize after non-video data
+    private static final int RESYNC_NALS = 3;
+
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SEI = 6;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_AUD = 9;
+
+    private File mReference;
+    private final byte[] mSampleEntry;
+    private final long mTimescale;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameRate;
+
+    private final byte[] mWindow = new byte[WINDOW];
+    private FileChannel mChannel;
+    private long mWindowPos;
+    private int mWindowLength;
+
+    // scan state, kept between snapshots of the same file
+    private File mFile;
+    private long mScanPos;
+    private long mSampleStart;
+    private long mSampleEnd;
+    // end of the last run of RESYNC_NALS valid NAL units found by resync
+    private long mVerifiedEnd;
+    private boolean mHasSlice;
+    private boolean mSyncSample;
+
+    // samples found by the scan
+    private int mSampleCount;
+    private long[] mOffsets = new long[1024];
+    private int[] mSizes = new int[1024];
+    private boolean[] mSync = new boolean[1024];
+    private long mSkipped;
+
+    /**
+     * @param videoSampleEntry avc1 sample entry, including avcC
+     * @param timescale        video track timescale
+     * @param frameRate        recording frame rate
+     */
+    public Mp4Recovery(byte[] videoSampleEntry, long timescale, int width, int height, int frameRate) {
+        mSampleEntry = videoSampleEntry;
+        mTimescale = timescale;
+        mWidth = width;
+        mHeight = height;
+        mFrameRate = frameRate;
+    }
+
+    /**
+     * Take the video sample description from a complete segment recorded with the same
+     * configuration.
+     */
+    public static Mp4Recovery fromReference(File reference, int frameRate) throws IOException {
+        Mp4Track video = getReferenceTrack(reference);
+        Mp4Recovery recovery = new Mp4Recovery(video.getSampleEntry(0), video.getTimescale(), video.getWidth(), video.getHeight(), frameRate);
+        recovery.mReference = reference;
+        return recovery;
+    }
+
+    /**
+     * Take the video sample description and the frame rate from a complete segment recorded with
+     * the same configuration.
+     */
+    public static Mp4Recovery fromReference(File reference) throws IOException {
+        Mp4Track video = getReferenceTrack(reference);
+        long durationUs = video.getDurationUs();
+        if (durationUs <= 0) {
+            throw new IOException("Empty video track in " + reference);
+        }
+        int frameRate = (int) Math.max(1, (video.getSampleCount() * 1000000L + durationUs / 2) / durationUs);
+        Mp4Recovery recovery = new Mp4Recovery(video.getSampleEntry(0), video.getTimescale(), video.getWidth(), video.getHeight(), frameRate);
+        recovery.mReference = reference;
+        return recovery;
+    }
+
+    /**
+     * @return segment the sample description was taken from, null if it was given directly
+     */
+    public File getReference() {
+        return mReference;
+    }
+
+    private static Mp4Track getReferenceTrack(File reference) throws IOException {
+        Mp4Track video = Mp4Parser.parse(reference).getVideoTrack();
+        if (video == null || video.getSampleEntryCount() == 0 || video.getCodec() != Mp4Box.AVC1) {
+            throw new IOException("No AVC track in " + reference);
+        }
+        return video;
+    }
+
+    /**
+     * @return true if the file has an mdat and no moov
+     */
+    public static boolean isTruncated(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long[] mdat = findMdat(raf.getChannel());
+            return mdat != null && mdat[3] == 0;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return bytes skipped as non-video data by the last recovery
+     */
+    public long getSkippedBytes() {
+        return mSkipped;
+    }
+
+    /**
+     * Rebuild the sample tables of the video from the mdat, cut off the torn tail and append a
+     * moov.
+     *
+     * @return duration of the recovered video in microseconds, 0 if there was nothing to recover
+     * @throws IOException if the file can not be read or written, or is not a truncated MP4
+     */
+    public synchronized long recover(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            mChannel = raf.getChannel();
+            reset(null);
+            long[] mdat = scanFile(file);
+            // the file is final, so is its last frame
+            closeSample();
+            Mp4TrackBuilder b = buildTrack();
+            if (b == null) {
+                return 0;
+            }
+            long end = mOffsets[mSampleCount - 1] + mSizes[mSampleCount - 1];
+            writeMdatSize(raf, mdat[0], (int) mdat[1], end - mdat[0]);
+            List<Mp4TrackBuilder> tracks = new ArrayList<>(1);
+            tracks.add(b);
+            ByteBuffer moov = Mp4MoovWriter.moov(tracks, 0, false);
+            if (end + moov.limit() > 0xffffffffL) {
+                moov = Mp4MoovWriter.moov(tracks, 0, true);
+            }
+            mChannel.truncate(end);
+            long pos = end;
+            while (moov.hasRemaining()) {
+                pos += mChannel.write(moov, pos);
+            }
+            mChannel.force(false);
+            return b.getDurationUs();
+        } finally {
+            mChannel = null;
+            mFile = null;
+            raf.close();
+        }
+    }
+
+    /**
+     * Read the video of a segment the recorder is still writing, up to the last complete frame
+     * but one, which may still grow. The file is not modified. Repeated snapshots of the same file
+     * only scan what was written since the previous one.
+     *
+     * @return movie with one video track, without samples if no keyframe was written yet
+     * @throws IOException if the file can not be read or is not a segment being written
+     */
+    public synchronized Mp4Movie snapshot(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            mChannel = raf.getChannel();
+            if (!file.equals(mFile) || mChannel.size() < mScanPos) {
+                reset(file);
+            }
+            long[] mdat = scanFile(file);
+            Mp4Movie movie = new Mp4Movie();
+            movie.mTimescale = Mp4MoovWriter.MOVIE_TIMESCALE;
+            movie.mFileSize = mChannel.size();
+            movie.mMoovOffset = -1;
+            movie.mMdatOffset = mdat[0] + mdat[1];
+            movie.mMdatSize = mdat[2] - movie.mMdatOffset;
+            Mp4Track track = new Mp4Track();
+            track.mTrackId = 1;
+            track.mHandler = Mp4Box.HANDLER_VIDEO;
+            track.mTimescale = mTimescale;
+            track.mWidth = mWidth;
+            track.mHeight = mHeight;
+            track.mSampleEntries = new byte[][]{mSampleEntry};
+            Mp4TrackBuilder b = buildTrack();
+            if (b != null) {
+                track.setSamples(b);
+                movie.mDuration = b.getDuration() * movie.mTimescale / mTimescale;
+            }
+            movie.mTracks.add(track);
+            return movie;
+        } catch (IOException e) {
+            reset(null);
+            throw e;
+        } finally {
+            mChannel = null;
+            raf.close();
+        }
+    }
+
+    private void reset(File file) {
+        mFile = file;
+        mScanPos = -1;
+        mSampleStart = -1;
+        mSampleEnd = -1;
+        mVerifiedEnd = -1;
+        mHasSlice = false;
+        mSyncSample = false;
+        mSampleCount = 0;
+        mSkipped = 0;
+        mWindowLength = 0;
+    }
+
+    /*
+     * Scan the mdat of the open file from where the previous scan stopped.
+     *
+     * @return {mdat offset, header size, payload end, 0}
+     */
+    private long[] scanFile(File file) throws IOException {
+        // {box offset, header size, payload end, moov found}
+        long[] mdat = findMdat(mChannel);
+        if (mdat == null) {
+            throw new IOException("No mdat in " + file);
+        }
+        if (mdat[3] != 0) {
+            throw new IOException("Not truncated " + file);
+        }
+        if (mScanPos < 0) {
+            mScanPos = mdat[0] + mdat[1];
+        }
+        // the window may hold bytes read before they were written
+        mWindowLength = 0;
+        scan(mdat[2]);
+        return mdat;
+    }
+
+    /*
+     * Video track of the samples found so far, null if there is no keyframe.
+     */
+    private Mp4TrackBuilder buildTrack() {
+        int syncCount = 0;
+        for (int i = 0; i < mSampleCount; i++) {
+            if (mSync[i]) {
+                syncCount++;
+            }
+        }
+        if (syncCount == 0) {
+            return null;
+        }
+        Mp4TrackBuilder b = new Mp4TrackBuilder(1, Mp4Box.HANDLER_VIDEO, mTimescale);
+        b.mWidth = mWidth;
+        b.mHeight = mHeight;
+        int description = b.addSampleEntry(mSampleEntry);
+        long delta = mTimescale / mFrameRate;
+        for (int i = 0; i < mSampleCount; i++) {
+            b.addSample(i * delta, mSizes[i], 0, mSync[i]);
+            b.addChunk(mOffsets[i], i, 1, description);
+        }
+        b.setEndTime(mSampleCount * delta);
+        return b;
+    }
+
+    /*
+     * Top level boxes up to the first mdat: {mdat offset, header size, payload end within the file,
+     * 1 if a moov was found}, null if there is no mdat.
+     */
+    private static long[] findMdat(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long[] mdat = null;
+        boolean moov = false;
+        long pos = 0;
+        while (pos + 8 <= fileSize) {
+            header.clear();
+            header.limit((int) Math.min(16, fileSize - pos));
+            Mp4Parser.readFully(channel, header, pos);
+            long size = header.getInt(0) & 0xffffffffL;
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (size == 1 && header.limit() == 16) {
+                size = header.getLong(8);
+                headerSize = 16;
+            }
+            boolean toEnd = size == 0 || size < headerSize || pos + size > fileSize;
+            if (type == Mp4Box.MOOV && !toEnd) {
+                moov = true;
+            } else if (type == Mp4Box.MDAT && mdat == null) {
+                mdat = new long[]{pos, headerSize, toEnd ? fileSize : pos + size, 0};
+            }
+            if (toEnd) {
+                break;
+            }
+            pos += size;
+        }
+        if (mdat != null && moov) {
+            mdat[3] = 1;
+        }
+        return mdat;
+    }
+
+    private static void writeMdatSize(RandomAccessFile raf, long offset, int headerSize, long size) throws IOException {
+        if (headerSize == 16) {
+            raf.seek(offset + 8);
+            raf.writeLong(size);
+        } else if (size <= 0xffffffffL) {
+            raf.seek(offset);
+            raf.writeInt((int) size);
+        } else {
+            throw new IOException("mdat of " + size + " bytes does not fit its 32 bit header");
+        }
+    }
+
+    /*
+     * Collect the access units from the scan position up to the end. The last one stays open, as
+     * more of its NAL units may follow.
+     */
+    private void scan(long end) throws IOException {
+        long p = mScanPos;
+        while (p + 5 <= end) {
+            // NAL units continue the one before, anything else needs a run of valid ones
+            int length = p == mSampleEnd || p < mVerifiedEnd ? nalLength(p, end) : -1;
+            if (length < 0) {
+                long q = resync(p == mSampleEnd ? p + 1 : p, end);
+                if (q < 0) {
+                    break;
+                }
+                mSkipped += q - p;
+                p = q;
+                continue;
+            }
+            int type = byteAt(p + 4) & 0x1f;
+            boolean slice = type == NAL_SLICE || type == NAL_IDR;
+            // frames are never split across chunks, and a new frame starts with a delimiter,
+            // parameter sets, SEI or a slice with first_mb_in_slice == 0
+            boolean startsFrame = p != mSampleEnd
+                    || (mHasSlice && (!slice || (byteAt(p + 5) & 0x80) != 0));
+            if (startsFrame) {
+                closeSample();
+                mSampleStart = p;
+            }
+            mHasSlice |= slice;
+            mSyncSample |= type == NAL_IDR;
+            p += 4 + length;
+            mSampleEnd = p;
+        }
+        mScanPos = p;
+    }
+
+    private void closeSample() {
+        if (mHasSlice) {
+            addSample(mSampleStart, mSampleEnd, mSyncSample);
+        }
+        mHasSlice = false;
+        mSyncSample = false;
+    }
+
+    /*
+     * Length of a plausible NAL unit at the position that ends before the end, -1 if there is none.
+     */
+    private int nalLength(long p, long end) throws IOException {
+        if (p + 5 > end) {
+            return -1;
+        }
+        ensure(p, 5);
+        int i = (int) (p - mWindowPos);
+        long length = Mp4Parser.getInt(mWindow, i) & 0xffffffffL;
+        if (length < 2 || length > MAX_NAL_SIZE || p + 4 + length > end) {
+            return -1;
+        }
+        int h = mWindow[i + 4] & 0xff;
+        int type = h & 0x1f;
+        int ref = h >> 5 & 3;
+        if ((h & 0x80) != 0) {
+            return -1;
+        }
+        switch (type) {
+            case NAL_SLICE:
+                return (int) length;
+            case NAL_IDR:
+            case NAL_SPS:
+            case NAL_PPS:
+                return ref != 0 ? (int) length : -1;
+            case NAL_SEI:
+            case NAL_AUD:
+                return ref == 0 ? (int) length : -1;
+            default:
+                return -1;
+        }
+    }
+
+    /*
+     * First position after which RESYNC_NALS valid NAL units follow each other, -1 if there is
+     * none before the end. A shorter run up to the end is not enough: it may be audio, or more of
+     * the run is still to be written.
+     */
+    private long resync(long from, long end) throws IOException {
+        for (long q = from; q + 5 <= end; q++) {
+            long r = q;
+            int n = 0;
+            while (n < RESYNC_NALS && r < end) {
+                int length = nalLength(r, end);
+                if (length < 0) {
+                    break;
+                }
+                r += 4 + length;
+                n++;
+            }
+            if (n == RESYNC_NALS) {
+                mVerifiedEnd = r;
+                return q;
+            }
+        }
+        return -1;
+    }
+
+    private int byteAt(long p) throws IOException {
+        ensure(p, 1);
+        return mWindow[(int) (p - mWindowPos)];
+    }
+
+    private void ensure(long p, int n) throws IOException {
+        if (p >= mWindowPos && p + n <= mWindowPos + mWindowLength) {
+            return;
+        }
+        ByteBuffer b = ByteBuffer.wrap(mWindow, 0, Math.max(n, MIN_READ));
+        mWindowPos = p;
+        mWindowLength = 0;
+        while (b.hasRemaining()) {
+            int r = mChannel.read(b, p + b.position());
+            if (r < 0) {
+                break;
+            }
+        }
+        mWindowLength = b.position();
+        if (mWindowLength < n) {
+            throw new IOException("Unexpected end of file at " + p);
+        }
+    }
+
+    private void addSample(long start, long end, boolean sync) {
+        if (mSampleCount == mOffsets.length) {
+            int n = mSampleCount * 2;
+            mOffsets = Arrays.copyOf(mOffsets, n);
+            mSizes = Arrays.copyOf(mSizes, n);
+            mSync = Arrays.copyOf(mSync, n);
+        }
+        mOffsets[mSampleCount] = start;
+        mSizes[mSampleCount] = (int) (end - start);
+        mSync[mSampleCount] = sync;
+        mSampleCount++;
+    }
+}
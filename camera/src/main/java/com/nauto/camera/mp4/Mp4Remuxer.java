@@ -0,0 +1,552 @@
+package com.nauto.camera.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Concatenates and cuts MP4 segments without decoding or copying samples through the heap.
+ *
+ * <p>A new moov is built from the sample tables of the inputs, the clip starts on a video sync
+ * sample and the timestamps of every input are rebased so that the tracks stay aligned across
+ * segment boundaries. Sample data is copied as contiguous byte ranges with
+ * {@link FileChannel#transferTo}, so most of the work is kernel side I/O. The output is written
+ * with moov in front of mdat.</p>
+ *
+ * <p>In the frame accurate mode the clip starts on the sync sample before the requested start and
+ * an edit list hides the frames in front of it, so players start exactly at the requested time
+ * without re-encoding. Time missing between inputs becomes empty edits instead of being added to
+ * the end of the clip.</p>
+ *
+ * <p>Tracks are matched across inputs by handler type. An input whose sample description differs
+ * from the previous ones, e.g. after a resolution change, adds a sample description to the output
+ * track instead of being dropped.</p>
+ */
+public final class Mp4Remuxer {
+    // gaps between segments shorter than this extend the clip, same as the MediaMuxer path
+    private static final long MAX_GAP_MS = 3000;
+    // shorter gaps between inputs are closed instead of becoming empty edits
+    private static final long MIN_EMPTY_EDIT_US = 100000;
+
+    private final Mp4Parser mParser = new Mp4Parser();
+    private final List<Mp4TrackBuilder> mTracks = new ArrayList<>(2);
+    // byte ranges to copy: input index, source offset, length
+    private int mRangeCount;
+    private int[] mRangeInput = new int[64];
+    private long[] mRangeOffset = new long[64];
+    private long[] mRangeLength = new long[64];
+    private long mPayloadSize;
+    private long mShiftUs;
+    private Mp4Recovery mGrowingInput;
+    private long[] mInputOffsets;
+    private long[] mInputLengths;
+
+    /**
+     * Drop-in replacement of the MediaExtractor/MediaMuxer based extraction, same arguments and
+     * semantics as {@code CameraStore.extractVideoAsFile(List, long[], String)}.
+     *
+     * @param inVideos input segments in time order
+     * @param cuts     {offset of start in the first video, offset of end in the last video, missed time} in ms
+     * @param outVideo output file path
+     * @return true if a clip was written
+     */
+    public static boolean extractVideoAsFile(List<String> inVideos, long[] cuts, String outVideo) throws IOException {
+        return new Mp4Remuxer().extract(inVideos, cuts, new File(outVideo)) > 0;
+    }
+
+    /**
+     * Write the clip described by the cuts of {@code CameraStore.getOriginalVideosListInTimeRange}.
+     *
+     * @return duration of the clip in microseconds, 0 if nothing was written
+     */
+    public long extract(List<String> inVideos, long[] cuts, File outVideo) throws IOException {
+        if (inVideos.size() == 0) {
+            return 0;
+        }
+        long gapMs = cuts[2] < MAX_GAP_MS ? cuts[2] : 0;
+        long startMs = cuts[0];
+        long endMs = cuts[1] + gapMs;
+        // for a single video start time should be positive and smaller then the end time
+        if (inVideos.size() == 1 && (startMs < 0 || startMs > endMs)) {
+            throw new IllegalArgumentException("invalid time range:[" + startMs + "," + endMs + "]");
+        }
+        List<File> inputs = new ArrayList<>(inVideos.size());
+        for (String path : inVideos) {
+            inputs.add(new File(path));
+        }
+        return remux(inputs, startMs * 1000, endMs * 1000, outVideo);
+    }
+
+    /**
+     * Write the frame accurate clip of [start, end], given the wall clock start of every input.
+     *
+     * @param inVideos      input segments in time order
+     * @param segmentStarts start time of every input in ms
+     * @param start         start time in ms
+     * @param end           end time in ms
+     * @return duration of the clip in microseconds, 0 if nothing was written
+     */
+    public long extractExact(List<String> inVideos, long[] segmentStarts, long start, long end, File outVideo) throws IOException {
+        if (inVideos.size() == 0 || end <= start) {
+            return 0;
+        }
+        List<File> inputs = new ArrayList<>(inVideos.size());
+        long[] inputStartsUs = new long[inVideos.size()];
+        for (int i = 0; i < inputStartsUs.length; i++) {
+            inputs.add(new File(inVideos.get(i)));
+            inputStartsUs[i] = segmentStarts[i] * 1000;
+        }
+        return remuxExact(inputs, inputStartsUs, start * 1000, end * 1000, outVideo);
+    }
+
+    /**
+     * Read a last input without moov, i.e. the segment the recorder is still writing, with the
+     * sample boundaries recovered from its NAL stream. Only its video is read.
+     */
+    public void setGrowingInput(Mp4Recovery recovery) {
+        mGrowingInput = recovery;
+    }
+
+    /**
+     * Read input i from {@code lengths[i]} bytes at {@code offsets[i]} of its file, e.g. a record of
+     * a loop recording container, instead of the whole file. A negative length reads the whole file.
+     */
+    public void setInputRanges(long[] offsets, long[] lengths) {
+        mInputOffsets = offsets;
+        mInputLengths = lengths;
+    }
+
+    /**
+     * @return how far after the requested start the last clip starts, i.e. the distance to the
+     * first sync sample, in microseconds
+     */
+    public long getStartShiftUs() {
+        return mShiftUs;
+    }
+
+    /**
+     * Write the clip from {@code startUs} in the first input to {@code endUs} in the last input.
+     * The clip starts at the first video sync sample at or after {@code startUs} and the end is
+     * moved by the same amount, so the clip keeps the requested length.
+     *
+     * @return duration of the clip in microseconds
+     */
+    public long remux(List<File> inputs, long startUs, long endUs, File output) throws IOException {
+        Mp4Movie[] movies = begin(inputs);
+        // the clip starts on a sync sample, move the end by the same amount
+        long syncUs = getSyncTimeUs(movies[0], startUs);
+        long shiftUs = syncUs - startUs;
+        mShiftUs = shiftUs;
+        long outUs = 0;
+        for (int i = 0; i < movies.length; i++) {
+            long baseUs = i == 0 ? syncUs : 0;
+            long toUs = i == movies.length - 1 ? endUs + shiftUs : Long.MAX_VALUE;
+            outUs += selectInput(i, movies[i], baseUs, toUs, outUs);
+        }
+        return finish(inputs, outUs, output) ? outUs : 0;
+    }
+
+    /**
+     * Write the frame accurate clip of [startUs, endUs] of a timeline on which input i starts at
+     * {@code inputStartsUs[i]}. The samples from the sync sample before the start are kept and
+     * every track gets an edit list that presents exactly [startUs, endUs], with empty edits where
+     * the inputs leave gaps.
+     *
+     * @return duration of the clip in microseconds
+     */
+    public long remuxExact(List<File> inputs, long[] inputStartsUs, long startUs, long endUs, File output) throws IOException {
+        Mp4Movie[] movies = begin(inputs);
+        mShiftUs = 0;
+        // edits as {duration us, media time us or -1}
+        long[] edits = new long[4 * movies.length + 2];
+        int editCount = 0;
+        long clipUs = 0;
+        long outUs = 0;
+        for (int i = 0; i < movies.length; i++) {
+            long offsetUs = inputStartsUs[i] - startUs;
+            // presented part of the input in input time
+            long fromUs = Math.max(0, clipUs - offsetUs);
+            long toUs = endUs - inputStartsUs[i];
+            if (toUs <= fromUs) {
+                break;
+            }
+            long baseUs = i == 0 ? getSyncTimeAtOrBeforeUs(movies[i], fromUs) : 0;
+            long spanUs = selectInput(i, movies[i], baseUs, toUs, outUs);
+            long lengthUs = Math.min(toUs, baseUs + spanUs) - fromUs;
+            if (lengthUs > 0) {
+                long gapUs = offsetUs + fromUs - clipUs;
+                if (gapUs >= MIN_EMPTY_EDIT_US) {
+                    edits[editCount++] = gapUs;
+                    edits[editCount++] = -1;
+                    clipUs += gapUs;
+                }
+                long mediaUs = outUs + fromUs - baseUs;
+                if (editCount > 0 && edits[editCount - 1] >= 0
+                        && edits[editCount - 1] + edits[editCount - 2] == mediaUs) {
+                    // continues the previous edit
+                    edits[editCount - 2] += lengthUs;
+                } else {
+                    edits[editCount++] = lengthUs;
+                    edits[editCount++] = mediaUs;
+                }
+                clipUs += lengthUs;
+            }
+            outUs += spanUs;
+        }
+        for (Mp4TrackBuilder b : mTracks) {
+            b.mEditList = new long[editCount];
+            for (int e = 0; e < editCount; e += 2) {
+                b.mEditList[e] = usToTime(edits[e], Mp4MoovWriter.MOVIE_TIMESCALE);
+                b.mEditList[e + 1] = edits[e + 1] < 0 ? -1 : usToTime(edits[e + 1], b.mTimescale);
+            }
+        }
+        return finish(inputs, outUs, output) ? clipUs : 0;
+    }
+
+    /*
+     * Parse the inputs and set up the output tracks from the first one.
+     */
+    private Mp4Movie[] begin(List<File> inputs) throws IOException {
+        mTracks.clear();
+        mRangeCount = 0;
+        mPayloadSize = 0;
+        Mp4Movie[] movies = new Mp4Movie[inputs.size()];
+        for (int i = 0; i < movies.length; i++) {
+            File input = inputs.get(i);
+            try {
+                if (mInputLengths != null && mInputLengths[i] >= 0) {
+                    movies[i] = parseRange(input, mInputOffsets[i], mInputLengths[i]);
+                } else {
+                    movies[i] = mParser.parseFile(input);
+                }
+            } catch (IOException e) {
+                if (mGrowingInput == null || i != movies.length - 1 || !Mp4Recovery.isTruncated(input)) {
+                    throw e;
+                }
+                movies[i] = mGrowingInput.snapshot(input);
+            }
+        }
+        for (Mp4Track track : movies[0].getTracks()) {
+            if (track.getSampleCount() > 0 && findBuilder(track.getHandler()) == null) {
+                Mp4TrackBuilder b = new Mp4TrackBuilder(mTracks.size() + 1, track.getHandler(), track.getTimescale());
+                b.mWidth = track.getWidth();
+                b.mHeight = track.getHeight();
+                mTracks.add(b);
+            }
+        }
+        return movies;
+    }
+
+    /*
+     * End all tracks together at outUs and write the output, false if no samples were selected.
+     */
+    private boolean finish(List<File> inputs, long outUs, File output) throws IOException {
+        for (Mp4TrackBuilder b : mTracks) {
+            b.setEndTime(usToTime(outUs, b.mTimescale));
+        }
+        if (mPayloadSize == 0) {
+            return false;
+        }
+        write(inputs, output);
+        return true;
+    }
+
+    private Mp4TrackBuilder findBuilder(int handler) {
+        for (Mp4TrackBuilder b : mTracks) {
+            if (b.mHandler == handler) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Reference track for the cut, video if there is one.
+     */
+    private static Mp4Track getReferenceTrack(Mp4Movie movie) {
+        Mp4Track ref = movie.getVideoTrack();
+        if (ref == null || ref.getSampleCount() == 0) {
+            for (Mp4Track track : movie.getTracks()) {
+                if (track.getSampleCount() > 0) {
+                    return track;
+                }
+            }
+            return null;
+        }
+        return ref;
+    }
+
+    /*
+     * Time of the first sync sample at or after the given time.
+     */
+    private static long getSyncTimeUs(Mp4Movie movie, long fromUs) {
+        Mp4Track ref = getReferenceTrack(movie);
+        if (ref == null) {
+            return fromUs;
+        }
+        long[] times = ref.getSampleTimes();
+        return ref.toUs(times[firstSyncAtOrAfter(ref, times, fromUs)]);
+    }
+
+    /*
+     * Time of the last sync sample at or before the given time.
+     */
+    private static long getSyncTimeAtOrBeforeUs(Mp4Movie movie, long fromUs) {
+        Mp4Track ref = getReferenceTrack(movie);
+        if (ref == null) {
+            return fromUs;
+        }
+        long[] times = ref.getSampleTimes();
+        long from = usToTime(fromUs, ref.getTimescale());
+        int sync = -1;
+        for (int s : ref.getSyncSamples()) {
+            if (times[s] > from && sync >= 0) {
+                break;
+            }
+            sync = s;
+        }
+        return sync < 0 ? 0 : ref.toUs(times[sync]);
+    }
+
+    /*
+     * Add the samples of one input in [baseUs, toUs] to the output tracks, starting at outUs.
+     * Returns the length of the input in the output in us.
+     */
+    private long selectInput(int input, Mp4Movie movie, long baseUs, long toUs, long outUs) {
+        Mp4Track ref = getReferenceTrack(movie);
+        if (ref == null) {
+            return 0;
+        }
+        int k = 0;
+        Mp4Track[] tracks = new Mp4Track[movie.getTracks().size()];
+        Mp4TrackBuilder[] builders = new Mp4TrackBuilder[tracks.length];
+        int[] from = new int[tracks.length];
+        int[] to = new int[tracks.length];
+        int[] first = new int[tracks.length];
+        long spanUs = 0;
+        for (Mp4Track track : movie.getTracks()) {
+            Mp4TrackBuilder b = findBuilder(track.getHandler());
+            if (b == null || contains(builders, k, b) || track.getSampleCount() == 0) {
+                continue;
+            }
+            long[] times = track.getSampleTimes();
+            int n = track.getSampleCount();
+            long base = usToTime(baseUs, track.getTimescale());
+            long end = toUs == Long.MAX_VALUE ? Long.MAX_VALUE : usToTime(toUs, track.getTimescale());
+            int a = 0;
+            while (a < n && times[a] < base) {
+                a++;
+            }
+            int z = a;
+            while (z < n && times[z] <= end) {
+                z++;
+            }
+            if (z <= a) {
+                continue;
+            }
+            long last = z < n ? times[z]
+                    : track.mSttsEntries > 0 ? times[n - 1] + track.mSttsDelta[track.mSttsEntries - 1]
+                    : Math.max(times[n - 1], track.getDuration());
+            spanUs = Math.max(spanUs, track.toUs(last - base));
+            tracks[k] = track;
+            builders[k] = b;
+            from[k] = a;
+            to[k] = z;
+            first[k] = b.mSampleCount;
+            addSamples(b, track, times, a, z, base, outUs);
+            k++;
+        }
+        addRanges(input, k, tracks, builders, from, to, first);
+        return spanUs;
+    }
+
+    private static boolean contains(Object[] array, int n, Object o) {
+        for (int i = 0; i < n; i++) {
+            if (array[i] == o) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int firstSyncAtOrAfter(Mp4Track ref, long[] times, long fromUs) {
+        long from = usToTime(fromUs, ref.getTimescale());
+        int lastSync = 0;
+        for (int s : ref.getSyncSamples()) {
+            if (times[s] >= from) {
+                return s;
+            }
+            lastSync = s;
+        }
+        // nothing after the start, take the last sync sample
+        return lastSync;
+    }
+
+    private static void addSamples(Mp4TrackBuilder b, Mp4Track track, long[] times, int a, int z, long base, long outUs) {
+        long out = usToTime(outUs, b.mTimescale);
+        long scale = track.getTimescale();
+        int[] composition = track.hasCompositionOffsets() ? track.getCompositionOffsets() : null;
+        for (int s = a; s < z; s++) {
+            long t = out + rescale(times[s] - base, scale, b.mTimescale);
+            if (t <= b.getLastTime()) {
+                // inputs overlap by a few ms around a cut off
+                t = b.getLastTime() + 1;
+            }
+            int ct = composition == null ? 0 : (int) rescale(composition[s], scale, b.mTimescale);
+            b.addSample(t, track.getSampleSize(s), ct, track.isSyncSample(s));
+        }
+    }
+
+    /*
+     * Turn the selected samples into output chunks of contiguous source bytes, in source file
+     * order so the interleaving of the input is kept.
+     */
+    private void addRanges(int input, int k, Mp4Track[] tracks, Mp4TrackBuilder[] builders, int[] from, int[] to, int[] first) {
+        long[][] offsets = new long[k][];
+        int[][] descriptions = new int[k][];
+        int[][] entryMap = new int[k][];
+        int[] next = new int[k];
+        for (int j = 0; j < k; j++) {
+            offsets[j] = tracks[j].getSampleOffsets();
+            descriptions[j] = tracks[j].getSampleDescriptionIndexes();
+            entryMap[j] = new int[tracks[j].getSampleEntryCount() + 1];
+            next[j] = from[j];
+        }
+        while (true) {
+            int j = -1;
+            for (int m = 0; m < k; m++) {
+                if (next[m] < to[m] && (j < 0 || offsets[m][next[m]] < offsets[j][next[j]])) {
+                    j = m;
+                }
+            }
+            if (j < 0) {
+                break;
+            }
+            Mp4Track track = tracks[j];
+            int s = next[j];
+            int d = descriptions[j][s];
+            if (entryMap[j][d] == 0) {
+                entryMap[j][d] = builders[j].addSampleEntry(track.getSampleEntry(d - 1));
+            }
+            // extend the run while it is contiguous and does not pass the next sample of another track
+            long limit = Long.MAX_VALUE;
+            for (int m = 0; m < k; m++) {
+                if (m != j && next[m] < to[m]) {
+                    limit = Math.min(limit, offsets[m][next[m]]);
+                }
+            }
+            long start = offsets[j][s];
+            long end = start + track.getSampleSize(s);
+            int e = s + 1;
+            while (e < to[j] && offsets[j][e] == end && descriptions[j][e] == d && end < limit) {
+                end += track.getSampleSize(e);
+                e++;
+            }
+            builders[j].addChunk(mPayloadSize, first[j] + s - from[j], e - s, entryMap[j][d]);
+            addRange(input, start, end - start);
+            next[j] = e;
+        }
+    }
+
+    private void addRange(int input, long offset, long length) {
+        mPayloadSize += length;
+        if (mRangeCount > 0 && mRangeInput[mRangeCount - 1] == input
+                && mRangeOffset[mRangeCount - 1] + mRangeLength[mRangeCount - 1] == offset) {
+            mRangeLength[mRangeCount - 1] += length;
+            return;
+        }
+        if (mRangeCount == mRangeInput.length) {
+            int n = mRangeCount * 2;
+            mRangeInput = Arrays.copyOf(mRangeInput, n);
+            mRangeOffset = Arrays.copyOf(mRangeOffset, n);
+            mRangeLength = Arrays.copyOf(mRangeLength, n);
+        }
+        mRangeInput[mRangeCount] = input;
+        mRangeOffset[mRangeCount] = offset;
+        mRangeLength[mRangeCount] = length;
+        mRangeCount++;
+    }
+
+    private void write(List<File> inputs, File output) throws IOException {
+        ByteBuffer ftyp = Mp4MoovWriter.ftyp();
+        boolean largeMdat = mPayloadSize + 8 > 0xffffffffL;
+        int mdatHeader = largeMdat ? 16 : 8;
+        ByteBuffer moov = Mp4MoovWriter.moov(mTracks, 0, false);
+        long payloadOffset = ftyp.limit() + moov.limit() + mdatHeader;
+        boolean co64 = payloadOffset + mPayloadSize > 0xffffffffL;
+        moov = Mp4MoovWriter.moov(mTracks, 0, co64);
+        payloadOffset = ftyp.limit() + moov.limit() + mdatHeader;
+        moov = Mp4MoovWriter.moov(mTracks, payloadOffset, co64);
+
+        ByteBuffer header = ByteBuffer.allocate(mdatHeader);
+        if (largeMdat) {
+            header.putInt(1).putInt(Mp4Box.MDAT).putLong(mPayloadSize + 16);
+        } else {
+            header.putInt((int) (mPayloadSize + 8)).putInt(Mp4Box.MDAT);
+        }
+        header.flip();
+
+        RandomAccessFile out = new RandomAccessFile(output, "rw");
+        RandomAccessFile[] in = new RandomAccessFile[inputs.size()];
+        try {
+            FileChannel dst = out.getChannel();
+            dst.truncate(0);
+            writeFully(dst, ftyp);
+            writeFully(dst, moov);
+            writeFully(dst, header);
+            for (int r = 0; r < mRangeCount; r++) {
+                int i = mRangeInput[r];
+                if (in[i] == null) {
+                    in[i] = new RandomAccessFile(inputs.get(i), "r");
+                }
+                FileChannel src = in[i].getChannel();
+                long pos = mRangeOffset[r];
+                long remaining = mRangeLength[r];
+                while (remaining > 0) {
+                    long n = src.transferTo(pos, remaining, dst);
+                    if (n <= 0) {
+                        throw new IOException("Failed to copy " + remaining + " bytes at " + pos + " of " + inputs.get(i));
+                    }
+                    pos += n;
+                    remaining -= n;
+                }
+            }
+            dst.force(false);
+        } finally {
+            for (RandomAccessFile f : in) {
+                if (f != null) {
+                    f.close();
+                }
+            }
+            out.close();
+        }
+    }
+
+    private Mp4Movie parseRange(File input, long offset, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(input, "r");
+        try {
+            return mParser.parse(raf.getChannel(), offset, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    private static long usToTime(long us, long timescale) {
+        return us * timescale / 1000000L;
+    }
+
+    private static long rescale(long time, long from, long to) {
+        return from == to ? time : time * to / from;
+    }
+}
@@ -0,0 +1,341 @@
+package com.nauto.camera.mp4;
+
+import java.util.Arrays;
+
+/**
+ * Track of an MP4 file: sample description and sample tables as read from {@code stbl}.
+ *
+ * <p>Tables are kept in the run length form they have in the file. Sample indexes are zero based,
+ * times are in track timescale units unless the method name says otherwise.</p>
+ */
+public final class Mp4Track {
+    int mTrackId;
+    int mHandler;
+    long mTimescale;
+    long mDuration;
+    int mWidth;
+    int mHeight;
+    int mChannelCount;
+    int mSampleRate;
+    long[] mEditList;
+
+    // stsd entries including their box headers
+    byte[][] mSampleEntries = new byte[0][];
+
+    // stts
+    int mSttsEntries;
+    int[] mSttsCount;
+    int[] mSttsDelta;
+
+    // ctts, null if the track has no composition offsets
+    int mCttsEntries;
+    int[] mCttsCount;
+    int[] mCttsOffset;
+
+    // stss, one based sample numbers, null if every sample is a sync sample
+    int[] mSyncSamples;
+
+    // stsz
+    int mSampleCount;
+    int mConstantSampleSize;
+    int[] mSampleSizes;
+
+    // stsc
+    int mStscEntries;
+    int[] mStscFirstChunk;
+    int[] mStscSamplesPerChunk;
+    int[] mStscDescriptionIndex;
+
+    // stco / co64
+    long[] mChunkOffsets = new long[0];
+
+    // trex defaults of a fragmented track
+    int mDefaultDescriptionIndex = 1;
+    int mDefaultSampleDuration;
+    int mDefaultSampleSize;
+    int mDefaultSampleFlags;
+
+    Mp4Track() {
+    }
+
+    public int getTrackId() {
+        return mTrackId;
+    }
+
+    /**
+     * @return handler type, {@link Mp4Box#HANDLER_VIDEO} or {@link Mp4Box#HANDLER_SOUND}
+     */
+    public int getHandler() {
+        return mHandler;
+    }
+
+    public boolean isVideo() {
+        return mHandler == Mp4Box.HANDLER_VIDEO;
+    }
+
+    public boolean isAudio() {
+        return mHandler == Mp4Box.HANDLER_SOUND;
+    }
+
+    public long getTimescale() {
+        return mTimescale;
+    }
+
+    /**
+     * @return media duration in track timescale units
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public long getDurationUs() {
+        return toUs(mDuration);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return edit list as {segmentDuration, mediaTime} pairs or null if the track has none
+     */
+    public long[] getEditList() {
+        return mEditList;
+    }
+
+    /**
+     * @return four character code of the first sample entry, e.g. {@link Mp4Box#AVC1}
+     */
+    public int getCodec() {
+        return mSampleEntries.length == 0 ? 0 : Mp4Parser.getInt(mSampleEntries[0], 4);
+    }
+
+    public int getSampleEntryCount() {
+        return mSampleEntries.length;
+    }
+
+    /**
+     * @return raw sample entry including its box header
+     */
+    public byte[] getSampleEntry(int i) {
+        return mSampleEntries[i];
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public int getSampleSize(int sample) {
+        return mSampleSizes == null ? mConstantSampleSize : mSampleSizes[sample];
+    }
+
+    public int getChunkCount() {
+        return mChunkOffsets.length;
+    }
+
+    public long getChunkOffset(int chunk) {
+        return mChunkOffsets[chunk];
+    }
+
+    public boolean hasCompositionOffsets() {
+        return mCttsCount != null;
+    }
+
+    /**
+     * @return true if the sample is a sync sample (keyframe)
+     */
+    public boolean isSyncSample(int sample) {
+        return mSyncSamples == null || Arrays.binarySearch(mSyncSamples, sample + 1) >= 0;
+    }
+
+    /**
+     * @return zero based indexes of the sync samples
+     */
+    public int[] getSyncSamples() {
+        int[] out;
+        if (mSyncSamples == null) {
+            out = new int[mSampleCount];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = i;
+            }
+        } else {
+            out = new int[mSyncSamples.length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = mSyncSamples[i] - 1;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return decoding time of every sample in track timescale units
+     */
+    public long[] getSampleTimes() {
+        long[] out = new long[mSampleCount];
+        long t = 0;
+        int s = 0;
+        for (int e = 0; e < mSttsEntries && s < mSampleCount; e++) {
+            int delta = mSttsDelta[e];
+            for (int n = mSttsCount[e]; n > 0 && s < mSampleCount; n--) {
+                out[s++] = t;
+                t += delta;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return composition offset of every sample in track timescale units, zeros if the track has
+     * no {@code ctts}
+     */
+    public int[] getCompositionOffsets() {
+        int[] out = new int[mSampleCount];
+        int s = 0;
+        for (int e = 0; e < mCttsEntries && s < mSampleCount; e++) {
+            int offset = mCttsOffset[e];
+            for (int n = mCttsCount[e]; n > 0 && s < mSampleCount; n--) {
+                out[s++] = offset;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return file offset of every sample
+     */
+    public long[] getSampleOffsets() {
+        long[] out = new long[mSampleCount];
+        int s = 0;
+        for (int e = 0; e < mStscEntries; e++) {
+            int firstChunk = mStscFirstChunk[e] - 1;
+            int lastChunk = e + 1 < mStscEntries ? mStscFirstChunk[e + 1] - 1 : mChunkOffsets.length;
+            int perChunk = mStscSamplesPerChunk[e];
+            for (int c = firstChunk; c < lastChunk && c < mChunkOffsets.length; c++) {
+                long offset = mChunkOffsets[c];
+                for (int n = 0; n < perChunk && s < mSampleCount; n++) {
+                    out[s] = offset;
+                    offset += getSampleSize(s);
+                    s++;
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return one based sample description index of every sample
+     */
+    public int[] getSampleDescriptionIndexes() {
+        int[] out = new int[mSampleCount];
+        int s = 0;
+        for (int e = 0; e < mStscEntries; e++) {
+            int firstChunk = mStscFirstChunk[e] - 1;
+            int lastChunk = e + 1 < mStscEntries ? mStscFirstChunk[e + 1] - 1 : mChunkOffsets.length;
+            int perChunk = mStscSamplesPerChunk[e];
+            for (int c = firstChunk; c < lastChunk && c < mChunkOffsets.length; c++) {
+                for (int n = 0; n < perChunk && s < mSampleCount; n++) {
+                    out[s++] = mStscDescriptionIndex[e];
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return sum of the sample sizes in bytes
+     */
+    public long getTotalSampleSize() {
+        if (mSampleSizes == null) {
+            return (long) mConstantSampleSize * mSampleCount;
+        }
+        long total = 0;
+        for (int i = 0; i < mSampleCount; i++) {
+            total += mSampleSizes[i];
+        }
+        return total;
+    }
+
+    /**
+     * Replace the sample tables with the samples read from the fragments of a fragmented file.
+     */
+    void setSamples(Mp4TrackBuilder b) {
+        int n = b.mSampleCount;
+        mSampleCount = n;
+        mConstantSampleSize = 0;
+        mSampleSizes = Arrays.copyOf(b.mSizes, n);
+        mDuration = b.getDuration();
+
+        mSttsEntries = 0;
+        mSttsCount = new int[n];
+        mSttsDelta = new int[n];
+        for (int i = 0; i < n; i++) {
+            int delta = (int) b.getSampleDelta(i);
+            if (mSttsEntries > 0 && mSttsDelta[mSttsEntries - 1] == delta) {
+                mSttsCount[mSttsEntries - 1]++;
+            } else {
+                mSttsCount[mSttsEntries] = 1;
+                mSttsDelta[mSttsEntries++] = delta;
+            }
+        }
+
+        mCttsEntries = 0;
+        mCttsCount = null;
+        mCttsOffset = null;
+        if (b.mCompositionOffsets != null) {
+            mCttsCount = new int[n];
+            mCttsOffset = new int[n];
+            for (int i = 0; i < n; i++) {
+                int offset = b.mCompositionOffsets[i];
+                if (mCttsEntries > 0 && mCttsOffset[mCttsEntries - 1] == offset) {
+                    mCttsCount[mCttsEntries - 1]++;
+                } else {
+                    mCttsCount[mCttsEntries] = 1;
+                    mCttsOffset[mCttsEntries++] = offset;
+                }
+            }
+        }
+
+        mSyncSamples = null;
+        if (b.mSyncCount < n) {
+            mSyncSamples = new int[b.mSyncCount];
+            for (int i = 0, j = 0; i < n; i++) {
+                if (b.mSync[i]) {
+                    mSyncSamples[j++] = i + 1;
+                }
+            }
+        }
+
+        int chunks = b.mChunkCount;
+        mStscEntries = chunks;
+        mStscFirstChunk = new int[chunks];
+        mStscSamplesPerChunk = Arrays.copyOf(b.mChunkSamples, chunks);
+        mStscDescriptionIndex = Arrays.copyOf(b.mChunkDescriptions, chunks);
+        for (int c = 0; c < chunks; c++) {
+            mStscFirstChunk[c] = c + 1;
+        }
+        mChunkOffsets = Arrays.copyOf(b.mChunkOffsets, chunks);
+    }
+
+    public long toUs(long time) {
+        return mTimescale == 0 ? 0 : time * 1000000L / mTimescale;
+    }
+
+    @Override
+    public String toString() {
+        return "Mp4Track{id:" + mTrackId + ", " + Mp4Box.toString(mHandler) + ", " + Mp4Box.toString(getCodec())
+                + ", samples:" + mSampleCount + ", sync:" + (mSyncSamples == null ? mSampleCount : mSyncSamples.length)
+                + ", durationUs:" + getDurationUs() + "}";
+    }
+}
@@ -0,0 +1,139 @@
+package com.nauto.camera.mp4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sample tables of a track being written. Samples are added in decoding order with absolute
+ * decoding times, chunks with offsets relative to the start of the mdat payload.
+ */
+final class Mp4TrackBuilder {
+    final int mTrackId;
+    final int mHandler;
+    final long mTimescale;
+    int mWidth;
+    int mHeight;
+    // {segmentDuration in movie timescale, mediaTime} pairs, null for no edit list
+    long[] mEditList;
+
+    final List<byte[]> mSampleEntries = new ArrayList<>(1);
+
+    int mSampleCount;
+    long[] mTimes = new long[256];
+    int[] mSizes = new int[256];
+    int[] mCompositionOffsets;
+    boolean[] mSync = new boolean[256];
+    int mSyncCount;
+    // end of the last sample
+    long mEndTime;
+
+    int mChunkCount;
+    long[] mChunkOffsets = new long[64];
+    int[] mChunkSamples = new int[64];
+    int[] mChunkDescriptions = new int[64];
+    private long mChunkEnd;
+
+    Mp4TrackBuilder(int trackId, int handler, long timescale) {
+        mTrackId = trackId;
+        mHandler = handler;
+        mTimescale = timescale;
+    }
+
+    /**
+     * @return one based index of the sample entry, adding it if it is not there yet
+     */
+    int addSampleEntry(byte[] entry) {
+        for (int i = 0; i < mSampleEntries.size(); i++) {
+            if (Arrays.equals(mSampleEntries.get(i), entry)) {
+                return i + 1;
+            }
+        }
+        mSampleEntries.add(entry);
+        return mSampleEntries.size();
+    }
+
+    long getLastTime() {
+        return mSampleCount == 0 ? -1 : mTimes[mSampleCount - 1];
+    }
+
+    void addSample(long time, int size, int compositionOffset, boolean sync) {
+        if (mSampleCount == mTimes.length) {
+            int n = mSampleCount * 2;
+            mTimes = Arrays.copyOf(mTimes, n);
+            mSizes = Arrays.copyOf(mSizes, n);
+            mSync = Arrays.copyOf(mSync, n);
+            if (mCompositionOffsets != null) {
+                mCompositionOffsets = Arrays.copyOf(mCompositionOffsets, n);
+            }
+        }
+        if (compositionOffset != 0 && mCompositionOffsets == null) {
+            mCompositionOffsets = new int[mTimes.length];
+        }
+        mTimes[mSampleCount] = time;
+        mSizes[mSampleCount] = size;
+        mSync[mSampleCount] = sync;
+        if (mCompositionOffsets != null) {
+            mCompositionOffsets[mSampleCount] = compositionOffset;
+        }
+        if (sync) {
+            mSyncCount++;
+        }
+        mSampleCount++;
+    }
+
+    /**
+     * Set the end of the last sample, which determines its duration.
+     */
+    void setEndTime(long time) {
+        mEndTime = time;
+    }
+
+    /**
+     * Add a chunk of samples already added with {@link #addSample}.
+     */
+    void addChunk(long offset, int firstSample, int samples, int description) {
+        long length = 0;
+        for (int i = firstSample; i < firstSample + samples; i++) {
+            length += mSizes[i];
+        }
+        if (mChunkCount > 0 && mChunkDescriptions[mChunkCount - 1] == description && mChunkEnd == offset) {
+            // contiguous with the previous chunk
+            mChunkSamples[mChunkCount - 1] += samples;
+            mChunkEnd += length;
+            return;
+        }
+        if (mChunkCount == mChunkOffsets.length) {
+            int n = mChunkCount * 2;
+            mChunkOffsets = Arrays.copyOf(mChunkOffsets, n);
+            mChunkSamples = Arrays.copyOf(mChunkSamples, n);
+            mChunkDescriptions = Arrays.copyOf(mChunkDescriptions, n);
+        }
+        mChunkOffsets[mChunkCount] = offset;
+        mChunkSamples[mChunkCount] = samples;
+        mChunkDescriptions[mChunkCount] = description;
+        mChunkCount++;
+        mChunkEnd = offset + length;
+    }
+
+    /**
+     * @return duration of a sample, the last one lasts until the end time
+     */
+    long getSampleDelta(int i) {
+        if (i + 1 < mSampleCount) {
+            return mTimes[i + 1] - mTimes[i];
+        }
+        if (mEndTime > mTimes[i]) {
+            return mEndTime - mTimes[i];
+        }
+        return i > 0 ? mTimes[i] - mTimes[i - 1] : 1;
+    }
+
+    long getDuration() {
+        return mSampleCount == 0 ? 0 : mTimes[mSampleCount - 1] + getSampleDelta(mSampleCount - 1) - mTimes[0];
+    }
+
+    long getDurationUs() {
+        return getDuration() * 1000000L / mTimescale;
+    }
+}
@@ -0,0 +1,281 @@
+package com.nauto.camera.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed size ring of the most recent encoded H.264 access units, kept off the Java heap so that
+ * event clips can be written straight from memory with {@link #exportRecent}, without reading
+ * segments back from the SD card.
+ *
+ * <p>One thread writes samples with {@link #write}, any number of threads export. Readers never
+ * block the writer: the writer overwrites the oldest samples unconditionally and a reader that was
+ * lapped while copying notices it afterwards and starts over, see {@link #exportRecent}.</p>
+ *
+ * <p>The writer claims the space and the index entry of a sample in volatile fields and loads one
+ * of them back before it overwrites anything. A volatile store only keeps the writes before it in
+ * place, later ones may move ahead of it; the load after it does not let them, so a reader that
+ * sees overwritten data also sees the claim. Readers write a volatile after their copy for the
+ * same reason, there are no fences before Java 9.</p>
+ *
+ * <p>Sample data and the sample index live in direct buffers allocated once, so memory use is
+ * constant whatever the bit rate; the ring holds as many seconds as fit in its capacity.</p>
+ */
+public final class SampleRing {
+    private static final long TIMESCALE = FragmentedMp4Writer.TIMESCALE;
+    private static final int TRACK_ID = 1;
+    // ftyp and the header of an mdat smaller than 4 GB
+    private static final int PAYLOAD_OFFSET = 24 + 8;
+    private static final int MAX_ATTEMPTS = 3;
+
+    // long position in the data, long presentation time, int size, int flags
+    private static final int ENTRY_SIZE = 24;
+    private static final int FLAG_SYNC = 1;
+
+    private final int mCapacity;
+    private final int mMaxSamples;
+    private final int mWidth;
+    private final int mHeight;
+    private final byte[] mSampleEntry;
+    private final ByteBuffer mData;
+    private final ByteBuffer mEntries;
+
+    // writer only: view of the data and the length prefixed sample being written
+    private final ByteBuffer mWriteView;
+    private ByteBuffer mSample;
+
+    // bytes and samples written, published when the sample is complete
+    private volatile long mHead;
+    private volatile long mCount;
+    // bytes and samples claimed by the writer before it starts overwriting the oldest ones
+    private volatile long mClaimedHead;
+    private volatile long mClaimedCount;
+    // written by readers so that their copy is ordered before the overrun check
+    private volatile int mFence;
+
+    /**
+     * @param capacity    bytes of sample data, e.g. bit rate / 8 times the seconds to keep
+     * @param maxSamples  samples in the index, e.g. frame rate times the seconds to keep
+     * @param codecConfig SPS and PPS in Annex B format, e.g. csd-0 followed by csd-1
+     * @throws IllegalArgumentException if the codec config has no SPS or PPS
+     */
+    public SampleRing(int capacity, int maxSamples, int width, int height, ByteBuffer codecConfig) {
+        if (capacity <= 0 || maxSamples <= 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity + " or samples " + maxSamples);
+        }
+        mCapacity = capacity;
+        mMaxSamples = maxSamples;
+        mWidth = width;
+        mHeight = height;
+        mSampleEntry = FragmentedMp4Writer.avcSampleEntry(width, height, codecConfig);
+        mData = ByteBuffer.allocateDirect(capacity);
+        mEntries = ByteBuffer.allocateDirect(maxSamples * ENTRY_SIZE);
+        mWriteView = mData.duplicate();
+        mSample = ByteBuffer.allocate(64 * 1024);
+    }
+
+    /**
+     * Add an access unit, overwriting the oldest ones. Called from a single thread, does not
+     * allocate once the largest sample has been seen.
+     *
+     * @param accessUnit         NAL units in Annex B format, from position to limit
+     * @param presentationTimeUs presentation time in microseconds, increasing
+     * @param sync               true for a keyframe
+     * @throws IllegalArgumentException if the sample takes more than half of the capacity
+     */
+    public void write(ByteBuffer accessUnit, long presentationTimeUs, boolean sync) {
+        int needed = FragmentedMp4Writer.maxLengthPrefixedSize(accessUnit.remaining());
+        if (mSample.capacity() < needed) {
+            mSample = ByteBuffer.allocate(needed);
+        }
+        mSample.clear();
+        int size = FragmentedMp4Writer.putLengthPrefixed(accessUnit, mSample);
+        if (size > mCapacity / 2) {
+            throw new IllegalArgumentException("Sample of " + size + " bytes in a ring of " + mCapacity);
+        }
+        mSample.flip();
+
+        long head = mHead;
+        long count = mCount;
+        mClaimedCount = count + 1;
+        mClaimedHead = head + size;
+        // volatile load, the sample is written after the claim
+        int pos = (int) ((mClaimedHead - size) % mCapacity);
+        int first = Math.min(size, mCapacity - pos);
+        mSample.limit(first);
+        mWriteView.limit(pos + first).position(pos);
+        mWriteView.put(mSample);
+        if (first < size) {
+            mSample.limit(size);
+            mWriteView.limit(size - first).position(0);
+            mWriteView.put(mSample);
+        }
+        int entry = (int) (count % mMaxSamples) * ENTRY_SIZE;
+        mEntries.putLong(entry, head);
+        mEntries.putLong(entry + 8, presentationTimeUs);
+        mEntries.putInt(entry + 16, size);
+        mEntries.putInt(entry + 20, sync ? FLAG_SYNC : 0);
+        mHead = head + size;
+        mCount = count + 1;
+    }
+
+    /**
+     * Write the last seconds of the ring into an MP4 file, starting at the keyframe at or before
+     * that time, or at the oldest keyframe if the ring holds less.
+     *
+     * @return duration of the clip in microseconds
+     * @throws IOException if the ring has no keyframe, the file can not be written, or the writer
+     *                     kept overwriting the samples being copied
+     */
+    public long exportRecent(int seconds, File output) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long duration = export(seconds * 1000000L, output);
+            if (duration >= 0) {
+                return duration;
+            }
+        }
+        output.delete();
+        throw new IOException("Samples overwritten while exporting " + output);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getMaxSamples() {
+        return mMaxSamples;
+    }
+
+    /**
+     * @return samples written since the ring was created
+     */
+    public long getSampleCount() {
+        return mCount;
+    }
+
+    /*
+     * @return duration, or -1 if the samples were overwritten while they were copied
+     */
+    private long export(long durationUs, File output) throws IOException {
+        long count = mCount;
+        if (count == 0) {
+            throw new IOException("No samples");
+        }
+        // samples before these were overwritten, or are about to be
+        long minSample = Math.max(0, mClaimedCount - mMaxSamples);
+        long minPosition = mClaimedHead - mCapacity;
+
+        long from = getTime(count - 1) - durationUs;
+        long first = count - 1;
+        while (first - 1 >= minSample && getPosition(first - 1) >= minPosition && getTime(first - 1) >= from) {
+            first--;
+        }
+        while (!isSync(first) && first - 1 >= minSample && getPosition(first - 1) >= minPosition) {
+            first--;
+        }
+        while (first < count && !isSync(first)) {
+            first++;
+        }
+        if (first == count) {
+            if (isOverwritten(minSample, minPosition)) {
+                return -1;
+            }
+            throw new IOException("No keyframe in the last " + (count - minSample) + " samples");
+        }
+
+        Mp4TrackBuilder track = new Mp4TrackBuilder(TRACK_ID, Mp4Box.HANDLER_VIDEO, TIMESCALE);
+        track.mWidth = mWidth;
+        track.mHeight = mHeight;
+        track.addSampleEntry(mSampleEntry);
+        long firstTimeUs = getTime(first);
+        long lastTime = -1;
+        long payloadSize = 0;
+        for (long i = first; i < count; i++) {
+            long time = ((getTime(i) - firstTimeUs) * TIMESCALE + 500000L) / 1000000L;
+            if (time <= lastTime) {
+                time = lastTime + 1;
+            }
+            int size = getSize(i);
+            if (size <= 0 || size > mCapacity) {
+                // torn entry
+                return -1;
+            }
+            track.addSample(time, size, 0, isSync(i));
+            lastTime = time;
+            payloadSize += size;
+        }
+        int samples = track.mSampleCount;
+        long start = getPosition(first);
+        if (start < 0 || payloadSize > mCapacity
+                || getPosition(count - 1) + track.mSizes[samples - 1] - start != payloadSize) {
+            // torn entries
+            return -1;
+        }
+        track.addChunk(0, 0, samples, 1);
+        List<Mp4TrackBuilder> tracks = new ArrayList<>(1);
+        tracks.add(track);
+
+        RandomAccessFile out = new RandomAccessFile(output, "rw");
+        try {
+            FileChannel dst = out.getChannel();
+            dst.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt((int) payloadSize + 8).putInt(Mp4Box.MDAT);
+            header.flip();
+            writeFully(dst, Mp4MoovWriter.ftyp());
+            writeFully(dst, header);
+            ByteBuffer data = mData.duplicate();
+            int pos = (int) (start % mCapacity);
+            int firstPart = (int) Math.min(payloadSize, mCapacity - pos);
+            data.limit(pos + firstPart).position(pos);
+            writeFully(dst, data);
+            if (firstPart < payloadSize) {
+                data.limit((int) payloadSize - firstPart).position(0);
+                writeFully(dst, data);
+            }
+            if (isOverwritten(first, start)) {
+                return -1;
+            }
+            writeFully(dst, Mp4MoovWriter.moov(tracks, PAYLOAD_OFFSET, false));
+            dst.force(false);
+        } finally {
+            out.close();
+        }
+        return track.getDurationUs();
+    }
+
+    /*
+     * Whether the writer claimed the sample or the data position since they were read.
+     */
+    private boolean isOverwritten(long sample, long position) {
+        mFence = 0;
+        return sample < mClaimedCount - mMaxSamples || position < mClaimedHead - mCapacity;
+    }
+
+    private long getPosition(long sample) {
+        return mEntries.getLong((int) (sample % mMaxSamples) * ENTRY_SIZE);
+    }
+
+    private long getTime(long sample) {
+        return mEntries.getLong((int) (sample % mMaxSamples) * ENTRY_SIZE + 8);
+    }
+
+    private int getSize(long sample) {
+        return mEntries.getInt((int) (sample % mMaxSamples) * ENTRY_SIZE + 16);
+    }
+
+    private boolean isSync(long sample) {
+        return (mEntries.getInt((int) (sample % mMaxSamples) * ENTRY_SIZE + 20) & FLAG_SYNC) != 0;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+}
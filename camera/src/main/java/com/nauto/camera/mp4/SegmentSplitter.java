@@ -0,0 +1,139 @@
+package com.nauto.camera.mp4;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Splits a stream of encoded H.264 access units into segment files while the encoder keeps
+ * running.
+ *
+ * <p>A split requested with {@link #requestSplit} happens at the next keyframe: the current file
+ * ends where the keyframe starts and the keyframe opens the next file, so no frame is dropped or
+ * repeated and consecutive segments join without a gap. Access units before the first keyframe are
+ * dropped, as a segment can only start with one. Files are written with
+ * {@link FragmentedMp4Writer}.</p>
+ *
+ * <p>{@link #writeSampleData} and {@link #close} are called by the thread draining the encoder;
+ * {@link #requestSplit} may be called from any thread.</p>
+ */
+public final class SegmentSplitter implements Closeable {
+    private static final long DEFAULT_FRAME_US = 33333;
+
+    /**
+     * Names and reports the segments, called on the draining thread.
+     */
+    public interface Listener {
+        /**
+         * @param startUs presentation time of the keyframe starting the segment
+         * @return file to write the segment to
+         */
+        File onSegmentStart(long startUs) throws IOException;
+
+        /**
+         * @param file    closed segment file
+         * @param startUs presentation time of its first sample
+         * @param endUs   presentation time where it ends, the start of the next segment if any
+         */
+        void onSegmentFinished(File file, long startUs, long endUs);
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final ByteBuffer mCodecConfig;
+    private final Listener mListener;
+    private final AtomicBoolean mSplitRequested = new AtomicBoolean();
+
+    private FragmentedMp4Writer mWriter;
+    private long mStartUs;
+    private long mLastUs = -1;
+    private long mLastDeltaUs;
+    private long mDropped;
+    private int mSegments;
+
+    /**
+     * @param codecConfig SPS and PPS in Annex B format, copied
+     */
+    public SegmentSplitter(int width, int height, ByteBuffer codecConfig, Listener listener) {
+        mWidth = width;
+        mHeight = height;
+        mCodecConfig = ByteBuffer.allocate(codecConfig.remaining());
+        mCodecConfig.put(codecConfig.duplicate()).flip();
+        mListener = listener;
+    }
+
+    /**
+     * Start a new segment at the next keyframe.
+     */
+    public void requestSplit() {
+        mSplitRequested.set(true);
+    }
+
+    /**
+     * @return true if a split is requested and waits for a keyframe
+     */
+    public boolean isSplitPending() {
+        return mSplitRequested.get();
+    }
+
+    /**
+     * Add an access unit to the current segment, or start the next segment with it.
+     *
+     * @param accessUnit         NAL units in Annex B format, from position to limit
+     * @param presentationTimeUs presentation time in microseconds
+     * @param sync               true for a keyframe
+     */
+    public void writeSampleData(ByteBuffer accessUnit, long presentationTimeUs, boolean sync) throws IOException {
+        if (sync && (mSplitRequested.compareAndSet(true, false) || mWriter == null)) {
+            if (mWriter != null) {
+                finish(presentationTimeUs);
+            }
+            File file = mListener.onSegmentStart(presentationTimeUs);
+            mWriter = new FragmentedMp4Writer(file, mWidth, mHeight, mCodecConfig.duplicate());
+            mStartUs = presentationTimeUs;
+            mSegments++;
+        }
+        if (mWriter == null) {
+            mDropped++;
+            return;
+        }
+        if (mLastUs >= 0) {
+            mLastDeltaUs = presentationTimeUs - mLastUs;
+        }
+        mLastUs = presentationTimeUs;
+        mWriter.writeSampleData(accessUnit, presentationTimeUs, sync);
+    }
+
+    private void finish(long endUs) throws IOException {
+        FragmentedMp4Writer writer = mWriter;
+        mWriter = null;
+        writer.close(endUs);
+        mListener.onSegmentFinished(writer.getFile(), mStartUs, endUs);
+    }
+
+    /**
+     * Finish the current segment, its last sample lasting as long as the one before it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mWriter != null) {
+            finish(mLastUs + (mLastDeltaUs > 0 ? mLastDeltaUs : DEFAULT_FRAME_US));
+        }
+    }
+
+    /**
+     * @return access units dropped before the first keyframe
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * @return segments started
+     */
+    public int getSegmentCount() {
+        return mSegments;
+    }
+}
@@ -0,0 +1,124 @@
+package com.nauto.camera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Clip cache hits, LRU eviction, invalidation and reload from the directory.
+ */
+public class ClipCacheTest {
+    private File mDir;
+    private File mOut;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("clipCache", "");
+        mDir.delete();
+        mOut = File.createTempFile("clip", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+        mOut.delete();
+    }
+
+    private static File write(File file, int size, int value) throws IOException {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) value);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void testHitAndEviction() throws IOException {
+        ClipCache cache = new ClipCache(mDir, 3000);
+        File result = File.createTempFile("result", ".mp4");
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(cache.put("0", i * 10000, i * 10000 + 5000, "remux", "mp4", write(result, 1000, i)));
+            }
+            assertEquals(3000, cache.getSize());
+            assertFalse(cache.get("0", 0, 5000, "w640q90", "jpg", mOut));
+            assertFalse(cache.get("1", 0, 5000, "remux", "mp4", mOut));
+
+            // the hit makes the first entry the most recently used one
+            assertTrue(cache.get("0", 0, 5000, "remux", "mp4", mOut));
+            assertEquals(1000, mOut.length());
+            assertTrue(cache.put("0", 30000, 35000, "remux", "mp4", write(result, 1000, 3)));
+            assertEquals(3, cache.getCount());
+            assertFalse(cache.get("0", 10000, 15000, "remux", "mp4", mOut));
+            assertTrue(cache.get("0", 0, 5000, "remux", "mp4", mOut));
+        } finally {
+            result.delete();
+        }
+    }
+
+    @Test
+    public void testOutputRewrittenInPlace() throws IOException {
+        ClipCache cache = new ClipCache(mDir, 1 << 20);
+        // writers truncate and rewrite the same file for the next window
+        assertTrue(cache.put("0", 0, 5000, "remux", "mp4", write(mOut, 100, 1)));
+        RandomAccessFile raf = new RandomAccessFile(mOut, "rw");
+        raf.setLength(0);
+        raf.write(new byte[50]);
+        raf.close();
+        assertTrue(cache.put("0", 5000, 10000, "remux", "mp4", mOut));
+
+        File out = File.createTempFile("clip", ".mp4");
+        try {
+            assertTrue(cache.get("0", 0, 5000, "remux", "mp4", out));
+            assertEquals(100, out.length());
+            write(out, 10, 2);
+            assertTrue(cache.get("0", 0, 5000, "remux", "mp4", mOut));
+            assertEquals(100, mOut.length());
+        } finally {
+            out.delete();
+        }
+    }
+
+    @Test
+    public void testInvalidateAndReload() throws IOException {
+        ClipCache cache = new ClipCache(mDir, 1 << 20);
+        File result = File.createTempFile("result", ".mp4");
+        try {
+            cache.put("0", 10000, 20000, "remux", "mp4", write(result, 100, 1));
+            cache.put("0", 40000, 50000, "remux", "mp4", write(result, 100, 2));
+            cache.put("1", 10000, 20000, "remux", "mp4", write(result, 100, 3));
+            cache.put("0", 15000, 15000, "w640q90", "jpg", write(result, 10, 4));
+        } finally {
+            result.delete();
+        }
+        // a trimmed segment of camera 0 covering [0, 16000)
+        assertEquals(2, cache.invalidate("0", 0, 16000));
+        assertFalse(cache.get("0", 10000, 20000, "remux", "mp4", mOut));
+
+        // another process sees the same entries
+        ClipCache other = new ClipCache(mDir, 1 << 20);
+        assertEquals(2, other.getCount());
+        assertTrue(other.get("1", 10000, 20000, "remux", "mp4", mOut));
+        assertEquals(100, mOut.length());
+        assertTrue(other.get("0", 40000, 50000, "remux", "mp4", mOut));
+        assertTrue(new File(mDir, ".nomedia").exists());
+    }
+}
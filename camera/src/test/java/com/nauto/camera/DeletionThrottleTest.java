@@ -0,0 +1,63 @@
+package com.nauto.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Token buckets and write latency back-off of the deletion throttle.
+ */
+public class DeletionThrottleTest {
+    private static final long MB = 1024 * 1024;
+    private static final long MS = 1000 * 1000;
+
+    @Test
+    public void testBuckets() {
+        DeletionThrottle throttle = new DeletionThrottle();
+        long now = 1000;
+        // a full bucket lets a large file through and is in debt after it
+        assertEquals(0, throttle.acquire(100 * MB, 4, now));
+        long wait = throttle.acquire(10 * MB, 4, now);
+        // 36 MB of debt plus 10 MB at 32 MB/s
+        assertEquals(1438, wait);
+        assertTrue(throttle.acquire(10 * MB, 4, now + wait - 1) > 0);
+        assertEquals(0, throttle.acquire(10 * MB, 4, now + wait));
+
+        // small files are limited by operations
+        throttle = new DeletionThrottle();
+        assertEquals(0, throttle.acquire(MB, 4, now));
+        assertEquals(0, throttle.acquire(MB, 4, now));
+        assertEquals(50, throttle.acquire(MB, 1, now));
+        assertEquals(0, throttle.acquire(MB, 1, now + 50));
+    }
+
+    @Test
+    public void testBackOff() {
+        DeletionThrottle throttle = new DeletionThrottle();
+        long now = 1000;
+        throttle.onWriteLatency(80 * MS, now);
+        assertEquals(0.5, throttle.getScale(), 1e-9);
+        // once per interval
+        throttle.onWriteLatency(80 * MS, now + 10);
+        assertEquals(0.5, throttle.getScale(), 1e-9);
+        for (int i = 1; i <= 5; i++) {
+            throttle.onWriteLatency(80 * MS, now + i * DeletionThrottle.BACK_OFF_INTERVAL_MS);
+        }
+        assertEquals(DeletionThrottle.MIN_SCALE, throttle.getScale(), 1e-9);
+
+        // an empty bucket now refills at a sixteenth of the rate
+        assertEquals(0, throttle.acquire(64 * MB, 1, now + 5000));
+        assertEquals(32000, throttle.acquire(64 * MB, 1, now + 5000));
+
+        // no recovery while the average latency is high
+        throttle.acquire(0, 0, now + 6000);
+        assertEquals(DeletionThrottle.MIN_SCALE, throttle.getScale(), 1e-9);
+        for (int i = 0; i < 100; i++) {
+            throttle.onWriteLatency(MS, now + 6000);
+        }
+        throttle.acquire(0, 0, now + 6000 + DeletionThrottle.RECOVERY_MS / 2);
+        assertEquals(DeletionThrottle.MIN_SCALE + 0.5, throttle.getScale(), 1e-9);
+        throttle.acquire(0, 0, now + 6000 + DeletionThrottle.RECOVERY_MS);
+        assertEquals(1, throttle.getScale(), 1e-9);
+    }
+}
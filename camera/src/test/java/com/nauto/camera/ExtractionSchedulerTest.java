@@ -0,0 +1,145 @@
+package com.nauto.camera;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Extraction scheduler coalescing, priorities and per-volume read limits with a fake backend.
+ */
+public class ExtractionSchedulerTest {
+
+    private static class FakeBackend implements ExtractionScheduler.Backend {
+        final List<String> mCalls = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger mReads = new AtomicInteger();
+        final AtomicInteger mMaxReads = new AtomicInteger();
+        volatile CountDownLatch mGate;
+        volatile long mShiftUs;
+
+        @Override
+        public long[] query(String cameraId, List<String> items, long start, long end) {
+            items.add(cameraId + "_" + start + ".mp4");
+            mCalls.add("query " + cameraId + " " + start + "-" + end);
+            return new long[]{0, end - start, 0};
+        }
+
+        @Override
+        public long extract(List<String> items, long[] cuts, File out) {
+            int reads = mReads.incrementAndGet();
+            while (true) {
+                int max = mMaxReads.get();
+                if (reads <= max || mMaxReads.compareAndSet(max, reads)) {
+                    break;
+                }
+            }
+            try {
+                CountDownLatch gate = mGate;
+                if (gate != null) {
+                    gate.await(5, TimeUnit.SECONDS);
+                } else {
+                    Thread.sleep(20);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mReads.decrementAndGet();
+            mCalls.add("extract " + items.get(0) + " " + cuts[1]);
+            return mShiftUs;
+        }
+
+        @Override
+        public boolean cut(File in, long startUs, long endUs, File out) {
+            mCalls.add("cut " + out.getName() + " " + startUs + "-" + endUs);
+            return true;
+        }
+
+        @Override
+        public boolean fromCache(ExtractionScheduler.Job job) {
+            return false;
+        }
+
+        @Override
+        public void register(ExtractionScheduler.Job job) {
+            mCalls.add("register " + new File(job.getOutVideo()).getName());
+        }
+
+        @Override
+        public String getVolume(String cameraId) {
+            return "/sdcard";
+        }
+    }
+
+    @Test
+    public void testCoalescingAndPriority() throws Exception {
+        FakeBackend backend = new FakeBackend();
+        backend.mGate = new CountDownLatch(1);
+        backend.mShiftUs = 500000;
+        ExtractionScheduler scheduler = new ExtractionScheduler(backend, 1, 1);
+        // occupy the only worker so that the next requests queue up
+        ExtractionScheduler.Job blocker = scheduler.submit("1", 0, 10000, "/tmp/blocker.mp4",
+                ExtractionScheduler.PRIORITY_BACKGROUND, null);
+        while (backend.mReads.get() == 0) {
+            Thread.sleep(1);
+        }
+        ExtractionScheduler.Job a = scheduler.submit("0", 100000, 130000, "/tmp/a.mp4",
+                ExtractionScheduler.PRIORITY_BACKGROUND, null);
+        ExtractionScheduler.Job b = scheduler.submit("0", 120000, 150000, "/tmp/b.mp4",
+                ExtractionScheduler.PRIORITY_BACKGROUND, null);
+        ExtractionScheduler.Job user = scheduler.submit("0", 500000, 510000, "/tmp/user.mp4",
+                ExtractionScheduler.PRIORITY_USER, null);
+        backend.mGate.countDown();
+        backend.mGate = null;
+        assertTrue(blocker.get(5, TimeUnit.SECONDS));
+        assertTrue(a.get(5, TimeUnit.SECONDS));
+        assertTrue(b.get(5, TimeUnit.SECONDS));
+        assertTrue(user.get(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+
+        assertFalse(user.isCoalesced());
+        assertTrue(a.isCoalesced());
+        assertTrue(b.isCoalesced());
+        assertEquals(1f, a.getProgress(), 0);
+
+        List<String> calls = new ArrayList<>(backend.mCalls);
+        // the user request overtakes the earlier background ones
+        assertTrue(calls.indexOf("register user.mp4") < calls.indexOf("query 0 100000-150000"));
+        // both background requests are served by one read of the union window
+        int reads = 0;
+        for (String call : calls) {
+            if (call.startsWith("extract 0_100000")) {
+                reads++;
+            }
+        }
+        assertEquals(1, reads);
+        assertTrue(calls.contains("cut a.mp4 0-29500000"));
+        assertTrue(calls.contains("cut b.mp4 19500000-49500000"));
+        assertTrue(calls.contains("register a.mp4"));
+        assertTrue(calls.contains("register b.mp4"));
+    }
+
+    @Test
+    public void testReadsPerVolume() throws Exception {
+        FakeBackend backend = new FakeBackend();
+        ExtractionScheduler scheduler = new ExtractionScheduler(backend, 4, 1);
+        List<ExtractionScheduler.Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            long start = i * 1000000L;
+            jobs.add(scheduler.submit("0", start, start + 10000, "/tmp/clip" + i + ".mp4",
+                    ExtractionScheduler.PRIORITY_BACKGROUND, null));
+        }
+        for (ExtractionScheduler.Job job : jobs) {
+            assertTrue(job.get(5, TimeUnit.SECONDS));
+            assertTrue(job.getStageTimeMs(ExtractionScheduler.STAGE_READ) > 0);
+        }
+        scheduler.shutdown();
+        assertEquals(1, backend.mMaxReads.get());
+    }
+}
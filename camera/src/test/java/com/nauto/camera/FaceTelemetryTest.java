@@ -0,0 +1,190 @@
+package com.nauto.camera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writing the columnar face telemetry and answering time range queries from it.
+ */
+public class FaceTelemetryTest {
+    private static final long DAY = FaceTelemetry.DAY_MS;
+    private static final long T0 = 17000 * DAY + 1000;
+    private static final int FRAME = 33;
+    private static final long GAP = 5000;
+
+    private File mDir;
+    private FaceTelemetry mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("faces", "");
+        mDir.delete();
+        mStore = new FaceTelemetry(mDir);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    /*
+     * Frames 0-299 one face, 300-499 none, 500-599 two faces, 600-689 none, 690-799 one face,
+     * 800-899 none, a gap in recording, 900-1099 none.
+     */
+    private static int count(int i) {
+        if (i < 300) {
+            return 1;
+        } else if (i < 500) {
+            return 0;
+        } else if (i < 600) {
+            return 2;
+        } else if (i < 690) {
+            return 0;
+        } else if (i < 800) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private static long time(int i) {
+        return T0 + i * FRAME + (i >= 900 ? GAP : 0);
+    }
+
+    private void write(int from, int to) throws IOException {
+        FaceTelemetry.Writer writer = new FaceTelemetry.Writer(mStore, "1");
+        for (int i = from; i < to; i++) {
+            if (i == 300 || i == 450 || i == 600 || i == 800) {
+                // blocks of one count are skipped by queries that cannot match them
+                writer.flush();
+            }
+            int n = count(i);
+            writer.append(time(i), n);
+            for (int j = 0; j < n; j++) {
+                writer.appendFace(100 * j, 200, 300, 400, 90);
+            }
+        }
+        writer.close();
+    }
+
+    @Test
+    public void testIntervals() throws IOException {
+        write(0, 1100);
+        long[] absent = mStore.findIntervals("1", T0 - DAY, T0 + DAY, FaceTelemetry.Predicate.countEquals(0, 5000));
+        // the frames before and after the gap do not join
+        assertArrayEquals(new long[]{time(300), time(500), time(900), time(1099) + FRAME}, absent);
+        assertArrayEquals(new long[]{time(300), time(500), time(600), time(690), time(800), time(899) + FRAME,
+                time(900), time(1099) + FRAME}, mStore.findIntervals("1", T0, T0 + DAY, FaceTelemetry.Predicate.countEquals(0, 0)));
+        assertArrayEquals(new long[]{time(0), time(500), time(600), time(899) + FRAME, time(900), time(1099) + FRAME},
+                mStore.findIntervals("1", T0, T0 + DAY, FaceTelemetry.Predicate.countBetween(0, 1, 5000)));
+        assertEquals(0, mStore.findIntervals("1", T0, T0 + DAY, FaceTelemetry.Predicate.countAtLeast(3, 0)).length);
+        // clipped to the range
+        assertArrayEquals(new long[]{time(350), time(450)},
+                mStore.findIntervals("1", time(350), time(450), FaceTelemetry.Predicate.countAtMost(0, 3000)));
+        assertEquals(0, mStore.findIntervals("0", T0, T0 + DAY, FaceTelemetry.Predicate.countEquals(0, 0)).length);
+    }
+
+    @Test
+    public void testBackgroundWriter() throws IOException, InterruptedException {
+        // frames are dropped while every block waits for the executor, the rest is written by it
+        ExecutorService stalled = Executors.newSingleThreadExecutor();
+        final Object gate = new Object();
+        synchronized (gate) {
+            stalled.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (gate) {
+                        gate.notify();
+                    }
+                }
+            });
+            FaceTelemetry.Writer writer = new FaceTelemetry.Writer(mStore, "0", stalled);
+            for (int i = 0; i <= FaceTelemetry.Writer.BLOCKS; i++) {
+                writer.append(time(i), 1);
+                writer.appendFace(1, 2, 3, 4, 5);
+                writer.flush();
+            }
+            assertEquals(1, writer.getDroppedCount());
+            writer.close();
+            // nothing is written by the appending thread
+            assertFalse(mStore.getFile("0", T0).exists());
+            gate.wait();
+        }
+        stalled.shutdown();
+        assertTrue(stalled.awaitTermination(10, TimeUnit.SECONDS));
+        assertArrayEquals(new long[]{0, 3 * FRAME}, mStore.queryFaceCount("0", T0, T0 + DAY));
+    }
+
+    @Test
+    public void testFaceCount() throws IOException {
+        write(0, 1100);
+        long[] durations = mStore.queryFaceCount("1", T0, T0 + DAY);
+        assertArrayEquals(new long[]{590 * FRAME, 410 * FRAME, 100 * FRAME}, durations);
+        assertArrayEquals(new long[]{100 * FRAME}, mStore.queryFaceCount("1", time(300), time(400)));
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        write(0, 800);
+        File file = mStore.getFile("1", T0);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long length = raf.length();
+        // the last block, frames 600-799, loses its last bytes
+        raf.setLength(length - 5);
+        raf.close();
+        assertArrayEquals(new long[]{0, 300 * FRAME}, mStore.queryFaceCount("1", T0, time(300)));
+        long[] durations = mStore.queryFaceCount("1", T0, T0 + DAY);
+        assertEquals(3, durations.length);
+        assertEquals(300 * FRAME, durations[1]);
+        assertEquals(100 * FRAME, durations[2]);
+
+        // the next writer drops it and appends after the blocks that are whole
+        write(800, 1100);
+        int header = FaceTelemetry.BLOCK_HEADER_SIZE;
+        assertEquals(length - (header + 200 * 3 + 110 * 10) + header + 300 * 3, file.length());
+        assertArrayEquals(new long[]{time(300), time(500), time(900), time(1099) + FRAME},
+                mStore.findIntervals("1", T0, T0 + DAY, FaceTelemetry.Predicate.countEquals(0, 5000)));
+    }
+
+    @Test
+    public void testDays() throws IOException {
+        long midnight = 17001 * DAY;
+        FaceTelemetry.Writer writer = new FaceTelemetry.Writer(mStore, "0");
+        for (long t = midnight - 3000; t < midnight + 3000; t += FRAME) {
+            writer.append(t, 0);
+        }
+        // a clock step back starts a new block
+        for (long t = midnight + 1000; t < midnight + 2000; t += FRAME) {
+            writer.append(t, 1);
+            writer.appendFace(1, 2, 3, 4, 5);
+        }
+        writer.close();
+        assertTrue(mStore.getFile("0", midnight - 1).exists());
+        assertTrue(mStore.getFile("0", midnight).exists());
+        long[] absent = mStore.findIntervals("0", midnight - DAY, midnight + DAY, FaceTelemetry.Predicate.countEquals(0, 5000));
+        assertArrayEquals(new long[]{midnight - 3000, midnight + 2973 + FRAME}, absent);
+
+        // a later day deletes the files out of retention
+        writer = new FaceTelemetry.Writer(mStore, "0");
+        writer.append(midnight, 0);
+        writer.append(midnight + (FaceTelemetry.KEEP_DAYS - 1) * DAY, 0);
+        writer.close();
+        assertFalse(mStore.getFile("0", midnight - 1).exists());
+        assertTrue(mStore.getFile("0", midnight).exists());
+    }
+}
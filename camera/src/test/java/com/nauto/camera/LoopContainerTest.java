@@ -0,0 +1,152 @@
+package com.nauto.camera;
+
+import com.nauto.camera.mp4.Mp4Movie;
+import com.nauto.camera.mp4.Mp4Parser;
+import com.nauto.camera.mp4.Mp4Track;
+import com.nauto.camera.mp4.SyntheticMp4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Appending segments to the circular container, wrapping around, reopening and extracting clips.
+ */
+public class LoopContainerTest {
+    private static final int SEGMENTS = 6;
+    private static final long SEGMENT_MS = 10000;
+    private static final long T0 = 1500000000000L;
+
+    private File mDir;
+    private File[] mSegments = new File[SEGMENTS];
+    private long mMaxLength;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("loop", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        for (int i = 0; i < SEGMENTS; i++) {
+            mSegments[i] = new File(mDir, "0_" + (T0 + i * SEGMENT_MS) + ".mp4");
+            new SyntheticMp4().seconds(10).seed(i).tagged(true).write(mSegments[i]);
+            mMaxLength = Math.max(mMaxLength, mSegments[i].length());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : mDir.listFiles()) {
+            f.delete();
+        }
+        mDir.delete();
+    }
+
+    private LoopContainer open() throws IOException {
+        // room for three and a half segments
+        return new LoopContainer(LoopContainer.getFile(mDir, "0"), mMaxLength * 7 / 2, 16);
+    }
+
+    @Test
+    public void testAppendAndWrap() throws IOException {
+        LoopContainer container = open();
+        try {
+            for (int i = 0; i < SEGMENTS; i++) {
+                LoopContainer.Record r = container.append(mSegments[i], T0 + i * SEGMENT_MS, SEGMENT_MS);
+                assertEquals(i, r.getSequence());
+                assertEquals(mSegments[i].length(), r.getLength());
+            }
+            List<LoopContainer.Record> records = container.getRecords();
+            assertEquals(3, records.size());
+            assertEquals(3, records.get(0).getSequence());
+            assertEquals(T0 + 5 * SEGMENT_MS, records.get(2).getStart());
+            // the lap after the third segment starts over at the beginning of the data area
+            assertEquals(records.get(0).getOffset(), records.get(2).getOffset() - records.get(1).getLength()
+                    - records.get(0).getLength());
+        } finally {
+            container.close();
+        }
+
+        // geometry and records survive a reopen
+        container = new LoopContainer(LoopContainer.getFile(mDir, "0"), 0, 0);
+        try {
+            assertEquals(16, container.getMaxRecords());
+            List<LoopContainer.Record> records = container.getRecords();
+            assertEquals(3, records.size());
+            assertEquals(5, records.get(2).getSequence());
+
+            assertEquals(1, container.trim(T0 + 4 * SEGMENT_MS + 1));
+            assertEquals(4, container.getRecords().get(0).getSequence());
+        } finally {
+            container.close();
+        }
+    }
+
+    @Test
+    public void testTornHeader() throws IOException {
+        LoopContainer container = open();
+        try {
+            container.append(mSegments[0], T0, SEGMENT_MS);
+            container.append(mSegments[1], T0 + SEGMENT_MS, SEGMENT_MS);
+        } finally {
+            container.close();
+        }
+        // the copy written last, at the start of the file, is torn and the other one has the first
+        // segment only
+        File file = LoopContainer.getFile(mDir, "0");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(40);
+            raf.writeInt(0x12345678);
+        } finally {
+            raf.close();
+        }
+        container = open();
+        try {
+            List<LoopContainer.Record> records = container.getRecords();
+            assertEquals(1, records.size());
+            assertEquals(T0, records.get(0).getStart());
+        } finally {
+            container.close();
+        }
+    }
+
+    @Test
+    public void testExtract() throws IOException {
+        LoopContainer container = open();
+        File out = new File(mDir, "clip.mp4");
+        try {
+            for (int i = 0; i < SEGMENTS; i++) {
+                container.append(mSegments[i], T0 + i * SEGMENT_MS, SEGMENT_MS);
+            }
+            // 15 s from the middle of segment 3 into segment 5
+            long durationUs = container.extract(T0 + 35000, T0 + 50000, false, out);
+            assertEquals(15000000, durationUs);
+            Mp4Movie movie = Mp4Parser.parse(out);
+            Mp4Track video = movie.getVideoTrack();
+            assertEquals(450, video.getSampleCount());
+            RandomAccessFile raf = new RandomAccessFile(out, "r");
+            try {
+                long[] offsets = video.getSampleOffsets();
+                for (int i = 0; i < 450; i++) {
+                    int expected = i < 150 ? 150 + i : i - 150;
+                    assertEquals("video sample " + i, 1L << 32 | expected, SyntheticMp4.readTag(raf, offsets[i]));
+                }
+            } finally {
+                raf.close();
+            }
+
+            // frame accurate, a segment that was overwritten plays as a gap
+            durationUs = container.extract(T0 + 25000, T0 + 40000, true, out);
+            assertEquals(15000000, durationUs);
+            assertEquals(15000, Mp4Parser.parse(out).getDuration());
+        } finally {
+            container.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.nauto.camera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hourly shards of original videos and moving a flat layout into them.
+ */
+public class OriginalVideoLayoutTest {
+    // 2017-07-14 02:40:00 UTC
+    private static final long T0 = 1500000000000L;
+    private static final long HOUR = OriginalVideoLayout.SHARD_DURATION;
+
+    private File mRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("media", "");
+        assertTrue(mRoot.delete() && mRoot.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        delete(mRoot);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    @Test
+    public void testShards() throws IOException {
+        OriginalVideoLayout layout = new OriginalVideoLayout(mRoot, true);
+        File file = layout.getFile("0", T0);
+        assertEquals(new File(mRoot, "originalVideo/2017/07/14/02/0_" + T0 + ".mp4"), file);
+        assertEquals(T0 - 40 * 60000, layout.getShardStart(file.getParentFile()));
+        assertEquals(-1, layout.getShardStart(layout.getDirectory()));
+
+        // out of order, across a day
+        long[] starts = {T0 + 22 * HOUR, T0, T0 + HOUR};
+        for (long start : starts) {
+            File f = layout.getFile("1", start);
+            assertTrue(f.getParentFile().mkdirs());
+            assertTrue(f.createNewFile());
+        }
+        List<File> shards = layout.getShards();
+        assertEquals(3, shards.size());
+        assertEquals(layout.getShard(T0), shards.get(0));
+        assertEquals(layout.getShard(T0 + HOUR), shards.get(1));
+        assertEquals(new File(mRoot, "originalVideo/2017/07/15/00"), shards.get(2));
+
+        assertTrue(layout.getFile("1", T0 + 22 * HOUR).delete());
+        layout.deleteIfEmpty(shards.get(2));
+        assertFalse(new File(mRoot, "originalVideo/2017/07/15").exists());
+        assertTrue(new File(mRoot, "originalVideo/2017/07").exists());
+
+        OriginalVideoLayout flat = new OriginalVideoLayout(mRoot, false);
+        assertEquals(new File(mRoot, "originalVideo/0_" + T0 + ".mp4"), flat.getFile("0", T0));
+    }
+
+    @Test
+    public void testSlots() throws IOException {
+        long slot = 300000;
+        assertEquals(T0, OriginalVideoLayout.getSlotStart(T0, slot));
+        assertEquals(T0, OriginalVideoLayout.getSlotStart(T0 + slot - 1, slot));
+        assertEquals(-slot, OriginalVideoLayout.getSlotStart(-1, slot));
+
+        OriginalVideoLayout layout = new OriginalVideoLayout(mRoot, true);
+        List<String> paths = new ArrayList<>();
+        layout.getSlotFiles("0", slot, T0 + 2 * slot + 1000, T0 + 5 * slot, paths);
+        assertEquals(3, paths.size());
+        assertEquals(layout.getFile("0", T0 + 2 * slot).getAbsolutePath(), paths.get(0));
+        assertEquals(layout.getFile("0", T0 + 4 * slot).getAbsolutePath(), paths.get(2));
+        // across the hour, into the next shard
+        paths.clear();
+        layout.getSlotFiles("0", slot, T0 + 3 * slot, T0 + 5 * slot + 1, paths);
+        assertEquals(3, paths.size());
+        assertEquals(layout.getFile("0", T0 + 4 * slot).getAbsolutePath(), paths.get(1));
+        assertFalse(new File(paths.get(0)).getParent().equals(new File(paths.get(1)).getParent()));
+        // names only, nothing is looked up
+        paths.clear();
+        layout.getSlotFiles("1", slot, T0, T0 + 1, paths);
+        assertEquals(layout.getFile("1", T0).getAbsolutePath(), paths.get(0));
+        assertFalse(new File(paths.get(0)).exists());
+    }
+
+    @Test
+    public void testMigrate() throws IOException {
+        OriginalVideoLayout flat = new OriginalVideoLayout(mRoot, false);
+        assertTrue(flat.getDirectory().mkdir());
+        for (int i = 0; i < 3; i++) {
+            File f = flat.getFile(i == 2 ? "1" : "0", T0 + i * HOUR);
+            assertTrue(f.createNewFile());
+            for (String suffix : OriginalVideoLayout.SIDECAR_SUFFIXES) {
+                assertTrue(new File(f.getPath() + suffix).createNewFile());
+            }
+        }
+
+        OriginalVideoLayout layout = new OriginalVideoLayout(mRoot, true);
+        final List<File> moved = new ArrayList<>();
+        assertEquals(2, layout.migrate("0", new OriginalVideoLayout.Listener() {
+            @Override
+            public void onMoved(File from, File to) {
+                assertFalse(from.exists());
+                moved.add(to);
+            }
+        }));
+        assertEquals(2, moved.size());
+        for (int i = 0; i < 2; i++) {
+            File f = layout.getFile("0", T0 + i * HOUR);
+            assertTrue(moved.contains(f));
+            assertTrue(f.exists());
+            for (String suffix : OriginalVideoLayout.SIDECAR_SUFFIXES) {
+                assertTrue(new File(f.getPath() + suffix).exists());
+                assertFalse(new File(flat.getFile("0", T0 + i * HOUR).getPath() + suffix).exists());
+            }
+        }
+        // the other camera is left alone
+        assertTrue(flat.getFile("1", T0 + 2 * HOUR).exists());
+        assertEquals(0, layout.migrate("0", null));
+    }
+}
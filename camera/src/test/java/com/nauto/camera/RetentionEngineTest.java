@@ -0,0 +1,148 @@
+package com.nauto.camera;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Quotas, maximum ages and pinned event footage of the retention engine.
+ */
+public class RetentionEngineTest {
+    private static final long T0 = 1500000000000L;
+    private static final long SEGMENT_MS = 60000;
+    private static final long MB = 1024 * 1024;
+
+    private static String path(String cameraId, long start) {
+        return "/media/originalVideo/" + cameraId + "_" + start + ".mp4";
+    }
+
+    /*
+     * Ten one minute segments of 10 MB per camera, camera 1 a second behind.
+     */
+    private static RetentionEngine engine() {
+        RetentionEngine engine = new RetentionEngine();
+        for (int i = 0; i < 10; i++) {
+            long start = T0 + i * SEGMENT_MS;
+            engine.add(RetentionEngine.ORIGINAL_0, path("0", start), start, start + SEGMENT_MS, 10 * MB);
+            engine.add(RetentionEngine.ORIGINAL_1, path("1", start + 1000), start + 1000, start + 1000 + SEGMENT_MS, 10 * MB);
+        }
+        return engine;
+    }
+
+    @Test
+    public void testFreeSpace() {
+        RetentionEngine engine = engine();
+        assertEquals(100 * MB, engine.getBytes(RetentionEngine.ORIGINAL_0));
+        long now = T0 + 10 * SEGMENT_MS;
+        assertTrue(engine.plan(now, 0).isEmpty());
+
+        // the oldest of both cameras in turn
+        List<RetentionEngine.Item> plan = engine.plan(now, 25 * MB);
+        assertEquals(3, plan.size());
+        assertEquals(path("0", T0), plan.get(0).getPath());
+        assertEquals(path("1", T0 + 1000), plan.get(1).getPath());
+        assertEquals(path("0", T0 + SEGMENT_MS), plan.get(2).getPath());
+        assertEquals(80 * MB, engine.getBytes(RetentionEngine.ORIGINAL_0));
+        assertFalse(engine.contains(plan.get(0).getPath()));
+
+        assertTrue(engine.remove(path("1", T0 + SEGMENT_MS + 1000)));
+        assertFalse(engine.remove(path("1", T0 + SEGMENT_MS + 1000)));
+        assertEquals(80 * MB, engine.getBytes(RetentionEngine.ORIGINAL_1));
+    }
+
+    @Test
+    public void testQuotaAndAge() {
+        RetentionEngine engine = engine();
+        for (int i = 0; i < 5; i++) {
+            long t = T0 + i * SEGMENT_MS;
+            engine.add(RetentionEngine.EXTRACTED, "/media/ex_0_" + t + ".mp4", t, t + 10000, MB);
+            engine.add(RetentionEngine.SNAPSHOT, "/media/0_" + t + ".jpg", t, t, MB / 10);
+        }
+        engine.setPolicy(RetentionEngine.ORIGINAL_1, 75 * MB, 0);
+        engine.setPolicy(RetentionEngine.EXTRACTED, 0, 3 * SEGMENT_MS);
+        long now = T0 + 6 * SEGMENT_MS;
+        List<RetentionEngine.Item> plan = engine.plan(now, 0);
+        // three segments of camera 1 over the quota, three clips ending more than three minutes ago
+        assertEquals(6, plan.size());
+        assertEquals(RetentionEngine.ORIGINAL_1, plan.get(0).getMediaClass());
+        assertEquals(RetentionEngine.EXTRACTED, plan.get(3).getMediaClass());
+        assertEquals(70 * MB, engine.getBytes(RetentionEngine.ORIGINAL_1));
+        assertEquals(2, engine.getCount(RetentionEngine.EXTRACTED));
+        assertEquals(5, engine.getCount(RetentionEngine.SNAPSHOT));
+        assertTrue(engine.plan(now, 0).isEmpty());
+    }
+
+    @Test
+    public void testPins() {
+        RetentionEngine engine = engine();
+        long now = T0 + 10 * SEGMENT_MS;
+        // an event in the second and third minute
+        engine.pin(T0 + SEGMENT_MS + 30000, T0 + 2 * SEGMENT_MS + 30000, now + 3600000);
+        List<RetentionEngine.Item> plan = engine.plan(now, 40 * MB);
+        assertEquals(4, plan.size());
+        assertEquals(path("0", T0), plan.get(0).getPath());
+        assertEquals(path("1", T0 + 1000), plan.get(1).getPath());
+        // segments 1 and 2 of both cameras are skipped
+        assertEquals(path("0", T0 + 3 * SEGMENT_MS), plan.get(2).getPath());
+        assertEquals(path("1", T0 + 3 * SEGMENT_MS + 1000), plan.get(3).getPath());
+        for (RetentionEngine.Item item : plan) {
+            assertFalse(item.isPinned());
+        }
+        assertEquals(80 * MB, engine.getBytes(RetentionEngine.ORIGINAL_0));
+
+        // a full card does not take pinned footage
+        plan = engine.plan(now, 150 * MB);
+        assertEquals(12, plan.size());
+        for (RetentionEngine.Item item : plan) {
+            assertFalse(item.isPinned());
+        }
+        assertTrue(engine.isPinned(T0 + SEGMENT_MS, now));
+        assertFalse(engine.isPinned(T0 + 3 * SEGMENT_MS, now));
+        // only when asked for the pinned footage, once nothing else is left
+        plan = engine.planPinned(now, 30 * MB);
+        assertEquals(3, plan.size());
+        assertEquals(path("0", T0 + SEGMENT_MS), plan.get(0).getPath());
+        assertTrue(plan.get(0).isPinned());
+        assertEquals(10 * MB, engine.getBytes(RetentionEngine.ORIGINAL_0) + engine.getBytes(RetentionEngine.ORIGINAL_1));
+
+        // segments are released when the pin expires
+        engine = engine();
+        engine.pin(T0, T0 + SEGMENT_MS, now + 1000);
+        assertEquals(path("0", T0 + SEGMENT_MS), engine.plan(now, 1).get(0).getPath());
+        assertEquals(path("0", T0), engine.plan(now + 1000, 1).get(0).getPath());
+
+        // a long recovered video reaching into a pin from far before it
+        engine = engine();
+        long longStart = T0 - 30 * SEGMENT_MS;
+        engine.add(RetentionEngine.ORIGINAL_0, path("0", longStart), longStart, T0 + 1000, 300 * MB);
+        engine.pin(T0 + 500, T0 + 30000, now + 3600000);
+        plan = engine.plan(now, 1);
+        // the first segments of both cameras are pinned too
+        assertEquals(path("0", T0 + SEGMENT_MS), plan.get(0).getPath());
+        assertTrue(engine.contains(path("0", longStart)));
+    }
+
+    @Test
+    public void testPinFile() throws IOException {
+        File file = File.createTempFile("retention", ".pins");
+        try {
+            long now = T0;
+            // expired pins are dropped when the file is full
+            for (int i = 0; i < 3000; i++) {
+                RetentionEngine.appendPin(file, T0 + i, T0 + i + 1, i < 2000 ? now : now + 1000, now);
+            }
+            assertTrue(file.length() <= 64 * 1024);
+            RetentionEngine engine = engine();
+            assertEquals(1000, engine.readPins(file, now));
+            assertEquals(path("0", T0 + SEGMENT_MS), engine.plan(now, 1).get(0).getPath());
+            assertEquals(0, engine.readPins(file, now + 1000));
+            assertEquals(path("0", T0), engine.plan(now + 1000, 1).get(0).getPath());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.nauto.camera;
+
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Segment index lookups.
+ */
+public class SegmentIndexTest {
+
+    private static SegmentIndex createIndex(int n) {
+        SegmentIndex index = new SegmentIndex("0");
+        // add out of order to exercise insertion
+        for (int i = n - 1; i >= 0; i--) {
+            long start = 1000000L + i * 30000L;
+            index.add(start, 30000, 1024, "/media/originalVideo/0_" + start + ".mp4");
+        }
+        return index;
+    }
+
+    @Test
+    public void testPointLookup() {
+        SegmentIndex index = createIndex(100);
+        assertEquals(100, index.size());
+        assertEquals(100 * 1024, index.getTotalSize());
+        assertEquals(-1, index.find(999999));
+        assertEquals(0, index.find(1000000));
+        assertEquals(0, index.find(1029999));
+        assertEquals(1, index.find(1030000));
+        assertEquals(99, index.find(1000000L + 99 * 30000L + 10));
+        assertEquals(-1, index.find(1000000L + 100 * 30000L));
+        assertEquals("/media/originalVideo/0_1030000.mp4", index.getPath(1045000));
+        assertEquals(1000000, index.getNextStart(0));
+        assertEquals(1060000, index.getNextStart(1030000));
+        assertEquals(Long.MAX_VALUE, index.getNextStart(1000000L + 99 * 30000L));
+        assertEquals(1, index.indexOf("/media/originalVideo/0_1030000.mp4", 1030000, 1035000));
+        assertEquals(-1, index.indexOf("/media/originalVideo/0_1030000.mp4", 1030001, 1035000));
+    }
+
+    @Test
+    public void testRangeQuery() {
+        SegmentIndex index = createIndex(100);
+        List<String> items = new LinkedList<>();
+        long[] cuts = index.query(items, 1045000, 1095000);
+        assertEquals(3, items.size());
+        assertEquals("/media/originalVideo/0_1030000.mp4", items.get(0));
+        assertEquals("/media/originalVideo/0_1090000.mp4", items.get(2));
+        assertEquals(15000, cuts[0]);
+        assertEquals(5000, cuts[1]);
+        assertEquals(0, cuts[2]);
+    }
+
+    @Test
+    public void testRangeQueryWithGap() {
+        SegmentIndex index = createIndex(10);
+        assertTrue(index.remove("/media/originalVideo/0_1060000.mp4"));
+        assertFalse(index.remove("/media/originalVideo/0_1060000.mp4"));
+        List<String> items = new LinkedList<>();
+        long[] cuts = index.query(items, 1045000, 1095000);
+        assertEquals(2, items.size());
+        assertEquals(30000, cuts[2]);
+        assertEquals(9 * 1024, index.getTotalSize());
+    }
+
+    @Test
+    public void testShortSegmentsIgnored() {
+        SegmentIndex index = new SegmentIndex("1");
+        index.add(1000, 500, 10, "/a/1_1000.mp4");
+        index.add(1500, 30000, 10, "/a/1_1500.mp4");
+        List<String> items = new LinkedList<>();
+        index.query(items, 1000, 2000);
+        assertEquals(1, items.size());
+        assertEquals("/a/1_1500.mp4", items.get(0));
+    }
+
+    @Test
+    public void testListenerFollowsChanges() {
+        SegmentIndex index = new SegmentIndex("0");
+        final List<String> events = new LinkedList<>();
+        index.setListener(new SegmentIndex.Listener() {
+            @Override
+            public void onAdded(SegmentIndex index, long start, long duration, long size, String path) {
+                events.add("+" + path);
+            }
+
+            @Override
+            public void onRemoved(SegmentIndex index, String path) {
+                events.add("-" + path);
+            }
+
+            @Override
+            public void onCleared(SegmentIndex index) {
+                events.add("clear");
+            }
+        });
+        index.add(1000, 30000, 10, "/a/0_1000.mp4");
+        index.add(31000, 30000, 10, "/a/0_31000.mp4");
+        assertTrue(index.remove("/a/0_1000.mp4"));
+        assertFalse(index.remove("/a/0_1000.mp4"));
+        index.clear();
+        assertEquals("[+/a/0_1000.mp4, +/a/0_31000.mp4, -/a/0_1000.mp4, clear]", events.toString());
+    }
+}
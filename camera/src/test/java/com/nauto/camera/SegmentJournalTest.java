@@ -0,0 +1,144 @@
+package com.nauto.camera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Segment journal replay, compaction and torn tail handling.
+ */
+public class SegmentJournalTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("segments0", ".journal");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    private static void addSegments(SegmentJournal journal, SegmentIndex index, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            long start = 1000000L + i * 30000L;
+            journal.add(index, start, 30000, 1000 + i, "/media/originalVideo/0_" + start + ".mp4");
+        }
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        SegmentJournal journal = new SegmentJournal(mFile);
+        assertTrue(journal.isEmpty());
+        SegmentIndex index = new SegmentIndex("0");
+        addSegments(journal, index, 100);
+        journal.remove(index, "/media/originalVideo/0_1000000.mp4");
+        journal.remove(index, "/media/originalVideo/0_1030000.mp4");
+        assertEquals(98, index.size());
+        journal.close();
+
+        SegmentIndex restored = new SegmentIndex("0");
+        journal = new SegmentJournal(mFile);
+        assertEquals(98, journal.load(restored));
+        assertEquals(-1, journal.getTornTailPosition());
+        assertEquals(index.getTotalSize(), restored.getTotalSize());
+        assertEquals(1060000L, restored.getStartAt(0));
+        assertEquals(1002, restored.getSizeAt(0));
+        journal.close();
+    }
+
+    @Test
+    public void testSyncBetweenInstances() throws IOException {
+        SegmentJournal writer = new SegmentJournal(mFile);
+        SegmentIndex writerIndex = new SegmentIndex("0");
+        addSegments(writer, writerIndex, 3);
+
+        SegmentJournal reader = new SegmentJournal(mFile);
+        SegmentIndex readerIndex = new SegmentIndex("0");
+        assertEquals(3, reader.load(readerIndex));
+
+        addSegments(writer, writerIndex, 5);
+        writer.remove(writerIndex, "/media/originalVideo/0_1000000.mp4");
+        reader.sync(readerIndex);
+        assertEquals(4, readerIndex.size());
+
+        // compaction by the writer obsoletes the file the reader holds
+        assertEquals(4, writer.compact(writerIndex));
+        addSegments(writer, writerIndex, 6);
+        reader.sync(readerIndex);
+        assertEquals(6, readerIndex.size());
+        assertEquals(writerIndex.getTotalSize(), readerIndex.getTotalSize());
+        writer.close();
+        reader.close();
+    }
+
+    @Test
+    public void testSyncWithoutRecordsDoesNotLock() throws IOException {
+        SegmentJournal writer = new SegmentJournal(mFile);
+        SegmentIndex writerIndex = new SegmentIndex("0");
+        addSegments(writer, writerIndex, 3);
+        SegmentJournal reader = new SegmentJournal(mFile);
+        SegmentIndex readerIndex = new SegmentIndex("0");
+        assertEquals(3, reader.load(readerIndex));
+        // the mapping has extended the file beyond the records
+        assertTrue(mFile.length() > SegmentJournal.HEADER_SIZE + 3L * (31 + "/media/originalVideo/0_1000000.mp4".length()));
+
+        // a second lock of the file in this process would throw OverlappingFileLockException
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        FileLock lock = raf.getChannel().lock();
+        try {
+            assertEquals(0, reader.sync(readerIndex));
+            assertEquals(0, writer.sync(writerIndex));
+        } finally {
+            lock.release();
+            raf.close();
+        }
+        addSegments(writer, writerIndex, 4);
+        assertEquals(4, reader.sync(readerIndex));
+        assertEquals(4, readerIndex.size());
+        writer.close();
+        reader.close();
+    }
+
+    @Test
+    public void testCompactTruncatesTornTail() throws IOException {
+        SegmentJournal journal = new SegmentJournal(mFile);
+        SegmentIndex index = new SegmentIndex("0");
+        addSegments(journal, index, 10);
+        journal.close();
+
+        // corrupt the last record
+        long lastRecord = SegmentJournal.HEADER_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        int recordLength = 31 + "/media/originalVideo/0_1000000.mp4".length();
+        lastRecord += 9L * recordLength;
+        raf.seek(lastRecord + 5);
+        raf.write(0x55);
+        raf.close();
+
+        journal = new SegmentJournal(mFile);
+        SegmentIndex restored = new SegmentIndex("0");
+        assertEquals(9, journal.compact(restored));
+        assertEquals(lastRecord, journal.getTornTailPosition());
+        assertEquals(SegmentJournal.HEADER_SIZE + 9L * recordLength, mFile.length());
+
+        // appending after compaction continues the journal
+        journal.add(restored, 5000000, 30000, 1, "/media/originalVideo/0_5000000.mp4");
+        journal.close();
+        journal = new SegmentJournal(mFile);
+        SegmentIndex reloaded = new SegmentIndex("0");
+        assertEquals(10, journal.load(reloaded));
+        assertEquals(-1, journal.getTornTailPosition());
+        journal.close();
+    }
+}
@@ -0,0 +1,57 @@
+package com.nauto.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Write rate forecast and paced trimming of the storage governor.
+ */
+public class StorageGovernorTest {
+    private static final long MB = 1024 * 1024;
+    private static final long GB = 1024 * MB;
+    private static final long TICK = 10000;
+
+    @Test
+    public void testWriteRate() {
+        StorageGovernor governor = new StorageGovernor();
+        assertEquals(0, governor.getWriteRate());
+        governor.setBitRate(0, 8000 * 1000);
+        assertEquals(1000 * 1000, governor.getWriteRate());
+
+        // a measured segment replaces the config, the other camera still counts its bit rate
+        governor.setBitRate(1, 8000 * 1000);
+        governor.onSegment(0, 120 * 1000 * 1000, 60000);
+        assertEquals(3000 * 1000, governor.getWriteRate());
+        // a short segment moves the average a little
+        governor.onSegment(0, 0, 60000);
+        governor.onSegment(0, 6 * 1000 * 1000, 6000);
+        assertEquals(3000 * 1000 - 20 * 1000, governor.getWriteRate());
+        // a long one replaces it
+        governor.onSegment(0, 300 * 1000 * 1000, StorageGovernor.RATE_WINDOW_MS);
+        assertEquals(2000 * 1000, governor.getWriteRate());
+    }
+
+    @Test
+    public void testPlan() {
+        StorageGovernor governor = new StorageGovernor();
+        governor.onSegment(0, 60 * MB, 60000);
+        governor.onSegment(1, 60 * MB, 60000);
+        // 2 MB/s, ten minutes of recording need 1200 MB on top of the reserve
+        assertEquals(0, governor.plan(GB + 1300 * MB, GB, TICK));
+        assertEquals(650000, governor.getTimeToFull());
+        assertEquals("2097152,2324,650,0", governor.getForecast());
+
+        // ahead of need, paced
+        long trim = governor.plan(GB + 200 * MB, GB, TICK);
+        assertEquals((long) (StorageGovernor.MIN_DELETE_RATE * TICK), trim);
+        assertEquals(160 * MB, trim);
+        assertEquals(100000, governor.getTimeToFull());
+        // the last of what is needed
+        assertEquals(40 * MB, governor.plan(GB + 1160 * MB, GB, TICK));
+
+        // below the reserve the deficit is freed at once
+        assertEquals(300 * MB, governor.plan(GB - 300 * MB, GB, TICK));
+        assertEquals(0, governor.getTimeToFull());
+    }
+}
@@ -0,0 +1,86 @@
+package com.nauto.camera.base;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The capture callback publishing frames of 3 faces as fast as it can while 4 threads read them,
+ * far above the 30 fps of the camera. Scores of {@code publish} should stay close to those without
+ * readers: the writer never waits for them. {@code gc.alloc.rate.norm} of both is 0, run
+ * {@link #main}, which adds the GC profiler.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FaceFrameBenchmark {
+    private static final int FACES = 3;
+
+    private final FaceFrame mFrame = new FaceFrame(FaceFrame.MAX_FACES);
+    private long mFrameNumber;
+
+    @State(Scope.Thread)
+    public static class Reader {
+        final FaceFrame.Snapshot mSnapshot = new FaceFrame.Snapshot(FaceFrame.MAX_FACES);
+    }
+
+    private void publish() {
+        long n = ++mFrameNumber;
+        mFrame.beginFrame(n, n * 33333333L);
+        for (int i = 0; i < FACES; i++) {
+            mFrame.addFace(800 + i * 200, 300, 1040 + i * 200, 620, 90, i);
+        }
+        mFrame.endFrame();
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(1)
+    public void publishAlone() {
+        publish();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void publish(Blackhole bh) {
+        publish();
+        bh.consume(mFrameNumber);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public void read(Reader reader, Blackhole bh) {
+        // retries counted per read
+        bh.consume(mFrame.read(reader.mSnapshot));
+        bh.consume(reader.mSnapshot.getFaceCount());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(FaceFrameBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+}
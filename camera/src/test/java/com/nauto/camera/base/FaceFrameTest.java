@@ -0,0 +1,123 @@
+package com.nauto.camera.base;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Readers of the face frame see whole frames while the writer publishes without waiting.
+ */
+public class FaceFrameTest {
+
+    /*
+     * Every field of frame n is derived from n, so a torn copy cannot pass.
+     */
+    private static void writeFrame(FaceFrame frame, long n) {
+        frame.beginFrame(n, n * 1000);
+        int count = (int) (n % 5);
+        for (int i = 0; i < count; i++) {
+            int v = (int) n + i;
+            frame.addFace(v, v + 1, v + 2, v + 3, v % 100, i);
+        }
+        frame.endFrame();
+    }
+
+    private static void assertFrame(FaceFrame.Snapshot s) {
+        long n = s.getFrameNumber();
+        assertEquals(n * 1000, s.getSensorTimestamp());
+        assertEquals(n % 5, s.getFaceCount());
+        for (int i = 0; i < s.getFaceCount(); i++) {
+            int v = (int) n + i;
+            assertEquals(v, s.getLeft(i));
+            assertEquals(v + 1, s.getTop(i));
+            assertEquals(v + 2, s.getRight(i));
+            assertEquals(v + 3, s.getBottom(i));
+            assertEquals(v % 100, s.getScore(i));
+            assertEquals(i, s.getId(i));
+        }
+    }
+
+    @Test
+    public void testReadLatest() {
+        FaceFrame frame = new FaceFrame(4);
+        FaceFrame.Snapshot s = new FaceFrame.Snapshot(4);
+        assertEquals(0, frame.read(s));
+        assertEquals(0, s.getSequence());
+        assertEquals(0, s.getFaceCount());
+        for (long n = 1; n <= 3; n++) {
+            writeFrame(frame, n);
+            frame.read(s);
+            assertEquals(n, s.getSequence());
+            assertEquals(n, s.getFrameNumber());
+            assertFrame(s);
+        }
+        Rect bounds = new Rect();
+        s.getBounds(1, bounds);
+        assertEquals(new Rect(4, 5, 6, 7), bounds);
+    }
+
+    @Test
+    public void testCapacity() {
+        FaceFrame frame = new FaceFrame(2);
+        frame.beginFrame(7, 0);
+        assertTrue(frame.addFace(1, 1, 2, 2, 50, 0));
+        assertTrue(frame.addFace(3, 3, 4, 4, 50, 1));
+        assertFalse(frame.addFace(5, 5, 6, 6, 50, 2));
+        frame.endFrame();
+        // a snapshot smaller than the frame gets the first faces
+        FaceFrame.Snapshot s = new FaceFrame.Snapshot(1);
+        frame.read(s);
+        assertEquals(1, s.getFaceCount());
+        assertEquals(1, s.getLeft(0));
+        s = new FaceFrame.Snapshot(8);
+        frame.read(s);
+        assertEquals(2, s.getFaceCount());
+        assertEquals(1, s.getId(1));
+    }
+
+    @Test
+    public void testConcurrentReaders() throws InterruptedException {
+        final FaceFrame frame = new FaceFrame(FaceFrame.MAX_FACES);
+        final int frames = 2000000;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    FaceFrame.Snapshot s = new FaceFrame.Snapshot(FaceFrame.MAX_FACES);
+                    long last = -1;
+                    try {
+                        while (last < frames) {
+                            frame.read(s);
+                            assertFrame(s);
+                            assertTrue(s.getSequence() >= last);
+                            assertEquals(s.getSequence(), s.getFrameNumber());
+                            last = s.getSequence();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            readers[i].start();
+        }
+        for (long n = 1; n <= frames && failure.get() == null; n++) {
+            writeFrame(frame, n);
+        }
+        if (failure.get() != null) {
+            // let the readers finish
+            writeFrame(frame, frames);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.nauto.camera.base;
+
+import android.graphics.Rect;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.*;
+
+/**
+ * The face reports written without allocating match what the formatters and a print stream wrote.
+ */
+public class FaceReportWriterTest {
+    private static final int FRAME_MS = 1000 / 30;
+
+    private final Locale mLocale = Locale.getDefault();
+    private final TimeZone mZone = TimeZone.getDefault();
+    private File mFile;
+    private ExecutorService mWriter;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("face", ".vtt");
+        mWriter = FaceReportWriter.newWriterExecutor("FaceReportWriterTest");
+    }
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(mLocale);
+        TimeZone.setDefault(mZone);
+        mWriter.shutdown();
+        mFile.delete();
+    }
+
+    /*
+     * Wait for the writer to finish what the reports handed to it.
+     */
+    private void awaitWriter() throws IOException {
+        try {
+            mWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static Face[] faces(Random random) {
+        Face[] faces = new Face[5];
+        for (int i = 0; i < faces.length; i++) {
+            int left = random.nextInt(2000) - 40;
+            int top = random.nextInt(1100) - 10;
+            // halves of the last decimal, and now and then an inverted rectangle
+            int width = random.nextBoolean() ? 48 * random.nextInt(40) + 24 : random.nextInt(600) - 20;
+            int height = random.nextBoolean() ? 27 * random.nextInt(40) : random.nextInt(400);
+            faces[i] = new Face(new Rect(left, top, left + width, top + height), 1 + random.nextInt(100));
+        }
+        return faces;
+    }
+
+    /*
+     * Frames of a video as the pipeline reports them, through the writers, and the same through
+     * print streams and formatters the way they were written before.
+     */
+    private void assertSameReports(Locale locale, TimeZone zone, int frames) throws IOException {
+        Locale.setDefault(locale);
+        TimeZone.setDefault(zone);
+        SimpleDateFormat format = new SimpleDateFormat("00:mm:ss.SSS");
+        ByteArrayOutputStream countBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream faceBytes = new ByteArrayOutputStream();
+        // the default charset on Android
+        PrintStream counts = new PrintStream(countBytes, false, "UTF-8");
+        PrintStream faceStats = new PrintStream(faceBytes, false, "UTF-8");
+        File facesFile = new File(mFile.getPath() + ".stats");
+        FaceReportWriter countReport = new FaceReportWriter(mFile, mWriter, null);
+        FaceReportWriter faceReport = new FaceReportWriter(facesFile, mWriter, null);
+        try {
+            counts.println("WEBVTT");
+            counts.println();
+            counts.print("00:00:00.000");
+            countReport.beginCounts();
+            faceStats.println("WEBVTT");
+            faceStats.println();
+            faceReport.beginFaces();
+
+            Random random = new Random(frames);
+            Face[] faces = faces(random);
+            int nBefore = 0;
+            long time = 0;
+            for (int i = 0; i < frames; i++) {
+                time += FRAME_MS + random.nextInt(3);
+                int n = random.nextInt(10) == 0 ? random.nextInt(faces.length + 1) : nBefore;
+                if (i % 97 == 0) {
+                    faces = faces(random);
+                }
+                if (n != nBefore) {
+                    String startTime = format.format(new Date(time));
+                    counts.println(" --> " + startTime);
+                    counts.println(nBefore);
+                    counts.println();
+                    counts.print(startTime);
+                    countReport.writeCount(time, nBefore, true);
+                }
+                StringBuilder info = new StringBuilder();
+                if (n > 0) {
+                    info.append("[");
+                    for (int j = 0; j < n; j++) {
+                        info.append(faces[j]);
+                        if (j < n - 1) {
+                            info.append(",");
+                        }
+                    }
+                    info.append("]");
+                }
+                faceStats.println(format.format(new Date(time)) + " --> " + format.format(new Date(time + FRAME_MS)));
+                faceStats.println(info);
+                faceStats.println();
+                faceReport.writeFaces(time, time + FRAME_MS, faces, n);
+                nBefore = n;
+            }
+            time += 4 * 60 * 1000;
+            counts.println(" --> " + format.format(new Date(time)));
+            counts.println(nBefore);
+            counts.println();
+            countReport.writeCount(time, nBefore, false);
+            faceStats.println(format.format(new Date(time)) + " --> " + format.format(new Date(time + FRAME_MS)));
+            faceStats.println("[{\"r\":[0.500,0.500,0.10,0.10], \"s\":50}]");
+            faceStats.println();
+            faceReport.writeCue(time, time + FRAME_MS, "[{\"r\":[0.500,0.500,0.10,0.10], \"s\":50}]");
+        } finally {
+            countReport.close();
+            faceReport.close();
+        }
+        awaitWriter();
+        assertFalse(countReport.checkError());
+        assertFalse(faceReport.checkError());
+        counts.close();
+        faceStats.close();
+        try {
+            assertArrayEquals(countBytes.toByteArray(), read(mFile));
+            assertArrayEquals(faceBytes.toByteArray(), read(facesFile));
+        } finally {
+            facesFile.delete();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testSameOutput() throws IOException {
+        assertSameReports(Locale.US, TimeZone.getTimeZone("America/Los_Angeles"), 10);
+        // many blocks, more than the ring holds
+        assertSameReports(Locale.US, TimeZone.getTimeZone("UTC"), 20000);
+    }
+
+    @Test
+    public void testLocaleAndZone() throws IOException {
+        // decimal comma, and zones off the hour either way
+        assertSameReports(Locale.GERMANY, TimeZone.getTimeZone("Asia/Kolkata"), 3000);
+        assertSameReports(Locale.FRANCE, TimeZone.getTimeZone("America/St_Johns"), 3000);
+        // localized digits
+        assertSameReports(new Locale("ar", "EG"), TimeZone.getTimeZone("Africa/Cairo"), 1000);
+    }
+
+    @Test
+    public void testNoAllocation() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long id = Thread.currentThread().getId();
+
+        Face[] faces = faces(new Random(1));
+        FaceReportWriter countReport = new FaceReportWriter(mFile, mWriter, null);
+        FaceReportWriter faceReport = new FaceReportWriter(new File(mFile.getPath() + ".stats"), mWriter, null);
+        try {
+            countReport.beginCounts();
+            faceReport.beginFaces();
+            long time = 0;
+            // warm up, then measure
+            for (int pass = 0; pass < 2; pass++) {
+                int frames = 30 * 60 * 5;
+                long before = threads.getThreadAllocatedBytes(id);
+                for (int i = 0; i < frames; i++) {
+                    time += FRAME_MS;
+                    faceReport.writeFaces(time, time + FRAME_MS, faces, 1 + i % faces.length);
+                    if (i % 30 == 0) {
+                        countReport.writeCount(time, i % 3, true);
+                    }
+                }
+                long allocated = threads.getThreadAllocatedBytes(id) - before;
+                if (pass == 1) {
+                    // a few bytes for the measurement itself, against hundreds per frame before
+                    assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+                }
+            }
+        } finally {
+            countReport.close();
+            faceReport.close();
+            awaitWriter();
+            new File(mFile.getPath() + ".stats").delete();
+        }
+    }
+}
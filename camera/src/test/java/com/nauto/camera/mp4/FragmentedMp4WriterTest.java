@@ -0,0 +1,136 @@
+package com.nauto.camera.mp4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fragmented MP4 writing from synthetic Annex B H.264, reading while writing and torn fragments.
+ */
+public class FragmentedMp4WriterTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+    static final int GOP = 30;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("segment", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    static ByteBuffer codecConfig() {
+        ByteBuffer b = ByteBuffer.allocate(64);
+        b.putInt(1).put(SPS).putInt(1).put(PPS);
+        b.flip();
+        return b;
+    }
+
+    /*
+     * An SEI after a 3 byte start code and a slice after a 4 byte one, the slice tagged with the
+     * frame number.
+     */
+    static ByteBuffer accessUnit(int frame) {
+        int payload = frame % GOP == 0 ? 3000 : 500 + frame % 7;
+        ByteBuffer b = ByteBuffer.allocate(16 + payload);
+        b.put((byte) 0).put((byte) 0).put((byte) 1).put((byte) 0x06).put((byte) 0x05).put((byte) 0x80);
+        b.putInt(1).put((byte) (frame % GOP == 0 ? 0x65 : 0x41)).put((byte) 0x88);
+        b.put((byte) (frame >> 7 | 0x80)).put((byte) (frame & 0x7f | 0x80));
+        byte[] fill = new byte[payload - 2];
+        Arrays.fill(fill, (byte) 0x11);
+        b.put(fill);
+        b.flip();
+        return b;
+    }
+
+    private static void write(FragmentedMp4Writer writer, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            writer.writeSampleData(accessUnit(i), 1000000L + i * 1000000L / 30, i % GOP == 0);
+        }
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile, 1280, 720, codecConfig());
+        write(writer, 0, 300);
+        writer.close();
+        assertEquals(10, writer.getFragmentCount());
+        assertEquals(10000000L, writer.getDurationUs());
+
+        Mp4Movie movie = Mp4Parser.parse(mFile);
+        assertTrue(movie.isFragmented());
+        assertEquals(10, movie.getFragmentCount());
+        assertEquals(mFile.length(), movie.getFragmentsEnd());
+        assertEquals(10000, movie.getDuration());
+        Mp4Track video = movie.getVideoTrack();
+        assertEquals(Mp4Box.AVC1, video.getCodec());
+        assertEquals(1280, video.getWidth());
+        assertEquals(720, video.getHeight());
+        assertEquals(300, video.getSampleCount());
+        assertEquals(10000000L, video.getDurationUs());
+        assertEquals(3000, video.getSampleTimes()[1]);
+        int[] sync = video.getSyncSamples();
+        assertEquals(10, sync.length);
+        assertEquals(270, sync[9]);
+
+        // SEI and slice, each with a 4 byte length
+        long[] offsets = video.getSampleOffsets();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            for (int i = 0; i < 300; i += 17) {
+                int slice = i % GOP == 0 ? 3000 : 500 + i % 7;
+                assertEquals(4 + 3 + 4 + 2 + slice, video.getSampleSize(i));
+                raf.seek(offsets[i]);
+                assertEquals(3, raf.readInt());
+                raf.skipBytes(3);
+                assertEquals(2 + slice, raf.readInt());
+                assertEquals(i % GOP == 0 ? 0x65 : 0x41, raf.read());
+                raf.skipBytes(1);
+                assertEquals(i, (raf.read() & 0x7f) << 7 | raf.read() & 0x7f);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testReadWhileWritingAndTornFragment() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile, 1280, 720, codecConfig());
+        try {
+            write(writer, 0, 100);
+            // frames up to the keyframe 90 are readable while the rest is pending
+            Mp4Movie movie = Mp4Parser.parse(mFile);
+            assertEquals(3, movie.getFragmentCount());
+            assertEquals(90, movie.getVideoTrack().getSampleCount());
+            assertEquals(3000000L, writer.getDurationUs());
+
+            // a crash in the middle of the next fragment
+            long end = mFile.length();
+            FileOutputStream out = new FileOutputStream(mFile, true);
+            try {
+                out.write(new byte[]{0, 0, 0x10, 0, 'm', 'o', 'o', 'f', 0, 0, 0, 16});
+            } finally {
+                out.close();
+            }
+            assertEquals(90, Mp4Parser.parse(mFile).getVideoTrack().getSampleCount());
+            assertEquals(3000000L, FragmentedMp4Writer.truncate(mFile));
+            assertEquals(end, mFile.length());
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.nauto.camera.mp4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writing and reading frame timelines and mapping wall clock time to media time.
+ */
+public class FrameTimelineTest {
+    private static final long BASE_NS = 5000000000L;
+    private static final long FRAME_NS = 33333333L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("segment", FrameTimeline.SUFFIX);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /*
+     * 100 frames at 30 fps from wall clock time 1000 s, frame 50 dropped, and the wall clock
+     * stepped back by 2 s at frame 70.
+     */
+    private void write(int bufferSize) throws IOException {
+        FrameTimeline.Writer writer = new FrameTimeline.Writer(mFile, BASE_NS, bufferSize);
+        for (int i = 0; i < 100; i++) {
+            if (i == 50) {
+                continue;
+            }
+            long wall = 1000000 + i * FRAME_NS / 1000000 - (i >= 70 ? 2000 : 0);
+            writer.append(1000 + i, BASE_NS + i * FRAME_NS, wall);
+        }
+        writer.close();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        write(64);
+        FrameTimeline timeline = FrameTimeline.read(mFile);
+        assertEquals(99, timeline.size());
+        assertEquals(1000, timeline.getFrameNumber(0));
+        assertEquals(0, timeline.getMediaTimeUs(0));
+        assertEquals(1000000, timeline.getWallTime(0));
+        assertEquals(1051, timeline.getFrameNumber(50));
+        assertEquals(51 * FRAME_NS / 1000, timeline.getMediaTimeUs(50));
+        assertEquals(1000000 + 70 * FRAME_NS / 1000000 - 2000, timeline.getWallTime(69));
+        String segment = mFile.getPath().substring(0, mFile.getPath().length() - FrameTimeline.SUFFIX.length());
+        assertEquals(99, FrameTimeline.load(segment).size());
+        assertNull(FrameTimeline.load(segment + ".missing"));
+    }
+
+    @Test
+    public void tornTail() throws IOException {
+        write(4096);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        FrameTimeline timeline = FrameTimeline.read(mFile);
+        assertEquals(98, timeline.size());
+        assertEquals(1098, timeline.getFrameNumber(97));
+    }
+
+    @Test(expected = IOException.class)
+    public void notATimeline() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(FrameTimeline.HEADER_SIZE);
+        raf.close();
+        FrameTimeline.read(mFile);
+    }
+
+    @Test
+    public void toMediaTime() throws IOException {
+        write(256);
+        FrameTimeline timeline = FrameTimeline.read(mFile);
+        // before the first frame
+        assertEquals(0, timeline.toMediaTimeUs(999000));
+        // between frames 10 and 11
+        long wall10 = 1000000 + 10 * FRAME_NS / 1000000;
+        assertEquals(10 * FRAME_NS / 1000 + 5000, timeline.toMediaTimeUs(wall10 + 5));
+        // the dropped frame is covered by the one before it
+        long wall49 = 1000000 + 49 * FRAME_NS / 1000000;
+        assertEquals(49 * FRAME_NS / 1000 + 40000, timeline.toMediaTimeUs(wall49 + 40));
+        // after the backward step the latest wall clock time at or before wins, before the step
+        long wall69 = 1000000 + 69 * FRAME_NS / 1000000;
+        assertEquals(69 * FRAME_NS / 1000 + 10000, timeline.toMediaTimeUs(wall69 + 10));
+        // past every frame
+        long wall99 = 1000000 + 99 * FRAME_NS / 1000000 - 2000;
+        assertEquals(69 * FRAME_NS / 1000 + (wall99 + 5000 - wall69) * 1000, timeline.toMediaTimeUs(wall99 + 5000));
+    }
+
+    @Test
+    public void empty() throws IOException {
+        new FrameTimeline.Writer(mFile, BASE_NS, 0).close();
+        FrameTimeline timeline = FrameTimeline.read(mFile);
+        assertEquals(0, timeline.size());
+        assertEquals(-1, timeline.toMediaTimeUs(1000));
+    }
+
+    @Test
+    public void writtenOnExecutor() throws IOException {
+        final List<Runnable> queued = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        // blocks of 60 bytes: the header and 2 frames, then 6 frames of 6 bytes each
+        FrameTimeline.Writer writer = new FrameTimeline.Writer(mFile, BASE_NS, 60, executor);
+        for (int i = 0; i < 20; i++) {
+            writer.append(1000 + i, BASE_NS + i * FRAME_NS, 1000000 + i * 33);
+        }
+        // nothing written on the appending thread
+        assertEquals(0, mFile.length());
+        // the executor is behind after three blocks
+        assertEquals(6, writer.getDroppedCount());
+        writer.close();
+        for (Runnable task : queued) {
+            task.run();
+        }
+        FrameTimeline timeline = FrameTimeline.read(mFile);
+        assertEquals(14, timeline.size());
+        assertEquals(1013, timeline.getFrameNumber(13));
+        assertEquals(13 * FRAME_NS / 1000, timeline.getMediaTimeUs(13));
+    }
+}
@@ -0,0 +1,77 @@
+package com.nauto.camera.mp4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Keyframe index queries and sidecar round trip.
+ */
+public class KeyframeIndexTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("segment", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        KeyframeIndex.getFile(mFile.getPath()).delete();
+    }
+
+    @Test
+    public void testQueries() throws IOException {
+        // a keyframe every 2 s
+        new SyntheticMp4().seconds(10).fps(15).gop(30).write(mFile);
+        KeyframeIndex index = KeyframeIndex.build(mFile);
+        assertEquals(5, index.size());
+        assertEquals(4000000L, index.getTimeUs(2));
+        assertEquals(Mp4Parser.parse(mFile).getVideoTrack().getSampleOffsets()[60], index.getOffset(2));
+
+        assertEquals(0, index.nearestSync(-5));
+        assertEquals(1, index.nearestSync(2900000));
+        assertEquals(2, index.nearestSync(3100000));
+        assertEquals(4, index.nearestSync(60000000));
+        assertEquals(1, index.syncAtOrBefore(3999999));
+        assertEquals(2, index.syncAtOrAfter(4000000));
+        assertEquals(5, index.syncAtOrAfter(8000001));
+
+        int[] range = index.syncRange(1000000, 6000000);
+        assertEquals(1, range[0]);
+        assertEquals(4, range[1]);
+        range = index.syncRange(2500000, 3500000);
+        assertEquals(range[0], range[1]);
+    }
+
+    @Test
+    public void testSidecar() throws IOException {
+        new SyntheticMp4().seconds(6).write(mFile);
+        File sidecar = KeyframeIndex.getFile(mFile.getPath());
+        KeyframeIndex built = KeyframeIndex.load(mFile.getPath());
+        assertTrue(sidecar.exists());
+        assertEquals(KeyframeIndex.HEADER_SIZE + built.size() * KeyframeIndex.ENTRY_SIZE, sidecar.length());
+
+        KeyframeIndex read = KeyframeIndex.read(sidecar);
+        assertEquals(built.size(), read.size());
+        assertEquals(built.getDurationUs(), read.getDurationUs());
+        for (int i = 0; i < built.size(); i++) {
+            assertEquals(built.getTimeUs(i), read.getTimeUs(i));
+            assertEquals(built.getOffset(i), read.getOffset(i));
+        }
+
+        // a torn sidecar is rebuilt from the segment
+        RandomAccessFile raf = new RandomAccessFile(sidecar, "rw");
+        raf.setLength(sidecar.length() - 3);
+        raf.close();
+        assertEquals(built.size(), KeyframeIndex.load(mFile.getPath()).size());
+        assertEquals(KeyframeIndex.HEADER_SIZE + built.size() * KeyframeIndex.ENTRY_SIZE, sidecar.length());
+    }
+}
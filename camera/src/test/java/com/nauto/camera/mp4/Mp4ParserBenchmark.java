@@ -0,0 +1,88 @@
+package com.nauto.camera.mp4;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse time of a corpus of 30 second segments. The target is under 1 ms per segment.
+ *
+ * <p>Run {@link #main} from the IDE, or {@code org.openjdk.jmh.Main Mp4ParserBenchmark} with the
+ * unit test classpath.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Mp4ParserBenchmark {
+    private static final int CORPUS_SIZE = 16;
+
+    private File mDir;
+    private File[] mCorpus;
+    private final Mp4Parser mParser = new Mp4Parser();
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("mp4corpus", "");
+        if (!mDir.delete() || !mDir.mkdir()) {
+            throw new IOException("Failed to create " + mDir);
+        }
+        mCorpus = new File[CORPUS_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            mCorpus[i] = new File(mDir, "0_" + (1500000000000L + i * 30000L) + ".mp4");
+            // mix of frame rates and layouts seen in the field
+            new SyntheticMp4().seed(i).fps(i % 2 == 0 ? 30 : 15).fastStart(i % 4 == 3).write(mCorpus[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File f : mCorpus) {
+            f.delete();
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public void parseSegment(Blackhole bh) throws IOException {
+        File f = mCorpus[mNext++ % CORPUS_SIZE];
+        Mp4Movie movie = mParser.parseFile(f);
+        bh.consume(movie.getDurationUs());
+    }
+
+    @Benchmark
+    public void parseSegmentAndKeyframes(Blackhole bh) throws IOException {
+        File f = mCorpus[mNext++ % CORPUS_SIZE];
+        Mp4Track video = mParser.parseFile(f).getVideoTrack();
+        bh.consume(video.getSyncSamples());
+        bh.consume(video.getSampleOffsets());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(Mp4ParserBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,84 @@
+package com.nauto.camera.mp4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * MP4 box parser against synthetic segments.
+ */
+public class Mp4ParserTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("segment", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testSegment() throws IOException {
+        SyntheticMp4 mp4 = new SyntheticMp4();
+        mp4.write(mFile);
+        Mp4Movie movie = Mp4Parser.parse(mFile);
+        assertEquals(30000000L, movie.getDurationUs());
+        assertFalse(movie.isFastStart());
+        assertEquals(2, movie.getTracks().size());
+
+        Mp4Track video = movie.getVideoTrack();
+        assertEquals(Mp4Box.AVC1, video.getCodec());
+        assertEquals(1280, video.getWidth());
+        assertEquals(720, video.getHeight());
+        assertEquals(900, video.getSampleCount());
+        assertEquals(30000000L, video.getDurationUs());
+        assertEquals(30, video.getSyncSamples().length);
+        assertTrue(video.isSyncSample(30));
+        assertFalse(video.isSyncSample(31));
+        assertEquals(3000L * 899, video.getSampleTimes()[899]);
+
+        Mp4Track audio = movie.getAudioTrack();
+        assertEquals(Mp4Box.MP4A, audio.getCodec());
+        assertEquals(48000, audio.getSampleRate());
+        assertEquals(1, audio.getChannelCount());
+        assertEquals(mp4.getAudioSampleCount(), audio.getSampleCount());
+
+        // samples of both tracks tile the mdat payload
+        long[] videoOffsets = video.getSampleOffsets();
+        long[] audioOffsets = audio.getSampleOffsets();
+        assertEquals(movie.getMdatOffset(), videoOffsets[0]);
+        assertEquals(videoOffsets[14] + video.getSampleSize(14), audioOffsets[0]);
+        assertEquals(movie.getMdatSize(), video.getTotalSampleSize() + audio.getTotalSampleSize());
+        long lastAudio = audioOffsets[audio.getSampleCount() - 1] + audio.getSampleSize(audio.getSampleCount() - 1);
+        long lastVideo = videoOffsets[video.getSampleCount() - 1] + video.getSampleSize(video.getSampleCount() - 1);
+        assertEquals(movie.getMdatOffset() + movie.getMdatSize(), Math.max(lastAudio, lastVideo));
+    }
+
+    @Test
+    public void testFastStart() throws IOException {
+        new SyntheticMp4().seconds(5).audio(false).fastStart(true).write(mFile);
+        Mp4Movie movie = new Mp4Parser().parseFile(mFile);
+        assertTrue(movie.isFastStart());
+        assertEquals(1, movie.getTracks().size());
+        assertEquals(150, movie.getVideoTrack().getSampleCount());
+        assertEquals(movie.getMdatOffset(), movie.getVideoTrack().getSampleOffsets()[0]);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        new SyntheticMp4().seconds(5).write(mFile);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(raf.length() - 100);
+        raf.close();
+        Mp4Parser.parse(mFile);
+    }
+}
@@ -0,0 +1,159 @@
+package com.nauto.camera.mp4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rebuilding the moov of segments cut off by a power loss.
+ */
+public class Mp4RecoveryTest {
+    private File mReference;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mReference = File.createTempFile("reference", ".mp4");
+        mFile = File.createTempFile("truncated", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mReference.delete();
+        mFile.delete();
+    }
+
+    @Test
+    public void testRecover() throws IOException {
+        new SyntheticMp4().seconds(10).fps(30).gop(30).nal(true).write(mReference);
+        new SyntheticMp4().seconds(10).fps(30).gop(30).nal(true).write(mFile);
+        Mp4Track original = Mp4Parser.parse(mReference).getVideoTrack();
+        long[] offsets = original.getSampleOffsets();
+
+        // the recorder never wrote the mdat size nor the moov, and the last frame is torn
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(offsets[200] + 1000);
+        raf.seek(24);
+        raf.writeInt(0);
+        raf.close();
+        assertTrue(Mp4Recovery.isTruncated(mFile));
+
+        Mp4Recovery recovery = Mp4Recovery.fromReference(mReference, 30);
+        assertEquals(200 * 1000000L / 30, recovery.recover(mFile));
+        assertTrue(recovery.getSkippedBytes() > 0);
+        assertFalse(Mp4Recovery.isTruncated(mFile));
+
+        Mp4Movie movie = Mp4Parser.parse(mFile);
+        assertEquals(1, movie.getTracks().size());
+        Mp4Track video = movie.getVideoTrack();
+        assertEquals(200, video.getSampleCount());
+        assertEquals(1280, video.getWidth());
+        assertArrayEquals(original.getSampleEntry(0), video.getSampleEntry(0));
+        long[] recovered = video.getSampleOffsets();
+        for (int i = 0; i < 200; i++) {
+            assertEquals(offsets[i], recovered[i]);
+            assertEquals(original.getSampleSize(i), video.getSampleSize(i));
+        }
+        assertArrayEquals(new int[]{0, 30, 60, 90, 120, 150, 180}, video.getSyncSamples());
+        assertEquals(3000, video.getSampleTimes()[1]);
+        assertEquals(offsets[199] + original.getSampleSize(199) + movie.getMoovSize(), mFile.length());
+    }
+
+    @Test
+    public void testShortRunIsNotVideo() throws IOException {
+        new SyntheticMp4().seconds(10).fps(30).nal(true).write(mReference);
+        new SyntheticMp4().seconds(10).fps(30).nal(true).write(mFile);
+        long[] audio = Mp4Parser.parse(mFile).getAudioTrack().getSampleOffsets();
+        // cut off in the audio chunk after the 7th video chunk, whose second frame happens to
+        // read as a slice up to the end
+        int a = 6 * (SyntheticMp4.AUDIO_SAMPLE_RATE / SyntheticMp4.AUDIO_FRAME / 2) + 1;
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(audio[a] + 100);
+        raf.seek(audio[a]);
+        raf.writeInt(100 - 4);
+        raf.write(0x41);
+        raf.write(0x88);
+        raf.seek(24);
+        raf.writeInt(0);
+        raf.close();
+
+        Mp4Recovery recovery = Mp4Recovery.fromReference(mReference, 30);
+        assertEquals(7 * 15 * 1000000L / 30, recovery.recover(mFile));
+        assertEquals(7 * 15, Mp4Parser.parse(mFile).getVideoTrack().getSampleCount());
+    }
+
+    @Test
+    public void testSnapshotOfGrowingSegment() throws IOException {
+        new SyntheticMp4().seconds(10).nal(true).write(mReference);
+        File complete = File.createTempFile("complete", ".mp4");
+        File output = File.createTempFile("clip", ".mp4");
+        try {
+            new SyntheticMp4().seconds(10).nal(true).seed(2).write(complete);
+            long[] offsets = Mp4Parser.parse(complete).getVideoTrack().getSampleOffsets();
+            byte[] data = new byte[(int) complete.length()];
+            FileInputStream in = new FileInputStream(complete);
+            try {
+                assertEquals(data.length, in.read(data));
+            } finally {
+                in.close();
+            }
+            // the recorder has written the mdat header and 100 frames, the last one partly
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            raf.setLength(0);
+            raf.write(data, 0, (int) offsets[100] + 1000);
+            raf.seek(24);
+            raf.writeInt(0);
+
+            Mp4Recovery recovery = Mp4Recovery.fromReference(mReference);
+            Mp4Track video = recovery.snapshot(mFile).getVideoTrack();
+            // the last complete frame may still grow
+            assertEquals(99, video.getSampleCount());
+            assertArrayEquals(new int[]{0, 30, 60, 90}, video.getSyncSamples());
+            assertEquals(offsets[98], video.getSampleOffsets()[98]);
+            assertEquals(offsets[100] + 1000, mFile.length());
+
+            raf.seek(offsets[100] + 1000);
+            raf.write(data, (int) offsets[100] + 1000, (int) (offsets[200] - offsets[100]));
+            raf.close();
+            video = recovery.snapshot(mFile).getVideoTrack();
+            assertEquals(199, video.getSampleCount());
+            assertEquals(offsets[198], video.getSampleOffsets()[198]);
+            assertEquals(3000L * 198, video.getSampleTimes()[198]);
+
+            // the last 5 s of the finished segment and the first 5 s of the growing one
+            List<File> inputs = new ArrayList<>();
+            inputs.add(mReference);
+            inputs.add(mFile);
+            Mp4Remuxer remuxer = new Mp4Remuxer();
+            remuxer.setGrowingInput(recovery);
+            assertTrue(remuxer.remux(inputs, 5000000, 5000000, output) > 0);
+            Mp4Track clip = Mp4Parser.parse(output).getVideoTrack();
+            assertEquals(150 + 151, clip.getSampleCount());
+            assertEquals(5 + 6, clip.getSyncSamples().length);
+        } finally {
+            complete.delete();
+            output.delete();
+        }
+    }
+
+    @Test
+    public void testNotTruncated() throws IOException {
+        new SyntheticMp4().seconds(2).nal(true).write(mFile);
+        assertFalse(Mp4Recovery.isTruncated(mFile));
+        try {
+            Mp4Recovery.fromReference(mFile, 30).recover(mFile);
+            fail();
+        } catch (IOException e) {
+            // complete segments are left alone
+        }
+    }
+}
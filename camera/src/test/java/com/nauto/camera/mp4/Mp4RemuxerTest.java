@@ -0,0 +1,166 @@
+package com.nauto.camera.mp4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concatenation and cutting of synthetic segments.
+ */
+public class Mp4RemuxerTest {
+    private File mDir;
+    private List<File> mInputs = new ArrayList<>();
+    private File mOutput;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("remux", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        for (int i = 0; i < 3; i++) {
+            File f = new File(mDir, "0_" + (1000000 + i * 30000) + ".mp4");
+            SyntheticMp4 mp4 = new SyntheticMp4().seed(i).tagged(true);
+            if (i == 2) {
+                // resolution change in the last segment
+                mp4.size(1920, 1080);
+            }
+            mp4.write(f);
+            mInputs.add(f);
+        }
+        mOutput = new File(mDir, "out.mp4");
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : mDir.listFiles()) {
+            f.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testConcatenate() throws IOException {
+        long durationUs = new Mp4Remuxer().remux(mInputs, 10500000, 5000000, mOutput);
+        // starts on the sync sample at 11 s, the end moves by the same 0.5 s
+        assertEquals(19000000 + 30000000 + 5533333, durationUs);
+
+        Mp4Movie movie = Mp4Parser.parse(mOutput);
+        assertTrue(movie.isFastStart());
+        Mp4Track video = movie.getVideoTrack();
+        assertEquals(570 + 900 + 166, video.getSampleCount());
+        assertEquals(2, video.getSampleEntryCount());
+        assertTrue(video.isSyncSample(0));
+        assertTrue(video.isSyncSample(30));
+        assertFalse(video.isSyncSample(1));
+        long[] times = video.getSampleTimes();
+        assertEquals(3000L * 570, times[570]);
+        int[] descriptions = video.getSampleDescriptionIndexes();
+        assertEquals(1, descriptions[1469]);
+        assertEquals(2, descriptions[1470]);
+
+        // every sample is copied from where it was in its input
+        RandomAccessFile raf = new RandomAccessFile(mOutput, "r");
+        try {
+            long[] offsets = video.getSampleOffsets();
+            for (int i = 0; i < video.getSampleCount(); i++) {
+                int expected = i < 570 ? 330 + i : i < 1470 ? i - 570 : i - 1470;
+                assertEquals("video sample " + i, 1L << 32 | expected, SyntheticMp4.readTag(raf, offsets[i]));
+            }
+            Mp4Track audio = movie.getAudioTrack();
+            offsets = audio.getSampleOffsets();
+            assertEquals((2L << 32) + 516, SyntheticMp4.readTag(raf, offsets[0]));
+            for (int i = 1; i < audio.getSampleCount(); i++) {
+                long tag = SyntheticMp4.readTag(raf, offsets[i]);
+                assertEquals(2, tag >>> 32);
+            }
+            // audio starts on the first frame after the video sync sample
+            assertEquals(video.getDurationUs(), audio.getDurationUs(), 1000000 * SyntheticMp4.AUDIO_FRAME / SyntheticMp4.AUDIO_SAMPLE_RATE);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testDropIn() throws IOException {
+        List<String> items = Arrays.asList(mInputs.get(0).getPath());
+        assertTrue(Mp4Remuxer.extractVideoAsFile(items, new long[]{2000, 12000, 0}, mOutput.getPath()));
+        Mp4Movie movie = Mp4Parser.parse(mOutput);
+        assertEquals(301, movie.getVideoTrack().getSampleCount());
+        assertEquals(10033, movie.getDurationUs() / 1000);
+    }
+
+    @Test
+    public void testFrameAccurate() throws IOException {
+        // 10 s missing between the second and the third segment
+        long[] startsUs = {0, 30000000, 70000000};
+        long durationUs = new Mp4Remuxer().remuxExact(mInputs, startsUs, 10500000, 75000000, mOutput);
+        assertEquals(64500000, durationUs);
+
+        Mp4Movie movie = Mp4Parser.parse(mOutput);
+        assertEquals(64500000, movie.getDurationUs());
+        Mp4Track video = movie.getVideoTrack();
+        // the GOP in front of the start is kept, the edit list skips its first 0.5 s
+        assertEquals(600 + 900 + 151, video.getSampleCount());
+        assertTrue(video.isSyncSample(0));
+        assertArrayEquals(new long[]{49500, 45000, 10000, -1, 5000, 4500000}, video.getEditList());
+        long[] audioEdits = movie.getAudioTrack().getEditList();
+        assertEquals(6, audioEdits.length);
+        assertEquals(-1, audioEdits[3]);
+        assertEquals(SyntheticMp4.AUDIO_SAMPLE_RATE / 2, audioEdits[1]);
+
+        RandomAccessFile raf = new RandomAccessFile(mOutput, "r");
+        try {
+            assertEquals(1L << 32 | 300, SyntheticMp4.readTag(raf, video.getSampleOffsets()[0]));
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testEmptyTimeToSample() throws IOException {
+        // the audio track of the last segment has samples but no stts entries
+        File last = mInputs.get(2);
+        byte[] data = new byte[(int) last.length()];
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        try {
+            raf.readFully(data);
+            int stts = -1;
+            for (int i = 0; i < 2; i++) {
+                stts = indexOf(data, "stts".getBytes("US-ASCII"), stts + 1);
+            }
+            assertTrue(stts > 0);
+            // version and flags, then the entry count
+            raf.seek(stts + 8);
+            raf.writeInt(0);
+        } finally {
+            raf.close();
+        }
+        assertEquals(0, Mp4Parser.parse(last).getAudioTrack().getSampleTimes()[100]);
+
+        new Mp4Remuxer().remux(mInputs, 10500000, 5000000, mOutput);
+        assertEquals(570 + 900 + 166, Mp4Parser.parse(mOutput).getVideoTrack().getSampleCount());
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        for (int i = from; i + pattern.length <= data.length; i++) {
+            if (Arrays.equals(pattern, Arrays.copyOfRange(data, i, i + pattern.length))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRange() throws IOException {
+        List<String> items = Arrays.asList(mInputs.get(0).getPath());
+        Mp4Remuxer.extractVideoAsFile(items, new long[]{12000, 2000, 0}, mOutput.getPath());
+    }
+}
@@ -0,0 +1,139 @@
+package com.nauto.camera.mp4;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sample ring at 1080p, 30 fps and 8 Mbps: a 150 KB keyframe every second and 29 KB frames in
+ * between, 40 s of capacity. The producer has to sustain 30 frames per second, i.e. take well under
+ * 33 ms per frame, while event clips are exported.
+ *
+ * <p>Run {@link #main}, which adds the GC profiler: {@code gc.alloc.rate.norm} of {@code write}
+ * shows the producer allocates nothing per frame, the ring itself is allocated once off the heap.
+ * Or run {@code org.openjdk.jmh.Main SampleRingBenchmark -prof gc} with the unit test classpath.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleRingBenchmark {
+    private static final int FPS = 30;
+    private static final int BIT_RATE = 8000000;
+    private static final int SECONDS = 40;
+    private static final int KEYFRAME_SIZE = 150 * 1024;
+    private static final int FRAME_SIZE = (BIT_RATE / 8 - KEYFRAME_SIZE) / (FPS - 1);
+    private static final byte[] CODEC_CONFIG = {0, 0, 0, 1, 0x67, 0x64, 0x00, 0x28, (byte) 0xac, 0x2b,
+            0, 0, 0, 1, 0x68, (byte) 0xee, 0x3c, (byte) 0xb0};
+
+    private SampleRing mRing;
+    private ByteBuffer[] mFrames;
+    private File mFile;
+    private long mFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mRing = new SampleRing(BIT_RATE / 8 * SECONDS, FPS * SECONDS, 1920, 1080, ByteBuffer.wrap(CODEC_CONFIG));
+        mFrames = new ByteBuffer[FPS];
+        Random random = new Random(0);
+        for (int i = 0; i < FPS; i++) {
+            // slice data without start codes
+            byte[] slice = new byte[i == 0 ? KEYFRAME_SIZE : FRAME_SIZE];
+            random.nextBytes(slice);
+            for (int j = 2; j < slice.length; j += 2) {
+                slice[j] |= 0x80;
+            }
+            slice[0] = (byte) (i == 0 ? 0x65 : 0x41);
+            ByteBuffer b = ByteBuffer.allocateDirect(4 + slice.length);
+            b.putInt(1).put(slice).flip();
+            mFrames[i] = b;
+        }
+        // a full ring to export from
+        for (int i = 0; i < FPS * SECONDS; i++) {
+            writeFrame();
+        }
+        mFile = File.createTempFile("event", ".mp4");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private void writeFrame() {
+        int i = (int) (mFrame % FPS);
+        ByteBuffer frame = mFrames[i];
+        frame.rewind();
+        mRing.write(frame, mFrame * 1000000L / FPS, i == 0);
+        mFrame++;
+    }
+
+    @Benchmark
+    public void write(Blackhole bh) {
+        writeFrame();
+        bh.consume(mFrame);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long exportRecent10s() throws IOException {
+        return mRing.exportRecent(10, mFile);
+    }
+
+    /*
+     * Producer throughput while an exporter runs flat out on another thread.
+     */
+    @Benchmark
+    @Group("writeWhileExporting")
+    @GroupThreads(1)
+    public void writer(Blackhole bh) {
+        writeFrame();
+        bh.consume(mFrame);
+    }
+
+    @Benchmark
+    @Group("writeWhileExporting")
+    @GroupThreads(1)
+    public void exporter(Blackhole bh) {
+        try {
+            bh.consume(mRing.exportRecent(10, mFile));
+        } catch (IOException e) {
+            // lapped three times by the writer
+            bh.consume(e);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(SampleRingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,149 @@
+package com.nauto.camera.mp4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exporting the most recent samples of the ring, also while they are being overwritten.
+ */
+public class SampleRingTest {
+    private static final byte[] CODEC_CONFIG = {0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01,
+            0, 0, 0, 1, 0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+    private static final int GOP = 30;
+    // frame numbers of 14 bits, wrapping at a keyframe
+    private static final int FRAMES = 16380;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("event", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static SampleRing ring(int capacity, int maxSamples) {
+        return new SampleRing(capacity, maxSamples, 1920, 1080, ByteBuffer.wrap(CODEC_CONFIG));
+    }
+
+    private static int payload(int frame) {
+        return frame % GOP == 0 ? 3000 : 500 + frame % 7;
+    }
+
+    /*
+     * A slice tagged with the frame number.
+     */
+    private static ByteBuffer accessUnit(int frame) {
+        ByteBuffer b = ByteBuffer.allocate(4 + payload(frame));
+        b.putInt(1).put((byte) (frame % GOP == 0 ? 0x65 : 0x41)).put((byte) 0x88);
+        b.put((byte) (frame >> 7 | 0x80)).put((byte) (frame & 0x7f | 0x80));
+        while (b.hasRemaining()) {
+            b.put((byte) 0x11);
+        }
+        b.flip();
+        return b;
+    }
+
+    private static void write(SampleRing ring, int from, int to) {
+        for (int i = from; i < to; i++) {
+            ring.write(accessUnit(i), 1000000L + i * 1000000L / 30, i % GOP == 0);
+        }
+    }
+
+    /*
+     * @return frame number of the first sample after checking that the others follow it
+     */
+    private static int checkFrames(File file) throws IOException {
+        Mp4Track video = Mp4Parser.parse(file).getVideoTrack();
+        long[] offsets = video.getSampleOffsets();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            int first = -1;
+            for (int i = 0; i < offsets.length; i++) {
+                raf.seek(offsets[i]);
+                raf.skipBytes(6);
+                int frame = (raf.read() & 0x7f) << 7 | raf.read() & 0x7f;
+                if (first < 0) {
+                    first = frame;
+                }
+                assertEquals((first + i) % FRAMES, frame);
+                assertEquals(4 + payload(frame), video.getSampleSize(i));
+                assertEquals(frame % GOP == 0, video.isSyncSample(i));
+            }
+            return first;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testExportRecent() throws IOException {
+        // about 5 s of data
+        SampleRing ring = ring(100000, 1024);
+        write(ring, 0, 300);
+        assertEquals(300, ring.getSampleCount());
+
+        // back to the keyframe before frame 209
+        assertEquals(120 * 1000000L / 30, ring.exportRecent(3, mFile));
+        Mp4Movie movie = Mp4Parser.parse(mFile);
+        Mp4Track video = movie.getVideoTrack();
+        assertEquals(120, video.getSampleCount());
+        assertEquals(1920, video.getWidth());
+        assertArrayEquals(new int[]{0, 30, 60, 90}, video.getSyncSamples());
+        assertEquals(3000, video.getSampleTimes()[1]);
+        assertEquals(180, checkFrames(mFile));
+
+        // as much as is left, from the oldest keyframe
+        ring.exportRecent(60, mFile);
+        int first = checkFrames(mFile);
+        assertTrue(first > 0 && first < 180);
+        assertEquals(0, first % GOP);
+        assertEquals(300 - first, Mp4Parser.parse(mFile).getVideoTrack().getSampleCount());
+    }
+
+    @Test
+    public void testExportWhileWriting() throws Exception {
+        final SampleRing ring = ring(200000, 512);
+        write(ring, 0, 60);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 60; !done.get(); i++) {
+                    ring.write(accessUnit(i % FRAMES), 1000000L + i * 1000000L / 30, i % GOP == 0);
+                }
+            }
+        });
+        writer.start();
+        int exported = 0;
+        int overwritten = 0;
+        try {
+            for (int i = 0; i < 200; i++) {
+                try {
+                    ring.exportRecent(1, mFile);
+                } catch (IOException e) {
+                    overwritten++;
+                    continue;
+                }
+                checkFrames(mFile);
+                exported++;
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+        assertTrue("exported " + exported + ", overwritten " + overwritten, exported > 0);
+    }
+}
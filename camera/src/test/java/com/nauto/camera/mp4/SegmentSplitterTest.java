@@ -0,0 +1,92 @@
+package com.nauto.camera.mp4;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Splitting an encoded stream at keyframes into segments that join without a gap.
+ */
+public class SegmentSplitterTest {
+    private static final int GOP = FragmentedMp4WriterTest.GOP;
+
+    private final List<File> mFiles = new ArrayList<>();
+    private final List<long[]> mFinished = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (File f : mFiles) {
+            f.delete();
+        }
+    }
+
+    private SegmentSplitter splitter() {
+        return new SegmentSplitter(1280, 720, FragmentedMp4WriterTest.codecConfig(), new SegmentSplitter.Listener() {
+            @Override
+            public File onSegmentStart(long startUs) throws IOException {
+                File f = File.createTempFile("segment" + startUs, ".mp4");
+                mFiles.add(f);
+                return f;
+            }
+
+            @Override
+            public void onSegmentFinished(File file, long startUs, long endUs) {
+                assertEquals(mFiles.get(mFinished.size()), file);
+                mFinished.add(new long[]{startUs, endUs});
+            }
+        });
+    }
+
+    private static long time(int frame) {
+        return 1000000L + frame * 1000000L / 30;
+    }
+
+    @Test
+    public void testSplitAtKeyframes() throws IOException {
+        SegmentSplitter splitter = splitter();
+        // the stream is picked up in the middle of a GOP
+        for (int i = 10; i < 300; i++) {
+            if (i == 100 || i == 200 || i == 205) {
+                splitter.requestSplit();
+            }
+            splitter.writeSampleData(FragmentedMp4WriterTest.accessUnit(i), time(i), i % GOP == 0);
+            assertEquals(i >= 100 && i < 120 || i >= 200 && i < 210, splitter.isSplitPending());
+        }
+        splitter.close();
+        assertEquals(20, splitter.getDroppedCount());
+        assertEquals(3, splitter.getSegmentCount());
+
+        int[] firstFrames = {30, 120, 210, 300};
+        assertEquals(3, mFinished.size());
+        for (int s = 0; s < 3; s++) {
+            long[] times = mFinished.get(s);
+            assertEquals(time(firstFrames[s]), times[0]);
+            // each segment ends where the next one starts, the last one a frame after its last frame
+            assertEquals(time(firstFrames[s + 1]), times[1], s < 2 ? 0 : 1);
+
+            Mp4Movie movie = Mp4Parser.parse(mFiles.get(s));
+            Mp4Track video = movie.getVideoTrack();
+            assertEquals(firstFrames[s + 1] - firstFrames[s], video.getSampleCount());
+            assertEquals(0, video.getSyncSamples()[0]);
+            assertEquals(times[1] - times[0], video.getDurationUs(), 20);
+        }
+    }
+
+    @Test
+    public void testNoKeyframe() throws IOException {
+        SegmentSplitter splitter = splitter();
+        for (int i = 1; i < GOP; i++) {
+            splitter.writeSampleData(FragmentedMp4WriterTest.accessUnit(i), time(i), false);
+        }
+        splitter.close();
+        assertEquals(0, splitter.getSegmentCount());
+        assertEquals(GOP - 1, splitter.getDroppedCount());
+        assertTrue(mFinished.isEmpty());
+    }
+}
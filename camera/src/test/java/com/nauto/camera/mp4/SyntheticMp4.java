@@ -0,0 +1,351 @@
+package com.nauto.camera.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Writes MP4 files laid out like the segments of the recorder pipeline: an H.264 track and an AAC
+ * track interleaved in half second chunks of one mdat, moov at the end. Sample payloads are zeros,
+ * the file is sparse where the platform allows it.
+ */
+public final class SyntheticMp4 {
+    public static final int VIDEO_TIMESCALE = 90000;
+    public static final int AUDIO_SAMPLE_RATE = 48000;
+    public static final int AUDIO_FRAME = 1024;
+    public static final long MOVIE_TIMESCALE = 1000;
+
+    int mSeconds = 30;
+    int mFps = 30;
+    int mGop = 30;
+    int mWidth = 1280;
+    int mHeight = 720;
+    boolean mAudio = true;
+    boolean mFastStart;
+    boolean mTagged;
+    boolean mNal;
+    long mSeed = 1;
+
+    // generated tables
+    int[] mVideoSizes;
+    int[] mAudioSizes;
+
+    public SyntheticMp4 seconds(int seconds) {
+        mSeconds = seconds;
+        return this;
+    }
+
+    public SyntheticMp4 fps(int fps) {
+        mFps = fps;
+        return this;
+    }
+
+    public SyntheticMp4 gop(int gop) {
+        mGop = gop;
+        return this;
+    }
+
+    public SyntheticMp4 size(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        return this;
+    }
+
+    public SyntheticMp4 audio(boolean audio) {
+        mAudio = audio;
+        return this;
+    }
+
+    public SyntheticMp4 fastStart(boolean fastStart) {
+        mFastStart = fastStart;
+        return this;
+    }
+
+    /**
+     * Start every sample with its track id and sample index, so copies can be verified.
+     */
+    public SyntheticMp4 tagged(boolean tagged) {
+        mTagged = tagged;
+        return this;
+    }
+
+    /**
+     * Write every video sample as one length prefixed H.264 slice and fill the audio samples with
+     * random bytes, like the mdat of a real recording.
+     */
+    public SyntheticMp4 nal(boolean nal) {
+        mNal = nal;
+        return this;
+    }
+
+    public SyntheticMp4 seed(long seed) {
+        mSeed = seed;
+        return this;
+    }
+
+    public int getVideoSampleCount() {
+        return mSeconds * mFps;
+    }
+
+    public int getAudioSampleCount() {
+        return mAudio ? (int) ((long) mSeconds * AUDIO_SAMPLE_RATE / AUDIO_FRAME) : 0;
+    }
+
+    public void write(File file) throws IOException {
+        Random random = new Random(mSeed);
+        int videoCount = getVideoSampleCount();
+        int audioCount = getAudioSampleCount();
+        mVideoSizes = new int[videoCount];
+        for (int i = 0; i < videoCount; i++) {
+            mVideoSizes[i] = i % mGop == 0 ? 60000 + random.nextInt(20000) : 8000 + random.nextInt(8000);
+        }
+        mAudioSizes = new int[audioCount];
+        for (int i = 0; i < audioCount; i++) {
+            mAudioSizes[i] = 300 + random.nextInt(100);
+        }
+        // chunks of half a second, video first
+        int videoPerChunk = Math.max(1, mFps / 2);
+        int audioPerChunk = AUDIO_SAMPLE_RATE / AUDIO_FRAME / 2;
+        int videoChunks = (videoCount + videoPerChunk - 1) / videoPerChunk;
+        int audioChunks = mAudio ? (audioCount + audioPerChunk - 1) / audioPerChunk : 0;
+        long[] videoChunkOffsets = new long[videoChunks];
+        long[] audioChunkOffsets = new long[audioChunks];
+        long mdatPayload = 0;
+        for (int i = 0; i < videoCount; i++) {
+            mdatPayload += mVideoSizes[i];
+        }
+        for (int i = 0; i < audioCount; i++) {
+            mdatPayload += mAudioSizes[i];
+        }
+
+        ByteBuffer ftyp = ByteBuffer.allocate(32);
+        ftyp.putInt(24).putInt(Mp4Box.FTYP).putInt(Mp4Box.fourcc("isom")).putInt(0)
+                .putInt(Mp4Box.fourcc("isom")).putInt(Mp4Box.fourcc("mp42"));
+        ftyp.flip();
+
+        // moov size does not depend on the offsets, so build it once to measure it
+        ByteBuffer moov = moov(videoChunkOffsets, videoPerChunk, audioChunkOffsets, audioPerChunk);
+        long mdatStart = ftyp.limit() + (mFastStart ? moov.limit() : 0);
+        long offset = mdatStart + 8;
+        long[] videoOffsets = new long[videoCount];
+        long[] audioOffsets = new long[audioCount];
+        int v = 0;
+        int a = 0;
+        for (int c = 0; c < Math.max(videoChunks, audioChunks); c++) {
+            if (c < videoChunks) {
+                videoChunkOffsets[c] = offset;
+                for (int n = 0; n < videoPerChunk && v < videoCount; n++) {
+                    videoOffsets[v] = offset;
+                    offset += mVideoSizes[v++];
+                }
+            }
+            if (c < audioChunks) {
+                audioChunkOffsets[c] = offset;
+                for (int n = 0; n < audioPerChunk && a < audioCount; n++) {
+                    audioOffsets[a] = offset;
+                    offset += mAudioSizes[a++];
+                }
+            }
+        }
+        moov = moov(videoChunkOffsets, videoPerChunk, audioChunkOffsets, audioPerChunk);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(ftyp.array(), 0, ftyp.limit());
+            if (mFastStart) {
+                raf.write(moov.array(), 0, moov.limit());
+            }
+            raf.writeInt((int) (mdatPayload + 8));
+            raf.writeInt(Mp4Box.MDAT);
+            raf.setLength(mdatStart + 8 + mdatPayload);
+            if (mTagged) {
+                tag(raf, 1, videoOffsets);
+                tag(raf, 2, audioOffsets);
+            }
+            if (mNal) {
+                nal(raf, videoOffsets, audioOffsets, random);
+            }
+            if (!mFastStart) {
+                raf.seek(mdatStart + 8 + mdatPayload);
+                raf.write(moov.array(), 0, moov.limit());
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void tag(RandomAccessFile raf, int trackId, long[] offsets) throws IOException {
+        for (int i = 0; i < offsets.length; i++) {
+            raf.seek(offsets[i]);
+            raf.writeInt(trackId);
+            raf.writeInt(i);
+        }
+    }
+
+    private void nal(RandomAccessFile raf, long[] videoOffsets, long[] audioOffsets, Random random) throws IOException {
+        for (int i = 0; i < videoOffsets.length; i++) {
+            raf.seek(videoOffsets[i]);
+            raf.writeInt(mVideoSizes[i] - 4);
+            // IDR or non-IDR slice header, first_mb_in_slice == 0
+            raf.write(i % mGop == 0 ? 0x65 : 0x41);
+            raf.write(0x88);
+        }
+        for (int i = 0; i < audioOffsets.length; i++) {
+            byte[] frame = new byte[mAudioSizes[i]];
+            random.nextBytes(frame);
+            raf.seek(audioOffsets[i]);
+            raf.write(frame);
+        }
+    }
+
+    /**
+     * @return track id and sample index written by {@link #tagged} at the offset
+     */
+    public static long readTag(RandomAccessFile raf, long offset) throws IOException {
+        raf.seek(offset);
+        return (long) raf.readInt() << 32 | raf.readInt();
+    }
+
+    private ByteBuffer moov(long[] videoChunkOffsets, int videoPerChunk, long[] audioChunkOffsets, int audioPerChunk) {
+        ByteBuffer b = ByteBuffer.allocate(64 * 1024 + 8 * (mVideoSizes.length + mAudioSizes.length));
+        int moov = begin(b, Mp4Box.MOOV);
+        int mvhd = begin(b, Mp4Box.MVHD);
+        b.putInt(0).putInt(0).putInt(0).putInt((int) MOVIE_TIMESCALE).putInt(mSeconds * 1000);
+        b.putInt(0x00010000).putShort((short) 0x0100).put(new byte[10]);
+        putMatrix(b);
+        b.put(new byte[24]).putInt(mAudio ? 3 : 2);
+        end(b, mvhd);
+
+        int trak = begin(b, Mp4Box.TRAK);
+        tkhd(b, 1, mSeconds * 1000, mWidth, mHeight);
+        int mdia = begin(b, Mp4Box.MDIA);
+        mdhd(b, VIDEO_TIMESCALE, (long) mVideoSizes.length * (VIDEO_TIMESCALE / mFps));
+        hdlr(b, Mp4Box.HANDLER_VIDEO, "VideoHandle");
+        int minf = begin(b, Mp4Box.MINF);
+        int stbl = begin(b, Mp4Box.STBL);
+        int stsd = begin(b, Mp4Box.STSD);
+        b.putInt(0).putInt(1);
+        int avc1 = begin(b, Mp4Box.AVC1);
+        b.put(new byte[6]).putShort((short) 1).put(new byte[16]).putShort((short) mWidth).putShort((short) mHeight);
+        b.putInt(0x00480000).putInt(0x00480000).putInt(0).putShort((short) 1).put(new byte[32]);
+        b.putShort((short) 0x18).putShort((short) -1);
+        int avcc = begin(b, Mp4Box.AVCC);
+        byte[] sps = {0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8};
+        byte[] pps = {0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+        b.put((byte) 1).put(sps[1]).put(sps[2]).put(sps[3]).put((byte) 0xff).put((byte) 0xe1);
+        b.putShort((short) sps.length).put(sps).put((byte) 1).putShort((short) pps.length).put(pps);
+        end(b, avcc);
+        end(b, avc1);
+        end(b, stsd);
+        int stts = begin(b, Mp4Box.STTS);
+        b.putInt(0).putInt(1).putInt(mVideoSizes.length).putInt(VIDEO_TIMESCALE / mFps);
+        end(b, stts);
+        int stss = begin(b, Mp4Box.STSS);
+        int syncCount = (mVideoSizes.length + mGop - 1) / mGop;
+        b.putInt(0).putInt(syncCount);
+        for (int i = 0; i < syncCount; i++) {
+            b.putInt(i * mGop + 1);
+        }
+        end(b, stss);
+        tables(b, mVideoSizes, videoChunkOffsets, videoPerChunk);
+        end(b, stbl);
+        end(b, minf);
+        end(b, mdia);
+        end(b, trak);
+
+        if (mAudio) {
+            trak = begin(b, Mp4Box.TRAK);
+            tkhd(b, 2, mSeconds * 1000, 0, 0);
+            mdia = begin(b, Mp4Box.MDIA);
+            mdhd(b, AUDIO_SAMPLE_RATE, (long) mAudioSizes.length * AUDIO_FRAME);
+            hdlr(b, Mp4Box.HANDLER_SOUND, "SoundHandle");
+            minf = begin(b, Mp4Box.MINF);
+            stbl = begin(b, Mp4Box.STBL);
+            stsd = begin(b, Mp4Box.STSD);
+            b.putInt(0).putInt(1);
+            int mp4a = begin(b, Mp4Box.MP4A);
+            b.put(new byte[6]).putShort((short) 1).put(new byte[8]).putShort((short) 1).putShort((short) 16);
+            b.putInt(0).putInt(AUDIO_SAMPLE_RATE << 16);
+            int esds = begin(b, Mp4Box.ESDS);
+            b.putInt(0);
+            byte[] descriptors = {0x03, 0x19, 0x00, 0x00, 0x00, 0x04, 0x11, 0x40, 0x15, 0x00, 0x00, 0x00,
+                    0x00, 0x01, (byte) 0xf4, 0x00, 0x00, 0x01, (byte) 0xf4, 0x00, 0x05, 0x02, 0x11, (byte) 0x88, 0x06, 0x01, 0x02};
+            b.put(descriptors);
+            end(b, esds);
+            end(b, mp4a);
+            end(b, stsd);
+            stts = begin(b, Mp4Box.STTS);
+            b.putInt(0).putInt(1).putInt(mAudioSizes.length).putInt(AUDIO_FRAME);
+            end(b, stts);
+            tables(b, mAudioSizes, audioChunkOffsets, audioPerChunk);
+            end(b, stbl);
+            end(b, minf);
+            end(b, mdia);
+            end(b, trak);
+        }
+        end(b, moov);
+        b.flip();
+        return b;
+    }
+
+    private static void tables(ByteBuffer b, int[] sizes, long[] chunkOffsets, int perChunk) {
+        int stsz = begin(b, Mp4Box.STSZ);
+        b.putInt(0).putInt(0).putInt(sizes.length);
+        for (int size : sizes) {
+            b.putInt(size);
+        }
+        end(b, stsz);
+        int stsc = begin(b, Mp4Box.STSC);
+        int last = sizes.length - (chunkOffsets.length - 1) * perChunk;
+        if (last == perChunk) {
+            b.putInt(0).putInt(1).putInt(1).putInt(perChunk).putInt(1);
+        } else {
+            b.putInt(0).putInt(2).putInt(1).putInt(perChunk).putInt(1).putInt(chunkOffsets.length).putInt(last).putInt(1);
+        }
+        end(b, stsc);
+        int stco = begin(b, Mp4Box.STCO);
+        b.putInt(0).putInt(chunkOffsets.length);
+        for (long offset : chunkOffsets) {
+            b.putInt((int) offset);
+        }
+        end(b, stco);
+    }
+
+    private static void tkhd(ByteBuffer b, int trackId, long duration, int width, int height) {
+        int tkhd = begin(b, Mp4Box.TKHD);
+        b.putInt(7).putInt(0).putInt(0).putInt(trackId).putInt(0).putInt((int) duration);
+        b.put(new byte[8]).putShort((short) 0).putShort((short) 0).putShort((short) (width == 0 ? 0x0100 : 0)).putShort((short) 0);
+        putMatrix(b);
+        b.putInt(width << 16).putInt(height << 16);
+        end(b, tkhd);
+    }
+
+    private static void mdhd(ByteBuffer b, int timescale, long duration) {
+        int mdhd = begin(b, Mp4Box.MDHD);
+        b.putInt(0).putInt(0).putInt(0).putInt(timescale).putInt((int) duration).putShort((short) 0x55c4).putShort((short) 0);
+        end(b, mdhd);
+    }
+
+    private static void hdlr(ByteBuffer b, int handler, String name) {
+        int hdlr = begin(b, Mp4Box.HDLR);
+        b.putInt(0).putInt(0).putInt(handler).put(new byte[12]).put(name.getBytes()).put((byte) 0);
+        end(b, hdlr);
+    }
+
+    private static void putMatrix(ByteBuffer b) {
+        b.putInt(0x00010000).putInt(0).putInt(0).putInt(0).putInt(0x00010000).putInt(0).putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    private static int begin(ByteBuffer b, int type) {
+        int p = b.position();
+        b.putInt(0).putInt(type);
+        return p;
+    }
+
+    private static void end(ByteBuffer b, int p) {
+        b.putInt(p, b.position() - p);
+    }
+}